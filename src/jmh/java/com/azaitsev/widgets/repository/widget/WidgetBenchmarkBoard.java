@@ -0,0 +1,104 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.WidgetRepositoryProperties;
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+/*
+    Board the benchmarks run against - widgets with z indexes from 1 to the size of the board without gaps,
+    spread over a square so that area queries have something to skip.
+ */
+class WidgetBenchmarkBoard implements Closeable {
+    private static final int ID_PAGE_SIZE = 10_000;
+
+    private final WidgetRepository repository;
+    private final Path file;
+    // Ids in the z order the board is filled in
+    private final UUID[] widgetIds;
+
+    /*
+        With meters the repository is bound to a Prometheus registry, the way the application binds it
+     */
+    WidgetBenchmarkBoard(WidgetRepositoryProperties.Type type, int size, boolean meters) throws IOException {
+        if (type == WidgetRepositoryProperties.Type.MAPPED_FILE) {
+            file = Files.createTempFile("widgets-benchmark", ".dat");
+            repository = new WidgetMappedFileRepository(file);
+        } else {
+            file = null;
+            repository = getRepository(type);
+        }
+
+        repository.importAll(IntStream.rangeClosed(1, size).mapToObj(z -> getChangeSet(z, size)));
+        widgetIds = new UUID[size];
+
+        int index = 0;
+        Integer zCursor = null;
+        List<ImmutableWidget> page;
+        do {
+            page = repository.getPageAfter(zCursor, ID_PAGE_SIZE);
+            for (ImmutableWidget widget : page) {
+                widgetIds[index++] = widget.getId();
+            }
+            zCursor = page.isEmpty() ? zCursor : page.get(page.size() - 1).getZ();
+        } while (page.size() == ID_PAGE_SIZE);
+
+        if (meters) {
+            repository.bindTo(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT));
+        }
+    }
+
+    WidgetRepository getRepository() {
+        return repository;
+    }
+
+    UUID[] getWidgetIds() {
+        return widgetIds;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (repository instanceof Closeable) {
+            ((Closeable) repository).close();
+        }
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    static WidgetChangeSet getChangeSet(Integer z, int size) {
+        int side = (int) Math.sqrt(size) + 1;
+        int position = z == null ? 0 : Math.floorMod(z, size);
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+
+        changeSet.setX(position % side * 100);
+        changeSet.setY(position / side * 100);
+        changeSet.setZ(z);
+        changeSet.setHeight(150);
+        changeSet.setWidth(150);
+
+        return changeSet;
+    }
+
+    private static WidgetRepository getRepository(WidgetRepositoryProperties.Type type) throws IOException {
+        switch (type) {
+            case CONCURRENT_IN_MEMORY:
+                return new WidgetConcurrentInMemoryRepository();
+            case COLUMNAR:
+                return new WidgetColumnarRepository();
+            case SINGLE_WRITER:
+                return new WidgetSingleWriterRepository();
+            default:
+                return new WidgetInMemoryRepository();
+        }
+    }
+}
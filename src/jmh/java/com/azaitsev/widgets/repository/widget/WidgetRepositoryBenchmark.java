@@ -0,0 +1,158 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.WidgetRepositoryProperties;
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Single-threaded cost of the hot paths of every repository, for boards from a thousand to ten million widgets.
+    Boards of ten million widgets need a large heap, e.g. -jvmArgs -Xmx8g.
+
+    Writing benchmarks put the board back into its initial shape - a run of widgets without gaps - after every
+    operation, so that the cost doesn't drift while the benchmark runs. The extra work is named in each of them,
+    its own cost can be taken from the benchmarks of the corresponding operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WidgetRepositoryBenchmark {
+    private static final int PAGE_SIZE = 10;
+
+    @Param({"IN_MEMORY", "CONCURRENT_IN_MEMORY", "COLUMNAR", "MAPPED_FILE", "SINGLE_WRITER"})
+    private WidgetRepositoryProperties.Type repositoryType;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    private int boardSize;
+
+    // Pass -p meters=false,true to see what the repository meters cost
+    @Param({"false"})
+    private boolean meters;
+
+    private WidgetBenchmarkBoard board;
+    private WidgetRepository repository;
+    // Z index of the bottom widget, the run of widgets moves up with every shift of the whole board
+    private int bottomZ;
+    private int widgetIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        board = new WidgetBenchmarkBoard(repositoryType, boardSize, meters);
+        repository = board.getRepository();
+        bottomZ = 1;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        board.close();
+    }
+
+    /*
+        Widget goes on top of the board, nothing is shifted. Includes deletion of the widget.
+     */
+    @Benchmark
+    public ImmutableWidget createOnTop() {
+        ImmutableWidget widget = repository.create(WidgetBenchmarkBoard.getChangeSet(null, boardSize));
+        repository.delete(widget.getId());
+        return widget;
+    }
+
+    /*
+        Widget takes a free z index below the board, nothing is shifted. Includes deletion of the widget.
+     */
+    @Benchmark
+    public ImmutableWidget createWithoutCollision() {
+        ImmutableWidget widget = repository.create(WidgetBenchmarkBoard.getChangeSet(bottomZ - 1, boardSize));
+        repository.delete(widget.getId());
+        return widget;
+    }
+
+    /*
+        Widget takes the z index of the bottom widget, so the whole board is shifted as one contiguous run.
+        Includes deletion of the widget, which leaves the board one step higher.
+     */
+    @Benchmark
+    public ImmutableWidget createWithCollision() {
+        ImmutableWidget widget = repository.create(WidgetBenchmarkBoard.getChangeSet(bottomZ, boardSize));
+        repository.delete(widget.getId());
+        bottomZ++;
+        return widget;
+    }
+
+    /*
+        Bottom widget is moved into the middle of the board, so the upper half of it is shifted.
+        The board stays without gaps one step higher. Includes fetching of the bottom widget.
+     */
+    @Benchmark
+    public ImmutableWidget updateWithZMove() {
+        ImmutableWidget bottomWidget = repository.getPage(1, 0).get(0);
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+        changeSet.setZ(bottomZ + boardSize / 2);
+
+        ImmutableWidget widget = repository.update(bottomWidget.getId(), changeSet);
+        bottomZ++;
+        return widget;
+    }
+
+    /*
+        Widget stays where it is in z order
+     */
+    @Benchmark
+    public ImmutableWidget updateInPlace() {
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+        changeSet.setX(widgetIndex);
+
+        return repository.update(nextWidgetId(), changeSet);
+    }
+
+    @Benchmark
+    public ImmutableWidget get() {
+        return repository.get(nextWidgetId()).orElseThrow();
+    }
+
+    @Benchmark
+    public List<ImmutableWidget> getPageShallow() {
+        return repository.getPage(PAGE_SIZE, 0);
+    }
+
+    @Benchmark
+    public List<ImmutableWidget> getPageMiddle() {
+        return repository.getPage(PAGE_SIZE, boardSize / 2);
+    }
+
+    @Benchmark
+    public List<ImmutableWidget> getPageDeep() {
+        return repository.getPage(PAGE_SIZE, boardSize - PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<ImmutableWidget> getPageAfterCursorDeep() {
+        return repository.getPageAfter(bottomZ + boardSize - PAGE_SIZE - 1, PAGE_SIZE);
+    }
+
+    private UUID nextWidgetId() {
+        UUID[] widgetIds = board.getWidgetIds();
+        widgetIndex = widgetIndex + 1 == widgetIds.length ? 0 : widgetIndex + 1;
+        return widgetIds[widgetIndex];
+    }
+}
@@ -0,0 +1,110 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.WidgetRepositoryProperties;
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Reads of single widgets while other threads write to the board - three readers per writer.
+    Writers either keep widgets in place or move them in z order, which shifts the widgets above
+    and holds the lock of the board for much longer.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WidgetRepositoryContentionBenchmark {
+    @Param({"IN_MEMORY", "CONCURRENT_IN_MEMORY", "COLUMNAR", "MAPPED_FILE", "SINGLE_WRITER"})
+    private WidgetRepositoryProperties.Type repositoryType;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    private int boardSize;
+
+    // Pass -p meters=false,true to see what the repository meters cost
+    @Param({"false"})
+    private boolean meters;
+
+    private WidgetBenchmarkBoard board;
+    private WidgetRepository repository;
+    private UUID[] widgetIds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        board = new WidgetBenchmarkBoard(repositoryType, boardSize, meters);
+        repository = board.getRepository();
+        widgetIds = board.getWidgetIds();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        board.close();
+    }
+
+    @Benchmark
+    @Group("inPlaceUpdates")
+    @GroupThreads(3)
+    public ImmutableWidget getWhileUpdatingInPlace() {
+        return get();
+    }
+
+    @Benchmark
+    @Group("inPlaceUpdates")
+    @GroupThreads(1)
+    public ImmutableWidget updateInPlace() {
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+        changeSet.setX(ThreadLocalRandom.current().nextInt());
+
+        return repository.update(getRandomWidgetId(), changeSet);
+    }
+
+    @Benchmark
+    @Group("zMoves")
+    @GroupThreads(3)
+    public ImmutableWidget getWhileMovingInZOrder() {
+        return get();
+    }
+
+    /*
+        Moves a random widget to a random z index of the board, which shifts up to half of the board on average -
+        less as the moves leave gaps behind.
+     */
+    @Benchmark
+    @Group("zMoves")
+    @GroupThreads(1)
+    public ImmutableWidget updateWithZMove() {
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+        changeSet.setZ(ThreadLocalRandom.current().nextInt(1, boardSize + 1));
+
+        return repository.update(getRandomWidgetId(), changeSet);
+    }
+
+    private ImmutableWidget get() {
+        return repository.get(getRandomWidgetId()).orElseThrow();
+    }
+
+    private UUID getRandomWidgetId() {
+        return widgetIds[ThreadLocalRandom.current().nextInt(widgetIds.length)];
+    }
+}
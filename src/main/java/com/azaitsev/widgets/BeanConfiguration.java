@@ -1,22 +1,176 @@
 package com.azaitsev.widgets;
 
+import com.azaitsev.widgets.controller.v1.widget.WidgetChangeBroadcaster;
+import com.azaitsev.widgets.repository.widget.WidgetColumnarRepository;
+import com.azaitsev.widgets.repository.widget.WidgetConcurrentInMemoryRepository;
 import com.azaitsev.widgets.repository.widget.WidgetInMemoryRepository;
+import com.azaitsev.widgets.repository.widget.WidgetMappedFileRepository;
 import com.azaitsev.widgets.repository.widget.WidgetRepository;
+import com.azaitsev.widgets.repository.widget.WidgetSingleWriterRepository;
+import com.azaitsev.widgets.repository.widget.WidgetSnapshot;
+import com.azaitsev.widgets.repository.widget.WidgetSnapshotter;
+import com.azaitsev.widgets.repository.widget.WidgetWriteAheadLog;
+import com.azaitsev.widgets.repository.widget.WidgetZAxisCompactor;
+import com.azaitsev.widgets.service.widget.TimedWidgetService;
+import com.azaitsev.widgets.service.widget.WidgetAsyncService;
+import com.azaitsev.widgets.service.widget.WidgetAsyncServiceImpl;
+import com.azaitsev.widgets.service.widget.WidgetBoardService;
+import com.azaitsev.widgets.service.widget.WidgetBoardServiceImpl;
 import com.azaitsev.widgets.service.widget.WidgetService;
 import com.azaitsev.widgets.service.widget.WidgetServiceImpl;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.io.IOException;
+import java.nio.file.Files;
+
 @Configuration
+@EnableConfigurationProperties({
+        WidgetRepositoryProperties.class,
+        WidgetBoardProperties.class,
+        WidgetAsyncProperties.class
+})
 public class BeanConfiguration {
 
     @Bean
-    public WidgetRepository getWidgetRepository() {
-        return new WidgetInMemoryRepository();
+    public WidgetRepository getWidgetRepository(WidgetRepositoryProperties properties) throws IOException {
+        switch (properties.getType()) {
+            case CONCURRENT_IN_MEMORY:
+                return new WidgetConcurrentInMemoryRepository();
+            case COLUMNAR:
+                return new WidgetColumnarRepository();
+            case MAPPED_FILE:
+                // Closed by the context on shutdown, which flushes the file
+                return new WidgetMappedFileRepository(properties.getMappedFile().getPath());
+            case SINGLE_WRITER:
+                // Closed by the context on shutdown, which applies the commands left in the ring
+                return new WidgetSingleWriterRepository(
+                        getInMemoryRepository(properties),
+                        properties.getSingleWriter().getRingSize()
+                );
+            default:
+                return getInMemoryRepository(properties);
+        }
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "widgets.repository.snapshot.enabled", havingValue = "true")
+    public WidgetSnapshotter getWidgetSnapshotter(
+            WidgetRepository widgetRepository,
+            WidgetRepositoryProperties properties
+    ) {
+        WidgetInMemoryRepository inMemoryRepository = findInMemoryRepository(widgetRepository);
+        if (inMemoryRepository == null) {
+            throw new IllegalStateException("Snapshots are supported only by in-memory repository");
+        }
+
+        return new WidgetSnapshotter(
+                inMemoryRepository,
+                properties.getSnapshot().getPath(),
+                properties.getSnapshot().getInterval()
+        );
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "widgets.repository.compaction.enabled", havingValue = "true")
+    public WidgetZAxisCompactor getWidgetZAxisCompactor(
+            WidgetRepository widgetRepository,
+            WidgetRepositoryProperties properties
+    ) {
+        WidgetInMemoryRepository inMemoryRepository = findInMemoryRepository(widgetRepository);
+        if (inMemoryRepository == null) {
+            throw new IllegalStateException("Compaction is supported only by in-memory repository");
+        }
+
+        return new WidgetZAxisCompactor(
+                inMemoryRepository,
+                properties.getCompaction().getSpacing(),
+                properties.getCompaction().getStepSize(),
+                properties.getCompaction().getInterval()
+        );
+    }
+
+    /*
+        Repository is bound to the registry by the context itself, as it is a MeterBinder
+     */
+    @Bean
+    public WidgetService getWidgetService(WidgetRepository widgetRepository, MeterRegistry meterRegistry) {
+        return new TimedWidgetService(new WidgetServiceImpl(widgetRepository), meterRegistry);
     }
 
+    /*
+        Closed by the context on shutdown, which writes loaded boards to the disk
+     */
     @Bean
-    public WidgetService getWidgetService(WidgetRepository widgetRepository) {
-        return new WidgetServiceImpl(widgetRepository);
+    public WidgetBoardService getWidgetBoardService(
+            WidgetBoardProperties properties,
+            MeterRegistry meterRegistry
+    ) throws IOException {
+        return new WidgetBoardServiceImpl(
+                properties.getDirectory(),
+                properties.getIdleTimeout(),
+                properties.getEvictionInterval(),
+                meterRegistry
+        );
+    }
+
+    /*
+        Closed by the context on shutdown before the services it uses, which finishes the queued requests
+     */
+    @Bean
+    public WidgetAsyncService getWidgetAsyncService(
+            WidgetService widgetService,
+            WidgetBoardService boardService,
+            WidgetAsyncProperties properties
+    ) {
+        return new WidgetAsyncServiceImpl(
+                widgetService,
+                boardService,
+                properties.getPoolSize(),
+                properties.getQueueCapacity()
+        );
+    }
+
+    @Bean
+    public WidgetChangeBroadcaster getWidgetChangeBroadcaster() {
+        return new WidgetChangeBroadcaster();
+    }
+
+    /*
+        Single writer repository applies changes to an in-memory one, which snapshots and compaction work with directly
+     */
+    private WidgetInMemoryRepository findInMemoryRepository(WidgetRepository widgetRepository) {
+        if (widgetRepository instanceof WidgetSingleWriterRepository) {
+            return ((WidgetSingleWriterRepository) widgetRepository).getInMemoryRepository();
+        }
+        if (widgetRepository instanceof WidgetInMemoryRepository) {
+            return (WidgetInMemoryRepository) widgetRepository;
+        }
+        return null;
+    }
+
+    private WidgetInMemoryRepository getInMemoryRepository(WidgetRepositoryProperties properties) throws IOException {
+        WidgetSnapshot snapshot = null;
+        if (properties.getSnapshot().isEnabled() && Files.exists(properties.getSnapshot().getPath())) {
+            snapshot = WidgetSnapshot.readFrom(properties.getSnapshot().getPath());
+        }
+
+        WidgetWriteAheadLog writeAheadLog = null;
+        if (properties.getWriteAheadLog().isEnabled()) {
+            writeAheadLog = new WidgetWriteAheadLog(
+                    properties.getWriteAheadLog().getPath(),
+                    properties.getWriteAheadLog().getCommitWindow()
+            );
+        }
+
+        return new WidgetInMemoryRepository(
+                snapshot,
+                writeAheadLog,
+                properties.getScanSnapshot().getMaxRetained(),
+                properties.getScanSnapshot().getIdleTimeout()
+        );
     }
 }
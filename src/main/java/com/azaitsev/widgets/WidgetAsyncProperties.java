@@ -0,0 +1,29 @@
+package com.azaitsev.widgets;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/*
+    Workers that run requests to boards off the request threads of the container.
+    Requests beyond the pool size wait in the queue, requests beyond the queue capacity are answered with 503.
+ */
+@ConfigurationProperties(prefix = "widgets.async")
+public class WidgetAsyncProperties {
+    private int poolSize = 64;
+    private int queueCapacity = 10_000;
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+}
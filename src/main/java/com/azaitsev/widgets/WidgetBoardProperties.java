@@ -0,0 +1,42 @@
+package com.azaitsev.widgets;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+/*
+    Boards served under api/v1/boards/{boardId}/widgets, each of them in its own in-memory repository.
+    Boards that were not accessed for the idle timeout are written to the directory and dropped from memory.
+ */
+@ConfigurationProperties(prefix = "widgets.boards")
+public class WidgetBoardProperties {
+    private Path directory = Paths.get("boards");
+    private Duration idleTimeout = Duration.ofMinutes(10);
+    private Duration evictionInterval = Duration.ofMinutes(1);
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(Path directory) {
+        this.directory = directory;
+    }
+
+    public Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(Duration idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public Duration getEvictionInterval() {
+        return evictionInterval;
+    }
+
+    public void setEvictionInterval(Duration evictionInterval) {
+        this.evictionInterval = evictionInterval;
+    }
+}
@@ -0,0 +1,226 @@
+package com.azaitsev.widgets;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.nio.file.Paths;
+
+/*
+    Selects the repository implementation that stores widgets, see README for the trade-offs
+ */
+@ConfigurationProperties(prefix = "widgets.repository")
+public class WidgetRepositoryProperties {
+
+    public enum Type {
+        IN_MEMORY,
+        CONCURRENT_IN_MEMORY,
+        COLUMNAR,
+        MAPPED_FILE,
+        SINGLE_WRITER
+    }
+
+    private Type type = Type.IN_MEMORY;
+    private final MappedFile mappedFile = new MappedFile();
+    private final WriteAheadLog writeAheadLog = new WriteAheadLog();
+    private final Snapshot snapshot = new Snapshot();
+    private final SingleWriter singleWriter = new SingleWriter();
+    private final ScanSnapshot scanSnapshot = new ScanSnapshot();
+    private final Compaction compaction = new Compaction();
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public MappedFile getMappedFile() {
+        return mappedFile;
+    }
+
+    public WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public SingleWriter getSingleWriter() {
+        return singleWriter;
+    }
+
+    public ScanSnapshot getScanSnapshot() {
+        return scanSnapshot;
+    }
+
+    public Compaction getCompaction() {
+        return compaction;
+    }
+
+    public static class MappedFile {
+        private Path path = Paths.get("widgets.dat");
+
+        public Path getPath() {
+            return path;
+        }
+
+        public void setPath(Path path) {
+            this.path = path;
+        }
+    }
+
+    /*
+        Makes in-memory and single-writer repositories durable, other types ignore it
+     */
+    public static class WriteAheadLog {
+        private boolean enabled = false;
+        private Path path = Paths.get("widgets.wal");
+        // Writers committing within the window share one fsync
+        private Duration commitWindow = Duration.ofMillis(2);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public void setPath(Path path) {
+            this.path = path;
+        }
+
+        public Duration getCommitWindow() {
+            return commitWindow;
+        }
+
+        public void setCommitWindow(Duration commitWindow) {
+            this.commitWindow = commitWindow;
+        }
+    }
+
+    /*
+        Periodic snapshots of in-memory repository, other types ignore it
+     */
+    public static class Snapshot {
+        private boolean enabled = false;
+        private Path path = Paths.get("widgets.snapshot");
+        private Duration interval = Duration.ofMinutes(5);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public void setPath(Path path) {
+            this.path = path;
+        }
+
+        public Duration getInterval() {
+            return interval;
+        }
+
+        public void setInterval(Duration interval) {
+            this.interval = interval;
+        }
+    }
+
+    /*
+        Ring of commands waiting for the writer thread of single-writer repository, other types ignore it
+     */
+    public static class SingleWriter {
+        // Power of two, publishers wait for the writer once the ring is full
+        private int ringSize = 1024;
+
+        public int getRingSize() {
+            return ringSize;
+        }
+
+        public void setRingSize(int ringSize) {
+            this.ringSize = ringSize;
+        }
+    }
+
+    /*
+        Versions of z order retained for paginated scans of in-memory and single-writer repositories,
+        other types read every page from the live board
+     */
+    public static class ScanSnapshot {
+        // Least recently read version is reclaimed once there are more of them
+        private int maxRetained = 64;
+        private Duration idleTimeout = Duration.ofMinutes(1);
+
+        public int getMaxRetained() {
+            return maxRetained;
+        }
+
+        public void setMaxRetained(int maxRetained) {
+            this.maxRetained = maxRetained;
+        }
+
+        public Duration getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public void setIdleTimeout(Duration idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+    }
+
+    /*
+        Periodic spreading of z indexes of in-memory repository, other types ignore it
+     */
+    public static class Compaction {
+        private boolean enabled = false;
+        private int spacing = 1024;
+        // Widgets renumbered under a single acquisition of the write lock
+        private int stepSize = 256;
+        private Duration interval = Duration.ofMinutes(5);
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getSpacing() {
+            return spacing;
+        }
+
+        public void setSpacing(int spacing) {
+            this.spacing = spacing;
+        }
+
+        public int getStepSize() {
+            return stepSize;
+        }
+
+        public void setStepSize(int stepSize) {
+            this.stepSize = stepSize;
+        }
+
+        public Duration getInterval() {
+            return interval;
+        }
+
+        public void setInterval(Duration interval) {
+            this.interval = interval;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.azaitsev.widgets.controller.v1.widget;
+
+import com.azaitsev.widgets.controller.v1.widget.dto.FetchedWidgetChange;
+import com.azaitsev.widgets.repository.widget.WidgetChange;
+import com.azaitsev.widgets.repository.widget.WidgetChangeFeed;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Streams changes of the board to subscribers as server-sent events.
+
+    Writers only schedule a dispatch, so they never wait for slow clients. A single thread then reads the changes
+    after the cursor of every subscriber into a bounded queue of its own, and dispatches requested while one
+    is scheduled are merged into it. Events are sent from the queue by a sender thread of the subscriber, so a slow
+    client holds up nobody else. Subscriber whose queue overflows is completed, and resumes from the last event
+    it got once it reconnects. Subscriber that has fallen behind the feed, or resumes from an event of another feed,
+    gets a reset event and continues from the latest change.
+    Every subscription listens to the feed of its own board while it lasts, so boards with subscribers are kept loaded.
+ */
+public class WidgetChangeBroadcaster implements Closeable {
+    static final int DEFAULT_QUEUE_CAPACITY = 4_096;
+    private static final int DISPATCH_CHUNK_SIZE = 1_000;
+    private static final long SUBSCRIPTION_TIMEOUT_MILLIS = Duration.ofMinutes(30).toMillis();
+    private static final String RESET_EVENT = "reset";
+
+    private final int queueCapacity;
+    private final Set<Subscription> subscriptions;
+    private final ExecutorService dispatcher;
+    private final ExecutorService senders;
+    private final AtomicBoolean dispatchScheduled;
+
+    public WidgetChangeBroadcaster() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    WidgetChangeBroadcaster(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity should be positive");
+        }
+
+        this.queueCapacity = queueCapacity;
+        subscriptions = ConcurrentHashMap.newKeySet();
+        dispatcher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "widget-change-broadcaster");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // A thread is taken only while a subscriber has events to send, so there are as many as slow subscribers
+        senders = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "widget-change-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dispatchScheduled = new AtomicBoolean();
+    }
+
+    /*
+        Subscribes to the changes after the specified event, or to the upcoming ones if it is not specified
+     */
+    SseEmitter subscribe(WidgetChangeFeed changeFeed, WidgetChangeEventId lastEventId) {
+        return subscribe(changeFeed, lastEventId, new SseEmitter(SUBSCRIPTION_TIMEOUT_MILLIS));
+    }
+
+    SseEmitter subscribe(WidgetChangeFeed changeFeed, WidgetChangeEventId lastEventId, SseEmitter emitter) {
+        boolean resumable = lastEventId == null || lastEventId.isOf(changeFeed.getEpoch());
+        long cursor = lastEventId != null && resumable ? lastEventId.getSequence() : changeFeed.getLastSequence();
+        Subscription subscription = new Subscription(
+                emitter,
+                changeFeed,
+                cursor,
+                !resumable,
+                new ArrayBlockingQueue<>(queueCapacity),
+                this::scheduleDispatch
+        );
+
+        emitter.onCompletion(() -> unsubscribe(subscription));
+        emitter.onTimeout(() -> unsubscribe(subscription));
+        emitter.onError(e -> unsubscribe(subscription));
+        subscriptions.add(subscription);
+        changeFeed.addListener(subscription.changeListener);
+
+        // Catch the subscriber up with the changes it has missed
+        scheduleDispatch();
+        return emitter;
+    }
+
+    /*
+        Completes every subscription once the events already queued for it are sent
+     */
+    @Override
+    public void close() {
+        dispatcher.shutdownNow();
+        for (Subscription subscription : subscriptions) {
+            finish(subscription, false);
+        }
+        senders.shutdown();
+    }
+
+    private void unsubscribe(Subscription subscription) {
+        subscriptions.remove(subscription);
+        subscription.changeFeed.removeListener(subscription.changeListener);
+    }
+
+    /*
+        Emitter is completed by the sender thread, as completing it waits for the event being sent
+     */
+    private void finish(Subscription subscription, boolean dropQueued) {
+        unsubscribe(subscription);
+        subscription.finished = true;
+        if (dropQueued) {
+            subscription.events.clear();
+        }
+        scheduleSend(subscription);
+    }
+
+    private void scheduleDispatch() {
+        if (!dispatchScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            dispatcher.execute(this::dispatch);
+        } catch (RejectedExecutionException e) {
+            // Broadcaster is closed, there is nobody to dispatch to
+        }
+    }
+
+    private void dispatch() {
+        // Reset before reading the feed, so changes made while dispatching schedule another dispatch
+        dispatchScheduled.set(false);
+
+        for (Subscription subscription : subscriptions) {
+            if (enqueue(subscription)) {
+                scheduleSend(subscription);
+            } else {
+                // Client can't keep up, it reconnects with the id of the last event it got and resumes from there
+                finish(subscription, true);
+            }
+        }
+    }
+
+    /*
+        False if the queue of the subscriber overflows
+     */
+    private boolean enqueue(Subscription subscription) {
+        long epoch = subscription.changeFeed.getEpoch();
+        List<WidgetChange> changes;
+        do {
+            Optional<List<WidgetChange>> changesAfter = subscription.resetPending
+                    ? Optional.empty()
+                    : subscription.changeFeed.getChangesAfter(subscription.cursor, DISPATCH_CHUNK_SIZE);
+            if (changesAfter.isEmpty()) {
+                long lastSequence = subscription.changeFeed.getLastSequence();
+                String eventId = WidgetChangeEventId.encode(epoch, lastSequence);
+                subscription.resetPending = false;
+                subscription.cursor = lastSequence;
+                return subscription.events.offer(SseEmitter.event()
+                        .id(eventId)
+                        .name(RESET_EVENT)
+                        .data(eventId));
+            }
+
+            changes = changesAfter.get();
+            for (WidgetChange change : changes) {
+                boolean queued = subscription.events.offer(SseEmitter.event()
+                        .id(WidgetChangeEventId.encode(epoch, change.getSequence()))
+                        .name(change.getType().name().toLowerCase(Locale.ROOT))
+                        .data(new FetchedWidgetChange(change)));
+                if (!queued) {
+                    return false;
+                }
+                subscription.cursor = change.getSequence();
+            }
+        } while (changes.size() == DISPATCH_CHUNK_SIZE);
+        return true;
+    }
+
+    private void scheduleSend(Subscription subscription) {
+        if (!subscription.sendScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            senders.execute(() -> send(subscription));
+        } catch (RejectedExecutionException e) {
+            // Broadcaster is closed, the container completes the response on its own
+        }
+    }
+
+    /*
+        Only one sender of a subscription runs at a time, it checks the queue once again after leaving,
+        so either it sees the events queued meanwhile or the one who queued them schedules another sender
+     */
+    private void send(Subscription subscription) {
+        do {
+            try {
+                SseEmitter.SseEventBuilder event;
+                while (!subscription.completed && (event = subscription.events.poll()) != null) {
+                    subscription.emitter.send(event);
+                }
+                if (subscription.finished && !subscription.completed) {
+                    subscription.completed = true;
+                    subscription.emitter.complete();
+                }
+            } catch (IOException | IllegalStateException e) {
+                // Client has gone away or the emitter is already completed
+                unsubscribe(subscription);
+                subscription.completed = true;
+                subscription.emitter.completeWithError(e);
+            }
+            subscription.sendScheduled.set(false);
+        } while (!subscription.completed
+                && (subscription.finished || !subscription.events.isEmpty())
+                && subscription.sendScheduled.compareAndSet(false, true));
+    }
+
+    private static class Subscription {
+        private final SseEmitter emitter;
+        private final WidgetChangeFeed changeFeed;
+        // Sequence of the latest change queued and whether a reset is due, touched by the dispatching thread only
+        private long cursor;
+        private boolean resetPending;
+        private final BlockingQueue<SseEmitter.SseEventBuilder> events;
+        private final AtomicBoolean sendScheduled;
+        // No more events are queued once finished, the emitter is completed by the sender thread
+        private volatile boolean finished;
+        private volatile boolean completed;
+        // Listener of its own, so that it is removed from the feed along with the subscription
+        private final Runnable changeListener;
+
+        private Subscription(
+                SseEmitter emitter,
+                WidgetChangeFeed changeFeed,
+                long cursor,
+                boolean resetPending,
+                BlockingQueue<SseEmitter.SseEventBuilder> events,
+                Runnable changeListener
+        ) {
+            this.emitter = emitter;
+            this.changeFeed = changeFeed;
+            this.cursor = cursor;
+            this.resetPending = resetPending;
+            this.events = events;
+            this.sendScheduled = new AtomicBoolean();
+            this.changeListener = changeListener;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.azaitsev.widgets.controller.v1.widget;
+
+/*
+    Id of a server-sent change event - "epoch:sequence". Sequences start over with the change feed,
+    so the id carries the epoch of the feed the same way entity tags do, and a client resuming from the id
+    of an earlier feed is told to fetch the board again instead of silently missing its changes.
+
+    Bare sequence is taken as well, without an epoch it may only resume from the very start of the current feed.
+ */
+final class WidgetChangeEventId {
+    private static final char EPOCH_SEPARATOR = ':';
+
+    private final String epoch;
+    private final long sequence;
+
+    private WidgetChangeEventId(String epoch, long sequence) {
+        this.epoch = epoch;
+        this.sequence = sequence;
+    }
+
+    static String encode(long epoch, long sequence) {
+        return Long.toHexString(epoch) + EPOCH_SEPARATOR + sequence;
+    }
+
+    /*
+        Returns null for an empty id, which stands for the upcoming changes only
+     */
+    static WidgetChangeEventId decode(String eventId) {
+        if (eventId == null || eventId.isEmpty()) {
+            return null;
+        }
+
+        int separatorIndex = eventId.indexOf(EPOCH_SEPARATOR);
+        String epoch = separatorIndex == -1 ? null : eventId.substring(0, separatorIndex);
+        // NumberFormatException is an IllegalArgumentException as well
+        long sequence = Long.parseLong(eventId.substring(separatorIndex + 1));
+        if (sequence < 0 || (epoch != null && epoch.isEmpty())) {
+            throw new IllegalArgumentException("Malformed change event id");
+        }
+        return new WidgetChangeEventId(epoch, sequence);
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    /*
+        Whether the sequence can be resumed from in the feed of the specified epoch
+     */
+    boolean isOf(long epoch) {
+        return this.epoch == null ? sequence == 0 : this.epoch.equals(Long.toHexString(epoch));
+    }
+}
@@ -1,67 +1,591 @@
 package com.azaitsev.widgets.controller.v1.widget;
 
+import com.azaitsev.widgets.controller.v1.widget.dto.BatchUpdateWidgetRequest;
 import com.azaitsev.widgets.controller.v1.widget.dto.CreateWidgetRequest;
+import com.azaitsev.widgets.controller.v1.widget.dto.FetchedImportSummary;
 import com.azaitsev.widgets.controller.v1.widget.dto.FetchedWidget;
+import com.azaitsev.widgets.controller.v1.widget.dto.FetchedWidgetRank;
+import com.azaitsev.widgets.controller.v1.widget.dto.FetchedWidgetsBatch;
+import com.azaitsev.widgets.controller.v1.widget.dto.FetchedWidgetsPage;
 import com.azaitsev.widgets.controller.v1.widget.dto.UpdateWidgetRequest;
+import com.azaitsev.widgets.controller.v1.widget.dto.WidgetsBatchRequest;
 import com.azaitsev.widgets.entity.exceptions.InvalidChangeSetException;
 import com.azaitsev.widgets.entity.widget.ImmutableWidget;
 import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import com.azaitsev.widgets.repository.exceptions.BoardNotEmptyException;
 import com.azaitsev.widgets.repository.exceptions.EntityNotFoundException;
+import com.azaitsev.widgets.repository.exceptions.SnapshotExpiredException;
+import com.azaitsev.widgets.repository.exceptions.StaleVersionException;
+import com.azaitsev.widgets.repository.widget.WidgetScanPage;
+import com.azaitsev.widgets.service.widget.WidgetAsyncService;
+import com.azaitsev.widgets.service.widget.WidgetBoardService;
 import com.azaitsev.widgets.service.widget.WidgetService;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.validation.Valid;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 @RestController
-@RequestMapping("api/v1/widgets")
+@RequestMapping({"api/v1/widgets", "api/v1/boards/{boardId}/widgets"})
 public class WidgetController {
     private static final int MAX_PAGE_LIMIT = 500;
     private static final int DEFAULT_PAGE_LIMIT = 10;
     private static final int DEFAULT_PAGE_OFFSET = 0;
+    static final String SNAPSHOT_VERSION_HEADER = "Snapshot-Version";
+    private static final int MAX_BATCH_SIZE = 10_000;
+    private static final String NDJSON = "application/x-ndjson";
 
     private final WidgetService widgetService;
+    private final WidgetBoardService boardService;
+    private final WidgetAsyncService asyncService;
+    private final ObjectMapper objectMapper;
+    private final Validator validator;
+    private final WidgetChangeBroadcaster changeBroadcaster;
 
-    public WidgetController(WidgetService widgetService) {
+    public WidgetController(
+            WidgetService widgetService,
+            WidgetBoardService boardService,
+            WidgetAsyncService asyncService,
+            ObjectMapper objectMapper,
+            Validator validator,
+            WidgetChangeBroadcaster changeBroadcaster
+    ) {
         this.widgetService = widgetService;
+        this.boardService = boardService;
+        this.asyncService = asyncService;
+        this.objectMapper = objectMapper;
+        this.validator = validator;
+        this.changeBroadcaster = changeBroadcaster;
     }
 
+    /*
+        Supports conditional requests - a widget that hasn't changed since the tag passed in If-None-Match
+        is answered with 304 and no body.
+     */
     @GetMapping(value = "/{widgetId}")
     @ResponseBody
-    public FetchedWidget getWidget(@PathVariable UUID widgetId) {
-        final var widget = widgetService
-                .get(widgetId)
-                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Widget not found"));
+    public CompletableFuture<ResponseEntity<FetchedWidget>> getWidget(
+            @PathVariable(required = false) String boardId,
+            @PathVariable UUID widgetId,
+            @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch
+    ) {
+        return onBoardAsync(boardId, service -> {
+            // Version is read before the widget, so the tag never claims more than the response has
+            String boardEpoch = service.getBoardEpoch();
+            long boardVersion = service.getBoardVersion();
+            Optional<String> unchangedBoardETag =
+                    WidgetETag.findWidgetIssuedAt(ifNoneMatch, widgetId, boardEpoch, boardVersion);
+            if (unchangedBoardETag.isPresent()) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(unchangedBoardETag.get()).build();
+            }
+
+            final var widget = service
+                    .get(widgetId)
+                    .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Widget not found"));
+
+            String eTag = WidgetETag.ofWidget(widget, boardEpoch, boardVersion);
+            if (WidgetETag.matchesWidget(ifNoneMatch, widget)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+            }
+            return ResponseEntity.ok().eTag(eTag).body(new FetchedWidget(widget));
+        });
+    }
+
+    /*
+        Rank is the position of the widget in z order counting from the bottom, starting with 0.
+        It can be used as an offset to fetch the page the widget is on.
+     */
+    @GetMapping(value = "/{widgetId}/rank")
+    @ResponseBody
+    public CompletableFuture<FetchedWidgetRank> getWidgetRank(
+            @PathVariable(required = false) String boardId,
+            @PathVariable UUID widgetId
+    ) {
+        return onBoardAsync(boardId, service -> {
+            final var rank = service
+                    .getRank(widgetId)
+                    .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Widget not found"));
 
-        return new FetchedWidget(widget);
+            return new FetchedWidgetRank(widgetId, rank);
+        });
     }
 
+    /*
+        Pages are tagged with the board version, so polling a board that hasn't changed costs almost nothing.
+        A page without snapshotVersion starts a scan: the z order it is read from is retained, and its version
+        comes in the Snapshot-Version header. Pass it with the following pages to see the board as it was
+        when the scan started, instead of the widgets shifted by the changes made since.
+     */
     @GetMapping()
     @ResponseBody
-    public List<FetchedWidget> getWidgetsPage(
+    public CompletableFuture<ResponseEntity<List<FetchedWidget>>> getWidgetsPage(
+            @PathVariable(required = false) String boardId,
             @RequestParam(name = "limit", required = false) Integer providedLimit,
-            @RequestParam(name = "offset", required = false) Integer providedOffset
+            @RequestParam(name = "offset", required = false) Integer providedOffset,
+            @RequestParam(name = "snapshotVersion", required = false) Long providedSnapshotVersion,
+            @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch
     ) {
-        int limit = providedLimit != null && providedLimit <= MAX_PAGE_LIMIT && providedLimit > 0
-                ? providedLimit
-                : DEFAULT_PAGE_LIMIT;
+        int limit = getPageLimit(providedLimit);
         int offset = providedOffset != null && providedOffset > 0
                 ? providedOffset
                 : DEFAULT_PAGE_OFFSET;
 
-        final var widgets = widgetService.getPage(limit, offset);
+        return onBoardAsync(boardId, service -> {
+            String boardEpoch = service.getBoardEpoch();
+            long boardVersion = getPageVersion(service, providedSnapshotVersion);
+            if (WidgetETag.matchesBoard(ifNoneMatch, boardEpoch, boardVersion)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                        .eTag(WidgetETag.ofBoard(boardEpoch, boardVersion))
+                        .build();
+            }
+
+            WidgetScanPage page = providedSnapshotVersion != null
+                    ? readSnapshot(providedSnapshotVersion, () -> service.getSnapshotPage(providedSnapshotVersion, limit, offset))
+                    : service.startScan(limit, offset);
+
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                    .eTag(WidgetETag.ofBoard(boardEpoch, page.getBoardVersion()));
+            page.getSnapshotVersion()
+                    .ifPresent(version -> response.header(SNAPSHOT_VERSION_HEADER, Long.toString(version)));
+            return response.body(page.getWidgets().stream().map(FetchedWidget::new).collect(Collectors.toList()));
+        });
+    }
+
+    /*
+        Keyset pagination - pass an empty cursor to fetch the first page and nextCursor of the response for the next one.
+        Page cost does not depend on how deep the page is, unlike offset-based pagination.
+        Scans work the way they do with offsets, the snapshot version comes in the body of the page.
+     */
+    @GetMapping(params = "cursor")
+    @ResponseBody
+    public CompletableFuture<ResponseEntity<FetchedWidgetsPage>> getWidgetsPageAfterCursor(
+            @PathVariable(required = false) String boardId,
+            @RequestParam(name = "cursor") String cursor,
+            @RequestParam(name = "limit", required = false) Integer providedLimit,
+            @RequestParam(name = "snapshotVersion", required = false) Long providedSnapshotVersion,
+            @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch
+    ) {
+        int limit = getPageLimit(providedLimit);
+
+        Integer zCursor;
+        try {
+            zCursor = WidgetPageCursor.decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid page cursor");
+        }
+
+        return onBoardAsync(boardId, service -> {
+            String boardEpoch = service.getBoardEpoch();
+            long boardVersion = getPageVersion(service, providedSnapshotVersion);
+            if (WidgetETag.matchesBoard(ifNoneMatch, boardEpoch, boardVersion)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                        .eTag(WidgetETag.ofBoard(boardEpoch, boardVersion))
+                        .build();
+            }
+
+            WidgetScanPage page = providedSnapshotVersion != null
+                    ? readSnapshot(providedSnapshotVersion, () -> service.getSnapshotPageAfter(providedSnapshotVersion, zCursor, limit))
+                    : service.startScanAfter(zCursor, limit);
+            List<ImmutableWidget> widgets = page.getWidgets();
+
+            // Page that is not full is the last one, so there is nothing to continue with
+            String nextCursor = widgets.size() == limit
+                    ? WidgetPageCursor.encode(widgets.get(widgets.size() - 1).getZ())
+                    : null;
+
+            return ResponseEntity.ok()
+                    .eTag(WidgetETag.ofBoard(boardEpoch, page.getBoardVersion()))
+                    .body(new FetchedWidgetsPage(
+                            widgets.stream().map(FetchedWidget::new).collect(Collectors.toList()),
+                            nextCursor,
+                            page.getSnapshotVersion().orElse(null)
+                    ));
+        });
+    }
+
+    /*
+        Widgets overlapping the area in z order. Area is passed as x1,y1,x2,y2 - its lower left and upper right corners.
+     */
+    @GetMapping(params = "area")
+    @ResponseBody
+    public CompletableFuture<List<FetchedWidget>> getWidgetsInArea(
+            @PathVariable(required = false) String boardId,
+            @RequestParam(name = "area") String area,
+            @RequestParam(name = "limit", required = false) Integer providedLimit
+    ) {
+        int limit = getPageLimit(providedLimit);
+        int[] corners = parseArea(area);
+
+        return onBoardAsync(boardId, service -> {
+            final var widgets = service.findInArea(corners[0], corners[1], corners[2], corners[3], limit);
+
+            return widgets.stream().map(FetchedWidget::new).collect(Collectors.toList());
+        });
+    }
+
+    /*
+        Widgets under the point in z order, the last one is on top
+     */
+    @GetMapping(value = "/at")
+    @ResponseBody
+    public CompletableFuture<List<FetchedWidget>> getWidgetsAt(
+            @PathVariable(required = false) String boardId,
+            @RequestParam(name = "x") int x,
+            @RequestParam(name = "y") int y
+    ) {
+        return onBoardAsync(boardId, service -> {
+            final var widgets = service.findAllAt(x, y);
 
-        return widgets.stream().map(FetchedWidget::new).collect(Collectors.toList());
+            return widgets.stream().map(FetchedWidget::new).collect(Collectors.toList());
+        });
+    }
+
+    /*
+        Widget that is visible at the point - the one lying on top of the others there
+     */
+    @GetMapping(value = "/at/topmost")
+    @ResponseBody
+    public CompletableFuture<FetchedWidget> getTopmostWidgetAt(
+            @PathVariable(required = false) String boardId,
+            @RequestParam(name = "x") int x,
+            @RequestParam(name = "y") int y
+    ) {
+        return onBoardAsync(boardId, service -> {
+            final var widget = service
+                    .findTopmostAt(x, y)
+                    .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No widget at the point"));
+
+            return new FetchedWidget(widget);
+        });
     }
 
     @PostMapping()
     @ResponseBody
-    public FetchedWidget createWidget(@Valid @RequestBody CreateWidgetRequest request) {
+    public CompletableFuture<FetchedWidget> createWidget(
+            @PathVariable(required = false) String boardId,
+            @Valid @RequestBody CreateWidgetRequest request
+    ) {
+        WidgetChangeSet changeSet = getChangeSet(request);
+
+        return onBoardChange(boardId, service -> service.createAsync(changeSet)).thenApply(FetchedWidget::new);
+    }
+
+    /*
+        Pass the ETag or the version of the widget in If-Match to apply the update only if nobody has updated
+        the widget since then, otherwise 409 is returned and the widget stays intact.
+     */
+    @PutMapping(value = "/{widgetId}")
+    @ResponseBody
+    public CompletableFuture<ResponseEntity<FetchedWidget>> updateWidget(
+            @PathVariable(required = false) String boardId,
+            @Valid @RequestBody UpdateWidgetRequest request,
+            @PathVariable UUID widgetId,
+            @RequestHeader(name = HttpHeaders.IF_MATCH, required = false) String ifMatch
+    ) {
+        WidgetChangeSet changeSet = getChangeSet(request);
+
+        Optional<Long> expectedVersion;
+        try {
+            expectedVersion = ifMatch == null ? Optional.empty() : WidgetETag.getWidgetVersion(ifMatch, widgetId);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Malformed If-Match header");
+        }
+
+        return onBoardChange(boardId, service -> {
+            // Version is read before the update, so the tag never claims more than the response has
+            String boardEpoch = service.getBoardEpoch();
+            long boardVersion = service.getBoardVersion();
+            CompletableFuture<ImmutableWidget> updatedWidget = expectedVersion.isPresent()
+                    ? service.compareAndUpdateAsync(widgetId, expectedVersion.get(), changeSet)
+                    : service.updateAsync(widgetId, changeSet);
+            return updatedWidget.thenApplyAsync(widget -> ResponseEntity.ok()
+                    .eTag(WidgetETag.ofWidget(widget, boardEpoch, boardVersion))
+                    .body(new FetchedWidget(widget)));
+        });
+    }
+
+    /*
+        Applies deletions, updates and creations of the batch, in this order, so that deleted widgets free
+        their z indexes before new ones are placed. Each part is applied at once and as a whole -
+        if any widget of the part is missing or invalid, the part doesn't change anything.
+     */
+    @PostMapping(value = "/batch")
+    @ResponseBody
+    public CompletableFuture<FetchedWidgetsBatch> applyBatch(
+            @PathVariable(required = false) String boardId,
+            @Valid @RequestBody WidgetsBatchRequest request
+    ) {
+        List<UUID> widgetIdsToDelete = request.getDelete() == null ? List.of() : request.getDelete();
+        List<BatchUpdateWidgetRequest> updateRequests = request.getUpdate() == null ? List.of() : request.getUpdate();
+        List<CreateWidgetRequest> createRequests = request.getCreate() == null ? List.of() : request.getCreate();
+
+        if (widgetIdsToDelete.size() + updateRequests.size() + createRequests.size() > MAX_BATCH_SIZE) {
+            throw new ResponseStatusException(
+                    HttpStatus.BAD_REQUEST,
+                    "Batch should not contain more than " + MAX_BATCH_SIZE + " widgets"
+            );
+        }
+
+        Map<UUID, WidgetChangeSet> updateChangeSets = new LinkedHashMap<>();
+        for (BatchUpdateWidgetRequest updateRequest : updateRequests) {
+            if (updateChangeSets.put(updateRequest.getId(), getChangeSet(updateRequest)) != null) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Widget is updated twice in the batch");
+            }
+        }
+
+        List<WidgetChangeSet> createChangeSets = createRequests.stream()
+                .map(this::getChangeSet)
+                .collect(Collectors.toList());
+
+        // Parts are applied as a single write, so a part that fails still stops the ones after it
+        return onBoardChange(boardId, service -> service.writeAsync(batchService -> {
+            if (!widgetIdsToDelete.isEmpty()) {
+                batchService.deleteAll(widgetIdsToDelete);
+            }
+            List<ImmutableWidget> updatedWidgets = updateChangeSets.isEmpty()
+                    ? List.of()
+                    : batchService.updateAll(updateChangeSets);
+            List<ImmutableWidget> createdWidgets = createChangeSets.isEmpty()
+                    ? List.of()
+                    : batchService.createAll(createChangeSets);
+
+            return new FetchedWidgetsBatch(
+                    createdWidgets.stream().map(FetchedWidget::new).collect(Collectors.toList()),
+                    updatedWidgets.stream().map(FetchedWidget::new).collect(Collectors.toList())
+            );
+        }));
+    }
+
+    /*
+        Loads an empty board from newline delimited JSON - one create request per line.
+        Widgets are placed in bulk, which is much cheaper than creating them one by one.
+     */
+    @PostMapping(value = "/import", consumes = NDJSON)
+    @ResponseBody
+    public FetchedImportSummary importWidgets(
+            @PathVariable(required = false) String boardId,
+            InputStream body
+    ) throws IOException {
+        try (MappingIterator<CreateWidgetRequest> requests = objectMapper
+                .readerFor(CreateWidgetRequest.class)
+                .readValues(body)) {
+            return new FetchedImportSummary(onBoard(boardId, service -> service.importAll(readChangeSets(requests))));
+        } catch (InvalidChangeSetException | IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid set of changes for widget");
+        } catch (BoardNotEmptyException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Widgets can be imported into an empty board only");
+        }
+    }
+
+    /*
+        Streams the whole board in z order as newline delimited JSON, the same format the import takes.
+        Widgets are serialized as they are read, so memory use doesn't depend on the size of the board.
+     */
+    @GetMapping(value = "/export", produces = NDJSON)
+    public StreamingResponseBody exportWidgets(@PathVariable(required = false) String boardId) {
+        // Generator buffers the output itself, flushing after every widget would cost a write per widget
+        ObjectWriter widgetWriter = objectMapper
+                .writerFor(FetchedWidget.class)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+        return outputStream -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+                // Lines are separated explicitly, and the response stream is closed by the container
+                generator.setRootValueSeparator(null);
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                onBoard(boardId, service -> {
+                    service.exportAll(widget -> {
+                        try {
+                            widgetWriter.writeValue(generator, new FetchedWidget(widget));
+                            generator.writeRaw('\n');
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                    return null;
+                });
+            }
+        };
+    }
+
+    /*
+        Server-sent events for every change of the board, each with the epoch of the change feed and the sequence
+        of the change as the event id. Pass the id of the last seen event as since, or reconnect with Last-Event-ID,
+        to resume without missing anything. A reset event means that the changes to resume from are gone,
+        or belong to an earlier feed of the board, and the board has to be fetched again.
+     */
+    @GetMapping(value = "/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamChanges(
+            @PathVariable(required = false) String boardId,
+            @RequestParam(name = "since", required = false) String since,
+            @RequestHeader(name = "Last-Event-ID", required = false) String lastEventId
+    ) {
+        WidgetChangeEventId resumedEventId;
+        try {
+            resumedEventId = WidgetChangeEventId.decode(since != null ? since : lastEventId);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Malformed change event id");
+        }
+
+        // Subscription listens to the feed of the board, which keeps the board loaded until it is over
+        return onBoard(boardId, service -> changeBroadcaster.subscribe(service.getChangeFeed(), resumedEventId));
+    }
+
+    @DeleteMapping(value = "/{widgetId}")
+    public CompletableFuture<Void> deleteWidget(
+            @PathVariable(required = false) String boardId,
+            @PathVariable UUID widgetId
+    ) {
+        return onBoardChange(boardId, service -> service.deleteAsync(widgetId));
+    }
+
+    /*
+        Requests without a board id go to the default board, backed by the configured repository
+     */
+    private <T> T onBoard(String boardId, Function<WidgetService, T> action) {
+        if (boardId == null) {
+            return action.apply(widgetService);
+        }
+
+        checkBoardId(boardId);
+        return boardService.withBoard(boardId, action);
+    }
+
+    /*
+        Runs the action on a worker, so that waiting for the board doesn't hold the request thread.
+        Failures of the action reach the client as they are, so the action maps them to statuses itself.
+     */
+    private <T> CompletableFuture<T> onBoardAsync(String boardId, Function<WidgetService, T> action) {
+        try {
+            if (boardId == null) {
+                return asyncService.withDefaultBoard(action);
+            }
+
+            checkBoardId(boardId);
+            return asyncService.withBoard(boardId, action);
+        } catch (RejectedExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many requests in progress");
+        }
+    }
+
+    /*
+        Starts the change on a worker, which is free once the change is started rather than once it is applied.
+        Changes may be completed by the writer thread of the repository, so whatever follows them is handed over
+        to another thread instead of holding up the following writes. Failures of changes are mapped to statuses here.
+     */
+    private <T> CompletableFuture<T> onBoardChange(String boardId, Function<WidgetService, CompletableFuture<T>> change) {
+        CompletableFuture<T> result;
+        try {
+            if (boardId == null) {
+                result = asyncService.changeDefaultBoard(change);
+            } else {
+                checkBoardId(boardId);
+                result = asyncService.changeBoard(boardId, change);
+            }
+        } catch (RejectedExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many requests in progress");
+        }
+
+        return result.handleAsync((value, failure) -> {
+            if (failure != null) {
+                throw getChangeFailureStatus(failure);
+            }
+            return value;
+        });
+    }
+
+    private static RuntimeException getChangeFailureStatus(Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause()
+                : failure;
+        if (cause instanceof EntityNotFoundException) {
+            return new ResponseStatusException(HttpStatus.NOT_FOUND, "Widget not found");
+        }
+        if (cause instanceof StaleVersionException) {
+            return new ResponseStatusException(HttpStatus.CONFLICT, "Widget has been updated since the passed version");
+        }
+        if (cause instanceof InvalidChangeSetException) {
+            return new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid set of changes for widget");
+        }
+        return cause instanceof RuntimeException ? (RuntimeException) cause : new CompletionException(cause);
+    }
+
+    private void checkBoardId(String boardId) {
+        if (!boardId.matches(WidgetBoardService.BOARD_ID_PATTERN)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid board id");
+        }
+    }
+
+    /*
+        Change sets are parsed and validated as the repository consumes them, the body is never held as a whole
+     */
+    private Stream<WidgetChangeSet> readChangeSets(MappingIterator<CreateWidgetRequest> requests) {
+        Spliterator<WidgetChangeSet> changeSets = new Spliterators.AbstractSpliterator<>(
+                Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL
+        ) {
+            @Override
+            public boolean tryAdvance(Consumer<? super WidgetChangeSet> action) {
+                CreateWidgetRequest request;
+                try {
+                    if (!requests.hasNextValue()) {
+                        return false;
+                    }
+                    request = requests.nextValue();
+                } catch (IOException e) {
+                    throw new ResponseStatusException(
+                            HttpStatus.BAD_REQUEST,
+                            "Malformed widget at line " + requests.getCurrentLocation().getLineNr()
+                    );
+                }
+
+                if (!validator.validate(request).isEmpty()) {
+                    throw new ResponseStatusException(
+                            HttpStatus.BAD_REQUEST,
+                            "Invalid widget at line " + requests.getCurrentLocation().getLineNr()
+                    );
+                }
+
+                action.accept(getChangeSet(request));
+                return true;
+            }
+        };
+        return StreamSupport.stream(changeSets, false);
+    }
+
+    private WidgetChangeSet getChangeSet(CreateWidgetRequest request) {
         WidgetChangeSet changeSet = new WidgetChangeSet();
 
         changeSet.setX(request.getX());
@@ -70,20 +594,10 @@ public class WidgetController {
         changeSet.setHeight(request.getHeight());
         changeSet.setWidth(request.getWidth());
 
-        try {
-            ImmutableWidget updatedWidget = widgetService.create(changeSet);
-            return new FetchedWidget(updatedWidget);
-        } catch (InvalidChangeSetException e) {
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid set of changes for widget");
-        }
+        return changeSet;
     }
 
-    @PutMapping(value = "/{widgetId}")
-    @ResponseBody
-    public FetchedWidget updateWidget(
-            @Valid @RequestBody UpdateWidgetRequest request,
-            @PathVariable UUID widgetId
-    ) {
+    private WidgetChangeSet getChangeSet(UpdateWidgetRequest request) {
         WidgetChangeSet changeSet = new WidgetChangeSet();
 
         changeSet.setX(request.getX());
@@ -92,23 +606,52 @@ public class WidgetController {
         changeSet.setHeight(request.getHeight());
         changeSet.setWidth(request.getWidth());
 
+        return changeSet;
+    }
+
+    private int[] parseArea(String area) {
+        String[] parts = area.split(",");
+        if (parts.length != 4) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Area should be passed as x1,y1,x2,y2");
+        }
+
+        int[] corners = new int[4];
         try {
-            ImmutableWidget updatedWidget = widgetService.update(widgetId, changeSet);
-            return new FetchedWidget(updatedWidget);
-        } catch (EntityNotFoundException e) {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Widget not found");
-        } catch (InvalidChangeSetException e) {
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid set of changes for widget");
+            for (int i = 0; i < corners.length; i++) {
+                corners[i] = Integer.parseInt(parts[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Area should be passed as x1,y1,x2,y2");
+        }
+
+        if (corners[0] > corners[2] || corners[1] > corners[3]) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Area corners are mixed up");
         }
+        return corners;
     }
 
-    @DeleteMapping(value = "/{widgetId}")
-    public void deleteWidget(@PathVariable UUID widgetId) {
+    /*
+        Pages of a snapshot never change, so they are tagged with its version instead of the version of the board
+     */
+    private long getPageVersion(WidgetService service, Long providedSnapshotVersion) {
+        return providedSnapshotVersion != null ? providedSnapshotVersion : service.getBoardVersion();
+    }
+
+    /*
+        Page of a scan in progress, it belongs to the snapshot and carries its version as is
+     */
+    private WidgetScanPage readSnapshot(long snapshotVersion, Supplier<List<ImmutableWidget>> page) {
         try {
-            widgetService.delete(widgetId);
-        } catch (EntityNotFoundException e) {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Widget not found");
+            return new WidgetScanPage(page.get(), snapshotVersion, snapshotVersion);
+        } catch (SnapshotExpiredException e) {
+            throw new ResponseStatusException(HttpStatus.GONE, "Snapshot has expired, start the scan over");
         }
     }
 
+    private int getPageLimit(Integer providedLimit) {
+        return providedLimit != null && providedLimit <= MAX_PAGE_LIMIT && providedLimit > 0
+                ? providedLimit
+                : DEFAULT_PAGE_LIMIT;
+    }
+
 }
@@ -0,0 +1,164 @@
+package com.azaitsev.widgets.controller.v1.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+
+import java.time.Instant;
+import java.util.Optional;
+import java.util.UUID;
+
+/*
+    Entity tags of widgets and pages are built around the board version, which takes no locks to read.
+    If the board version in the tag is still the current one, nothing has changed, so the request is answered
+    with 304 before the repository is touched. Board versions start over with the change feed, so every tag
+    starts with the epoch of the feed and a tag of an earlier epoch never matches.
+
+    Tag of a page is the board epoch and version only - "epoch:version", and only such a tag matches a page.
+    Tag of a widget adds the widget id and the widget state that can change - its version and modification time,
+    which change with every update, and its z index, which also changes when the widget is shifted by others -
+    "epoch:version-id.state". So a tag matches only the widget it was issued for, and once the board has moved on,
+    an unchanged widget is still answered with 304 without serializing it.
+    The same tag passed in If-Match makes an update conditional on the version it carries.
+ */
+final class WidgetETag {
+    private static final char EPOCH_SEPARATOR = ':';
+    private static final char VERSION_SEPARATOR = '-';
+    private static final char STATE_SEPARATOR = '.';
+
+    private WidgetETag() {
+    }
+
+    static String ofBoard(String boardEpoch, long boardVersion) {
+        return quote(getBoardState(boardEpoch, boardVersion));
+    }
+
+    static String ofWidget(ImmutableWidget widget, String boardEpoch, long boardVersion) {
+        return quote(getBoardState(boardEpoch, boardVersion) + VERSION_SEPARATOR + getWidgetState(widget));
+    }
+
+    /*
+        Whether any of the tags of If-None-Match header is the tag of a page at the specified board version
+     */
+    static boolean matchesBoard(String ifNoneMatch, String boardEpoch, long boardVersion) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        String boardState = getBoardState(boardEpoch, boardVersion);
+        for (String tag : getTags(ifNoneMatch)) {
+            if (tag.equals(boardState)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+        Tag of If-None-Match header that was issued for the widget at the specified board version, if there is one
+     */
+    static Optional<String> findWidgetIssuedAt(String ifNoneMatch, UUID widgetId, String boardEpoch, long boardVersion) {
+        if (ifNoneMatch == null) {
+            return Optional.empty();
+        }
+
+        String prefix = getBoardState(boardEpoch, boardVersion) + VERSION_SEPARATOR + widgetId + STATE_SEPARATOR;
+        for (String tag : getTags(ifNoneMatch)) {
+            if (tag.startsWith(prefix)) {
+                return Optional.of(quote(tag));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /*
+        Whether any of the tags of If-None-Match header was issued for the widget as it is now.
+        Widget state doesn't depend on the board version, so the tag may come from any epoch.
+     */
+    static boolean matchesWidget(String ifNoneMatch, ImmutableWidget widget) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        String state = getWidgetState(widget);
+        for (String tag : getTags(ifNoneMatch)) {
+            int separatorIndex = getVersionSeparatorIndex(tag);
+            if (separatorIndex != -1 && tag.substring(separatorIndex + 1).equals(state)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+        Version of the widget the tag of If-Match header was issued for, or empty for any version.
+        Bare version of the widget is taken as well, so clients may build the header from the widget itself.
+        Tag of another widget or of a page is rejected as malformed.
+     */
+    static Optional<Long> getWidgetVersion(String ifMatch, UUID widgetId) {
+        String[] tags = getTags(ifMatch);
+        if (tags.length != 1) {
+            throw new IllegalArgumentException("If-Match should hold a single tag");
+        }
+
+        String tag = tags[0];
+        if (tag.equals("*")) {
+            return Optional.empty();
+        }
+
+        if (tag.indexOf(EPOCH_SEPARATOR) == -1) {
+            // NumberFormatException is an IllegalArgumentException as well
+            return Optional.of(Long.valueOf(tag));
+        }
+
+        int separatorIndex = getVersionSeparatorIndex(tag);
+        if (separatorIndex == -1) {
+            throw new IllegalArgumentException("If-Match should hold a tag of a widget");
+        }
+
+        String[] state = tag.substring(separatorIndex + 1).split("\\" + STATE_SEPARATOR);
+        if (state.length < 2 || !state[0].equals(widgetId.toString())) {
+            throw new IllegalArgumentException("If-Match should hold a tag of the same widget");
+        }
+        return Optional.of(Long.valueOf(state[1]));
+    }
+
+    private static String getBoardState(String boardEpoch, long boardVersion) {
+        return boardEpoch + EPOCH_SEPARATOR + boardVersion;
+    }
+
+    private static String getWidgetState(ImmutableWidget widget) {
+        Instant modificationDate = widget.getLastModificationDate();
+        return widget.getId().toString()
+                + STATE_SEPARATOR + widget.getVersion()
+                + STATE_SEPARATOR + Long.toHexString(modificationDate.getEpochSecond())
+                + STATE_SEPARATOR + Integer.toHexString(modificationDate.getNano())
+                + STATE_SEPARATOR + widget.getZ();
+    }
+
+    /*
+        Widget id has dashes of its own, so the separator is the first dash after the board version
+     */
+    private static int getVersionSeparatorIndex(String tag) {
+        int epochSeparatorIndex = tag.indexOf(EPOCH_SEPARATOR);
+        return epochSeparatorIndex == -1 ? -1 : tag.indexOf(VERSION_SEPARATOR, epochSeparatorIndex);
+    }
+
+    private static String[] getTags(String ifNoneMatch) {
+        String[] tags = ifNoneMatch.split(",");
+        for (int i = 0; i < tags.length; i++) {
+            String tag = tags[i].trim();
+            // Weak comparison is what If-None-Match uses, so the weakness mark doesn't matter
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+                tag = tag.substring(1, tag.length() - 1);
+            }
+            tags[i] = tag;
+        }
+        return tags;
+    }
+
+    private static String quote(String tag) {
+        return '"' + tag + '"';
+    }
+}
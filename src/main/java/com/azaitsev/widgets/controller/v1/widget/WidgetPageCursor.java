@@ -0,0 +1,41 @@
+package com.azaitsev.widgets.controller.v1.widget;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/*
+    Cursor is kept opaque for clients, so that the way we seek through the z-axis can change
+    without breaking them. For now it is just the z index of the last widget on the page.
+ */
+final class WidgetPageCursor {
+    private static final String PREFIX = "z:";
+
+    private WidgetPageCursor() {
+    }
+
+    static String encode(int zAxisIndex) {
+        return Base64.getUrlEncoder()
+                .withoutPadding()
+                .encodeToString((PREFIX + zAxisIndex).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+        Returns null for an empty cursor, which stands for the very first page
+     */
+    static Integer decode(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            if (!decoded.startsWith(PREFIX)) {
+                throw new IllegalArgumentException("Malformed page cursor");
+            }
+            return Integer.valueOf(decoded.substring(PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException is an IllegalArgumentException as well
+            throw new IllegalArgumentException("Malformed page cursor", e);
+        }
+    }
+}
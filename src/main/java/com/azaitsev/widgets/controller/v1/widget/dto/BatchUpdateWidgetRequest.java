@@ -0,0 +1,17 @@
+package com.azaitsev.widgets.controller.v1.widget.dto;
+
+import javax.validation.constraints.NotNull;
+import java.util.UUID;
+
+public class BatchUpdateWidgetRequest extends UpdateWidgetRequest {
+    @NotNull
+    private UUID id;
+
+    public UUID getId() {
+        return id;
+    }
+
+    public void setId(UUID id) {
+        this.id = id;
+    }
+}
@@ -0,0 +1,13 @@
+package com.azaitsev.widgets.controller.v1.widget.dto;
+
+public class FetchedImportSummary {
+    private final int importedCount;
+
+    public FetchedImportSummary(int importedCount) {
+        this.importedCount = importedCount;
+    }
+
+    public int getImportedCount() {
+        return importedCount;
+    }
+}
@@ -13,6 +13,7 @@ public class FetchedWidget {
     private final Integer height;
     private final Integer width;
     private final Instant lastModificationDate;
+    private final long version;
 
     public FetchedWidget(ImmutableWidget widget) {
         this.id = widget.getId();
@@ -22,6 +23,7 @@ public class FetchedWidget {
         this.height = widget.getHeight();
         this.width = widget.getWidth();
         this.lastModificationDate = widget.getLastModificationDate();
+        this.version = widget.getVersion();
     }
 
     public UUID getId() {
@@ -51,4 +53,8 @@ public class FetchedWidget {
     public Instant getLastModificationDate() {
         return lastModificationDate;
     }
+
+    public long getVersion() {
+        return version;
+    }
 }
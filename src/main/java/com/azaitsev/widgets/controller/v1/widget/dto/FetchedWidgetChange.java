@@ -0,0 +1,44 @@
+package com.azaitsev.widgets.controller.v1.widget.dto;
+
+import com.azaitsev.widgets.repository.widget.WidgetChange;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.UUID;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class FetchedWidgetChange {
+    private final long sequence;
+    private final UUID widgetId;
+    private final FetchedWidget widget;
+    private final Integer shiftFrom;
+    private final Integer shiftedCount;
+
+    public FetchedWidgetChange(WidgetChange change) {
+        this.sequence = change.getSequence();
+        this.widgetId = change.getWidgetId();
+        this.widget = change.getWidget() == null ? null : new FetchedWidget(change.getWidget());
+        boolean shifted = change.getType() == WidgetChange.Type.SHIFTED;
+        this.shiftFrom = shifted ? change.getShiftFrom() : null;
+        this.shiftedCount = shifted ? change.getShiftedCount() : null;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public UUID getWidgetId() {
+        return widgetId;
+    }
+
+    public FetchedWidget getWidget() {
+        return widget;
+    }
+
+    public Integer getShiftFrom() {
+        return shiftFrom;
+    }
+
+    public Integer getShiftedCount() {
+        return shiftedCount;
+    }
+}
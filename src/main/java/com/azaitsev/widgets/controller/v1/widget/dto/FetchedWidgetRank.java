@@ -0,0 +1,21 @@
+package com.azaitsev.widgets.controller.v1.widget.dto;
+
+import java.util.UUID;
+
+public class FetchedWidgetRank {
+    private final UUID id;
+    private final long rank;
+
+    public FetchedWidgetRank(UUID id, long rank) {
+        this.id = id;
+        this.rank = rank;
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public long getRank() {
+        return rank;
+    }
+}
@@ -0,0 +1,21 @@
+package com.azaitsev.widgets.controller.v1.widget.dto;
+
+import java.util.List;
+
+public class FetchedWidgetsBatch {
+    private final List<FetchedWidget> created;
+    private final List<FetchedWidget> updated;
+
+    public FetchedWidgetsBatch(List<FetchedWidget> created, List<FetchedWidget> updated) {
+        this.created = created;
+        this.updated = updated;
+    }
+
+    public List<FetchedWidget> getCreated() {
+        return created;
+    }
+
+    public List<FetchedWidget> getUpdated() {
+        return updated;
+    }
+}
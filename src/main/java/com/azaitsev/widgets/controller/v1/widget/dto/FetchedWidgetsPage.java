@@ -0,0 +1,27 @@
+package com.azaitsev.widgets.controller.v1.widget.dto;
+
+import java.util.List;
+
+public class FetchedWidgetsPage {
+    private final List<FetchedWidget> widgets;
+    private final String nextCursor;
+    private final Long snapshotVersion;
+
+    public FetchedWidgetsPage(List<FetchedWidget> widgets, String nextCursor, Long snapshotVersion) {
+        this.widgets = widgets;
+        this.nextCursor = nextCursor;
+        this.snapshotVersion = snapshotVersion;
+    }
+
+    public List<FetchedWidget> getWidgets() {
+        return widgets;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public Long getSnapshotVersion() {
+        return snapshotVersion;
+    }
+}
@@ -0,0 +1,35 @@
+package com.azaitsev.widgets.controller.v1.widget.dto;
+
+import javax.validation.Valid;
+import java.util.List;
+import java.util.UUID;
+
+public class WidgetsBatchRequest {
+    private List<@Valid CreateWidgetRequest> create = List.of();
+    private List<@Valid BatchUpdateWidgetRequest> update = List.of();
+    private List<UUID> delete = List.of();
+
+    public List<CreateWidgetRequest> getCreate() {
+        return create;
+    }
+
+    public void setCreate(List<CreateWidgetRequest> create) {
+        this.create = create;
+    }
+
+    public List<BatchUpdateWidgetRequest> getUpdate() {
+        return update;
+    }
+
+    public void setUpdate(List<BatchUpdateWidgetRequest> update) {
+        this.update = update;
+    }
+
+    public List<UUID> getDelete() {
+        return delete;
+    }
+
+    public void setDelete(List<UUID> delete) {
+        this.delete = delete;
+    }
+}
@@ -17,4 +17,10 @@ public interface ImmutableWidget {
     Integer getWidth();
 
     Instant getLastModificationDate();
+
+    /*
+        Grows by one with every update of the widget, starting with 1. Widgets shifted by others keep
+        their version, as a shift doesn't change anything the widget was updated with.
+     */
+    long getVersion();
 }
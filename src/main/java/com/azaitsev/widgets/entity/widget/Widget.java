@@ -4,14 +4,21 @@ import java.time.Instant;
 import java.util.Objects;
 import java.util.UUID;
 
-public class Widget implements ImmutableWidget {
-    private UUID id;
-    private Integer x;
-    private Integer y;
-    private Integer z;
-    private Integer height;
-    private Integer width;
-    private Instant lastModificationDate;
+/*
+    Value object - every change produces a new version of the widget, so a widget can be shared
+    between threads and handed out to callers without copying.
+ */
+public final class Widget implements ImmutableWidget {
+    public static final long INITIAL_VERSION = 1;
+
+    private final UUID id;
+    private final Integer x;
+    private final Integer y;
+    private final Integer z;
+    private final Integer height;
+    private final Integer width;
+    private final Instant lastModificationDate;
+    private final long version;
 
     public Widget(
             Integer x,
@@ -20,77 +27,116 @@ public class Widget implements ImmutableWidget {
             Integer height,
             Integer width
     ) {
+        this(null, x, y, z, height, width, null);
+    }
+
+    public Widget(ImmutableWidget widget) {
+        this(
+                widget.getId(),
+                widget.getX(),
+                widget.getY(),
+                widget.getZ(),
+                widget.getHeight(),
+                widget.getWidth(),
+                widget.getLastModificationDate(),
+                widget.getVersion()
+        );
+    }
+
+    public Widget(
+            UUID id,
+            Integer x,
+            Integer y,
+            Integer z,
+            Integer height,
+            Integer width,
+            Instant lastModificationDate
+    ) {
+        this(id, x, y, z, height, width, lastModificationDate, INITIAL_VERSION);
+    }
+
+    public Widget(
+            UUID id,
+            Integer x,
+            Integer y,
+            Integer z,
+            Integer height,
+            Integer width,
+            Instant lastModificationDate,
+            long version
+    ) {
+        this.id = id;
         this.x = x;
         this.y = y;
         this.z = z;
         this.height = height;
         this.width = width;
-    }
-
-    public Widget(ImmutableWidget widget) {
-        this.id = widget.getId();
-        this.x = widget.getX();
-        this.y = widget.getY();
-        this.z = widget.getZ();
-        this.height = widget.getHeight();
-        this.width = widget.getWidth();
-        this.lastModificationDate = widget.getLastModificationDate();
+        this.lastModificationDate = lastModificationDate;
+        this.version = version;
     }
 
     public UUID getId() {
         return id;
     }
 
-    public void setId(UUID id) {
-        this.id = id;
+    public Widget withId(UUID id) {
+        return new Widget(id, x, y, z, height, width, lastModificationDate, version);
     }
 
     public Integer getX() {
         return x;
     }
 
-    public void setX(Integer x) {
-        this.x = x;
+    public Widget withX(Integer x) {
+        return new Widget(id, x, y, z, height, width, lastModificationDate, version);
     }
 
     public Integer getY() {
         return y;
     }
 
-    public void setY(Integer y) {
-        this.y = y;
+    public Widget withY(Integer y) {
+        return new Widget(id, x, y, z, height, width, lastModificationDate, version);
     }
 
     public Integer getZ() {
         return z;
     }
 
-    public void setZ(Integer z) {
-        this.z = z;
+    public Widget withZ(Integer z) {
+        return new Widget(id, x, y, z, height, width, lastModificationDate, version);
     }
 
     public Integer getHeight() {
         return height;
     }
 
-    public void setHeight(Integer height) {
-        this.height = height;
+    public Widget withHeight(Integer height) {
+        return new Widget(id, x, y, z, height, width, lastModificationDate, version);
     }
 
     public Integer getWidth() {
         return width;
     }
 
-    public void setWidth(Integer width) {
-        this.width = width;
+    public Widget withWidth(Integer width) {
+        return new Widget(id, x, y, z, height, width, lastModificationDate, version);
     }
 
     public Instant getLastModificationDate() {
         return lastModificationDate;
     }
 
-    public void setLastModificationDate(Instant lastModificationDate) {
-        this.lastModificationDate = lastModificationDate;
+    public Widget withLastModificationDate(Instant lastModificationDate) {
+        return new Widget(id, x, y, z, height, width, lastModificationDate, version);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public Widget withVersion(long version) {
+        return new Widget(id, x, y, z, height, width, lastModificationDate, version);
     }
 
     @Override
@@ -115,7 +161,8 @@ public class Widget implements ImmutableWidget {
                 Objects.equals(this.z, widgetToCompare.z) &&
                 Objects.equals(this.height, widgetToCompare.height) &&
                 Objects.equals(this.width, widgetToCompare.width) &&
-                Objects.equals(this.lastModificationDate, widgetToCompare.lastModificationDate);
+                Objects.equals(this.lastModificationDate, widgetToCompare.lastModificationDate) &&
+                this.version == widgetToCompare.version;
     }
 
     @Override
@@ -127,7 +174,8 @@ public class Widget implements ImmutableWidget {
                 z,
                 height,
                 width,
-                lastModificationDate
+                lastModificationDate,
+                version
         );
     }
 }
@@ -26,26 +26,33 @@ final public class WidgetChangeSet {
         );
     }
 
-    public void applyChanges(Widget widget) {
+    /*
+        Returns a new version of the widget with the changes applied, the passed one stays intact
+     */
+    public Widget applyChanges(Widget widget) {
+        Widget changedWidget = widget;
+
         if (x != null) {
-            widget.setX(x);
+            changedWidget = changedWidget.withX(x);
         }
 
         if (y != null) {
-            widget.setY(y);
+            changedWidget = changedWidget.withY(y);
         }
 
         if (z != null) {
-            widget.setZ(z);
+            changedWidget = changedWidget.withZ(z);
         }
 
         if (height != null) {
-            widget.setHeight(height);
+            changedWidget = changedWidget.withHeight(height);
         }
 
         if (width != null) {
-            widget.setWidth(width);
+            changedWidget = changedWidget.withWidth(width);
         }
+
+        return changedWidget;
     }
 
     public Integer getX() {
@@ -0,0 +1,8 @@
+package com.azaitsev.widgets.repository.exceptions;
+
+public class BoardNotEmptyException extends RuntimeException {
+
+    public BoardNotEmptyException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,8 @@
+package com.azaitsev.widgets.repository.exceptions;
+
+public class SnapshotExpiredException extends RuntimeException {
+
+    public SnapshotExpiredException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,8 @@
+package com.azaitsev.widgets.repository.exceptions;
+
+public class StaleVersionException extends RuntimeException {
+
+    public StaleVersionException(String message) {
+        super(message);
+    }
+}
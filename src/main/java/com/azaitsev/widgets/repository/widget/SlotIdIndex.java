@@ -0,0 +1,128 @@
+package com.azaitsev.widgets.repository.widget;
+
+import java.util.UUID;
+
+/*
+    Widget id -> slot index for repositories that keep widgets in slots of primitive storage.
+    It is an open addressing table of slots with linear probing, ids themselves are read from the storage,
+    so the index costs a few bytes per widget and no objects.
+
+    Not thread safe - callers are expected to guard it with their own lock.
+ */
+final class SlotIdIndex {
+    private static final int EMPTY = 0;
+    private static final int TOMBSTONE = -1;
+
+    interface SlotIds {
+        long getMostSignificantBits(int slot);
+
+        long getLeastSignificantBits(int slot);
+    }
+
+    private final SlotIds slotIds;
+    private final int initialCapacity;
+    // Slot + 1, so that zero marks an empty bucket
+    private int[] table;
+    private int size;
+    private int tombstones;
+
+    SlotIdIndex(SlotIds slotIds, int initialCapacity) {
+        this.slotIds = slotIds;
+        // Smallest power of two that keeps the specified number of widgets at most half of the table
+        this.initialCapacity = Integer.highestOneBit(Math.max(initialCapacity, 8) * 4 - 1);
+        this.table = new int[this.initialCapacity];
+    }
+
+    /*
+        Slot of the widget or -1 if there is no such widget
+     */
+    int find(UUID widgetId) {
+        int bucket = findBucket(widgetId.getMostSignificantBits(), widgetId.getLeastSignificantBits());
+        return bucket == -1 ? -1 : table[bucket] - 1;
+    }
+
+    void put(int slot) {
+        // Keep the table at most half full, counting tombstones, so that probe sequences stay short
+        if ((size + tombstones + 1) * 2 > table.length) {
+            rehash(size + 1 > table.length / 4 ? table.length * 2 : table.length);
+        }
+
+        if (putIntoTable(table, slot)) {
+            tombstones--;
+        }
+        size++;
+    }
+
+    boolean remove(UUID widgetId) {
+        int bucket = findBucket(widgetId.getMostSignificantBits(), widgetId.getLeastSignificantBits());
+        if (bucket == -1) {
+            return false;
+        }
+
+        table[bucket] = TOMBSTONE;
+        tombstones++;
+        size--;
+        return true;
+    }
+
+    long getAllocatedBytes() {
+        return (long) table.length * Integer.BYTES;
+    }
+
+    void clear() {
+        table = new int[initialCapacity];
+        size = 0;
+        tombstones = 0;
+    }
+
+    private int findBucket(long mostSignificantBits, long leastSignificantBits) {
+        int mask = table.length - 1;
+        for (int bucket = hash(mostSignificantBits, leastSignificantBits) & mask; ; bucket = (bucket + 1) & mask) {
+            int entry = table[bucket];
+            if (entry == EMPTY) {
+                return -1;
+            }
+
+            if (entry != TOMBSTONE
+                    && slotIds.getMostSignificantBits(entry - 1) == mostSignificantBits
+                    && slotIds.getLeastSignificantBits(entry - 1) == leastSignificantBits) {
+                return bucket;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] rehashedTable = new int[capacity];
+        for (int entry : table) {
+            if (entry != EMPTY && entry != TOMBSTONE) {
+                putIntoTable(rehashedTable, entry - 1);
+            }
+        }
+        table = rehashedTable;
+        tombstones = 0;
+    }
+
+    /*
+        Returns true if the slot took the place of a tombstone
+     */
+    private boolean putIntoTable(int[] targetTable, int slot) {
+        int mask = targetTable.length - 1;
+        int bucket = hash(slotIds.getMostSignificantBits(slot), slotIds.getLeastSignificantBits(slot)) & mask;
+        while (targetTable[bucket] != EMPTY && targetTable[bucket] != TOMBSTONE) {
+            bucket = (bucket + 1) & mask;
+        }
+
+        boolean tombstoneReused = targetTable[bucket] == TOMBSTONE;
+        targetTable[bucket] = slot + 1;
+        return tombstoneReused;
+    }
+
+    private static int hash(long mostSignificantBits, long leastSignificantBits) {
+        // Random UUIDs are well distributed already, the mix only guards against poorly generated ones
+        long hash = mostSignificantBits ^ leastSignificantBits;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+}
@@ -0,0 +1,114 @@
+package com.azaitsev.widgets.repository.widget;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/*
+    Z order index for repositories that keep widgets in slots of primitive storage.
+    It is just an array of slots sorted by z index, which is read from the storage, so it takes 4 bytes per widget.
+    Rank and select are cheap, but putting a widget in the middle of z order moves the part of the array above it.
+
+    Not thread safe - callers are expected to guard it with their own lock.
+ */
+final class SlotZAxisOrderIndex {
+
+    interface ZAxisColumn {
+        int get(int slot);
+
+        void set(int slot, int z);
+    }
+
+    private final ZAxisColumn zAxisColumn;
+    private final int initialCapacity;
+    private int[] slots;
+    private int size;
+
+    SlotZAxisOrderIndex(ZAxisColumn zAxisColumn, int initialCapacity) {
+        this.zAxisColumn = zAxisColumn;
+        this.initialCapacity = Math.max(initialCapacity, 8);
+        this.slots = new int[this.initialCapacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int slotAt(int position) {
+        return slots[position];
+    }
+
+    /*
+        Number of widgets lying strictly below the specified z index
+     */
+    int rank(int z) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (zAxisColumn.get(slots[middle]) < z) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    boolean containsKey(int z) {
+        int position = rank(z);
+        return position < size && zAxisColumn.get(slots[position]) == z;
+    }
+
+    int lastKey() {
+        if (size == 0) {
+            throw new NoSuchElementException("Z axis index is empty");
+        }
+        return zAxisColumn.get(slots[size - 1]);
+    }
+
+    /*
+        Position of the first widget lying above the specified z index
+     */
+    int positionAfter(int z) {
+        return rank(z) + (containsKey(z) ? 1 : 0);
+    }
+
+    void insert(int position, int slot) {
+        if (size == slots.length) {
+            slots = Arrays.copyOf(slots, size * 2);
+        }
+
+        System.arraycopy(slots, position, slots, position + 1, size - position);
+        slots[position] = slot;
+        size++;
+    }
+
+    void removeAt(int position) {
+        System.arraycopy(slots, position + 1, slots, position, size - position - 1);
+        size--;
+    }
+
+    /*
+        Moves the contiguous run of z indexes starting at the specified position one step up, if there is one,
+        and returns the length of the run
+     */
+    int shiftRun(int position, int shiftFrom) {
+        int expectedZ = shiftFrom;
+        int end = position;
+        while (end < size && zAxisColumn.get(slots[end]) == expectedZ) {
+            zAxisColumn.set(slots[end], expectedZ + 1);
+            expectedZ++;
+            end++;
+        }
+        return end - position;
+    }
+
+    long getAllocatedBytes() {
+        return (long) slots.length * Integer.BYTES;
+    }
+
+    void clear() {
+        slots = new int[initialCapacity];
+        size = 0;
+    }
+}
@@ -0,0 +1,187 @@
+package com.azaitsev.widgets.repository.widget;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+    Fair ReentrantReadWriteLock that times waiting for it and holding it once the meters are set.
+    Only lock() and lockInterruptibly() are timed, and only the outermost acquisition of the write lock,
+    reentering it neither waits nor holds it any longer. Read lock is timed for a sample of acquisitions.
+    Without the meters it costs a volatile read on top of the lock itself.
+ */
+class TimedReadWriteLock implements ReadWriteLock {
+    private final ReentrantReadWriteLock lock;
+    private final Lock readLock;
+    private final Lock writeLock;
+    // Read lock is held by many threads at once, so each of them keeps the time it took the lock at,
+    // zero unless the acquisition is timed
+    private final ThreadLocal<long[]> readLockAcquiredNanos;
+    // Number of timed read acquisitions in progress, so that releases of untimed ones skip the thread local
+    private final AtomicInteger timedReadLockHolds;
+    // Guarded by the write lock, zero unless the acquisition is timed
+    private long writeLockAcquiredNanos;
+    private volatile WidgetRepositoryMeters meters;
+
+    TimedReadWriteLock() {
+        lock = new ReentrantReadWriteLock(true);
+        readLock = new TimedReadLock();
+        writeLock = new TimedWriteLock();
+        readLockAcquiredNanos = ThreadLocal.withInitial(() -> new long[1]);
+        timedReadLockHolds = new AtomicInteger();
+    }
+
+    void setMeters(WidgetRepositoryMeters meters) {
+        this.meters = meters;
+    }
+
+    boolean isWriteLockedByCurrentThread() {
+        return lock.isWriteLockedByCurrentThread();
+    }
+
+    int getWriteHoldCount() {
+        return lock.getWriteHoldCount();
+    }
+
+    @Override
+    public Lock readLock() {
+        return readLock;
+    }
+
+    @Override
+    public Lock writeLock() {
+        return writeLock;
+    }
+
+    private abstract class TimedLock implements Lock {
+        private final Lock delegate;
+
+        private TimedLock(Lock delegate) {
+            this.delegate = delegate;
+        }
+
+        abstract boolean isTimed();
+
+        abstract void acquired(WidgetRepositoryMeters meters, long startNanos);
+
+        abstract void releasing(WidgetRepositoryMeters meters);
+
+        @Override
+        public void lock() {
+            WidgetRepositoryMeters meters = TimedReadWriteLock.this.meters;
+            if (meters == null || !isTimed()) {
+                delegate.lock();
+                return;
+            }
+
+            long startNanos = System.nanoTime();
+            delegate.lock();
+            acquired(meters, startNanos);
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            WidgetRepositoryMeters meters = TimedReadWriteLock.this.meters;
+            if (meters == null || !isTimed()) {
+                delegate.lockInterruptibly();
+                return;
+            }
+
+            long startNanos = System.nanoTime();
+            delegate.lockInterruptibly();
+            acquired(meters, startNanos);
+        }
+
+        @Override
+        public boolean tryLock() {
+            return delegate.tryLock();
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            return delegate.tryLock(time, unit);
+        }
+
+        @Override
+        public void unlock() {
+            WidgetRepositoryMeters meters = TimedReadWriteLock.this.meters;
+            if (meters != null) {
+                releasing(meters);
+            }
+            delegate.unlock();
+        }
+
+        @Override
+        public Condition newCondition() {
+            return delegate.newCondition();
+        }
+    }
+
+    private class TimedReadLock extends TimedLock {
+        private TimedReadLock() {
+            super(lock.readLock());
+        }
+
+        @Override
+        boolean isTimed() {
+            return WidgetRepositoryMeters.sampleReadLock();
+        }
+
+        @Override
+        void acquired(WidgetRepositoryMeters meters, long startNanos) {
+            long acquiredNanos = System.nanoTime();
+            meters.readLockWaitTimer.record(acquiredNanos - startNanos, TimeUnit.NANOSECONDS);
+            // Reentered lock is held since the outer timed acquisition
+            long[] heldSinceNanos = readLockAcquiredNanos.get();
+            if (heldSinceNanos[0] == 0) {
+                heldSinceNanos[0] = acquiredNanos;
+                timedReadLockHolds.incrementAndGet();
+            }
+        }
+
+        @Override
+        void releasing(WidgetRepositoryMeters meters) {
+            if (timedReadLockHolds.get() == 0) {
+                return;
+            }
+
+            long[] acquiredNanos = readLockAcquiredNanos.get();
+            if (acquiredNanos[0] != 0) {
+                meters.readLockHoldTimer.record(System.nanoTime() - acquiredNanos[0], TimeUnit.NANOSECONDS);
+                acquiredNanos[0] = 0;
+                timedReadLockHolds.decrementAndGet();
+            }
+        }
+    }
+
+    private class TimedWriteLock extends TimedLock {
+        private TimedWriteLock() {
+            super(lock.writeLock());
+        }
+
+        @Override
+        boolean isTimed() {
+            return true;
+        }
+
+        @Override
+        void acquired(WidgetRepositoryMeters meters, long startNanos) {
+            if (lock.getWriteHoldCount() == 1) {
+                long acquiredNanos = System.nanoTime();
+                meters.writeLockWaitTimer.record(acquiredNanos - startNanos, TimeUnit.NANOSECONDS);
+                writeLockAcquiredNanos = acquiredNanos;
+            }
+        }
+
+        @Override
+        void releasing(WidgetRepositoryMeters meters) {
+            if (writeLockAcquiredNanos != 0 && lock.getWriteHoldCount() == 1) {
+                meters.writeLockHoldTimer.record(System.nanoTime() - writeLockAcquiredNanos, TimeUnit.NANOSECONDS);
+                writeLockAcquiredNanos = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.azaitsev.widgets.repository.widget;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+
+/*
+    StampedLock that times waiting for its read and write modes and holding them once the meters are set.
+    Read mode is timed for a sample of acquisitions, optimistic reads never wait, so they are not timed at all.
+    Without the meters it costs a volatile read on top of the lock itself.
+ */
+class TimedStampedLock {
+    private final StampedLock lock;
+    // Read mode is held by many threads at once, so each of them keeps the time it took the lock at,
+    // zero unless the acquisition is timed
+    private final ThreadLocal<long[]> readLockAcquiredNanos;
+    // Number of timed read acquisitions in progress, so that releases of untimed ones skip the thread local
+    private final AtomicInteger timedReadLockHolds;
+    // Guarded by the write mode, zero unless the acquisition is timed
+    private long writeLockAcquiredNanos;
+    private volatile WidgetRepositoryMeters meters;
+
+    TimedStampedLock() {
+        lock = new StampedLock();
+        readLockAcquiredNanos = ThreadLocal.withInitial(() -> new long[1]);
+        timedReadLockHolds = new AtomicInteger();
+    }
+
+    void setMeters(WidgetRepositoryMeters meters) {
+        this.meters = meters;
+    }
+
+    long tryOptimisticRead() {
+        return lock.tryOptimisticRead();
+    }
+
+    boolean validate(long stamp) {
+        return lock.validate(stamp);
+    }
+
+    long readLock() {
+        WidgetRepositoryMeters meters = this.meters;
+        if (meters == null || !WidgetRepositoryMeters.sampleReadLock()) {
+            return lock.readLock();
+        }
+
+        long startNanos = System.nanoTime();
+        long stamp = lock.readLock();
+        long acquiredNanos = System.nanoTime();
+        meters.readLockWaitTimer.record(acquiredNanos - startNanos, TimeUnit.NANOSECONDS);
+        // Read mode taken once again is held since the outer timed acquisition
+        long[] heldSinceNanos = readLockAcquiredNanos.get();
+        if (heldSinceNanos[0] == 0) {
+            heldSinceNanos[0] = acquiredNanos;
+            timedReadLockHolds.incrementAndGet();
+        }
+        return stamp;
+    }
+
+    void unlockRead(long stamp) {
+        WidgetRepositoryMeters meters = this.meters;
+        if (meters != null && timedReadLockHolds.get() != 0) {
+            long[] acquiredNanos = readLockAcquiredNanos.get();
+            if (acquiredNanos[0] != 0) {
+                meters.readLockHoldTimer.record(System.nanoTime() - acquiredNanos[0], TimeUnit.NANOSECONDS);
+                acquiredNanos[0] = 0;
+                timedReadLockHolds.decrementAndGet();
+            }
+        }
+        lock.unlockRead(stamp);
+    }
+
+    long writeLock() {
+        WidgetRepositoryMeters meters = this.meters;
+        if (meters == null) {
+            return lock.writeLock();
+        }
+
+        long startNanos = System.nanoTime();
+        long stamp = lock.writeLock();
+        long acquiredNanos = System.nanoTime();
+        meters.writeLockWaitTimer.record(acquiredNanos - startNanos, TimeUnit.NANOSECONDS);
+        writeLockAcquiredNanos = acquiredNanos;
+        return stamp;
+    }
+
+    void unlockWrite(long stamp) {
+        WidgetRepositoryMeters meters = this.meters;
+        if (meters != null && writeLockAcquiredNanos != 0) {
+            meters.writeLockHoldTimer.record(System.nanoTime() - writeLockAcquiredNanos, TimeUnit.NANOSECONDS);
+            writeLockAcquiredNanos = 0;
+        }
+        lock.unlockWrite(stamp);
+    }
+}
@@ -0,0 +1,180 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.Widget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/*
+    Lays out widgets that are imported into an empty board exactly as creating them one by one in order
+    of the input would, without the lookup and the possible shift per widget that every create costs.
+
+    Create puts a widget at its z index and shifts the contiguous run above it up by one, so it takes the first
+    vacant z index at or above its own. The set of taken z indexes therefore grows the way linear probing does,
+    which is tracked by a union-find of vacant z indexes. Widget without z index goes right above the topmost one.
+    Created widget lands right above the widgets lying below its z index at that moment, so its position
+    in z order is counted among the z indexes taken before it. Positions counted at the time of every create
+    are turned into the final z order by a pass from the last widget down, and the i-th widget of the final
+    z order takes the i-th lowest taken z index. The whole layout takes O(n log n).
+
+    The result comes in z order with strictly increasing z indexes, so repositories fill their indexes in bulk.
+ */
+final class WidgetBulkImport {
+    private WidgetBulkImport() {
+    }
+
+    static List<Widget> arrange(Stream<WidgetChangeSet> changeSets, Instant modificationDate) {
+        // Validate the whole input before any widget is placed
+        List<Widget> builtWidgets = new ArrayList<>();
+        Iterator<WidgetChangeSet> iterator = changeSets.iterator();
+        while (iterator.hasNext()) {
+            builtWidgets.add(iterator.next().buildWidget());
+        }
+        int count = builtWidgets.size();
+
+        // Z index every widget is created at and the vacant one its create takes, the top of the run it shifts
+        long[] zAxisIndexes = new long[count];
+        long[] takenZAxisIndexes = new long[count];
+        VacantZAxisIndexes vacantZAxisIndexes = new VacantZAxisIndexes();
+        // Empty board puts a widget without z index at 1, the same as create does
+        long topZ = 0;
+        for (int position = 0; position < count; position++) {
+            Integer z = builtWidgets.get(position).getZ();
+            zAxisIndexes[position] = z != null ? z : topZ + 1;
+            takenZAxisIndexes[position] = vacantZAxisIndexes.take(zAxisIndexes[position]);
+            topZ = position == 0 ? takenZAxisIndexes[position] : Math.max(topZ, takenZAxisIndexes[position]);
+        }
+
+        long[] sortedZAxisIndexes = takenZAxisIndexes.clone();
+        Arrays.sort(sortedZAxisIndexes);
+
+        // Number of widgets lying below the created one at the time of its create
+        int[] ranks = new int[count];
+        Counter taken = new Counter(count, false);
+        for (int position = 0; position < count; position++) {
+            int below = Arrays.binarySearch(sortedZAxisIndexes, zAxisIndexes[position]);
+            ranks[position] = taken.countBelow(below >= 0 ? below : -below - 1);
+            taken.add(Arrays.binarySearch(sortedZAxisIndexes, takenZAxisIndexes[position]), 1);
+        }
+
+        // Every later create goes into the order after this one, so the last widget is placed first
+        int[] order = new int[count];
+        Counter vacant = new Counter(count, true);
+        for (int position = count - 1; position >= 0; position--) {
+            int index = vacant.findNth(ranks[position]);
+            order[index] = position;
+            vacant.add(index, -1);
+        }
+
+        List<Widget> arrangedWidgets = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            Widget widget = builtWidgets.get(order[index]);
+            arrangedWidgets.add(place(widget, toZAxisIndex(sortedZAxisIndexes[index]), modificationDate));
+        }
+        return arrangedWidgets;
+    }
+
+    private static Widget place(Widget widget, int z, Instant modificationDate) {
+        return new Widget(
+                UUID.randomUUID(),
+                widget.getX(),
+                widget.getY(),
+                z,
+                widget.getHeight(),
+                widget.getWidth(),
+                modificationDate
+        );
+    }
+
+    private static int toZAxisIndex(long z) {
+        if (z > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Imported widgets don't fit below the maximum z index");
+        }
+        return (int) z;
+    }
+
+    /*
+        Union-find of taken z indexes, each one points to a z index above it that was vacant when it was last
+        looked up. Lookups point the whole path to the vacant z index they find, so it stays short.
+     */
+    private static final class VacantZAxisIndexes {
+        private final Map<Long, Long> nextCandidates = new HashMap<>();
+
+        /*
+            Takes the first vacant z index at or above the one passed
+         */
+        private long take(long z) {
+            long vacantZ = z;
+            Long nextCandidate;
+            while ((nextCandidate = nextCandidates.get(vacantZ)) != null) {
+                vacantZ = nextCandidate;
+            }
+
+            long currentZ = z;
+            while (currentZ != vacantZ) {
+                long followingZ = nextCandidates.get(currentZ);
+                nextCandidates.put(currentZ, vacantZ + 1);
+                currentZ = followingZ;
+            }
+            nextCandidates.put(vacantZ, vacantZ + 1);
+            return vacantZ;
+        }
+    }
+
+    /*
+        Fenwick tree of counts over indexes 0 to size - 1
+     */
+    private static final class Counter {
+        private final int[] tree;
+
+        private Counter(int size, boolean filled) {
+            tree = new int[size + 1];
+            if (filled) {
+                // Node i covers the lowest set bit of i worth of indexes
+                for (int node = 1; node <= size; node++) {
+                    tree[node] = node & -node;
+                }
+            }
+        }
+
+        private void add(int index, int delta) {
+            for (int node = index + 1; node < tree.length; node += node & -node) {
+                tree[node] += delta;
+            }
+        }
+
+        /*
+            Sum of the counts at the indexes below the one passed
+         */
+        private int countBelow(int index) {
+            int count = 0;
+            for (int node = index; node > 0; node -= node & -node) {
+                count += tree[node];
+            }
+            return count;
+        }
+
+        /*
+            Index with exactly n counts below it and a count of its own, where counts are either 0 or 1
+         */
+        private int findNth(int n) {
+            int node = 0;
+            int remaining = n;
+            for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+                if (node + step < tree.length && tree[node + step] <= remaining) {
+                    node += step;
+                    remaining -= tree[node];
+                }
+            }
+            return node;
+        }
+    }
+}
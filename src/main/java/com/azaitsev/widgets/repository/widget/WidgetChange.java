@@ -0,0 +1,67 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+
+import java.util.UUID;
+
+/*
+    Single change of a board as it is kept by WidgetChangeFeed
+ */
+public final class WidgetChange {
+    public enum Type {
+        CREATED,
+        UPDATED,
+        DELETED,
+        // Widgets with z indexes from shiftFrom to shiftFrom + shiftedCount - 1 have moved one step up
+        SHIFTED,
+        // Widget has been moved to another z index by compaction, the order of widgets is the same
+        RENUMBERED,
+        CLEARED
+    }
+
+    private final long sequence;
+    private final Type type;
+    private final ImmutableWidget widget;
+    private final UUID widgetId;
+    private final int shiftFrom;
+    private final int shiftedCount;
+
+    WidgetChange(long sequence, Type type, ImmutableWidget widget, UUID widgetId, int shiftFrom, int shiftedCount) {
+        this.sequence = sequence;
+        this.type = type;
+        this.widget = widget;
+        this.widgetId = widgetId;
+        this.shiftFrom = shiftFrom;
+        this.shiftedCount = shiftedCount;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /*
+        Widget as it is right after the change, for created, updated and renumbered widgets only
+     */
+    public ImmutableWidget getWidget() {
+        return widget;
+    }
+
+    /*
+        Id of the created, updated, renumbered or deleted widget
+     */
+    public UUID getWidgetId() {
+        return widgetId;
+    }
+
+    public int getShiftFrom() {
+        return shiftFrom;
+    }
+
+    public int getShiftedCount() {
+        return shiftedCount;
+    }
+}
@@ -0,0 +1,189 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+    Every change of a board numbered with a sequence that grows by one with each change, starting with 1.
+    Only the latest changes are kept in a ring buffer, so a client that has fallen too far behind
+    has to fetch the board again instead of catching up.
+
+    Widgets moved by a shift are recorded as a single change covering the whole shifted run, so recording
+    a change costs O(1) no matter how many widgets it moves.
+
+    Ring buffer starts small and grows up to the capacity as changes come, so a board that barely changes
+    doesn't pay for the whole buffer.
+
+    Repositories append to the feed under their write lock, so changes come in the order they were applied.
+    Sequence numbers are not persisted and start over with every start of the application. Every feed has
+    a random epoch of its own, so a sequence is only meaningful together with the epoch it was issued in.
+    Board restored from a snapshot of its own feed may continue the feed from the sequence the snapshot was taken at.
+ */
+public final class WidgetChangeFeed {
+    public static final int DEFAULT_CAPACITY = 65_536;
+    private static final int INITIAL_BUFFER_SIZE = 16;
+
+    private final long epoch;
+    // Sequence the feed started after, changes up to it are not in the buffer
+    private final long startSequence;
+    private final int capacity;
+    // Replaced by a larger one until it reaches the capacity
+    private WidgetChange[] changes;
+    private final ReadWriteLock changesLock;
+    // Notified after every change, so they are expected to return right away
+    private final List<Runnable> listeners;
+    // Written under the write lock only, volatile lets the latest sequence be read without locking
+    private volatile long lastSequence;
+
+    public WidgetChangeFeed() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public WidgetChangeFeed(int capacity) {
+        this(capacity, ThreadLocalRandom.current().nextLong(), 0);
+    }
+
+    /*
+        Continues the feed of the epoch after the sequence, which is the latest change the board has seen
+     */
+    WidgetChangeFeed(long epoch, long lastSequence) {
+        this(DEFAULT_CAPACITY, epoch, lastSequence);
+    }
+
+    private WidgetChangeFeed(int capacity, long epoch, long lastSequence) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Change feed capacity should be positive");
+        }
+
+        if (lastSequence < 0) {
+            throw new IllegalArgumentException("Change feed sequence should not be negative");
+        }
+
+        this.epoch = epoch;
+        this.startSequence = lastSequence;
+        this.lastSequence = lastSequence;
+        this.capacity = capacity;
+        changes = new WidgetChange[Math.min(capacity, INITIAL_BUFFER_SIZE)];
+        changesLock = new ReentrantReadWriteLock();
+        listeners = new CopyOnWriteArrayList<>();
+    }
+
+    /*
+        Tells feeds apart, so that the same sequence issued by a feed of an earlier start of the application
+        or by an earlier feed of the board is not taken for a sequence of this one
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /*
+        Sequence of the latest change or 0 if there were no changes yet. Takes no locks, so it is cheap enough
+        to serve as a version of the whole board.
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /*
+        At most limit changes that came after the specified sequence, in order.
+        Empty result means that some of the changes are already dropped or that the sequence is unknown
+        to this feed, so the board has to be fetched again.
+     */
+    public Optional<List<WidgetChange>> getChangesAfter(long sequence, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit should not be negative");
+        }
+
+        changesLock.readLock().lock();
+        try {
+            long oldestSequence = Math.max(startSequence + 1, lastSequence - changes.length + 1);
+            if (sequence < oldestSequence - 1 || sequence > lastSequence) {
+                return Optional.empty();
+            }
+
+            long toSequence = Math.min(lastSequence, sequence + limit);
+            List<WidgetChange> changesAfter = new ArrayList<>((int) (toSequence - sequence));
+            for (long changeSequence = sequence + 1; changeSequence <= toSequence; changeSequence++) {
+                changesAfter.add(changes[(int) (changeSequence % changes.length)]);
+            }
+            return Optional.of(changesAfter);
+        } finally {
+            changesLock.readLock().unlock();
+        }
+    }
+
+    public void addListener(@NotNull Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(@NotNull Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    void created(ImmutableWidget widget) {
+        append(WidgetChange.Type.CREATED, widget, widget.getId(), 0, 0);
+    }
+
+    void updated(ImmutableWidget widget) {
+        append(WidgetChange.Type.UPDATED, widget, widget.getId(), 0, 0);
+    }
+
+    void deleted(UUID widgetId) {
+        append(WidgetChange.Type.DELETED, null, widgetId, 0, 0);
+    }
+
+    void shifted(int shiftFrom, int shiftedCount) {
+        append(WidgetChange.Type.SHIFTED, null, null, shiftFrom, shiftedCount);
+    }
+
+    void renumbered(ImmutableWidget widget) {
+        append(WidgetChange.Type.RENUMBERED, widget, widget.getId(), 0, 0);
+    }
+
+    void cleared() {
+        append(WidgetChange.Type.CLEARED, null, null, 0, 0);
+    }
+
+    private void append(WidgetChange.Type type, ImmutableWidget widget, UUID widgetId, int shiftFrom, int shiftedCount) {
+        changesLock.writeLock().lock();
+        try {
+            long sequence = lastSequence + 1;
+            if (sequence - startSequence > changes.length && changes.length < capacity) {
+                grow();
+            }
+            lastSequence = sequence;
+            changes[(int) (sequence % changes.length)] =
+                    new WidgetChange(sequence, type, widget, widgetId, shiftFrom, shiftedCount);
+        } finally {
+            changesLock.writeLock().unlock();
+        }
+
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /*
+        Expects the write lock to be held and the buffer to be full
+     */
+    private void grow() {
+        WidgetChange[] grownChanges = new WidgetChange[(int) Math.min(capacity, 2L * changes.length)];
+        for (long sequence = lastSequence - changes.length + 1; sequence <= lastSequence; sequence++) {
+            grownChanges[(int) (sequence % grownChanges.length)] = changes[(int) (sequence % changes.length)];
+        }
+        changes = grownChanges;
+    }
+}
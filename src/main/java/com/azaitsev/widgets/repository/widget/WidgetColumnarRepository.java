@@ -0,0 +1,611 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.Widget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import com.azaitsev.widgets.repository.exceptions.BoardNotEmptyException;
+import com.azaitsev.widgets.repository.exceptions.EntityNotFoundException;
+import com.azaitsev.widgets.repository.exceptions.SnapshotExpiredException;
+import com.azaitsev.widgets.repository.exceptions.StaleVersionException;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import javax.validation.constraints.NotNull;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/*
+    In-memory repository for huge boards that stores widgets column by column in primitive arrays.
+
+    Widget takes a slot - the same index in every column. Ids are looked up in SlotIdIndex and z order
+    is kept by SlotZAxisOrderIndex, both of them are plain arrays of slots. So a widget costs about 70 bytes
+    and no objects at all, under 140 bytes even right after the arrays have grown, instead of a dozen objects
+    of the widget itself and entries of its indexes that take more than 300 bytes in WidgetInMemoryRepository.
+    ImmutableWidget is materialized only when the widget is read.
+
+    Sorted array keeps rank and select trivial and pages cheap, but putting a widget in the middle of the z order
+    moves the part of the array above it. Widgets put on top of the board, which is the default, don't pay for it.
+ */
+public class WidgetColumnarRepository implements WidgetRepository {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Columns, indexed by slot
+    private long[] idMostSignificantBits;
+    private long[] idLeastSignificantBits;
+    private int[] x;
+    private int[] y;
+    // Change set doesn't require Y coordinate, absent one is kept as 0 in the y column and a clear bit here
+    private BitSet yPresence;
+    private int[] z;
+    private int[] height;
+    private int[] width;
+    private long[] lastModificationEpochNanos;
+    private long[] versions;
+
+    // Slots freed by deletions, reused before the columns grow
+    private int[] freeSlots;
+    private int freeSlotsCount;
+    private int usedSlotsCount;
+
+    private final SlotIdIndex idIndex;
+    private final SlotZAxisOrderIndex zAxisOrderIndex;
+    private final TimedReadWriteLock zAxisReorderingLock;
+    private final WidgetChangeFeed changeFeed;
+    private volatile WidgetRepositoryMeters meters = WidgetRepositoryMeters.UNBOUND;
+
+    public WidgetColumnarRepository() {
+        zAxisReorderingLock = new TimedReadWriteLock();
+        changeFeed = new WidgetChangeFeed();
+        idIndex = new SlotIdIndex(new SlotIdIndex.SlotIds() {
+            @Override
+            public long getMostSignificantBits(int slot) {
+                return idMostSignificantBits[slot];
+            }
+
+            @Override
+            public long getLeastSignificantBits(int slot) {
+                return idLeastSignificantBits[slot];
+            }
+        }, INITIAL_CAPACITY);
+        zAxisOrderIndex = new SlotZAxisOrderIndex(new SlotZAxisOrderIndex.ZAxisColumn() {
+            @Override
+            public int get(int slot) {
+                return z[slot];
+            }
+
+            @Override
+            public void set(int slot, int zAxisIndex) {
+                z[slot] = zAxisIndex;
+            }
+        }, INITIAL_CAPACITY);
+        allocate();
+    }
+
+    public Optional<ImmutableWidget> get(@NotNull UUID widgetId) {
+        zAxisReorderingLock.readLock().lock();
+        try {
+            int slot = idIndex.find(widgetId);
+            return slot == -1 ? Optional.empty() : Optional.of(materialize(slot));
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    public List<ImmutableWidget> getPage(int limit, long offset) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Page limit  should not be negative");
+        }
+
+        if (offset < 0) {
+            throw new IllegalArgumentException("Page offset should not be negative");
+        }
+
+        zAxisReorderingLock.readLock().lock();
+        try {
+            return materializeRange(offset, limit);
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    public List<ImmutableWidget> getPageAfter(Integer zCursor, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Page limit  should not be negative");
+        }
+
+        zAxisReorderingLock.readLock().lock();
+        try {
+            long start = zCursor == null ? 0 : zAxisOrderIndex.positionAfter(zCursor);
+            return materializeRange(start, limit);
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    /*
+        Z order lives in flat arrays that are changed in place, so versions of it are not kept
+     */
+    @Override
+    public WidgetScanPage startScan(int limit, long offset) {
+        return WidgetScanPage.ofLiveBoard(changeFeed.getLastSequence(), getPage(limit, offset));
+    }
+
+    @Override
+    public WidgetScanPage startScanAfter(Integer zCursor, int limit) {
+        return WidgetScanPage.ofLiveBoard(changeFeed.getLastSequence(), getPageAfter(zCursor, limit));
+    }
+
+    @Override
+    public List<ImmutableWidget> getSnapshotPage(long snapshotVersion, int limit, long offset) {
+        throw new SnapshotExpiredException("Snapshot " + snapshotVersion + " is not retained");
+    }
+
+    @Override
+    public List<ImmutableWidget> getSnapshotPageAfter(long snapshotVersion, Integer zCursor, int limit) {
+        throw new SnapshotExpiredException("Snapshot " + snapshotVersion + " is not retained");
+    }
+
+    @Override
+    public Optional<Long> getRank(@NotNull UUID widgetId) {
+        zAxisReorderingLock.readLock().lock();
+        try {
+            int slot = idIndex.find(widgetId);
+            return slot == -1 ? Optional.empty() : Optional.of((long) zAxisOrderIndex.rank(z[slot]));
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    /*
+        Widgets are not indexed by coordinates here - every widget would cost more than the whole columnar
+        layout saves. So z order is scanned until the limit is reached, which costs O(n) for sparse areas.
+     */
+    @Override
+    public List<ImmutableWidget> findInArea(int x1, int y1, int x2, int y2, int limit) {
+        if (x1 > x2 || y1 > y2) {
+            throw new IllegalArgumentException("Area should not be empty");
+        }
+
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit should not be negative");
+        }
+
+        zAxisReorderingLock.readLock().lock();
+        try {
+            List<ImmutableWidget> hits = new ArrayList<>();
+            for (int position = 0; position < zAxisOrderIndex.size() && hits.size() < limit; position++) {
+                int slot = zAxisOrderIndex.slotAt(position);
+                if (overlaps(slot, x1, y1, x2, y2)) {
+                    hits.add(materialize(slot));
+                }
+            }
+            return hits;
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    /*
+        Z order is scanned from the top, so the scan stops at the first hit
+     */
+    @Override
+    public Optional<ImmutableWidget> findTopmostAt(int x, int y) {
+        zAxisReorderingLock.readLock().lock();
+        try {
+            for (int position = zAxisOrderIndex.size() - 1; position >= 0; position--) {
+                int slot = zAxisOrderIndex.slotAt(position);
+                if (overlaps(slot, x, y, x, y)) {
+                    return Optional.of(materialize(slot));
+                }
+            }
+            return Optional.empty();
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ImmutableWidget> findAllAt(int x, int y) {
+        return findInArea(x, y, x, y, Integer.MAX_VALUE);
+    }
+
+    public ImmutableWidget create(@NotNull WidgetChangeSet changeSet) {
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            Widget widget = changeSet.buildWidget();
+
+            // If widget was passed without z index - move new widget to the top
+            // by taking current max z index and incrementing it
+            int zAxisIndex = widget.getZ() == null ? getMaxZAxisIndex() + 1 : widget.getZ();
+
+            // If widget with specified z index already exist - shift it along with other colliding widgets
+            int position = zAxisOrderIndex.rank(zAxisIndex);
+            int shiftedWidgetsCount = zAxisOrderIndex.shiftRun(position, zAxisIndex);
+            if (shiftedWidgetsCount > 0) {
+                changeFeed.shifted(zAxisIndex, shiftedWidgetsCount);
+                meters.recordShiftRun(shiftedWidgetsCount);
+            }
+
+            int slot = putRecord(getGeneratedWidgetId(), widget, zAxisIndex, toEpochNanos(Instant.now()));
+            zAxisOrderIndex.insert(position, slot);
+
+            ImmutableWidget createdWidget = materialize(slot);
+            changeFeed.created(createdWidget);
+            return createdWidget;
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ImmutableWidget update(@NotNull final UUID widgetId, @NotNull WidgetChangeSet changeSet) {
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            int slot = idIndex.find(widgetId);
+
+            // Ensure that requested widget actually exists
+            if (slot == -1) {
+                throw new EntityNotFoundException("Widget with id " + widgetId + " not found");
+            }
+
+            // If widget's new z index collides with other widgets - shift other widget along with others
+            if (changeSet.getZ() != null) {
+                final int newWidgetZIndex = changeSet.getZ();
+
+                zAxisOrderIndex.removeAt(zAxisOrderIndex.rank(z[slot]));
+                int position = zAxisOrderIndex.rank(newWidgetZIndex);
+                int shiftedWidgetsCount = zAxisOrderIndex.shiftRun(position, newWidgetZIndex);
+                if (shiftedWidgetsCount > 0) {
+                    changeFeed.shifted(newWidgetZIndex, shiftedWidgetsCount);
+                    meters.recordShiftRun(shiftedWidgetsCount);
+                }
+                z[slot] = newWidgetZIndex;
+                zAxisOrderIndex.insert(position, slot);
+            }
+
+            if (changeSet.getX() != null) {
+                x[slot] = changeSet.getX();
+            }
+
+            if (changeSet.getY() != null) {
+                y[slot] = changeSet.getY();
+                yPresence.set(slot);
+            }
+
+            if (changeSet.getHeight() != null) {
+                height[slot] = changeSet.getHeight();
+            }
+
+            if (changeSet.getWidth() != null) {
+                width[slot] = changeSet.getWidth();
+            }
+
+            lastModificationEpochNanos[slot] = toEpochNanos(Instant.now());
+            versions[slot]++;
+
+            ImmutableWidget updatedWidget = materialize(slot);
+            changeFeed.updated(updatedWidget);
+            return updatedWidget;
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ImmutableWidget compareAndUpdate(
+            @NotNull UUID widgetId,
+            long expectedVersion,
+            @NotNull WidgetChangeSet changeSet
+    ) {
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            int slot = idIndex.find(widgetId);
+            if (slot != -1 && versions[slot] != expectedVersion) {
+                throw new StaleVersionException(
+                        "Widget with id " + widgetId + " has version " + versions[slot]
+                                + " instead of " + expectedVersion
+                );
+            }
+
+            // Reentering the write lock, so nothing changes the widget between the check and the update
+            return update(widgetId, changeSet);
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(@NotNull UUID widgetId) {
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            int slot = idIndex.find(widgetId);
+
+            // Ensure that requested widget actually exists
+            if (slot == -1) {
+                throw new EntityNotFoundException("Widget with id " + widgetId + " not found");
+            }
+
+            zAxisOrderIndex.removeAt(zAxisOrderIndex.rank(z[slot]));
+            idIndex.remove(widgetId);
+            freeSlots[freeSlotsCount++] = slot;
+            changeFeed.deleted(widgetId);
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    /*
+        Batches reenter the write lock with the single operations. Z order is kept in a sorted array here,
+        so there is no lazy shift to merge - the gain is a single lock acquisition per batch.
+     */
+    @Override
+    public List<ImmutableWidget> createAll(@NotNull List<WidgetChangeSet> changeSets) {
+        // Build all the widgets up front, so an invalid change set leaves the board untouched
+        changeSets.forEach(WidgetChangeSet::buildWidget);
+
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            List<UUID> createdWidgetIds = new ArrayList<>(changeSets.size());
+            for (WidgetChangeSet changeSet : changeSets) {
+                createdWidgetIds.add(create(changeSet).getId());
+            }
+            // Later widgets of the batch may have shifted the earlier ones
+            return materializeAll(createdWidgetIds);
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ImmutableWidget> updateAll(@NotNull Map<UUID, WidgetChangeSet> changeSets) {
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            ensureAllExist(changeSets.keySet());
+            changeSets.forEach(this::update);
+            return materializeAll(changeSets.keySet());
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteAll(@NotNull Collection<UUID> widgetIds) {
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            ensureAllExist(widgetIds);
+            new LinkedHashSet<>(widgetIds).forEach(this::delete);
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    /*
+        Imported widgets come in z order with vacant z indexes, so each of them is appended on top without shifts
+     */
+    @Override
+    public int importAll(@NotNull Stream<WidgetChangeSet> changeSets) {
+        // Arrange the whole input before taking the lock, so an invalid change set leaves the board untouched
+        List<Widget> importedWidgets = WidgetBulkImport.arrange(changeSets, Instant.now());
+
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            if (zAxisOrderIndex.size() != 0) {
+                throw new BoardNotEmptyException("Widgets can be imported into an empty board only");
+            }
+
+            for (Widget widget : importedWidgets) {
+                long lastModificationNanos = toEpochNanos(widget.getLastModificationDate());
+                int slot = putRecord(widget.getId(), widget, widget.getZ(), lastModificationNanos);
+                zAxisOrderIndex.insert(zAxisOrderIndex.size(), slot);
+                changeFeed.created(widget);
+            }
+            return importedWidgets.size();
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    /*
+        Board is materialized under the read lock at once, so the consumer takes its time without holding writers.
+        It takes several times the memory of the board while the export runs.
+     */
+    @Override
+    public void exportAll(@NotNull Consumer<ImmutableWidget> consumer) {
+        List<ImmutableWidget> board;
+        zAxisReorderingLock.readLock().lock();
+        try {
+            board = materializeRange(0, zAxisOrderIndex.size());
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+        board.forEach(consumer);
+    }
+
+    @Override
+    public void clear() {
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            allocate();
+            changeFeed.cleared();
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    private void allocate() {
+        idMostSignificantBits = new long[INITIAL_CAPACITY];
+        idLeastSignificantBits = new long[INITIAL_CAPACITY];
+        x = new int[INITIAL_CAPACITY];
+        y = new int[INITIAL_CAPACITY];
+        yPresence = new BitSet(INITIAL_CAPACITY);
+        z = new int[INITIAL_CAPACITY];
+        height = new int[INITIAL_CAPACITY];
+        width = new int[INITIAL_CAPACITY];
+        lastModificationEpochNanos = new long[INITIAL_CAPACITY];
+        versions = new long[INITIAL_CAPACITY];
+        freeSlots = new int[INITIAL_CAPACITY];
+        freeSlotsCount = 0;
+        usedSlotsCount = 0;
+        idIndex.clear();
+        zAxisOrderIndex.clear();
+    }
+
+    private int allocateSlot() {
+        if (freeSlotsCount > 0) {
+            return freeSlots[--freeSlotsCount];
+        }
+
+        if (usedSlotsCount == x.length) {
+            int capacity = x.length * 2;
+            idMostSignificantBits = Arrays.copyOf(idMostSignificantBits, capacity);
+            idLeastSignificantBits = Arrays.copyOf(idLeastSignificantBits, capacity);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            z = Arrays.copyOf(z, capacity);
+            height = Arrays.copyOf(height, capacity);
+            width = Arrays.copyOf(width, capacity);
+            lastModificationEpochNanos = Arrays.copyOf(lastModificationEpochNanos, capacity);
+            versions = Arrays.copyOf(versions, capacity);
+            freeSlots = Arrays.copyOf(freeSlots, capacity);
+        }
+        return usedSlotsCount++;
+    }
+
+    /*
+        Stores the widget in a free slot and registers its id, z order is up to the caller
+     */
+    private int putRecord(UUID widgetId, Widget widget, int zAxisIndex, long lastModificationNanos) {
+        int slot = allocateSlot();
+        idMostSignificantBits[slot] = widgetId.getMostSignificantBits();
+        idLeastSignificantBits[slot] = widgetId.getLeastSignificantBits();
+        x[slot] = widget.getX();
+        y[slot] = widget.getY() == null ? 0 : widget.getY();
+        yPresence.set(slot, widget.getY() != null);
+        z[slot] = zAxisIndex;
+        height[slot] = widget.getHeight();
+        width[slot] = widget.getWidth();
+        lastModificationEpochNanos[slot] = lastModificationNanos;
+        versions[slot] = widget.getVersion();
+
+        idIndex.put(slot);
+        return slot;
+    }
+
+    @Override
+    public WidgetChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    @Override
+    public int getSize() {
+        zAxisReorderingLock.readLock().lock();
+        try {
+            return zAxisOrderIndex.size();
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    /*
+        Bytes taken by the columns and the indexes, spare capacity included. Arrays are all the repository
+        allocates per widget, so this is its footprint apart from a few fixed objects.
+     */
+    long getAllocatedBytes() {
+        zAxisReorderingLock.readLock().lock();
+        try {
+            long columnsBytes = (long) idMostSignificantBits.length * Long.BYTES
+                    + (long) idLeastSignificantBits.length * Long.BYTES
+                    + (long) x.length * Integer.BYTES
+                    + (long) y.length * Integer.BYTES
+                    + yPresence.size() / Byte.SIZE
+                    + (long) z.length * Integer.BYTES
+                    + (long) height.length * Integer.BYTES
+                    + (long) width.length * Integer.BYTES
+                    + (long) lastModificationEpochNanos.length * Long.BYTES
+                    + (long) versions.length * Long.BYTES
+                    + (long) freeSlots.length * Integer.BYTES;
+            return columnsBytes + idIndex.getAllocatedBytes() + zAxisOrderIndex.getAllocatedBytes();
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    /*
+        Lock and shift meters are collected only from now on
+     */
+    @Override
+    public void bindTo(@NotNull MeterRegistry registry) {
+        WidgetRepositoryMeters meters = new WidgetRepositoryMeters(registry, this);
+        zAxisReorderingLock.setMeters(meters);
+        this.meters = meters;
+    }
+
+    private void ensureAllExist(Collection<UUID> widgetIds) {
+        for (UUID widgetId : widgetIds) {
+            if (idIndex.find(widgetId) == -1) {
+                throw new EntityNotFoundException("Widget with id " + widgetId + " not found");
+            }
+        }
+    }
+
+    private List<ImmutableWidget> materializeAll(Collection<UUID> widgetIds) {
+        List<ImmutableWidget> materializedWidgets = new ArrayList<>(widgetIds.size());
+        for (UUID widgetId : widgetIds) {
+            materializedWidgets.add(materialize(idIndex.find(widgetId)));
+        }
+        return materializedWidgets;
+    }
+
+    private ImmutableWidget materialize(int slot) {
+        return new Widget(
+                new UUID(idMostSignificantBits[slot], idLeastSignificantBits[slot]),
+                x[slot],
+                yPresence.get(slot) ? y[slot] : null,
+                z[slot],
+                height[slot],
+                width[slot],
+                fromEpochNanos(lastModificationEpochNanos[slot]),
+                versions[slot]
+        );
+    }
+
+    private List<ImmutableWidget> materializeRange(long start, int limit) {
+        int end = (int) Math.min(zAxisOrderIndex.size(), start + limit);
+        List<ImmutableWidget> page = new ArrayList<>(Math.max(end - (int) Math.min(start, end), 0));
+        for (long position = start; position < end; position++) {
+            page.add(materialize(zAxisOrderIndex.slotAt((int) position)));
+        }
+        return page;
+    }
+
+    private boolean overlaps(int slot, int x1, int y1, int x2, int y2) {
+        // Widget (x, y) is its center, doubled coordinates keep bounds of odd sized widgets integer
+        return 2L * x[slot] - width[slot] <= 2L * x2 && 2L * x[slot] + width[slot] >= 2L * x1
+                && 2L * y[slot] - height[slot] <= 2L * y2 && 2L * y[slot] + height[slot] >= 2L * y1;
+    }
+
+    private int getMaxZAxisIndex() {
+        return zAxisOrderIndex.size() == 0 ? 0 : zAxisOrderIndex.lastKey();
+    }
+
+    static long toEpochNanos(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+
+    static Instant fromEpochNanos(long epochNanos) {
+        return Instant.ofEpochSecond(0, epochNanos);
+    }
+
+    private UUID getGeneratedWidgetId() {
+        return UUID.randomUUID();
+    }
+}
@@ -0,0 +1,501 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.Widget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import com.azaitsev.widgets.repository.exceptions.BoardNotEmptyException;
+import com.azaitsev.widgets.repository.exceptions.EntityNotFoundException;
+import com.azaitsev.widgets.repository.exceptions.SnapshotExpiredException;
+import com.azaitsev.widgets.repository.exceptions.StaleVersionException;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import javax.validation.constraints.NotNull;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/*
+    In-memory repository tuned for read-heavy boards.
+
+    Widgets are stored as snapshots that are never changed after they are published - every change replaces
+    the snapshot, so point reads are served straight from ConcurrentHashMap without any locking.
+    Reads of z order go through StampedLock optimistic read and fall back to the read lock only if a writer
+    got in the way.
+
+    The price is paid by writers: snapshots carry the z index, so every widget moved by a shift gets a new snapshot.
+ */
+public class WidgetConcurrentInMemoryRepository implements WidgetRepository {
+    private final Map<UUID, Widget> widgets;
+    private final ZAxisOrderIndex<UUID> zAxisOrderIndex;
+    private final WidgetSpatialIndex spatialIndex;
+    private final TimedStampedLock zAxisReorderingLock;
+    private final WidgetChangeFeed changeFeed;
+    private volatile WidgetRepositoryMeters meters = WidgetRepositoryMeters.UNBOUND;
+
+    /*
+        Range of z indexes the widgets moved by the shifts of a batch lie in.
+        Every shift moves its run one step up and may carry the widgets moved by earlier shifts along,
+        so the upper bound grows by one with every shift.
+     */
+    private static final class ShiftedRange {
+        private int lowestZ = Integer.MAX_VALUE;
+        private int highestZ = Integer.MIN_VALUE;
+
+        private void add(int shiftFrom, int runLength) {
+            lowestZ = Math.min(lowestZ, shiftFrom + 1);
+            highestZ = Math.max(highestZ == Integer.MIN_VALUE ? highestZ : highestZ + 1, shiftFrom + runLength);
+        }
+
+        private boolean isEmpty() {
+            return lowestZ > highestZ;
+        }
+    }
+
+    public WidgetConcurrentInMemoryRepository() {
+        zAxisReorderingLock = new TimedStampedLock();
+        widgets = new ConcurrentHashMap<>();
+        zAxisOrderIndex = new ZAxisOrderIndex<>(Function.identity());
+        spatialIndex = new WidgetSpatialIndex();
+        changeFeed = new WidgetChangeFeed();
+    }
+
+    public Optional<ImmutableWidget> get(@NotNull UUID widgetId) {
+        return Optional.ofNullable(widgets.get(widgetId));
+    }
+
+    public List<ImmutableWidget> getPage(int limit, long offset) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Page limit  should not be negative");
+        }
+
+        if (offset < 0) {
+            throw new IllegalArgumentException("Page offset should not be negative");
+        }
+
+        return readZAxisOrder(() -> {
+            List<ImmutableWidget> page = new ArrayList<>(limit);
+            zAxisOrderIndex.forEachFrom(offset, limit, (z, widgetId) -> page.add(widgets.get(widgetId)));
+            return page;
+        });
+    }
+
+    public List<ImmutableWidget> getPageAfter(Integer zCursor, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Page limit  should not be negative");
+        }
+
+        return readZAxisOrder(() -> {
+            List<ImmutableWidget> page = new ArrayList<>(limit);
+            ZAxisOrderIndex.Visitor<UUID> collector = (z, widgetId) -> page.add(widgets.get(widgetId));
+            if (zCursor == null) {
+                zAxisOrderIndex.forEachFrom(0, limit, collector);
+            } else {
+                zAxisOrderIndex.forEachAfter(zCursor, limit, collector);
+            }
+            return page;
+        });
+    }
+
+    /*
+        Widgets are updated in place when they are shifted, so versions of z order are not kept
+     */
+    @Override
+    public WidgetScanPage startScan(int limit, long offset) {
+        return WidgetScanPage.ofLiveBoard(changeFeed.getLastSequence(), getPage(limit, offset));
+    }
+
+    @Override
+    public WidgetScanPage startScanAfter(Integer zCursor, int limit) {
+        return WidgetScanPage.ofLiveBoard(changeFeed.getLastSequence(), getPageAfter(zCursor, limit));
+    }
+
+    @Override
+    public List<ImmutableWidget> getSnapshotPage(long snapshotVersion, int limit, long offset) {
+        throw new SnapshotExpiredException("Snapshot " + snapshotVersion + " is not retained");
+    }
+
+    @Override
+    public List<ImmutableWidget> getSnapshotPageAfter(long snapshotVersion, Integer zCursor, int limit) {
+        throw new SnapshotExpiredException("Snapshot " + snapshotVersion + " is not retained");
+    }
+
+    @Override
+    public Optional<Long> getRank(@NotNull UUID widgetId) {
+        return readZAxisOrder(() -> Optional.ofNullable(widgets.get(widgetId))
+                .map(widget -> zAxisOrderIndex.rank(widget.getZ())));
+    }
+
+    @Override
+    public List<ImmutableWidget> findInArea(int x1, int y1, int x2, int y2, int limit) {
+        if (x1 > x2 || y1 > y2) {
+            throw new IllegalArgumentException("Area should not be empty");
+        }
+
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit should not be negative");
+        }
+
+        // Spatial index is made of plain hash maps, reading them optimistically is not safe
+        long stamp = zAxisReorderingLock.readLock();
+        try {
+            List<ImmutableWidget> hits = new ArrayList<>();
+            spatialIndex.forEachInArea(x1, y1, x2, y2, widgetId -> hits.add(widgets.get(widgetId)));
+            hits.sort(Comparator.comparing(ImmutableWidget::getZ));
+            return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+        } finally {
+            zAxisReorderingLock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Optional<ImmutableWidget> findTopmostAt(int x, int y) {
+        long stamp = zAxisReorderingLock.readLock();
+        try {
+            // Only a few cells are visited for a point, and the topmost hit is picked without sorting them
+            ImmutableWidget[] topmostWidget = {null};
+            spatialIndex.forEachInArea(x, y, x, y, widgetId -> {
+                Widget widget = widgets.get(widgetId);
+                if (topmostWidget[0] == null || widget.getZ() > topmostWidget[0].getZ()) {
+                    topmostWidget[0] = widget;
+                }
+            });
+            return Optional.ofNullable(topmostWidget[0]);
+        } finally {
+            zAxisReorderingLock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public List<ImmutableWidget> findAllAt(int x, int y) {
+        return findInArea(x, y, x, y, Integer.MAX_VALUE);
+    }
+
+    public ImmutableWidget create(@NotNull WidgetChangeSet changeSet) {
+        return createAll(List.of(changeSet)).get(0);
+    }
+
+    @Override
+    public ImmutableWidget update(@NotNull final UUID widgetId, @NotNull WidgetChangeSet changeSet) {
+        return updateAll(Map.of(widgetId, changeSet)).get(0);
+    }
+
+    @Override
+    public ImmutableWidget compareAndUpdate(
+            @NotNull UUID widgetId,
+            long expectedVersion,
+            @NotNull WidgetChangeSet changeSet
+    ) {
+        long stamp = zAxisReorderingLock.writeLock();
+        try {
+            ensureAllExist(List.of(widgetId));
+            Widget widget = widgets.get(widgetId);
+            if (widget.getVersion() != expectedVersion) {
+                throw new StaleVersionException(
+                        "Widget with id " + widgetId + " has version " + widget.getVersion()
+                                + " instead of " + expectedVersion
+                );
+            }
+
+            return applyUpdates(Map.of(widgetId, changeSet)).get(0);
+        } finally {
+            zAxisReorderingLock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void delete(@NotNull UUID widgetId) {
+        deleteAll(List.of(widgetId));
+    }
+
+    /*
+        Snapshots of widgets moved by the shifts of the batch are replaced in a single pass over the shifted
+        z range once the whole batch is applied, so a widget shifted several times gets only one new snapshot.
+     */
+    @Override
+    public List<ImmutableWidget> createAll(@NotNull List<WidgetChangeSet> changeSets) {
+        // Build all the widgets up front, so an invalid change set leaves the board untouched
+        List<Widget> newWidgets = new ArrayList<>(changeSets.size());
+        for (WidgetChangeSet changeSet : changeSets) {
+            newWidgets.add(changeSet.buildWidget());
+        }
+
+        long stamp = zAxisReorderingLock.writeLock();
+        try {
+            Instant modificationDate = Instant.now();
+            ShiftedRange shiftedRange = new ShiftedRange();
+            List<UUID> createdWidgetIds = new ArrayList<>(newWidgets.size());
+            for (Widget widget : newWidgets) {
+                // If widget was passed without z index - move new widget to the top
+                // by taking current max z index and incrementing it
+                if (widget.getZ() == null) {
+                    widget = widget.withZ(getMaxZAxisIndex() + 1);
+                }
+
+                widget = widget
+                        .withId(getGeneratedWidgetId())
+                        .withLastModificationDate(modificationDate);
+
+                // If widget with specified z index already exist - shift it along with other colliding widgets
+                shiftZAxis(widget.getZ(), shiftedRange);
+                zAxisOrderIndex.put(widget.getZ(), widget.getId());
+                widgets.put(widget.getId(), widget);
+                indexArea(widget);
+                changeFeed.created(widget);
+
+                createdWidgetIds.add(widget.getId());
+            }
+
+            republishShifted(shiftedRange);
+            return getAll(createdWidgetIds);
+        } finally {
+            zAxisReorderingLock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public List<ImmutableWidget> updateAll(@NotNull Map<UUID, WidgetChangeSet> changeSets) {
+        long stamp = zAxisReorderingLock.writeLock();
+        try {
+            ensureAllExist(changeSets.keySet());
+            return applyUpdates(changeSets);
+        } finally {
+            zAxisReorderingLock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void deleteAll(@NotNull Collection<UUID> widgetIds) {
+        long stamp = zAxisReorderingLock.writeLock();
+        try {
+            ensureAllExist(widgetIds);
+
+            for (UUID widgetId : new LinkedHashSet<>(widgetIds)) {
+                zAxisOrderIndex.remove(widgetId);
+                spatialIndex.remove(widgetId);
+                widgets.remove(widgetId);
+                changeFeed.deleted(widgetId);
+            }
+        } finally {
+            zAxisReorderingLock.unlockWrite(stamp);
+        }
+    }
+
+    /*
+        Widgets are immutable snapshots here, so copying references to all of them is cheap
+        and lets the consumer take its time without holding writers
+     */
+    @Override
+    public void exportAll(@NotNull Consumer<ImmutableWidget> consumer) {
+        List<ImmutableWidget> board = readZAxisOrder(() -> {
+            List<ImmutableWidget> widgetsInOrder = new ArrayList<>(widgets.size());
+            zAxisOrderIndex.forEachFrom(0, Integer.MAX_VALUE, (z, widgetId) -> widgetsInOrder.add(widgets.get(widgetId)));
+            return widgetsInOrder;
+        });
+        board.forEach(consumer);
+    }
+
+    /*
+        Builds the indexes from the arranged widgets in one pass instead of putting them one by one
+     */
+    @Override
+    public int importAll(@NotNull Stream<WidgetChangeSet> changeSets) {
+        // Arrange the whole input before taking the lock, so an invalid change set leaves the board untouched
+        List<Widget> importedWidgets = WidgetBulkImport.arrange(changeSets, Instant.now());
+
+        long stamp = zAxisReorderingLock.writeLock();
+        try {
+            if (!widgets.isEmpty()) {
+                throw new BoardNotEmptyException("Widgets can be imported into an empty board only");
+            }
+
+            int[] zAxisIndexes = new int[importedWidgets.size()];
+            UUID[] widgetIds = new UUID[importedWidgets.size()];
+            for (int position = 0; position < importedWidgets.size(); position++) {
+                Widget widget = importedWidgets.get(position);
+                zAxisIndexes[position] = widget.getZ();
+                widgetIds[position] = widget.getId();
+                indexArea(widget);
+            }
+            zAxisOrderIndex.putAll(zAxisIndexes, widgetIds, importedWidgets.size());
+
+            // Point reads are not locked, so widgets are published only when z order knows about them
+            for (Widget widget : importedWidgets) {
+                widgets.put(widget.getId(), widget);
+                changeFeed.created(widget);
+            }
+            return importedWidgets.size();
+        } finally {
+            zAxisReorderingLock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void clear() {
+        long stamp = zAxisReorderingLock.writeLock();
+        try {
+            widgets.clear();
+            zAxisOrderIndex.clear();
+            spatialIndex.clear();
+            changeFeed.cleared();
+        } finally {
+            zAxisReorderingLock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public WidgetChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    @Override
+    public int getSize() {
+        return widgets.size();
+    }
+
+    /*
+        Lock and shift meters are collected only from now on
+     */
+    @Override
+    public void bindTo(@NotNull MeterRegistry registry) {
+        WidgetRepositoryMeters meters = new WidgetRepositoryMeters(registry, this);
+        zAxisReorderingLock.setMeters(meters);
+        this.meters = meters;
+    }
+
+    /*
+        Runs the read without locking and repeats it under the read lock if a writer has interfered.
+        Index may be in the middle of restructuring while it is read optimistically,
+        so anything it throws in that case is treated as interference as well.
+     */
+    private <T> T readZAxisOrder(Supplier<T> read) {
+        long stamp = zAxisReorderingLock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T result = read.get();
+                if (zAxisReorderingLock.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException e) {
+                if (zAxisReorderingLock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+
+        stamp = zAxisReorderingLock.readLock();
+        try {
+            return read.get();
+        } finally {
+            zAxisReorderingLock.unlockRead(stamp);
+        }
+    }
+
+    private void shiftZAxis(int shiftFrom, ShiftedRange shiftedRange) {
+        // Index shifts the run lazily, snapshots of the run are replaced once the whole batch is applied
+        int runLength = zAxisOrderIndex.shiftRun(shiftFrom);
+        if (runLength > 0) {
+            shiftedRange.add(shiftFrom, runLength);
+            changeFeed.shifted(shiftFrom, runLength);
+            meters.recordShiftRun(runLength);
+        }
+    }
+
+    /*
+        Snapshots carry z index, so the ones that don't match the index anymore have to be replaced
+     */
+    private void republishShifted(ShiftedRange shiftedRange) {
+        if (shiftedRange.isEmpty()) {
+            return;
+        }
+
+        zAxisOrderIndex.forEachAfter(shiftedRange.lowestZ - 1, Integer.MAX_VALUE, (z, widgetId) -> {
+            if (z > shiftedRange.highestZ) {
+                return false;
+            }
+
+            Widget widget = widgets.get(widgetId);
+            if (widget.getZ() != z) {
+                widgets.put(widgetId, widget.withZ(z));
+            }
+            return true;
+        });
+    }
+
+    /*
+        Expects the write lock to be held and all the widgets to exist
+     */
+    private List<ImmutableWidget> applyUpdates(Map<UUID, WidgetChangeSet> changeSets) {
+        Instant modificationDate = Instant.now();
+        ShiftedRange shiftedRange = new ShiftedRange();
+        changeSets.forEach((widgetId, changeSet) -> {
+            // If widget's new z index collides with other widgets - shift other widget along with others
+            if (changeSet.getZ() != null) {
+                final var newWidgetZIndex = changeSet.getZ();
+
+                zAxisOrderIndex.remove(widgetId);
+                shiftZAxis(newWidgetZIndex, shiftedRange);
+                zAxisOrderIndex.put(newWidgetZIndex, widgetId);
+            }
+
+            // Publish a new snapshot instead of changing the one readers may hold
+            Widget widget = widgets.get(widgetId);
+            Widget updatedWidget = changeSet
+                    .applyChanges(widget)
+                    .withLastModificationDate(modificationDate)
+                    .withVersion(widget.getVersion() + 1);
+            widgets.put(widgetId, updatedWidget);
+            indexArea(updatedWidget);
+
+            // Snapshot may still wait for its shift to be republished, the feed gets the actual z index
+            int actualZ = zAxisOrderIndex.zOf(widgetId);
+            changeFeed.updated(updatedWidget.getZ() == actualZ ? updatedWidget : updatedWidget.withZ(actualZ));
+        });
+
+        republishShifted(shiftedRange);
+        return getAll(changeSets.keySet());
+    }
+
+    private void ensureAllExist(Collection<UUID> widgetIds) {
+        for (UUID widgetId : widgetIds) {
+            if (!widgets.containsKey(widgetId)) {
+                throw new EntityNotFoundException("Widget with id " + widgetId + " not found");
+            }
+        }
+    }
+
+    private List<ImmutableWidget> getAll(Collection<UUID> widgetIds) {
+        List<ImmutableWidget> storedWidgets = new ArrayList<>(widgetIds.size());
+        for (UUID widgetId : widgetIds) {
+            storedWidgets.add(widgets.get(widgetId));
+        }
+        return storedWidgets;
+    }
+
+    private void indexArea(Widget widget) {
+        // Change set doesn't require Y coordinate, widgets without it lie on the X axis
+        int y = widget.getY() == null ? 0 : widget.getY();
+        spatialIndex.put(widget.getId(), widget.getX(), y, widget.getWidth(), widget.getHeight());
+    }
+
+    private Integer getMaxZAxisIndex() {
+        if (zAxisOrderIndex.isEmpty()) {
+            return 0;
+        }
+        return zAxisOrderIndex.lastKey();
+    }
+
+    private UUID getGeneratedWidgetId() {
+        return UUID.randomUUID();
+    }
+}
@@ -3,178 +3,898 @@ package com.azaitsev.widgets.repository.widget;
 import com.azaitsev.widgets.entity.widget.ImmutableWidget;
 import com.azaitsev.widgets.entity.widget.Widget;
 import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import com.azaitsev.widgets.repository.exceptions.BoardNotEmptyException;
 import com.azaitsev.widgets.repository.exceptions.EntityNotFoundException;
+import com.azaitsev.widgets.repository.exceptions.SnapshotExpiredException;
+import com.azaitsev.widgets.repository.exceptions.StaleVersionException;
+import io.micrometer.core.instrument.MeterRegistry;
 
 import javax.validation.constraints.NotNull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
-public class WidgetInMemoryRepository implements WidgetRepository {
+public class WidgetInMemoryRepository implements WidgetRepository, Closeable {
+    // Z indexes of stored widgets are the ones they had after their last create/update.
+    // Shifts are applied lazily by zAxisOrderIndex, so it is the only source of actual z indexes.
     private final Map<UUID, Widget> widgets;
-    private final NavigableMap<Integer, UUID> zAxisOrderIndex;
-    private final ReadWriteLock zAxisReorderingLock;
+    // Holds the stored widgets as well, so pages are read from its published version without the lock
+    private final ZAxisOrderIndex<Widget> zAxisOrderIndex;
+    private final WidgetSpatialIndex spatialIndex;
+    private final TimedReadWriteLock zAxisReorderingLock;
+    // Optional, without it the board lives only as long as the process
+    private final WidgetWriteAheadLog writeAheadLog;
+    // Changes restored from the log are not recorded, the feed starts with the first change after startup
+    private final WidgetChangeFeed changeFeed;
+    private final WidgetScanSnapshots scanSnapshots;
+    private volatile WidgetRepositoryMeters meters = WidgetRepositoryMeters.UNBOUND;
 
     public WidgetInMemoryRepository() {
-        zAxisReorderingLock = new ReentrantReadWriteLock(true);
+        zAxisReorderingLock = new TimedReadWriteLock();
         widgets = new HashMap<>();
-        zAxisOrderIndex = new TreeMap<>();
+        zAxisOrderIndex = new ZAxisOrderIndex<>(Widget::getId);
+        spatialIndex = new WidgetSpatialIndex();
+        writeAheadLog = null;
+        changeFeed = new WidgetChangeFeed();
+        scanSnapshots = new WidgetScanSnapshots(WidgetScanSnapshots.DEFAULT_MAX_RETAINED, WidgetScanSnapshots.DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /*
+        Restores the board from the log and logs every further change to it
+     */
+    public WidgetInMemoryRepository(@NotNull WidgetWriteAheadLog writeAheadLog) throws IOException {
+        this(null, writeAheadLog);
+    }
+
+    /*
+        Restores the board from the snapshot and the records of the log that came after it.
+        Either of them may be null.
+     */
+    public WidgetInMemoryRepository(WidgetSnapshot snapshot, WidgetWriteAheadLog writeAheadLog) throws IOException {
+        this(snapshot, writeAheadLog, WidgetScanSnapshots.DEFAULT_MAX_RETAINED, WidgetScanSnapshots.DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /*
+        Retains at most maxRetainedSnapshots versions of z order for paginated scans, each one until it is not read
+        for the idle timeout
+     */
+    public WidgetInMemoryRepository(
+            WidgetSnapshot snapshot,
+            WidgetWriteAheadLog writeAheadLog,
+            int maxRetainedSnapshots,
+            @NotNull Duration snapshotIdleTimeout
+    ) throws IOException {
+        this(snapshot, writeAheadLog, new WidgetChangeFeed(), maxRetainedSnapshots, snapshotIdleTimeout);
+    }
+
+    /*
+        Restores the board from the snapshot and goes on with the change feed it was taken from, so that versions
+        of the board issued before the snapshot stay valid. Board must not have changed since the snapshot.
+     */
+    public WidgetInMemoryRepository(@NotNull WidgetSnapshot snapshot) throws IOException {
+        this(
+                snapshot,
+                null,
+                new WidgetChangeFeed(snapshot.getChangeEpoch(), snapshot.getChangeSequence()),
+                WidgetScanSnapshots.DEFAULT_MAX_RETAINED,
+                WidgetScanSnapshots.DEFAULT_IDLE_TIMEOUT
+        );
+    }
+
+    private WidgetInMemoryRepository(
+            WidgetSnapshot snapshot,
+            WidgetWriteAheadLog writeAheadLog,
+            WidgetChangeFeed changeFeed,
+            int maxRetainedSnapshots,
+            Duration snapshotIdleTimeout
+    ) throws IOException {
+        zAxisReorderingLock = new TimedReadWriteLock();
+        widgets = new HashMap<>(snapshot == null ? 16 : (int) (snapshot.getSize() / 0.75f) + 1);
+        zAxisOrderIndex = new ZAxisOrderIndex<>(Widget::getId);
+        spatialIndex = new WidgetSpatialIndex();
+        this.writeAheadLog = writeAheadLog;
+        this.changeFeed = changeFeed;
+        scanSnapshots = new WidgetScanSnapshots(maxRetainedSnapshots, snapshotIdleTimeout);
+
+        if (snapshot != null) {
+            Widget[] snapshotWidgets = new Widget[snapshot.getSize()];
+            for (int position = 0; position < snapshot.getSize(); position++) {
+                Widget widget = snapshot.getWidget(position);
+                snapshotWidgets[position] = widget;
+                widgets.put(widget.getId(), widget);
+                indexArea(widget);
+            }
+            zAxisOrderIndex.putAll(snapshot.getZAxisIndexes(), snapshotWidgets, snapshot.getSize());
+        }
+
+        if (writeAheadLog == null) {
+            zAxisOrderIndex.publish(changeFeed.getLastSequence());
+            return;
+        }
+
+        writeAheadLog.replay(snapshot == null ? 0 : snapshot.getLogPosition(), new WidgetWriteAheadLog.Replayer() {
+            @Override
+            public void put(Widget widget, int shiftedWidgetsCount) {
+                replayPut(widget, shiftedWidgetsCount);
+            }
+
+            @Override
+            public void delete(UUID widgetId) {
+                widgets.remove(widgetId);
+                zAxisOrderIndex.remove(widgetId);
+                spatialIndex.remove(widgetId);
+            }
+
+            @Override
+            public void clear() {
+                widgets.clear();
+                zAxisOrderIndex.clear();
+                spatialIndex.clear();
+            }
+        });
+        zAxisOrderIndex.publish(changeFeed.getLastSequence());
     }
 
     public Optional<ImmutableWidget> get(@NotNull UUID widgetId) {
         zAxisReorderingLock.readLock().lock();
         try {
-            return Optional.ofNullable(widgets.get(widgetId));
+            return Optional.ofNullable(widgets.get(widgetId)).map(this::getWidgetView);
         } finally {
             zAxisReorderingLock.readLock().unlock();
         }
     }
 
+    /*
+        Pages are read from the published version of z order without the lock, so they never wait for writers
+        and writers never wait for them. A page shows the board as of the latest complete change.
+     */
     public List<ImmutableWidget> getPage(int limit, long offset) {
+        return readPage(zAxisOrderIndex.getPublished(), limit, offset);
+    }
+
+    public List<ImmutableWidget> getPageAfter(Integer zCursor, int limit) {
+        return readPageAfter(zAxisOrderIndex.getPublished(), zCursor, limit);
+    }
+
+    /*
+        Scan starts from the published version of z order without the lock, the version is published along with
+        the sequence of the change it ends with, which is its snapshot version. Only a full page retains it,
+        so polls of the first page and scans that fit in a single page don't crowd out the scans in progress.
+     */
+    @Override
+    public WidgetScanPage startScan(int limit, long offset) {
+        ZAxisOrderIndex.Version<Widget> zAxisOrder = zAxisOrderIndex.getPublished();
+        return retainIfFull(zAxisOrder, readPage(zAxisOrder, limit, offset), limit);
+    }
+
+    @Override
+    public WidgetScanPage startScanAfter(Integer zCursor, int limit) {
+        ZAxisOrderIndex.Version<Widget> zAxisOrder = zAxisOrderIndex.getPublished();
+        return retainIfFull(zAxisOrder, readPageAfter(zAxisOrder, zCursor, limit), limit);
+    }
+
+    @Override
+    public List<ImmutableWidget> getSnapshotPage(long snapshotVersion, int limit, long offset) {
+        return readPage(findSnapshot(snapshotVersion), limit, offset);
+    }
+
+    @Override
+    public List<ImmutableWidget> getSnapshotPageAfter(long snapshotVersion, Integer zCursor, int limit) {
+        return readPageAfter(findSnapshot(snapshotVersion), zCursor, limit);
+    }
+
+    @Override
+    public Optional<Long> getRank(@NotNull UUID widgetId) {
+        zAxisReorderingLock.readLock().lock();
+        try {
+            return Optional.ofNullable(zAxisOrderIndex.zOf(widgetId)).map(zAxisOrderIndex::rank);
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ImmutableWidget> findInArea(int x1, int y1, int x2, int y2, int limit) {
+        if (x1 > x2 || y1 > y2) {
+            throw new IllegalArgumentException("Area should not be empty");
+        }
+
         if (limit < 0) {
-            throw new IllegalArgumentException("Page limit  should not be negative");
+            throw new IllegalArgumentException("Limit should not be negative");
         }
 
-        if (offset < 0) {
-            throw new IllegalArgumentException("Page offset should not be negative");
+        zAxisReorderingLock.readLock().lock();
+        try {
+            // Spatial index doesn't know z order, so hits are ordered afterwards
+            List<ImmutableWidget> hits = new ArrayList<>();
+            spatialIndex.forEachInArea(x1, y1, x2, y2, widgetId -> hits.add(getWidgetView(widgets.get(widgetId))));
+            hits.sort(Comparator.comparing(ImmutableWidget::getZ));
+            return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
         }
+    }
 
+    @Override
+    public Optional<ImmutableWidget> findTopmostAt(int x, int y) {
         zAxisReorderingLock.readLock().lock();
         try {
-            return zAxisOrderIndex
-                    .values()
-                    .stream()
-                    .skip(offset)
-                    .limit(limit)
-                    .map(widgets::get)
-                    .collect(Collectors.toList());
+            // Only a few cells are visited for a point, and the topmost hit is picked without sorting them
+            UUID[] topmostWidgetId = {null};
+            int[] topmostZ = {Integer.MIN_VALUE};
+            spatialIndex.forEachInArea(x, y, x, y, widgetId -> {
+                int z = zAxisOrderIndex.zOf(widgetId);
+                if (topmostWidgetId[0] == null || z > topmostZ[0]) {
+                    topmostWidgetId[0] = widgetId;
+                    topmostZ[0] = z;
+                }
+            });
+
+            return Optional.ofNullable(topmostWidgetId[0])
+                    .map(widgetId -> getWidgetView(widgets.get(widgetId), topmostZ[0]));
         } finally {
             zAxisReorderingLock.readLock().unlock();
         }
     }
 
+    @Override
+    public List<ImmutableWidget> findAllAt(int x, int y) {
+        return findInArea(x, y, x, y, Integer.MAX_VALUE);
+    }
+
+    /*
+        Runs the changes under a single acquisition of the write lock and makes them durable by a single wait
+        for the disk. Changes are made by the public methods of the repository, which reenter the lock.
+     */
+    void writeExclusively(@NotNull Runnable changes) {
+        long logPosition;
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            changes.run();
+            logPosition = getAppendedLogPosition();
+        } finally {
+            publishAndUnlock();
+        }
+
+        awaitDurable(logPosition);
+    }
+
     public ImmutableWidget create(@NotNull WidgetChangeSet changeSet) {
+        Widget storedWidget;
+        long logPosition;
         zAxisReorderingLock.writeLock().lock();
         try {
-            Widget widget = changeSet.buildWidget();
+            storedWidget = putNewWidget(changeSet.buildWidget(), Instant.now());
+            logPosition = getAppendedLogPosition();
+        } finally {
+            publishAndUnlock();
+        }
 
-            // If widget was passed without z index - move new widget to the top
-            // by taking current max z index and incrementing it
-            Integer zAxisIndex;
-            if (widget.getZ() == null) {
-                zAxisIndex = getMaxZAxisIndex() + 1;
-                widget.setZ(zAxisIndex);
-            } else {
-                zAxisIndex = widget.getZ();
-            }
+        // Wait for the disk outside of the lock, so that other writers can join the same fsync
+        awaitDurable(logPosition);
+        return storedWidget;
+    }
 
-            // Generate id for new widget
-            final var widgetId = getGeneratedWidgetId();
-            // Store new widget
-            Widget storedWidget = new Widget(widget);
-            storedWidget.setId(widgetId);
-            storedWidget.setLastModificationDate(Instant.now());
+    @Override
+    public ImmutableWidget update(@NotNull final UUID widgetId, @NotNull WidgetChangeSet changeSet) {
+        return update(widgetId, null, changeSet);
+    }
 
-            widgets.put(widgetId, storedWidget);
+    @Override
+    public ImmutableWidget compareAndUpdate(
+            @NotNull UUID widgetId,
+            long expectedVersion,
+            @NotNull WidgetChangeSet changeSet
+    ) {
+        return update(widgetId, expectedVersion, changeSet);
+    }
 
-            // If widget with specified z index already exist - shift it along with other colliding widgets
-            if (zAxisOrderIndex.containsKey(zAxisIndex)) {
-                shiftZAxis(zAxisIndex);
-            }
-            zAxisOrderIndex.put(zAxisIndex, widgetId);
+    @Override
+    public void delete(@NotNull UUID widgetId) {
+        long logPosition;
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            // Ensure that requested widget actually exists
+            ensureAllExist(List.of(widgetId));
 
-            return storedWidget;
+            removeWidget(widgetId);
+            logPosition = getAppendedLogPosition();
         } finally {
-            zAxisReorderingLock.writeLock().unlock();
+            publishAndUnlock();
         }
+
+        awaitDurable(logPosition);
     }
 
+    /*
+        Shifts are lazy in the z axis index, so every widget of the batch costs O(log n) no matter how long
+        the shifted runs are. What the batch saves is the lock handoff and the wait for the disk per widget -
+        the whole batch is made durable by a single fsync.
+     */
     @Override
-    public ImmutableWidget update(@NotNull final UUID widgetId, @NotNull WidgetChangeSet changeSet) {
+    public List<ImmutableWidget> createAll(@NotNull List<WidgetChangeSet> changeSets) {
+        // Build all the widgets up front, so an invalid change set leaves the board untouched
+        List<Widget> newWidgets = new ArrayList<>(changeSets.size());
+        for (WidgetChangeSet changeSet : changeSets) {
+            newWidgets.add(changeSet.buildWidget());
+        }
+
+        List<ImmutableWidget> createdWidgetViews = new ArrayList<>(newWidgets.size());
+        long logPosition;
         zAxisReorderingLock.writeLock().lock();
         try {
-            // Get widget that needs to be updates
-            final var widget = widgets.get(widgetId);
+            Instant modificationDate = Instant.now();
+            List<Widget> storedWidgets = new ArrayList<>(newWidgets.size());
+            for (Widget widget : newWidgets) {
+                storedWidgets.add(putNewWidget(widget, modificationDate));
+            }
 
-            // Ensure that requested widget actually exists
-            if (widget == null) {
-                throw new EntityNotFoundException("Widget with id " + widgetId + " not found");
+            // Later widgets of the batch may have shifted the earlier ones
+            for (Widget storedWidget : storedWidgets) {
+                createdWidgetViews.add(getWidgetView(storedWidget));
             }
+            logPosition = getAppendedLogPosition();
+        } finally {
+            publishAndUnlock();
+        }
 
-            // If widget's new z index collides with other widgets - shift other widget along with others
-            if (changeSet.getZ() != null) {
-                final var newWidgetZIndex = changeSet.getZ();
+        awaitDurable(logPosition);
+        return createdWidgetViews;
+    }
 
-                zAxisOrderIndex.remove(widget.getZ());
-                if (zAxisOrderIndex.containsKey(newWidgetZIndex)) {
-                    shiftZAxis(newWidgetZIndex);
-                }
-                zAxisOrderIndex.put(newWidgetZIndex, widgetId);
+    @Override
+    public List<ImmutableWidget> updateAll(@NotNull Map<UUID, WidgetChangeSet> changeSets) {
+        List<ImmutableWidget> updatedWidgetViews = new ArrayList<>(changeSets.size());
+        long logPosition;
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            ensureAllExist(changeSets.keySet());
+
+            Instant modificationDate = Instant.now();
+            List<Widget> updatedWidgets = new ArrayList<>(changeSets.size());
+            changeSets.forEach((widgetId, changeSet) ->
+                    updatedWidgets.add(putChangedWidget(widgetId, changeSet, modificationDate)));
+
+            for (Widget updatedWidget : updatedWidgets) {
+                updatedWidgetViews.add(getWidgetView(updatedWidget));
             }
+            logPosition = getAppendedLogPosition();
+        } finally {
+            publishAndUnlock();
+        }
 
-            // Update widget in storage
-            changeSet.applyChanges(widget);
-            widget.setLastModificationDate(Instant.now());
+        awaitDurable(logPosition);
+        return updatedWidgetViews;
+    }
+
+    @Override
+    public void deleteAll(@NotNull Collection<UUID> widgetIds) {
+        long logPosition;
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            ensureAllExist(widgetIds);
 
-            return widget;
+            for (UUID widgetId : new LinkedHashSet<>(widgetIds)) {
+                removeWidget(widgetId);
+            }
+            logPosition = getAppendedLogPosition();
         } finally {
-            zAxisReorderingLock.writeLock().unlock();
+            publishAndUnlock();
         }
+
+        awaitDurable(logPosition);
     }
 
+    /*
+        Walks a single published version of z order without the lock, so the export is consistent
+        while writers go on, and the version is kept only as long as the export holds it
+     */
     @Override
-    public void delete(@NotNull UUID widgetId) {
+    public void exportAll(@NotNull Consumer<ImmutableWidget> consumer) {
+        ZAxisOrderIndex.Version<Widget> zAxisOrder = zAxisOrderIndex.getPublished();
+        zAxisOrder.forEachFrom(0, zAxisOrder.size(), (z, widget) -> {
+            consumer.accept(getWidgetView(widget, z));
+            return true;
+        });
+    }
+
+    /*
+        Builds the indexes from the arranged widgets in one pass instead of putting them one by one
+     */
+    @Override
+    public int importAll(@NotNull Stream<WidgetChangeSet> changeSets) {
+        // Arrange the whole input before taking the lock, so an invalid change set leaves the board untouched
+        List<Widget> importedWidgets = WidgetBulkImport.arrange(changeSets, Instant.now());
+
+        long logPosition;
         zAxisReorderingLock.writeLock().lock();
         try {
-            final var widgetToDelete = widgets.get(widgetId);
+            if (!widgets.isEmpty()) {
+                throw new BoardNotEmptyException("Widgets can be imported into an empty board only");
+            }
 
-            // Ensure that requested widget actually exists
-            if (widgetToDelete == null) {
-                throw new EntityNotFoundException("Widget with id " + widgetId + " not found");
+            int[] zAxisIndexes = new int[importedWidgets.size()];
+            for (int position = 0; position < importedWidgets.size(); position++) {
+                Widget widget = importedWidgets.get(position);
+                zAxisIndexes[position] = widget.getZ();
+                widgets.put(widget.getId(), widget);
+                indexArea(widget);
+
+                // Widgets come in z order with vacant z indexes, so replay places them without shifts as well
+                if (writeAheadLog != null) {
+                    writeAheadLog.appendPut(widget, 0);
+                }
+                changeFeed.created(widget);
             }
+            zAxisOrderIndex.putAll(zAxisIndexes, importedWidgets.toArray(new Widget[0]), importedWidgets.size());
 
-            widgets.remove(widgetId);
-            zAxisOrderIndex.remove(widgetToDelete.getZ());
+            logPosition = getAppendedLogPosition();
         } finally {
-            zAxisReorderingLock.writeLock().unlock();
+            publishAndUnlock();
         }
+
+        awaitDurable(logPosition);
+        return importedWidgets.size();
     }
 
     @Override
     public void clear() {
+        long logPosition;
         zAxisReorderingLock.writeLock().lock();
         try {
             widgets.clear();
             zAxisOrderIndex.clear();
+            spatialIndex.clear();
+            changeFeed.cleared();
+
+            logPosition = writeAheadLog == null ? 0 : writeAheadLog.appendClear();
         } finally {
-            zAxisReorderingLock.writeLock().unlock();
+            publishAndUnlock();
         }
+
+        awaitDurable(logPosition);
     }
 
-    private void shiftZAxis(int shiftFrom) {
-        Map<Integer, UUID> widgetsEligibleForShift = zAxisOrderIndex.tailMap(shiftFrom, true);
-        Map<Integer, UUID> shiftedWidgets = new TreeMap<>();
+    @Override
+    public WidgetChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
 
-        int currentIndex = shiftFrom;
-        for (Map.Entry<Integer, UUID> widget : widgetsEligibleForShift.entrySet()) {
-            if (widget.getKey() > currentIndex) {
-                break;
+    @Override
+    public int getSize() {
+        zAxisReorderingLock.readLock().lock();
+        try {
+            return widgets.size();
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    /*
+        Lock and shift meters are collected only from now on
+     */
+    @Override
+    public void bindTo(@NotNull MeterRegistry registry) {
+        bindTo(registry, WidgetRepositoryMeters.DEFAULT_BOARD);
+    }
+
+    /*
+        Meters of a separate board are tagged with its id, so that repositories of many boards share the registry
+     */
+    public void bindTo(@NotNull MeterRegistry registry, @NotNull String boardId) {
+        WidgetRepositoryMeters meters = new WidgetRepositoryMeters(registry, this, boardId);
+        zAxisReorderingLock.setMeters(meters);
+        this.meters = meters;
+    }
+
+    /*
+        Removes the meters from the registry, so that a board that is dropped from memory doesn't leave them behind
+     */
+    public void unbind() {
+        WidgetRepositoryMeters boundMeters = meters;
+        zAxisReorderingLock.setMeters(WidgetRepositoryMeters.UNBOUND);
+        meters = WidgetRepositoryMeters.UNBOUND;
+        if (boundMeters != WidgetRepositoryMeters.UNBOUND) {
+            boundMeters.remove();
+        }
+    }
+
+    /*
+        Spreads z indexes of the board spacing apart, keeping the order of widgets, so that a widget put between
+        two others finds a vacant z index instead of shifting the run above it. The bottom widget stays where it is,
+        unless the board doesn't fit into int with the spacing, then the spacing is reduced.
+
+        Widgets are renumbered in steps of at most stepSize positions, each under its own acquisition of the write lock,
+        so writers wait for a single step at most. A widget is moved only to a vacant z index between its neighbours,
+        so any step leaves the board in order whatever the writers did between the steps. Widgets moving down go
+        bottom up and the ones moving up go top down, so on a board that is not changed meanwhile every widget
+        gets to its place by the end of the pass. Interrupted pass stops between the steps.
+        Returns the number of renumbered widgets.
+     */
+    public int compactZAxis(int spacing, int stepSize) {
+        if (spacing < 2) {
+            throw new IllegalArgumentException("Spacing should be at least 2");
+        }
+
+        if (stepSize <= 0) {
+            throw new IllegalArgumentException("Step size should be positive");
+        }
+
+        ZAxisOrderIndex.Version<Widget> zAxisOrder = zAxisOrderIndex.getPublished();
+        if (zAxisOrder.size() < 2) {
+            return 0;
+        }
+
+        // Layout is planned once per pass, widgets that come later are placed by their position as well
+        long size = zAxisOrder.size();
+        long gap = Math.min(spacing, ((long) Integer.MAX_VALUE - Integer.MIN_VALUE) / (size - 1));
+        if (gap < 2) {
+            return 0;
+        }
+        long base = Math.min(zAxisOrder.firstKey(), Integer.MAX_VALUE - gap * (size - 1));
+
+        int renumberedWidgetsCount = 0;
+        for (long position = 0; position < zAxisOrderIndex.getPublished().size(); position += stepSize) {
+            if (Thread.currentThread().isInterrupted()) {
+                return renumberedWidgetsCount;
+            }
+            renumberedWidgetsCount += renumberStep(position, position + stepSize - 1, base, gap, true);
+        }
+        for (long position = zAxisOrderIndex.getPublished().size() - 1; position >= 0; position -= stepSize) {
+            if (Thread.currentThread().isInterrupted()) {
+                return renumberedWidgetsCount;
+            }
+            renumberedWidgetsCount += renumberStep(Math.max(0, position - stepSize + 1), position, base, gap, false);
+        }
+        return renumberedWidgetsCount;
+    }
+
+    /*
+        Copies the board under the read lock, so only writers wait for the copy.
+        Snapshot can be serialized afterwards without holding any lock.
+     */
+    public WidgetSnapshot takeSnapshot() {
+        zAxisReorderingLock.readLock().lock();
+        try {
+            // Log is appended under the write lock, so nothing is appended while the board is copied
+            long logPosition = writeAheadLog == null ? 0 : writeAheadLog.getAppendedPosition();
+            // Feed is appended under the write lock as well, so the snapshot holds exactly the changes up to the sequence
+            WidgetSnapshot snapshot = new WidgetSnapshot(
+                    zAxisOrderIndex.size(),
+                    logPosition,
+                    changeFeed.getEpoch(),
+                    changeFeed.getLastSequence()
+            );
+            int[] position = {0};
+            zAxisOrderIndex.forEachFrom(0, zAxisOrderIndex.size(), (z, widget) -> {
+                snapshot.set(position[0]++, widget, z);
+                return true;
+            });
+            return snapshot;
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    /*
+        Drops records of the log that are covered by the snapshot, which must be durable by now
+     */
+    public void truncateWriteAheadLog(@NotNull WidgetSnapshot durableSnapshot) throws IOException {
+        if (writeAheadLog != null) {
+            writeAheadLog.truncateBefore(durableSnapshot.getLogPosition());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writeAheadLog != null) {
+            writeAheadLog.close();
+        }
+    }
+
+    private ImmutableWidget update(UUID widgetId, Long expectedVersion, WidgetChangeSet changeSet) {
+        ImmutableWidget updatedWidgetView;
+        long logPosition;
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            // Ensure that requested widget actually exists
+            ensureAllExist(List.of(widgetId));
+            if (expectedVersion != null) {
+                ensureVersion(widgets.get(widgetId), expectedVersion);
+            }
+
+            updatedWidgetView = getWidgetView(putChangedWidget(widgetId, changeSet, Instant.now()));
+            logPosition = getAppendedLogPosition();
+        } finally {
+            publishAndUnlock();
+        }
+
+        awaitDurable(logPosition);
+        return updatedWidgetView;
+    }
+
+    private Widget putNewWidget(Widget widget, Instant modificationDate) {
+        // If widget was passed without z index - move new widget to the top
+        // by taking current max z index and incrementing it
+        if (widget.getZ() == null) {
+            widget = widget.withZ(getMaxZAxisIndex() + 1);
+        }
+        final int zAxisIndex = widget.getZ();
+
+        // Generate id for new widget
+        final var widgetId = getGeneratedWidgetId();
+        // Store new widget
+        Widget storedWidget = widget
+                .withId(widgetId)
+                .withLastModificationDate(modificationDate);
+
+        widgets.put(widgetId, storedWidget);
+        indexArea(storedWidget);
+
+        // If widget with specified z index already exist - shift it along with other colliding widgets
+        int shiftedWidgetsCount = 0;
+        if (zAxisOrderIndex.containsKey(zAxisIndex)) {
+            shiftedWidgetsCount = shiftZAxis(zAxisIndex);
+            changeFeed.shifted(zAxisIndex, shiftedWidgetsCount);
+            meters.recordShiftRun(shiftedWidgetsCount);
+        }
+        zAxisOrderIndex.put(zAxisIndex, storedWidget);
+
+        if (writeAheadLog != null) {
+            writeAheadLog.appendPut(storedWidget, shiftedWidgetsCount);
+        }
+        changeFeed.created(storedWidget);
+        return storedWidget;
+    }
+
+    private Widget putChangedWidget(UUID widgetId, WidgetChangeSet changeSet, Instant modificationDate) {
+        // Replace widget in storage with its new version, the old one may still be held by readers
+        Widget widget = widgets.get(widgetId);
+        Widget updatedWidget = changeSet
+                .applyChanges(widget)
+                .withLastModificationDate(modificationDate)
+                .withVersion(widget.getVersion() + 1);
+
+        // If widget's new z index collides with other widgets - shift other widget along with others
+        int shiftedWidgetsCount = 0;
+        if (changeSet.getZ() != null) {
+            final var newWidgetZIndex = changeSet.getZ();
+
+            zAxisOrderIndex.remove(widgetId);
+            if (zAxisOrderIndex.containsKey(newWidgetZIndex)) {
+                shiftedWidgetsCount = shiftZAxis(newWidgetZIndex);
+                changeFeed.shifted(newWidgetZIndex, shiftedWidgetsCount);
+                meters.recordShiftRun(shiftedWidgetsCount);
+            }
+            zAxisOrderIndex.put(newWidgetZIndex, updatedWidget);
+        } else {
+            zAxisOrderIndex.replace(updatedWidget);
+        }
+
+        widgets.put(widgetId, updatedWidget);
+        indexArea(updatedWidget);
+
+        ImmutableWidget updatedWidgetView = getWidgetView(updatedWidget);
+        if (writeAheadLog != null) {
+            writeAheadLog.appendPut(updatedWidgetView, shiftedWidgetsCount);
+        }
+        changeFeed.updated(updatedWidgetView);
+        return updatedWidget;
+    }
+
+    private void removeWidget(UUID widgetId) {
+        widgets.remove(widgetId);
+        zAxisOrderIndex.remove(widgetId);
+        spatialIndex.remove(widgetId);
+
+        if (writeAheadLog != null) {
+            writeAheadLog.appendDelete(widgetId);
+        }
+        changeFeed.deleted(widgetId);
+    }
+
+    /*
+        Moves widgets from the first to the last position to base + position * gap, where it is vacant
+     */
+    private int renumberStep(long firstPosition, long lastPosition, long base, long gap, boolean ascending) {
+        long logPosition;
+        int renumberedWidgetsCount = 0;
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            // Published version is the working one under the lock, and it is not changed by the moves below
+            ZAxisOrderIndex.Version<Widget> zAxisOrder = zAxisOrderIndex.getPublished();
+            if (firstPosition >= zAxisOrder.size()) {
+                return 0;
+            }
+
+            // Neighbours around the step are read as well, widgets must stay between them
+            long fromPosition = Math.max(0, firstPosition - 1);
+            int count = (int) Math.min(lastPosition + 2, zAxisOrder.size()) - (int) fromPosition;
+            long[] zAxisIndexes = new long[count];
+            Widget[] stepWidgets = new Widget[count];
+            int[] collected = {0};
+            zAxisOrder.forEachFrom(fromPosition, count, (z, widget) -> {
+                zAxisIndexes[collected[0]] = z;
+                stepWidgets[collected[0]++] = widget;
+                return true;
+            });
+
+            int first = (int) (firstPosition - fromPosition);
+            int last = (int) Math.min(lastPosition - fromPosition, count - 1);
+            for (int i = first; i <= last; i++) {
+                int index = ascending ? i : last - (i - first);
+                long lowerZ = index > 0 ? zAxisIndexes[index - 1] : Long.MIN_VALUE;
+                long upperZ = index < count - 1 ? zAxisIndexes[index + 1] : Long.MAX_VALUE;
+                long targetZ = base + (fromPosition + index) * gap;
+                if (targetZ != zAxisIndexes[index] && targetZ > lowerZ && targetZ < upperZ && targetZ <= Integer.MAX_VALUE) {
+                    renumberWidget(stepWidgets[index], (int) targetZ);
+                    zAxisIndexes[index] = targetZ;
+                    renumberedWidgetsCount++;
+                }
+            }
+            logPosition = getAppendedLogPosition();
+        } finally {
+            publishAndUnlock();
+        }
+
+        awaitDurable(logPosition);
+        return renumberedWidgetsCount;
+    }
+
+    /*
+        Renumbering keeps the order of widgets, so it is not a change of the widget and its version stays the same
+     */
+    private void renumberWidget(Widget widget, int zAxisIndex) {
+        Widget renumberedWidget = widget.withZ(zAxisIndex);
+        zAxisOrderIndex.remove(widget.getId());
+        zAxisOrderIndex.put(zAxisIndex, renumberedWidget);
+        widgets.put(widget.getId(), renumberedWidget);
+
+        if (writeAheadLog != null) {
+            writeAheadLog.appendPut(renumberedWidget, 0);
+        }
+        changeFeed.renumbered(renumberedWidget);
+    }
+
+    private void ensureAllExist(Collection<UUID> widgetIds) {
+        for (UUID widgetId : widgetIds) {
+            if (!widgets.containsKey(widgetId)) {
+                throw new EntityNotFoundException("Widget with id " + widgetId + " not found");
             }
+        }
+    }
+
+    private void ensureVersion(Widget widget, long expectedVersion) {
+        if (widget.getVersion() != expectedVersion) {
+            throw new StaleVersionException(
+                    "Widget with id " + widget.getId() + " has version " + widget.getVersion()
+                            + " instead of " + expectedVersion
+            );
+        }
+    }
+
+    /*
+        Repeats create or update of the widget the way it was done originally
+     */
+    private void replayPut(Widget widget, int shiftedWidgetsCount) {
+        if (widgets.containsKey(widget.getId())) {
+            zAxisOrderIndex.remove(widget.getId());
+        }
+
+        int replayedShiftedWidgetsCount = 0;
+        if (zAxisOrderIndex.containsKey(widget.getZ())) {
+            replayedShiftedWidgetsCount = shiftZAxis(widget.getZ());
+        }
+
+        // Shifts are not logged widget by widget, so make sure that replay has shifted the same widgets
+        if (replayedShiftedWidgetsCount != shiftedWidgetsCount) {
+            throw new IllegalStateException(
+                    "Write-ahead log is inconsistent: widget " + widget.getId() + " shifted "
+                            + replayedShiftedWidgetsCount + " widgets instead of " + shiftedWidgetsCount
+            );
+        }
+
+        zAxisOrderIndex.put(widget.getZ(), widget);
+        widgets.put(widget.getId(), widget);
+        indexArea(widget);
+    }
+
+    private void indexArea(Widget widget) {
+        // Change set doesn't require Y coordinate, widgets without it lie on the X axis
+        int y = widget.getY() == null ? 0 : widget.getY();
+        spatialIndex.put(widget.getId(), widget.getX(), y, widget.getWidth(), widget.getHeight());
+    }
+
+    /*
+        Log is appended under the write lock only, so this is the position of the last record of the caller
+     */
+    private long getAppendedLogPosition() {
+        return writeAheadLog == null ? 0 : writeAheadLog.getAppendedPosition();
+    }
+
+    private List<ImmutableWidget> readPage(ZAxisOrderIndex.Version<Widget> zAxisOrder, int limit, long offset) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Page limit  should not be negative");
+        }
+
+        if (offset < 0) {
+            throw new IllegalArgumentException("Page offset should not be negative");
+        }
+
+        // Order statistic index lets us jump straight to the offset instead of skipping entries
+        List<ImmutableWidget> page = new ArrayList<>(limit);
+        zAxisOrder.forEachFrom(offset, limit, (z, widget) -> page.add(getWidgetView(widget, z)));
+        return page;
+    }
+
+    private List<ImmutableWidget> readPageAfter(ZAxisOrderIndex.Version<Widget> zAxisOrder, Integer zCursor, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Page limit  should not be negative");
+        }
+
+        // Seek straight to the first widget above the cursor instead of skipping from the bottom
+        List<ImmutableWidget> page = new ArrayList<>(limit);
+        ZAxisOrderIndex.Visitor<Widget> collector = (z, widget) -> page.add(getWidgetView(widget, z));
+        if (zCursor == null) {
+            zAxisOrder.forEachFrom(0, limit, collector);
+        } else {
+            zAxisOrder.forEachAfter(zCursor, limit, collector);
+        }
+        return page;
+    }
+
+    private WidgetScanPage retainIfFull(ZAxisOrderIndex.Version<Widget> zAxisOrder, List<ImmutableWidget> page, int limit) {
+        long snapshotVersion = zAxisOrder.getTag();
+        if (page.size() < limit || limit == 0) {
+            return new WidgetScanPage(page, snapshotVersion, null);
+        }
+
+        scanSnapshots.retain(snapshotVersion, zAxisOrder);
+        return new WidgetScanPage(page, snapshotVersion, snapshotVersion);
+    }
 
-            int shiftedZIndex = widget.getKey() + 1;
-            UUID shiftedWidgetId = widget.getValue();
+    private ZAxisOrderIndex.Version<Widget> findSnapshot(long snapshotVersion) {
+        return scanSnapshots
+                .find(snapshotVersion)
+                .orElseThrow(() -> new SnapshotExpiredException("Snapshot " + snapshotVersion + " is not retained"));
+    }
 
-            shiftedWidgets.put(shiftedZIndex, shiftedWidgetId);
-            Widget shiftedWidget = widgets.get(shiftedWidgetId);
-            shiftedWidget.setZ(shiftedZIndex);
+    /*
+        Readers of pages see the changes of the writer only now, when they are complete. Operations that reenter
+        the lock within a batch publish nothing, the outermost one publishes the whole batch at once.
+     */
+    private void publishAndUnlock() {
+        if (zAxisReorderingLock.getWriteHoldCount() == 1) {
+            zAxisOrderIndex.publish(changeFeed.getLastSequence());
+        }
+        zAxisReorderingLock.writeLock().unlock();
+    }
 
-            currentIndex++;
+    private void awaitDurable(long logPosition) {
+        // Changes made within writeExclusively wait for the disk all at once, after the lock is released
+        if (writeAheadLog != null && !zAxisReorderingLock.isWriteLockedByCurrentThread()) {
+            writeAheadLog.awaitDurable(logPosition);
         }
+    }
+
+    private int shiftZAxis(int shiftFrom) {
+        // Shifted widgets are not touched - their z indexes are resolved by the index on read
+        return zAxisOrderIndex.shiftRun(shiftFrom);
+    }
+
+    private ImmutableWidget getWidgetView(Widget widget) {
+        return getWidgetView(widget, zAxisOrderIndex.zOf(widget.getId()));
+    }
 
-        zAxisOrderIndex.putAll(shiftedWidgets);
-        zAxisOrderIndex.remove(shiftFrom);
+    /*
+        Stored widget itself if it was not shifted since its last change, or its version with the actual z index
+     */
+    private ImmutableWidget getWidgetView(Widget widget, int actualZ) {
+        return widget.getZ() == actualZ ? widget : widget.withZ(actualZ);
     }
 
     private Integer getMaxZAxisIndex() {
@@ -0,0 +1,745 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.Widget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import com.azaitsev.widgets.repository.exceptions.BoardNotEmptyException;
+import com.azaitsev.widgets.repository.exceptions.EntityNotFoundException;
+import com.azaitsev.widgets.repository.exceptions.SnapshotExpiredException;
+import com.azaitsev.widgets.repository.exceptions.StaleVersionException;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import javax.validation.constraints.NotNull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static com.azaitsev.widgets.repository.widget.WidgetColumnarRepository.fromEpochNanos;
+import static com.azaitsev.widgets.repository.widget.WidgetColumnarRepository.toEpochNanos;
+
+/*
+    Repository that keeps widgets off-heap in a memory-mapped file, so the board survives restarts
+    and may hold more widgets than fit in heap.
+
+    File starts with a header followed by fixed-width records, one per slot:
+        id (2 longs) | x | y | z | height | width | state | last modification epoch nanos | version (long)
+    State holds flags: whether the slot is used and whether the widget has y coordinate, which may be absent.
+    Slots of deleted widgets are marked free and reused before the file grows.
+    The file is mapped in segments, so it grows without remapping what is already mapped.
+
+    Only the indexes live in heap: SlotIdIndex and SlotZAxisOrderIndex take about 12 bytes per widget
+    and are rebuilt by scanning the records on startup.
+
+    Writes go to the page cache and reach the disk when the OS flushes it or the repository is closed,
+    so a crash of the machine may lose the latest changes.
+ */
+public class WidgetMappedFileRepository implements WidgetRepository, Closeable {
+    private static final int MAGIC = 0x57494447;
+    private static final int FORMAT_VERSION = 3;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int HEADER_MAGIC_OFFSET = 0;
+    private static final int HEADER_VERSION_OFFSET = 4;
+    private static final int HEADER_RECORD_SIZE_OFFSET = 8;
+    private static final int HEADER_SLOTS_COUNT_OFFSET = 12;
+
+    private static final int RECORD_SIZE = 56;
+    private static final int ID_MOST_SIGNIFICANT_BITS_OFFSET = 0;
+    private static final int ID_LEAST_SIGNIFICANT_BITS_OFFSET = 8;
+    private static final int X_OFFSET = 16;
+    private static final int Y_OFFSET = 20;
+    private static final int Z_OFFSET = 24;
+    private static final int HEIGHT_OFFSET = 28;
+    private static final int WIDTH_OFFSET = 32;
+    private static final int STATE_OFFSET = 36;
+    private static final int LAST_MODIFICATION_OFFSET = 40;
+    private static final int VERSION_OFFSET = 48;
+
+    private static final int FREE = 0;
+    private static final int USED = 1;
+    private static final int Y_PRESENT = 1 << 1;
+
+    // 65536 records, 3.5 MB per segment
+    private static final int SEGMENT_SHIFT = 16;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+    private static final long SEGMENT_SIZE = (long) RECORD_SIZE << SEGMENT_SHIFT;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer[] segments;
+
+    // Slots freed by deletions, reused before the file grows
+    private int[] freeSlots;
+    private int freeSlotsCount;
+    private int usedSlotsCount;
+
+    private final SlotIdIndex idIndex;
+    private final SlotZAxisOrderIndex zAxisOrderIndex;
+    private final TimedReadWriteLock zAxisReorderingLock;
+    private final WidgetChangeFeed changeFeed;
+    private volatile WidgetRepositoryMeters meters = WidgetRepositoryMeters.UNBOUND;
+
+    public WidgetMappedFileRepository(@NotNull Path file) throws IOException {
+        zAxisReorderingLock = new TimedReadWriteLock();
+        changeFeed = new WidgetChangeFeed();
+        channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        );
+
+        try {
+            boolean isNewFile = channel.size() == 0;
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (isNewFile) {
+                header.putInt(HEADER_MAGIC_OFFSET, MAGIC);
+                header.putInt(HEADER_VERSION_OFFSET, FORMAT_VERSION);
+                header.putInt(HEADER_RECORD_SIZE_OFFSET, RECORD_SIZE);
+                header.putInt(HEADER_SLOTS_COUNT_OFFSET, 0);
+            } else {
+                validateHeader(file);
+            }
+
+            segments = new MappedByteBuffer[0];
+            idIndex = new SlotIdIndex(new SlotIdIndex.SlotIds() {
+                @Override
+                public long getMostSignificantBits(int slot) {
+                    return segmentOf(slot).getLong(offsetOf(slot) + ID_MOST_SIGNIFICANT_BITS_OFFSET);
+                }
+
+                @Override
+                public long getLeastSignificantBits(int slot) {
+                    return segmentOf(slot).getLong(offsetOf(slot) + ID_LEAST_SIGNIFICANT_BITS_OFFSET);
+                }
+            }, INITIAL_CAPACITY);
+            zAxisOrderIndex = new SlotZAxisOrderIndex(new SlotZAxisOrderIndex.ZAxisColumn() {
+                @Override
+                public int get(int slot) {
+                    return segmentOf(slot).getInt(offsetOf(slot) + Z_OFFSET);
+                }
+
+                @Override
+                public void set(int slot, int z) {
+                    segmentOf(slot).putInt(offsetOf(slot) + Z_OFFSET, z);
+                }
+            }, INITIAL_CAPACITY);
+
+            restore();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public Optional<ImmutableWidget> get(@NotNull UUID widgetId) {
+        zAxisReorderingLock.readLock().lock();
+        try {
+            int slot = idIndex.find(widgetId);
+            return slot == -1 ? Optional.empty() : Optional.of(materialize(slot));
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    public List<ImmutableWidget> getPage(int limit, long offset) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Page limit  should not be negative");
+        }
+
+        if (offset < 0) {
+            throw new IllegalArgumentException("Page offset should not be negative");
+        }
+
+        zAxisReorderingLock.readLock().lock();
+        try {
+            return materializeRange(offset, limit);
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    public List<ImmutableWidget> getPageAfter(Integer zCursor, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Page limit  should not be negative");
+        }
+
+        zAxisReorderingLock.readLock().lock();
+        try {
+            long start = zCursor == null ? 0 : zAxisOrderIndex.positionAfter(zCursor);
+            return materializeRange(start, limit);
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    /*
+        Z order lives in flat arrays that are changed in place, so versions of it are not kept
+     */
+    @Override
+    public WidgetScanPage startScan(int limit, long offset) {
+        return WidgetScanPage.ofLiveBoard(changeFeed.getLastSequence(), getPage(limit, offset));
+    }
+
+    @Override
+    public WidgetScanPage startScanAfter(Integer zCursor, int limit) {
+        return WidgetScanPage.ofLiveBoard(changeFeed.getLastSequence(), getPageAfter(zCursor, limit));
+    }
+
+    @Override
+    public List<ImmutableWidget> getSnapshotPage(long snapshotVersion, int limit, long offset) {
+        throw new SnapshotExpiredException("Snapshot " + snapshotVersion + " is not retained");
+    }
+
+    @Override
+    public List<ImmutableWidget> getSnapshotPageAfter(long snapshotVersion, Integer zCursor, int limit) {
+        throw new SnapshotExpiredException("Snapshot " + snapshotVersion + " is not retained");
+    }
+
+    @Override
+    public Optional<Long> getRank(@NotNull UUID widgetId) {
+        zAxisReorderingLock.readLock().lock();
+        try {
+            int slot = idIndex.find(widgetId);
+            return slot == -1 ? Optional.empty() : Optional.of((long) zAxisOrderIndex.rank(getZ(slot)));
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    /*
+        Widgets are not indexed by coordinates, an index in heap would defeat the purpose of the repository.
+        So z order is scanned until the limit is reached, which costs O(n) for sparse areas.
+     */
+    @Override
+    public List<ImmutableWidget> findInArea(int x1, int y1, int x2, int y2, int limit) {
+        if (x1 > x2 || y1 > y2) {
+            throw new IllegalArgumentException("Area should not be empty");
+        }
+
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit should not be negative");
+        }
+
+        zAxisReorderingLock.readLock().lock();
+        try {
+            List<ImmutableWidget> hits = new ArrayList<>();
+            for (int position = 0; position < zAxisOrderIndex.size() && hits.size() < limit; position++) {
+                int slot = zAxisOrderIndex.slotAt(position);
+                if (overlaps(slot, x1, y1, x2, y2)) {
+                    hits.add(materialize(slot));
+                }
+            }
+            return hits;
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    /*
+        Z order is scanned from the top, so the scan stops at the first hit
+     */
+    @Override
+    public Optional<ImmutableWidget> findTopmostAt(int x, int y) {
+        zAxisReorderingLock.readLock().lock();
+        try {
+            for (int position = zAxisOrderIndex.size() - 1; position >= 0; position--) {
+                int slot = zAxisOrderIndex.slotAt(position);
+                if (overlaps(slot, x, y, x, y)) {
+                    return Optional.of(materialize(slot));
+                }
+            }
+            return Optional.empty();
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ImmutableWidget> findAllAt(int x, int y) {
+        return findInArea(x, y, x, y, Integer.MAX_VALUE);
+    }
+
+    public ImmutableWidget create(@NotNull WidgetChangeSet changeSet) {
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            Widget widget = changeSet.buildWidget();
+
+            // If widget was passed without z index - move new widget to the top
+            // by taking current max z index and incrementing it
+            int zAxisIndex = widget.getZ() == null ? getMaxZAxisIndex() + 1 : widget.getZ();
+
+            // If widget with specified z index already exist - shift it along with other colliding widgets
+            int position = zAxisOrderIndex.rank(zAxisIndex);
+            int shiftedWidgetsCount = zAxisOrderIndex.shiftRun(position, zAxisIndex);
+            if (shiftedWidgetsCount > 0) {
+                changeFeed.shifted(zAxisIndex, shiftedWidgetsCount);
+                meters.recordShiftRun(shiftedWidgetsCount);
+            }
+
+            int slot = putRecord(getGeneratedWidgetId(), widget, zAxisIndex, toEpochNanos(Instant.now()));
+            zAxisOrderIndex.insert(position, slot);
+
+            ImmutableWidget createdWidget = materialize(slot);
+            changeFeed.created(createdWidget);
+            return createdWidget;
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ImmutableWidget update(@NotNull final UUID widgetId, @NotNull WidgetChangeSet changeSet) {
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            int slot = idIndex.find(widgetId);
+
+            // Ensure that requested widget actually exists
+            if (slot == -1) {
+                throw new EntityNotFoundException("Widget with id " + widgetId + " not found");
+            }
+
+            MappedByteBuffer segment = segmentOf(slot);
+            int offset = offsetOf(slot);
+
+            // If widget's new z index collides with other widgets - shift other widget along with others
+            if (changeSet.getZ() != null) {
+                final int newWidgetZIndex = changeSet.getZ();
+
+                zAxisOrderIndex.removeAt(zAxisOrderIndex.rank(getZ(slot)));
+                int position = zAxisOrderIndex.rank(newWidgetZIndex);
+                int shiftedWidgetsCount = zAxisOrderIndex.shiftRun(position, newWidgetZIndex);
+                if (shiftedWidgetsCount > 0) {
+                    changeFeed.shifted(newWidgetZIndex, shiftedWidgetsCount);
+                    meters.recordShiftRun(shiftedWidgetsCount);
+                }
+                segment.putInt(offset + Z_OFFSET, newWidgetZIndex);
+                zAxisOrderIndex.insert(position, slot);
+            }
+
+            if (changeSet.getX() != null) {
+                segment.putInt(offset + X_OFFSET, changeSet.getX());
+            }
+
+            if (changeSet.getY() != null) {
+                segment.putInt(offset + Y_OFFSET, changeSet.getY());
+                segment.putInt(offset + STATE_OFFSET, segment.getInt(offset + STATE_OFFSET) | Y_PRESENT);
+            }
+
+            if (changeSet.getHeight() != null) {
+                segment.putInt(offset + HEIGHT_OFFSET, changeSet.getHeight());
+            }
+
+            if (changeSet.getWidth() != null) {
+                segment.putInt(offset + WIDTH_OFFSET, changeSet.getWidth());
+            }
+
+            segment.putLong(offset + LAST_MODIFICATION_OFFSET, toEpochNanos(Instant.now()));
+            segment.putLong(offset + VERSION_OFFSET, segment.getLong(offset + VERSION_OFFSET) + 1);
+
+            ImmutableWidget updatedWidget = materialize(slot);
+            changeFeed.updated(updatedWidget);
+            return updatedWidget;
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ImmutableWidget compareAndUpdate(
+            @NotNull UUID widgetId,
+            long expectedVersion,
+            @NotNull WidgetChangeSet changeSet
+    ) {
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            int slot = idIndex.find(widgetId);
+            if (slot != -1) {
+                long version = segmentOf(slot).getLong(offsetOf(slot) + VERSION_OFFSET);
+                if (version != expectedVersion) {
+                    throw new StaleVersionException(
+                            "Widget with id " + widgetId + " has version " + version + " instead of " + expectedVersion
+                    );
+                }
+            }
+
+            // Reentering the write lock, so nothing changes the widget between the check and the update
+            return update(widgetId, changeSet);
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(@NotNull UUID widgetId) {
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            int slot = idIndex.find(widgetId);
+
+            // Ensure that requested widget actually exists
+            if (slot == -1) {
+                throw new EntityNotFoundException("Widget with id " + widgetId + " not found");
+            }
+
+            zAxisOrderIndex.removeAt(zAxisOrderIndex.rank(getZ(slot)));
+            idIndex.remove(widgetId);
+            segmentOf(slot).putInt(offsetOf(slot) + STATE_OFFSET, FREE);
+            freeSlots[freeSlotsCount++] = slot;
+            changeFeed.deleted(widgetId);
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    /*
+        Batches reenter the write lock with the single operations. Z order is kept in a sorted array here,
+        so there is no lazy shift to merge - the gain is a single lock acquisition per batch.
+     */
+    @Override
+    public List<ImmutableWidget> createAll(@NotNull List<WidgetChangeSet> changeSets) {
+        // Build all the widgets up front, so an invalid change set leaves the board untouched
+        changeSets.forEach(WidgetChangeSet::buildWidget);
+
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            List<UUID> createdWidgetIds = new ArrayList<>(changeSets.size());
+            for (WidgetChangeSet changeSet : changeSets) {
+                createdWidgetIds.add(create(changeSet).getId());
+            }
+            // Later widgets of the batch may have shifted the earlier ones
+            return materializeAll(createdWidgetIds);
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ImmutableWidget> updateAll(@NotNull Map<UUID, WidgetChangeSet> changeSets) {
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            ensureAllExist(changeSets.keySet());
+            changeSets.forEach(this::update);
+            return materializeAll(changeSets.keySet());
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteAll(@NotNull Collection<UUID> widgetIds) {
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            ensureAllExist(widgetIds);
+            new LinkedHashSet<>(widgetIds).forEach(this::delete);
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    /*
+        Board may not fit into the heap, so it is not copied - the read lock is held for the whole export
+        and writers wait until the consumer is done
+     */
+    @Override
+    public void exportAll(@NotNull Consumer<ImmutableWidget> consumer) {
+        zAxisReorderingLock.readLock().lock();
+        try {
+            for (int position = 0; position < zAxisOrderIndex.size(); position++) {
+                consumer.accept(materialize(zAxisOrderIndex.slotAt(position)));
+            }
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    /*
+        Imported widgets come in z order with vacant z indexes, so each of them is appended on top without shifts
+     */
+    @Override
+    public int importAll(@NotNull Stream<WidgetChangeSet> changeSets) {
+        // Arrange the whole input before taking the lock, so an invalid change set leaves the board untouched
+        List<Widget> importedWidgets = WidgetBulkImport.arrange(changeSets, Instant.now());
+
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            if (zAxisOrderIndex.size() != 0) {
+                throw new BoardNotEmptyException("Widgets can be imported into an empty board only");
+            }
+
+            for (Widget widget : importedWidgets) {
+                long lastModificationNanos = toEpochNanos(widget.getLastModificationDate());
+                int slot = putRecord(widget.getId(), widget, widget.getZ(), lastModificationNanos);
+                zAxisOrderIndex.insert(zAxisOrderIndex.size(), slot);
+                changeFeed.created(widget);
+            }
+            return importedWidgets.size();
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            // Records above the slots count are ignored by the startup scan and overwritten by new widgets
+            header.putInt(HEADER_SLOTS_COUNT_OFFSET, 0);
+            usedSlotsCount = 0;
+            freeSlots = new int[INITIAL_CAPACITY];
+            freeSlotsCount = 0;
+            idIndex.clear();
+            zAxisOrderIndex.clear();
+            changeFeed.cleared();
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    /*
+        Flushes all changes to the disk and releases the file
+     */
+    @Override
+    public void close() throws IOException {
+        zAxisReorderingLock.writeLock().lock();
+        try {
+            if (!channel.isOpen()) {
+                return;
+            }
+
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            header.force();
+            channel.close();
+        } finally {
+            zAxisReorderingLock.writeLock().unlock();
+        }
+    }
+
+    private void validateHeader(Path file) throws IOException {
+        if (channel.size() < HEADER_SIZE || header.getInt(HEADER_MAGIC_OFFSET) != MAGIC) {
+            throw new IOException(file + " is not a widgets file");
+        }
+
+        if (header.getInt(HEADER_VERSION_OFFSET) != FORMAT_VERSION
+                || header.getInt(HEADER_RECORD_SIZE_OFFSET) != RECORD_SIZE) {
+            throw new IOException(file + " has unsupported format version " + header.getInt(HEADER_VERSION_OFFSET));
+        }
+    }
+
+    /*
+        Rebuilds free slots and indexes from the records of the file
+     */
+    private void restore() {
+        usedSlotsCount = header.getInt(HEADER_SLOTS_COUNT_OFFSET);
+        mapSegments(usedSlotsCount);
+
+        freeSlots = new int[Math.max(usedSlotsCount, INITIAL_CAPACITY)];
+        freeSlotsCount = 0;
+
+        // Z index goes to the high half, so sorting keys sorts slots by z index
+        long[] zAxisOrderKeys = new long[usedSlotsCount];
+        int widgetsCount = 0;
+        for (int slot = 0; slot < usedSlotsCount; slot++) {
+            if ((segmentOf(slot).getInt(offsetOf(slot) + STATE_OFFSET) & USED) != 0) {
+                idIndex.put(slot);
+                zAxisOrderKeys[widgetsCount++] = ((long) getZ(slot) << 32) | slot;
+            } else {
+                freeSlots[freeSlotsCount++] = slot;
+            }
+        }
+
+        Arrays.sort(zAxisOrderKeys, 0, widgetsCount);
+        for (int i = 0; i < widgetsCount; i++) {
+            zAxisOrderIndex.insert(i, (int) zAxisOrderKeys[i]);
+        }
+    }
+
+    private int allocateSlot() {
+        if (freeSlotsCount > 0) {
+            return freeSlots[--freeSlotsCount];
+        }
+
+        if (usedSlotsCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, usedSlotsCount * 2);
+        }
+
+        int slot = usedSlotsCount++;
+        mapSegments(usedSlotsCount);
+        header.putInt(HEADER_SLOTS_COUNT_OFFSET, usedSlotsCount);
+        return slot;
+    }
+
+    /*
+        Ensures that the specified number of slots is mapped, growing the file if needed
+     */
+    private void mapSegments(int slotsCount) {
+        int segmentsCount = (slotsCount + SEGMENT_MASK) >>> SEGMENT_SHIFT;
+        if (segmentsCount <= segments.length) {
+            return;
+        }
+
+        MappedByteBuffer[] mappedSegments = Arrays.copyOf(segments, segmentsCount);
+        try {
+            for (int i = segments.length; i < segmentsCount; i++) {
+                mappedSegments[i] = channel.map(
+                        FileChannel.MapMode.READ_WRITE,
+                        HEADER_SIZE + i * SEGMENT_SIZE,
+                        SEGMENT_SIZE
+                );
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to map widgets file", e);
+        }
+        segments = mappedSegments;
+    }
+
+    private MappedByteBuffer segmentOf(int slot) {
+        return segments[slot >>> SEGMENT_SHIFT];
+    }
+
+    private static int offsetOf(int slot) {
+        return (slot & SEGMENT_MASK) * RECORD_SIZE;
+    }
+
+    private int getZ(int slot) {
+        return segmentOf(slot).getInt(offsetOf(slot) + Z_OFFSET);
+    }
+
+    /*
+        Widget without y coordinate has no vertical extent, so it overlaps no area
+     */
+    private boolean overlaps(int slot, int x1, int y1, int x2, int y2) {
+        MappedByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+        if ((segment.getInt(offset + STATE_OFFSET) & Y_PRESENT) == 0) {
+            return false;
+        }
+
+        long x = segment.getInt(offset + X_OFFSET);
+        long y = segment.getInt(offset + Y_OFFSET);
+        long height = segment.getInt(offset + HEIGHT_OFFSET);
+        long width = segment.getInt(offset + WIDTH_OFFSET);
+        // Widget (x, y) is its center, doubled coordinates keep bounds of odd sized widgets integer
+        return 2 * x - width <= 2L * x2 && 2 * x + width >= 2L * x1
+                && 2 * y - height <= 2L * y2 && 2 * y + height >= 2L * y1;
+    }
+
+    /*
+        Writes the widget to a free slot and registers its id, z order is up to the caller
+     */
+    private int putRecord(UUID widgetId, Widget widget, int zAxisIndex, long lastModificationNanos) {
+        int slot = allocateSlot();
+        MappedByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+        segment.putLong(offset + ID_MOST_SIGNIFICANT_BITS_OFFSET, widgetId.getMostSignificantBits());
+        segment.putLong(offset + ID_LEAST_SIGNIFICANT_BITS_OFFSET, widgetId.getLeastSignificantBits());
+        segment.putInt(offset + X_OFFSET, widget.getX());
+        // Change set doesn't require Y coordinate, and there is no room for null in a fixed-width record,
+        // so absence of it is kept in the state
+        segment.putInt(offset + Y_OFFSET, widget.getY() == null ? 0 : widget.getY());
+        segment.putInt(offset + Z_OFFSET, zAxisIndex);
+        segment.putInt(offset + HEIGHT_OFFSET, widget.getHeight());
+        segment.putInt(offset + WIDTH_OFFSET, widget.getWidth());
+        segment.putLong(offset + LAST_MODIFICATION_OFFSET, lastModificationNanos);
+        segment.putLong(offset + VERSION_OFFSET, widget.getVersion());
+        // Record becomes visible to the startup scan only when it is complete
+        segment.putInt(offset + STATE_OFFSET, widget.getY() == null ? USED : USED | Y_PRESENT);
+
+        idIndex.put(slot);
+        return slot;
+    }
+
+    @Override
+    public WidgetChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    @Override
+    public int getSize() {
+        zAxisReorderingLock.readLock().lock();
+        try {
+            return zAxisOrderIndex.size();
+        } finally {
+            zAxisReorderingLock.readLock().unlock();
+        }
+    }
+
+    /*
+        Lock and shift meters are collected only from now on
+     */
+    @Override
+    public void bindTo(@NotNull MeterRegistry registry) {
+        WidgetRepositoryMeters meters = new WidgetRepositoryMeters(registry, this);
+        zAxisReorderingLock.setMeters(meters);
+        this.meters = meters;
+    }
+
+    private void ensureAllExist(Collection<UUID> widgetIds) {
+        for (UUID widgetId : widgetIds) {
+            if (idIndex.find(widgetId) == -1) {
+                throw new EntityNotFoundException("Widget with id " + widgetId + " not found");
+            }
+        }
+    }
+
+    private List<ImmutableWidget> materializeAll(Collection<UUID> widgetIds) {
+        List<ImmutableWidget> materializedWidgets = new ArrayList<>(widgetIds.size());
+        for (UUID widgetId : widgetIds) {
+            materializedWidgets.add(materialize(idIndex.find(widgetId)));
+        }
+        return materializedWidgets;
+    }
+
+    private ImmutableWidget materialize(int slot) {
+        MappedByteBuffer segment = segmentOf(slot);
+        int offset = offsetOf(slot);
+        return new Widget(
+                new UUID(
+                        segment.getLong(offset + ID_MOST_SIGNIFICANT_BITS_OFFSET),
+                        segment.getLong(offset + ID_LEAST_SIGNIFICANT_BITS_OFFSET)
+                ),
+                segment.getInt(offset + X_OFFSET),
+                (segment.getInt(offset + STATE_OFFSET) & Y_PRESENT) != 0 ? segment.getInt(offset + Y_OFFSET) : null,
+                segment.getInt(offset + Z_OFFSET),
+                segment.getInt(offset + HEIGHT_OFFSET),
+                segment.getInt(offset + WIDTH_OFFSET),
+                fromEpochNanos(segment.getLong(offset + LAST_MODIFICATION_OFFSET)),
+                segment.getLong(offset + VERSION_OFFSET)
+        );
+    }
+
+    private List<ImmutableWidget> materializeRange(long start, int limit) {
+        int end = (int) Math.min(zAxisOrderIndex.size(), start + limit);
+        List<ImmutableWidget> page = new ArrayList<>(Math.max(end - (int) Math.min(start, end), 0));
+        for (long position = start; position < end; position++) {
+            page.add(materialize(zAxisOrderIndex.slotAt((int) position)));
+        }
+        return page;
+    }
+
+    private int getMaxZAxisIndex() {
+        return zAxisOrderIndex.size() == 0 ? 0 : zAxisOrderIndex.lastKey();
+    }
+
+    private UUID getGeneratedWidgetId() {
+        return UUID.randomUUID();
+    }
+}
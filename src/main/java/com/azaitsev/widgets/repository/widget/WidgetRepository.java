@@ -2,21 +2,147 @@ package com.azaitsev.widgets.repository.widget;
 
 import com.azaitsev.widgets.entity.widget.ImmutableWidget;
 import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import io.micrometer.core.instrument.binder.MeterBinder;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
-public interface WidgetRepository {
+/*
+    Repository is a MeterBinder, so the one the application is configured with publishes its meters once
+    the registry is there. Repositories that are never bound don't collect them.
+ */
+public interface WidgetRepository extends MeterBinder {
     Optional<ImmutableWidget> get(UUID widgetId);
 
     List<ImmutableWidget> getPage(int limit, long offset);
 
+    List<ImmutableWidget> getPageAfter(Integer zCursor, int limit);
+
+    /*
+        First page of a scan. If there may be more pages, the z order the page is read from is retained for them
+        and its version comes with the page, so that widgets shifted while the scan goes on are neither repeated
+        nor skipped. Repositories that don't keep versions of z order never retain one, then the following pages
+        can only be read from the live board.
+     */
+    WidgetScanPage startScan(int limit, long offset);
+
+    WidgetScanPage startScanAfter(Integer zCursor, int limit);
+
+    /*
+        Pages of the retained z order, throw SnapshotExpiredException once the version is reclaimed
+     */
+    List<ImmutableWidget> getSnapshotPage(long snapshotVersion, int limit, long offset);
+
+    List<ImmutableWidget> getSnapshotPageAfter(long snapshotVersion, Integer zCursor, int limit);
+
+    Optional<Long> getRank(UUID widgetId);
+
+    /*
+        Widgets overlapping the area in z order, at most limit of them
+     */
+    List<ImmutableWidget> findInArea(int x1, int y1, int x2, int y2, int limit);
+
+    /*
+        Widget lying on top of all the others at the point
+     */
+    Optional<ImmutableWidget> findTopmostAt(int x, int y);
+
+    /*
+        Widgets at the point in z order
+     */
+    List<ImmutableWidget> findAllAt(int x, int y);
+
     ImmutableWidget create(WidgetChangeSet widget);
 
     ImmutableWidget update(UUID widgetId, WidgetChangeSet widget);
 
+    /*
+        Updates the widget only if its version is still the expected one, otherwise throws StaleVersionException
+        and leaves the widget untouched. Version is checked and the update is applied at once, so of concurrent
+        updates made from the same version only one succeeds.
+     */
+    ImmutableWidget compareAndUpdate(UUID widgetId, long expectedVersion, WidgetChangeSet changeSet);
+
     void delete(UUID widgetId);
 
+    /*
+        Batch operations give the same result as the single ones applied in order, but take the lock only once.
+        Batch is validated as a whole before it is applied, so an invalid change set or a missing widget
+        leaves the board untouched. Returned widgets come in the order of the batch, with z indexes they have
+        after the whole batch.
+     */
+    List<ImmutableWidget> createAll(List<WidgetChangeSet> changeSets);
+
+    List<ImmutableWidget> updateAll(Map<UUID, WidgetChangeSet> changeSets);
+
+    void deleteAll(Collection<UUID> widgetIds);
+
+    /*
+        Applies the changes the function makes to the repository it is passed as a single write, in order,
+        and completes with what the function returns or with what it throws. Repositories that apply changes
+        on a thread of their own complete the future from there without holding the caller, the others apply
+        the changes on the calling thread and return a completed future.
+     */
+    default <T> CompletableFuture<T> writeAsync(Function<WidgetRepository, T> change) {
+        try {
+            return CompletableFuture.completedFuture(change.apply(this));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    default CompletableFuture<ImmutableWidget> createAsync(WidgetChangeSet changeSet) {
+        return writeAsync(repository -> repository.create(changeSet));
+    }
+
+    default CompletableFuture<ImmutableWidget> updateAsync(UUID widgetId, WidgetChangeSet changeSet) {
+        return writeAsync(repository -> repository.update(widgetId, changeSet));
+    }
+
+    default CompletableFuture<ImmutableWidget> compareAndUpdateAsync(
+            UUID widgetId,
+            long expectedVersion,
+            WidgetChangeSet changeSet
+    ) {
+        return writeAsync(repository -> repository.compareAndUpdate(widgetId, expectedVersion, changeSet));
+    }
+
+    default CompletableFuture<Void> deleteAsync(UUID widgetId) {
+        return writeAsync(repository -> {
+            repository.delete(widgetId);
+            return null;
+        });
+    }
+
+    /*
+        Loads widgets into an empty board in bulk and returns the number of them,
+        throws BoardNotEmptyException if the board has widgets already.
+        Colliding z indexes are resolved the way WidgetBulkImport describes.
+     */
+    int importAll(Stream<WidgetChangeSet> changeSets);
+
+    /*
+        Passes every widget of the board to the consumer in z order, all of them as they were at the same moment,
+        so the output imported back gives the same board
+     */
+    void exportAll(Consumer<ImmutableWidget> consumer);
+
+    /*
+        Feed of changes applied to the board since the start of the application
+     */
+    WidgetChangeFeed getChangeFeed();
+
+    /*
+        Number of widgets on the board
+     */
+    int getSize();
+
     void clear();
 }
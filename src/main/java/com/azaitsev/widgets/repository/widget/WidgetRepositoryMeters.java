@@ -0,0 +1,129 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+    Meters of a repository - time spent waiting for the z axis lock and holding it, lengths of shifted runs
+    of widgets, the size of the board and the span of its z indexes.
+
+    Meters are recorded only once the repository is bound to a registry, repositories that are not bound
+    (tests) don't pay for them. Every meter is tagged with the board, so that separate boards share the registry
+    with the default one, which has an empty board tag - Prometheus expects the same tags for meters of a name. Recording a timer costs about as much as a read of a single widget,
+    so read lock timers take a sample of acquisitions, while writes are rare and slow enough to time every one.
+ */
+class WidgetRepositoryMeters {
+    // Meters of an empty composite registry are no-op ones
+    static final WidgetRepositoryMeters UNBOUND = new WidgetRepositoryMeters(new CompositeMeterRegistry(), null);
+    // Default board has no id, and board ids are never empty
+    static final String DEFAULT_BOARD = "";
+
+    private static final int READ_LOCK_SAMPLING_RATE = 16;
+    private static final String LOCK_WAIT = "widgets.repository.lock.wait";
+    private static final String LOCK_HOLD = "widgets.repository.lock.hold";
+    private static final String MODE_TAG = "mode";
+    private static final String BOARD_TAG = "board";
+
+    final Timer readLockWaitTimer;
+    final Timer readLockHoldTimer;
+    final Timer writeLockWaitTimer;
+    final Timer writeLockHoldTimer;
+    final DistributionSummary shiftRunLengths;
+
+    private final MeterRegistry registry;
+    private final List<Meter> meters;
+
+    WidgetRepositoryMeters(MeterRegistry registry, WidgetRepository repository) {
+        this(registry, repository, DEFAULT_BOARD);
+    }
+
+    WidgetRepositoryMeters(MeterRegistry registry, WidgetRepository repository, String boardId) {
+        this.registry = registry;
+        this.meters = new ArrayList<>();
+        Tags tags = Tags.of(BOARD_TAG, boardId);
+
+        readLockWaitTimer = getLockTimer(LOCK_WAIT, "read", "Time spent waiting for the z axis lock", tags);
+        readLockHoldTimer = getLockTimer(LOCK_HOLD, "read", "Time the z axis lock is held for", tags);
+        writeLockWaitTimer = getLockTimer(LOCK_WAIT, "write", "Time spent waiting for the z axis lock", tags);
+        writeLockHoldTimer = getLockTimer(LOCK_HOLD, "write", "Time the z axis lock is held for", tags);
+        shiftRunLengths = add(DistributionSummary.builder("widgets.repository.shift.run.length")
+                .description("Number of widgets moved up by a single shift of z indexes")
+                .baseUnit("widgets")
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(registry));
+
+        if (repository != null) {
+            add(Gauge.builder("widgets.repository.widgets", repository, WidgetRepository::getSize)
+                    .description("Number of widgets on the board")
+                    .baseUnit("widgets")
+                    .tags(tags)
+                    .register(registry));
+            add(Gauge.builder("widgets.repository.z.span", repository, WidgetRepositoryMeters::getZAxisSpan)
+                    .description("Distance between the lowest and the highest z index of the board")
+                    .tags(tags)
+                    .register(registry));
+        }
+    }
+
+    /*
+        Whether the read lock acquisition that is about to happen should be timed
+     */
+    static boolean sampleReadLock() {
+        return ThreadLocalRandom.current().nextInt(READ_LOCK_SAMPLING_RATE) == 0;
+    }
+
+    void recordShiftRun(int shiftedWidgetsCount) {
+        shiftRunLengths.record(shiftedWidgetsCount);
+    }
+
+    /*
+        Removes the meters from the registry, recording to them afterwards is not published anywhere
+     */
+    void remove() {
+        for (Meter meter : meters) {
+            registry.remove(meter);
+        }
+    }
+
+    /*
+        Taken from the bottom and the top pages, so a board that changes in between may give a rough value
+     */
+    private static double getZAxisSpan(WidgetRepository repository) {
+        int size = repository.getSize();
+        if (size == 0) {
+            return 0;
+        }
+
+        List<ImmutableWidget> bottomPage = repository.getPage(1, 0);
+        List<ImmutableWidget> topPage = repository.getPage(1, size - 1);
+        if (bottomPage.isEmpty() || topPage.isEmpty()) {
+            return 0;
+        }
+        return (double) topPage.get(0).getZ() - bottomPage.get(0).getZ();
+    }
+
+    private Timer getLockTimer(String name, String mode, String description, Tags tags) {
+        return add(Timer.builder(name)
+                .description(description)
+                .tags(tags)
+                .tag(MODE_TAG, mode)
+                .publishPercentileHistogram()
+                .register(registry));
+    }
+
+    private <M extends Meter> M add(M meter) {
+        meters.add(meter);
+        return meter;
+    }
+}
@@ -0,0 +1,43 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+
+import java.util.List;
+import java.util.Optional;
+
+/*
+    First page of a scan along with the board version it shows. Snapshot version is there only if the z order
+    the page was read from is retained for the next pages, which is the case when the page is full,
+    so there may be more of them, and the repository keeps versions of z order.
+ */
+public final class WidgetScanPage {
+    private final List<ImmutableWidget> widgets;
+    private final long boardVersion;
+    private final Long snapshotVersion;
+
+    public WidgetScanPage(List<ImmutableWidget> widgets, long boardVersion, Long snapshotVersion) {
+        this.widgets = widgets;
+        this.boardVersion = boardVersion;
+        this.snapshotVersion = snapshotVersion;
+    }
+
+    public List<ImmutableWidget> getWidgets() {
+        return widgets;
+    }
+
+    public long getBoardVersion() {
+        return boardVersion;
+    }
+
+    public Optional<Long> getSnapshotVersion() {
+        return Optional.ofNullable(snapshotVersion);
+    }
+
+    /*
+        Page of the live board, for repositories that don't keep versions of z order. Board version is read before
+        the page, so the page may already have later changes than it says, which only makes clients read it again.
+     */
+    static WidgetScanPage ofLiveBoard(long boardVersion, List<ImmutableWidget> widgets) {
+        return new WidgetScanPage(widgets, boardVersion, null);
+    }
+}
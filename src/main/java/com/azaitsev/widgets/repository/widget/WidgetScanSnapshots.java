@@ -0,0 +1,90 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.Widget;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Versions of z order retained for paginated scans, keyed by the sequence of the latest change they include.
+    A version shares all of its nodes with the later ones except those the later changes have copied,
+    so retaining it costs only the nodes changed since, and nothing at all while the board stays the same.
+
+    Memory is bounded by the number of retained versions: a version is reclaimed once it has not been read
+    for the idle timeout, and the least recently read one is reclaimed as soon as there are too many of them.
+    Reclamation happens when a scan starts or reads a page, so there is no background thread.
+ */
+final class WidgetScanSnapshots {
+    static final int DEFAULT_MAX_RETAINED = 64;
+    static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(1);
+
+    private final int maxRetained;
+    private final long idleTimeoutNanos;
+    private final Map<Long, Retained> retained;
+
+    WidgetScanSnapshots(int maxRetained, Duration idleTimeout) {
+        if (maxRetained <= 0) {
+            throw new IllegalArgumentException("Number of retained snapshots should be positive");
+        }
+
+        this.maxRetained = maxRetained;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.retained = new ConcurrentHashMap<>();
+    }
+
+    /*
+        Scans that start before the board changes share the same version
+     */
+    synchronized void retain(long snapshotVersion, ZAxisOrderIndex.Version<Widget> zAxisOrder) {
+        long now = System.nanoTime();
+        retained.computeIfAbsent(snapshotVersion, version -> new Retained(zAxisOrder)).lastReadNanos = now;
+
+        retained.values().removeIf(snapshot -> now - snapshot.lastReadNanos > idleTimeoutNanos);
+        while (retained.size() > maxRetained) {
+            Long leastRecentlyRead = null;
+            long leastRecentReadNanos = now;
+            for (Map.Entry<Long, Retained> entry : retained.entrySet()) {
+                if (entry.getValue().lastReadNanos - leastRecentReadNanos <= 0 && entry.getKey() != snapshotVersion) {
+                    leastRecentlyRead = entry.getKey();
+                    leastRecentReadNanos = entry.getValue().lastReadNanos;
+                }
+            }
+            retained.remove(leastRecentlyRead);
+        }
+    }
+
+    /*
+        Empty if the version was never retained or is already reclaimed
+     */
+    Optional<ZAxisOrderIndex.Version<Widget>> find(long snapshotVersion) {
+        Retained snapshot = retained.get(snapshotVersion);
+        if (snapshot == null) {
+            return Optional.empty();
+        }
+
+        long now = System.nanoTime();
+        if (now - snapshot.lastReadNanos > idleTimeoutNanos) {
+            retained.remove(snapshotVersion, snapshot);
+            return Optional.empty();
+        }
+
+        snapshot.lastReadNanos = now;
+        return Optional.of(snapshot.zAxisOrder);
+    }
+
+    int size() {
+        return retained.size();
+    }
+
+    private static final class Retained {
+        private final ZAxisOrderIndex.Version<Widget> zAxisOrder;
+        // Racy updates are fine, every reader moves it forward to about the same time
+        private volatile long lastReadNanos;
+
+        private Retained(ZAxisOrderIndex.Version<Widget> zAxisOrder) {
+            this.zAxisOrder = zAxisOrder;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import javax.validation.constraints.NotNull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/*
+    Changes of the board are published to a pre-allocated ring of commands and applied by a single writer thread,
+    which is the only one to change the in-memory repository it owns. Writers don't hand the lock over to each other
+    and don't park on it. Instead, the writer thread applies every command published since the previous batch
+    under a single acquisition of the write lock, and with the write-ahead log makes the batch durable by a single fsync.
+    Callers get a future that completes once the change is applied and durable.
+
+    Reads go to the in-memory repository directly and see the board between batches. So do snapshots and compaction
+    of z axis, which take the same write lock as the batches do.
+
+    A failure of a change fails only its own future. Anything else the writer thread throws, such as an Error,
+    leaves the board in an unknown state, so the writer stops: the futures of the batch and of the commands
+    published after it fail, and so does every later change.
+
+    Futures are completed by the writer thread, so dependent stages should be attached with the async methods
+    of CompletableFuture, otherwise they run on the writer thread and hold up the following batches.
+ */
+public class WidgetSingleWriterRepository implements WidgetRepository, Closeable {
+    public static final int DEFAULT_RING_SIZE = 1024;
+
+    private final WidgetInMemoryRepository repository;
+    private final Command[] ring;
+    private final int ringMask;
+    // Sequence of every slot as of the latest publication to it, so the writer can tell published slots from claimed ones
+    private final AtomicLongArray publishedSequences;
+    private final AtomicLong claimedSequence;
+    // Written by the writer thread only
+    private volatile long appliedSequence;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+    // Set once by the writer thread when it stops, after the failure it has stopped on if there was one
+    private volatile boolean writerStopped;
+    private volatile Throwable writerFailure;
+    private final Thread writer;
+
+    public WidgetSingleWriterRepository(@NotNull WidgetInMemoryRepository repository, int ringSize) {
+        if (ringSize <= 0 || Integer.bitCount(ringSize) != 1) {
+            throw new IllegalArgumentException("Ring size should be a power of two");
+        }
+
+        this.repository = repository;
+        this.ring = new Command[ringSize];
+        for (int i = 0; i < ringSize; i++) {
+            ring[i] = new Command();
+        }
+        this.ringMask = ringSize - 1;
+        this.publishedSequences = new AtomicLongArray(ringSize);
+        for (int i = 0; i < ringSize; i++) {
+            publishedSequences.set(i, -1);
+        }
+        this.claimedSequence = new AtomicLong(-1);
+        this.appliedSequence = -1;
+        this.writer = new Thread(this::applyCommands, "widget-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public WidgetSingleWriterRepository() {
+        this(new WidgetInMemoryRepository(), DEFAULT_RING_SIZE);
+    }
+
+    /*
+        In-memory repository the writer thread applies changes to, for snapshots and compaction
+     */
+    public WidgetInMemoryRepository getInMemoryRepository() {
+        return repository;
+    }
+
+    /*
+        Changes made by the function are applied by the writer thread as a single command of its batch
+     */
+    @Override
+    public <T> CompletableFuture<T> writeAsync(@NotNull Function<WidgetRepository, T> change) {
+        return publish(change::apply);
+    }
+
+    @Override
+    public Optional<ImmutableWidget> get(UUID widgetId) {
+        return repository.get(widgetId);
+    }
+
+    @Override
+    public List<ImmutableWidget> getPage(int limit, long offset) {
+        return repository.getPage(limit, offset);
+    }
+
+    @Override
+    public List<ImmutableWidget> getPageAfter(Integer zCursor, int limit) {
+        return repository.getPageAfter(zCursor, limit);
+    }
+
+    @Override
+    public WidgetScanPage startScan(int limit, long offset) {
+        return repository.startScan(limit, offset);
+    }
+
+    @Override
+    public WidgetScanPage startScanAfter(Integer zCursor, int limit) {
+        return repository.startScanAfter(zCursor, limit);
+    }
+
+    @Override
+    public List<ImmutableWidget> getSnapshotPage(long snapshotVersion, int limit, long offset) {
+        return repository.getSnapshotPage(snapshotVersion, limit, offset);
+    }
+
+    @Override
+    public List<ImmutableWidget> getSnapshotPageAfter(long snapshotVersion, Integer zCursor, int limit) {
+        return repository.getSnapshotPageAfter(snapshotVersion, zCursor, limit);
+    }
+
+    @Override
+    public Optional<Long> getRank(UUID widgetId) {
+        return repository.getRank(widgetId);
+    }
+
+    @Override
+    public List<ImmutableWidget> findInArea(int x1, int y1, int x2, int y2, int limit) {
+        return repository.findInArea(x1, y1, x2, y2, limit);
+    }
+
+    @Override
+    public Optional<ImmutableWidget> findTopmostAt(int x, int y) {
+        return repository.findTopmostAt(x, y);
+    }
+
+    @Override
+    public List<ImmutableWidget> findAllAt(int x, int y) {
+        return repository.findAllAt(x, y);
+    }
+
+    @Override
+    public ImmutableWidget create(WidgetChangeSet changeSet) {
+        return join(createAsync(changeSet));
+    }
+
+    @Override
+    public ImmutableWidget update(UUID widgetId, WidgetChangeSet changeSet) {
+        return join(updateAsync(widgetId, changeSet));
+    }
+
+    @Override
+    public ImmutableWidget compareAndUpdate(UUID widgetId, long expectedVersion, WidgetChangeSet changeSet) {
+        return join(compareAndUpdateAsync(widgetId, expectedVersion, changeSet));
+    }
+
+    @Override
+    public void delete(UUID widgetId) {
+        join(deleteAsync(widgetId));
+    }
+
+    @Override
+    public List<ImmutableWidget> createAll(List<WidgetChangeSet> changeSets) {
+        return join(publish(repository -> repository.createAll(changeSets)));
+    }
+
+    @Override
+    public List<ImmutableWidget> updateAll(Map<UUID, WidgetChangeSet> changeSets) {
+        return join(publish(repository -> repository.updateAll(changeSets)));
+    }
+
+    @Override
+    public void deleteAll(Collection<UUID> widgetIds) {
+        join(publish(repository -> {
+            repository.deleteAll(widgetIds);
+            return null;
+        }));
+    }
+
+    @Override
+    public void exportAll(Consumer<ImmutableWidget> consumer) {
+        repository.exportAll(consumer);
+    }
+
+    /*
+        Change sets are read by the writer thread, so a lazy stream of them must not depend on the caller's thread
+     */
+    @Override
+    public int importAll(Stream<WidgetChangeSet> changeSets) {
+        return join(publish(repository -> repository.importAll(changeSets)));
+    }
+
+    @Override
+    public WidgetChangeFeed getChangeFeed() {
+        return repository.getChangeFeed();
+    }
+
+    @Override
+    public int getSize() {
+        return repository.getSize();
+    }
+
+    @Override
+    public void bindTo(@NotNull MeterRegistry registry) {
+        repository.bindTo(registry);
+    }
+
+    @Override
+    public void clear() {
+        join(publish(repository -> {
+            repository.clear();
+            return null;
+        }));
+    }
+
+    /*
+        Applies the commands published so far, then stops the writer thread and closes the in-memory repository
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        repository.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> publish(Function<WidgetInMemoryRepository, T> change) {
+        if (closed) {
+            throw new IllegalStateException("Repository is closed");
+        }
+        checkWriter();
+
+        long sequence = claimedSequence.incrementAndGet();
+        // Ring is full - wait for the writer to apply the command that took the slot a lap ago
+        while (sequence - appliedSequence > ring.length) {
+            checkWriter();
+            LockSupport.parkNanos(1_000);
+        }
+
+        int slot = (int) (sequence & ringMask);
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Command command = ring[slot];
+        command.change = (Function<WidgetInMemoryRepository, Object>) change;
+        command.result = (CompletableFuture<Object>) result;
+        publishedSequences.set(slot, sequence);
+
+        // Writer fails the commands it sees published after it stopped, so either it fails this one or we do
+        if (writerStopped) {
+            result.completeExceptionally(getWriterStoppedException());
+            return result;
+        }
+
+        // Writer checks the ring once again after raising the flag, so either it sees the command or we see the flag
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+        return result;
+    }
+
+    private void applyCommands() {
+        long nextSequence = 0;
+        try {
+            while (true) {
+                long lastSequence = getLastPublishedSequence(nextSequence);
+                if (lastSequence < nextSequence) {
+                    // Claimed commands are published shortly, so the writer stops only once all of them are applied
+                    if (closed && claimedSequence.get() < nextSequence) {
+                        stop(nextSequence, null);
+                        return;
+                    }
+
+                    writerParked = true;
+                    if (getLastPublishedSequence(nextSequence) < nextSequence && !closed) {
+                        LockSupport.park(this);
+                    }
+                    writerParked = false;
+                    continue;
+                }
+
+                applyBatch(nextSequence, lastSequence);
+                nextSequence = lastSequence + 1;
+            }
+        } catch (Throwable e) {
+            stop(nextSequence, e);
+        }
+    }
+
+    /*
+        Fails every command from the one the writer stopped at. Publishers check whether the writer has stopped
+        after publishing, so those the writer misses here, such as the ones that passed the check of closed
+        just before the writer stopped, fail their commands themselves.
+     */
+    private void stop(long nextSequence, Throwable failure) {
+        writerFailure = failure;
+        writerStopped = true;
+        RuntimeException stoppedException = getWriterStoppedException();
+        long claimed = claimedSequence.get();
+        for (long sequence = nextSequence; sequence <= claimed && sequence - nextSequence < ring.length; sequence++) {
+            int slot = (int) (sequence & ringMask);
+            if (publishedSequences.get(slot) == sequence) {
+                ring[slot].fail(stoppedException);
+            }
+        }
+    }
+
+    private void checkWriter() {
+        if (writerStopped) {
+            throw getWriterStoppedException();
+        }
+    }
+
+    private RuntimeException getWriterStoppedException() {
+        Throwable writerFailure = this.writerFailure;
+        return writerFailure == null
+                ? new IllegalStateException("Repository is closed")
+                : new IllegalStateException("Writer thread has stopped on a failure", writerFailure);
+    }
+
+    private void applyBatch(long firstSequence, long lastSequence) {
+        RuntimeException batchFailure = null;
+        try {
+            repository.writeExclusively(() -> {
+                for (long sequence = firstSequence; sequence <= lastSequence; sequence++) {
+                    ring[(int) (sequence & ringMask)].apply(repository);
+                }
+            });
+        } catch (RuntimeException e) {
+            // Failures of commands are caught one by one, so this is the disk failing to make the batch durable
+            batchFailure = e;
+        }
+
+        for (long sequence = firstSequence; sequence <= lastSequence; sequence++) {
+            ring[(int) (sequence & ringMask)].complete(batchFailure);
+        }
+        appliedSequence = lastSequence;
+    }
+
+    /*
+        Commands are published in any order, so the batch ends right before the first slot that is not published yet
+     */
+    private long getLastPublishedSequence(long nextSequence) {
+        long lastSequence = nextSequence - 1;
+        long claimed = claimedSequence.get();
+        while (lastSequence < claimed
+                && lastSequence - nextSequence + 1 < ring.length
+                && publishedSequences.get((int) ((lastSequence + 1) & ringMask)) == lastSequence + 1) {
+            lastSequence++;
+        }
+        return lastSequence;
+    }
+
+    private static <T> T join(CompletableFuture<T> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            // Rethrow the failure of the change itself, so callers handle it as they would without the writer thread
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /*
+        Slot of the ring, reused by every lap. Fields are published to the writer by the sequence of the slot,
+        and released back to the publishers by the applied sequence.
+     */
+    private static final class Command {
+        private Function<WidgetInMemoryRepository, Object> change;
+        private CompletableFuture<Object> result;
+        private Object value;
+        private RuntimeException failure;
+
+        private void apply(WidgetInMemoryRepository repository) {
+            try {
+                value = change.apply(repository);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+        }
+
+        /*
+            Commands of the batch the writer stopped at may be completed already
+         */
+        private void fail(RuntimeException failure) {
+            CompletableFuture<Object> result = this.result;
+            if (result != null) {
+                result.completeExceptionally(failure);
+            }
+        }
+
+        private void complete(RuntimeException batchFailure) {
+            CompletableFuture<Object> result = this.result;
+            RuntimeException failure = batchFailure != null ? batchFailure : this.failure;
+            Object value = this.value;
+            change = null;
+            this.result = null;
+            this.value = null;
+            this.failure = null;
+
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.Widget;
+
+import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import static com.azaitsev.widgets.repository.widget.WidgetColumnarRepository.fromEpochNanos;
+import static com.azaitsev.widgets.repository.widget.WidgetColumnarRepository.toEpochNanos;
+
+/*
+    Point-in-time copy of an in-memory board, kept column by column in primitive arrays in z order.
+
+    Copying primitives is the only part that has to be done under the repository lock, serialization goes
+    without it. File mirrors the arrays - a header followed by the columns one after another and CRC32 of
+    everything before it - so both writing and reading are bulk copies, and restore builds z axis index
+    from sorted input in O(n) instead of putting widgets one by one.
+
+    Header also keeps the epoch and the sequence of the change feed the snapshot was taken at, so a board
+    that is written out and loaded back unchanged may go on with the same board versions.
+ */
+public final class WidgetSnapshot {
+    private static final int MAGIC = 0x57494453;
+    private static final int FORMAT_VERSION = 3;
+    private static final int HEADER_SIZE = 40;
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final long logPosition;
+    private final long changeEpoch;
+    private final long changeSequence;
+    private final int size;
+    private final long[] idMostSignificantBits;
+    private final long[] idLeastSignificantBits;
+    private final int[] x;
+    // Change set doesn't require Y coordinate, so its presence is kept aside
+    private final byte[] yPresence;
+    private final int[] y;
+    private final int[] z;
+    private final int[] height;
+    private final int[] width;
+    private final long[] lastModificationEpochNanos;
+    private final long[] versions;
+
+    WidgetSnapshot(int size, long logPosition, long changeEpoch, long changeSequence) {
+        this.logPosition = logPosition;
+        this.changeEpoch = changeEpoch;
+        this.changeSequence = changeSequence;
+        this.size = size;
+        idMostSignificantBits = new long[size];
+        idLeastSignificantBits = new long[size];
+        x = new int[size];
+        yPresence = new byte[size];
+        y = new int[size];
+        z = new int[size];
+        height = new int[size];
+        width = new int[size];
+        lastModificationEpochNanos = new long[size];
+        versions = new long[size];
+    }
+
+    /*
+        Position of the write-ahead log the snapshot was taken at, records below it are already in the snapshot
+     */
+    public long getLogPosition() {
+        return logPosition;
+    }
+
+    /*
+        Epoch of the change feed of the board the snapshot was taken from
+     */
+    public long getChangeEpoch() {
+        return changeEpoch;
+    }
+
+    /*
+        Sequence of the latest change of the board that is in the snapshot
+     */
+    public long getChangeSequence() {
+        return changeSequence;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /*
+        Widgets are expected to be set in z order
+     */
+    void set(int position, Widget widget, int actualZ) {
+        idMostSignificantBits[position] = widget.getId().getMostSignificantBits();
+        idLeastSignificantBits[position] = widget.getId().getLeastSignificantBits();
+        x[position] = widget.getX();
+        yPresence[position] = (byte) (widget.getY() == null ? 0 : 1);
+        y[position] = widget.getY() == null ? 0 : widget.getY();
+        z[position] = actualZ;
+        height[position] = widget.getHeight();
+        width[position] = widget.getWidth();
+        lastModificationEpochNanos[position] = toEpochNanos(widget.getLastModificationDate());
+        versions[position] = widget.getVersion();
+    }
+
+    Widget getWidget(int position) {
+        return new Widget(
+                getWidgetId(position),
+                x[position],
+                yPresence[position] == 0 ? null : y[position],
+                z[position],
+                height[position],
+                width[position],
+                fromEpochNanos(lastModificationEpochNanos[position]),
+                versions[position]
+        );
+    }
+
+    UUID getWidgetId(int position) {
+        return new UUID(idMostSignificantBits[position], idLeastSignificantBits[position]);
+    }
+
+    int[] getZAxisIndexes() {
+        return z;
+    }
+
+    /*
+        Writes the snapshot next to the file and atomically replaces the file with it,
+        so the previous snapshot stays intact until the new one is durable
+     */
+    public void writeTo(@NotNull Path file) throws IOException {
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(
+                temporaryFile,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+        )) {
+            ColumnWriter writer = new ColumnWriter(channel);
+            writer.putInt(MAGIC);
+            writer.putInt(FORMAT_VERSION);
+            writer.putLong(logPosition);
+            writer.putInt(size);
+            writer.putInt(0);
+            writer.putLong(changeEpoch);
+            writer.putLong(changeSequence);
+
+            writer.putLongs(idMostSignificantBits);
+            writer.putLongs(idLeastSignificantBits);
+            writer.putInts(x);
+            writer.putBytes(yPresence);
+            writer.putInts(y);
+            writer.putInts(z);
+            writer.putInts(height);
+            writer.putInts(width);
+            writer.putLongs(lastModificationEpochNanos);
+            writer.putLongs(versions);
+            writer.finish();
+
+            channel.force(false);
+        }
+        Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public static WidgetSnapshot readFrom(@NotNull Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ColumnReader reader = new ColumnReader(channel, file);
+            if (reader.getInt() != MAGIC) {
+                throw new IOException(file + " is not a widgets snapshot");
+            }
+
+            int version = reader.getInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException(file + " has unsupported format version " + version);
+            }
+
+            long logPosition = reader.getLong();
+            int size = reader.getInt();
+            reader.getInt();
+            long changeEpoch = reader.getLong();
+            long changeSequence = reader.getLong();
+
+            WidgetSnapshot snapshot = new WidgetSnapshot(size, logPosition, changeEpoch, changeSequence);
+            reader.getLongs(snapshot.idMostSignificantBits);
+            reader.getLongs(snapshot.idLeastSignificantBits);
+            reader.getInts(snapshot.x);
+            reader.getBytes(snapshot.yPresence);
+            reader.getInts(snapshot.y);
+            reader.getInts(snapshot.z);
+            reader.getInts(snapshot.height);
+            reader.getInts(snapshot.width);
+            reader.getLongs(snapshot.lastModificationEpochNanos);
+            reader.getLongs(snapshot.versions);
+            reader.verifyChecksum();
+
+            return snapshot;
+        }
+    }
+
+    /*
+        Writes columns through a fixed buffer, keeping CRC32 of everything written
+     */
+    private static final class ColumnWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final CRC32 checksum;
+
+        private ColumnWriter(FileChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            this.checksum = new CRC32();
+        }
+
+        private void putInt(int value) throws IOException {
+            ensureRemaining(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        private void putLong(long value) throws IOException {
+            ensureRemaining(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        private void putInts(int[] values) throws IOException {
+            for (int offset = 0; offset < values.length; ) {
+                ensureRemaining(Integer.BYTES);
+                int count = Math.min(values.length - offset, buffer.remaining() / Integer.BYTES);
+                buffer.asIntBuffer().put(values, offset, count);
+                buffer.position(buffer.position() + count * Integer.BYTES);
+                offset += count;
+            }
+        }
+
+        private void putLongs(long[] values) throws IOException {
+            for (int offset = 0; offset < values.length; ) {
+                ensureRemaining(Long.BYTES);
+                int count = Math.min(values.length - offset, buffer.remaining() / Long.BYTES);
+                buffer.asLongBuffer().put(values, offset, count);
+                buffer.position(buffer.position() + count * Long.BYTES);
+                offset += count;
+            }
+        }
+
+        private void putBytes(byte[] values) throws IOException {
+            for (int offset = 0; offset < values.length; ) {
+                ensureRemaining(1);
+                int count = Math.min(values.length - offset, buffer.remaining());
+                buffer.put(values, offset, count);
+                offset += count;
+            }
+        }
+
+        private void finish() throws IOException {
+            flush();
+            buffer.putLong(checksum.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        private void ensureRemaining(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            checksum.update(buffer.array(), 0, buffer.limit());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /*
+        Reads columns through a fixed buffer, keeping CRC32 of everything read
+     */
+    private static final class ColumnReader {
+        private final FileChannel channel;
+        private final Path file;
+        private final ByteBuffer buffer;
+        private final CRC32 checksum;
+
+        private ColumnReader(FileChannel channel, Path file) {
+            this.channel = channel;
+            this.file = file;
+            this.buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            this.buffer.flip();
+            this.checksum = new CRC32();
+        }
+
+        private int getInt() throws IOException {
+            ensureAvailable(Integer.BYTES);
+            return buffer.getInt();
+        }
+
+        private long getLong() throws IOException {
+            ensureAvailable(Long.BYTES);
+            return buffer.getLong();
+        }
+
+        private void getInts(int[] values) throws IOException {
+            for (int offset = 0; offset < values.length; ) {
+                ensureAvailable(Integer.BYTES);
+                int count = Math.min(values.length - offset, buffer.remaining() / Integer.BYTES);
+                buffer.asIntBuffer().get(values, offset, count);
+                buffer.position(buffer.position() + count * Integer.BYTES);
+                offset += count;
+            }
+        }
+
+        private void getLongs(long[] values) throws IOException {
+            for (int offset = 0; offset < values.length; ) {
+                ensureAvailable(Long.BYTES);
+                int count = Math.min(values.length - offset, buffer.remaining() / Long.BYTES);
+                buffer.asLongBuffer().get(values, offset, count);
+                buffer.position(buffer.position() + count * Long.BYTES);
+                offset += count;
+            }
+        }
+
+        private void getBytes(byte[] values) throws IOException {
+            for (int offset = 0; offset < values.length; ) {
+                ensureAvailable(1);
+                int count = Math.min(values.length - offset, buffer.remaining());
+                buffer.get(values, offset, count);
+                offset += count;
+            }
+        }
+
+        private void verifyChecksum() throws IOException {
+            // Bytes that are still in the buffer are not covered by the checksum yet
+            checksum.update(buffer.array(), 0, buffer.position());
+            long expectedChecksum = getTrailingLong();
+            if (expectedChecksum != checksum.getValue()) {
+                throw new IOException(file + " is corrupted");
+            }
+        }
+
+        private long getTrailingLong() throws IOException {
+            if (buffer.remaining() < Long.BYTES) {
+                buffer.compact();
+                while (buffer.position() < Long.BYTES) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException(file + " is truncated");
+                    }
+                }
+                buffer.flip();
+            }
+            return buffer.getLong();
+        }
+
+        /*
+            Refills the buffer once it has less than the specified number of bytes,
+            bytes that were consumed so far go to the checksum
+         */
+        private void ensureAvailable(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+
+            checksum.update(buffer.array(), 0, buffer.position());
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException(file + " is truncated");
+                }
+            }
+            buffer.flip();
+        }
+    }
+}
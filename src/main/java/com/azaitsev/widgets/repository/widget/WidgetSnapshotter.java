@@ -0,0 +1,91 @@
+package com.azaitsev.widgets.repository.widget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.validation.constraints.NotNull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Periodically snapshots the in-memory board to a file and drops the covered part of the write-ahead log,
+    so that startup restores the snapshot and replays only a short tail of the log.
+    Snapshots are serialized on its own thread, the repository is locked only while the board is copied.
+ */
+public class WidgetSnapshotter implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(WidgetSnapshotter.class);
+
+    private final WidgetInMemoryRepository repository;
+    private final Path file;
+    private final ScheduledExecutorService scheduler;
+
+    public WidgetSnapshotter(
+            @NotNull WidgetInMemoryRepository repository,
+            @NotNull Path file,
+            @NotNull Duration interval
+    ) {
+        if (interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("Snapshot interval should be positive");
+        }
+
+        this.repository = repository;
+        this.file = file;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "widget-snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(
+                this::takeScheduledSnapshot,
+                interval.toMillis(),
+                interval.toMillis(),
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    /*
+        Takes a snapshot right away, on the calling thread
+     */
+    public synchronized WidgetSnapshot takeSnapshot() throws IOException {
+        WidgetSnapshot snapshot = repository.takeSnapshot();
+        snapshot.writeTo(file);
+        repository.truncateWriteAheadLog(snapshot);
+        return snapshot;
+    }
+
+    /*
+        Lets the snapshot that is being taken complete, interrupting it would leave nothing but a temporary file
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            scheduler.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void takeScheduledSnapshot() {
+        // Failure must not cancel the next runs, so it is only reported
+        try {
+            long startNanos = System.nanoTime();
+            WidgetSnapshot snapshot = takeSnapshot();
+            logger.info(
+                    "Snapshot of {} widgets is taken in {} ms",
+                    snapshot.getSize(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+            );
+        } catch (IOException | RuntimeException e) {
+            logger.error("Failed to take snapshot of widgets", e);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.azaitsev.widgets.repository.widget;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/*
+    Widget id -> rectangle index answering which widgets overlap an area.
+
+    It is a hierarchical grid: level k is a grid of square cells with side 2^k, and a widget goes to the level
+    where its bigger side fits into a cell, to the cell that holds its lower left corner. So every widget is kept
+    exactly once, and a widget may stick out of its cell only into the next cells up and right - a query visits
+    cells overlapping the area plus one extra row and column below and to the left of it on every level.
+    Levels that are empty are skipped, and a level with fewer widgets than cells to visit is scanned as a whole,
+    so a query costs about the number of widgets around the area rather than the size of the board.
+
+    Widget (x, y) is its center, so coordinates are doubled internally to keep bounds of odd sized widgets integer.
+
+    Not thread safe - callers are expected to guard it with their own lock.
+ */
+final class WidgetSpatialIndex {
+    // Cells smaller than 16x16 would only add levels to visit
+    private static final int MIN_LEVEL = 5;
+    // Doubled side of a widget is below 2^32
+    private static final int LEVELS_COUNT = 33;
+
+    private static final class Entry {
+        private final UUID widgetId;
+        private final int level;
+        private final long minX;
+        private final long minY;
+        private final long maxX;
+        private final long maxY;
+
+        private Entry(UUID widgetId, int level, long minX, long minY, long maxX, long maxY) {
+            this.widgetId = widgetId;
+            this.level = level;
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+        }
+
+        private boolean overlaps(long areaMinX, long areaMinY, long areaMaxX, long areaMaxY) {
+            return minX <= areaMaxX && maxX >= areaMinX && minY <= areaMaxY && maxY >= areaMinY;
+        }
+    }
+
+    private final Map<UUID, Entry> entries = new HashMap<>();
+    // Cell key -> widgets whose lower left corner lies in the cell, one map per level
+    @SuppressWarnings("unchecked")
+    private final Map<Long, List<Entry>>[] levels = new Map[LEVELS_COUNT];
+    private final int[] levelSizes = new int[LEVELS_COUNT];
+
+    int size() {
+        return entries.size();
+    }
+
+    /*
+        Puts the widget into the index or moves it if it is there already
+     */
+    void put(UUID widgetId, int x, int y, int width, int height) {
+        remove(widgetId);
+
+        long minX = 2L * x - width;
+        long minY = 2L * y - height;
+        long side = Math.max(2L, 2L * Math.max(width, height));
+        int level = Math.max(MIN_LEVEL, 64 - Long.numberOfLeadingZeros(side - 1));
+
+        Entry entry = new Entry(widgetId, level, minX, minY, 2L * x + width, 2L * y + height);
+        entries.put(widgetId, entry);
+
+        if (levels[level] == null) {
+            levels[level] = new HashMap<>();
+        }
+        levels[level].computeIfAbsent(cellKey(minX >> level, minY >> level), key -> new ArrayList<>(2)).add(entry);
+        levelSizes[level]++;
+    }
+
+    void remove(UUID widgetId) {
+        Entry entry = entries.remove(widgetId);
+        if (entry == null) {
+            return;
+        }
+
+        int level = entry.level;
+        Long key = cellKey(entry.minX >> level, entry.minY >> level);
+        List<Entry> cell = levels[level].get(key);
+        // Cells are small, so a linear search with swap-remove beats a set per cell
+        int index = cell.indexOf(entry);
+        cell.set(index, cell.get(cell.size() - 1));
+        cell.remove(cell.size() - 1);
+        if (cell.isEmpty()) {
+            levels[level].remove(key);
+        }
+        levelSizes[level]--;
+    }
+
+    void clear() {
+        entries.clear();
+        for (int level = 0; level < LEVELS_COUNT; level++) {
+            levels[level] = null;
+            levelSizes[level] = 0;
+        }
+    }
+
+    /*
+        Visits ids of widgets that overlap the area, touching its border counts. Order is not defined.
+     */
+    void forEachInArea(int x1, int y1, int x2, int y2, Consumer<UUID> consumer) {
+        long areaMinX = 2L * x1;
+        long areaMinY = 2L * y1;
+        long areaMaxX = 2L * x2;
+        long areaMaxY = 2L * y2;
+
+        for (int level = MIN_LEVEL; level < LEVELS_COUNT; level++) {
+            if (levelSizes[level] == 0) {
+                continue;
+            }
+
+            long firstCellX = (areaMinX >> level) - 1;
+            long firstCellY = (areaMinY >> level) - 1;
+            long lastCellX = areaMaxX >> level;
+            long lastCellY = areaMaxY >> level;
+            long cellsCount = (lastCellX - firstCellX + 1) * (lastCellY - firstCellY + 1);
+
+            if (cellsCount > levelSizes[level]) {
+                for (List<Entry> cell : levels[level].values()) {
+                    visitOverlapping(cell, areaMinX, areaMinY, areaMaxX, areaMaxY, consumer);
+                }
+                continue;
+            }
+
+            for (long cellX = firstCellX; cellX <= lastCellX; cellX++) {
+                for (long cellY = firstCellY; cellY <= lastCellY; cellY++) {
+                    List<Entry> cell = levels[level].get(cellKey(cellX, cellY));
+                    if (cell != null) {
+                        visitOverlapping(cell, areaMinX, areaMinY, areaMaxX, areaMaxY, consumer);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void visitOverlapping(
+            List<Entry> cell,
+            long areaMinX,
+            long areaMinY,
+            long areaMaxX,
+            long areaMaxY,
+            Consumer<UUID> consumer
+    ) {
+        for (Entry entry : cell) {
+            if (entry.overlaps(areaMinX, areaMinY, areaMaxX, areaMaxY)) {
+                consumer.accept(entry.widgetId);
+            }
+        }
+    }
+
+    private static Long cellKey(long cellX, long cellY) {
+        // Cell coordinates fit into int on every level
+        return (cellX << 32) | (cellY & 0xffffffffL);
+    }
+}
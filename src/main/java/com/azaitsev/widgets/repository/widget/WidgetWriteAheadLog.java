@@ -0,0 +1,463 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.Widget;
+
+import javax.validation.constraints.NotNull;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.azaitsev.widgets.repository.widget.WidgetColumnarRepository.fromEpochNanos;
+import static com.azaitsev.widgets.repository.widget.WidgetColumnarRepository.toEpochNanos;
+
+/*
+    Append-only log of repository mutations, so an in-memory board survives a crash.
+
+    Log starts with a header that holds the log position of its first record - records covered by a snapshot
+    are dropped from the head of the log, while positions keep growing, so snapshots can refer to them.
+    Every record is framed as
+        payload length | CRC32 of payload | payload
+    and payload is one of
+        PUT    - resulting state of a created or updated widget and the number of widgets its z index shifted
+        DELETE - id of a deleted widget
+        CLEAR  - nothing
+    A record that was only partially written when the process died fails its CRC and is cut off on replay.
+
+    Appending only writes the record to the page cache. Writers wait for durability separately, after they have
+    released the repository lock, and share fsyncs through group commit: the first waiter becomes the leader,
+    waits for the commit window to let others append, and forces everything appended so far at once.
+    Waiters that came during the force are covered by the next one.
+ */
+public class WidgetWriteAheadLog implements Closeable {
+    private static final int MAGIC = 0x5749444c;
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte CLEAR = 3;
+
+    private static final byte Y_IS_NULL = 0;
+    private static final byte Y_IS_PRESENT = 1;
+
+    private static final int FRAME_HEADER_SIZE = 8;
+    private static final int MAX_PAYLOAD_SIZE = 64;
+
+    interface Replayer {
+        void put(Widget widget, int shiftedWidgetsCount);
+
+        void delete(UUID widgetId);
+
+        void clear();
+    }
+
+    private final Path file;
+    private final long commitWindowNanos;
+    // Replaced only when the head of the log is dropped, holding both locks
+    private FileChannel channel;
+    // Log position of the first byte after the header
+    private long startPosition;
+
+    private final Lock appendLock;
+    private final ByteBuffer recordBuffer;
+    private final CRC32 checksum;
+    private volatile long appendedPosition;
+
+    private final Lock forceLock;
+    private final Condition forceCompleted;
+    private boolean forcing;
+    private long durablePosition;
+    private long forcesCount;
+
+    // Once the log has failed, memory may be ahead of it, so nothing else is accepted until restart
+    private volatile IOException failure;
+
+    public WidgetWriteAheadLog(@NotNull Path file, @NotNull Duration commitWindow) throws IOException {
+        if (commitWindow.isNegative()) {
+            throw new IllegalArgumentException("Commit window should not be negative");
+        }
+
+        this.file = file;
+        this.channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        );
+        this.commitWindowNanos = commitWindow.toNanos();
+        this.appendLock = new ReentrantLock();
+        this.recordBuffer = ByteBuffer.allocate(FRAME_HEADER_SIZE + MAX_PAYLOAD_SIZE);
+        this.checksum = new CRC32();
+        this.forceLock = new ReentrantLock();
+        this.forceCompleted = forceLock.newCondition();
+    }
+
+    /*
+        Feeds records of the log starting from the specified position to the replayer
+        and cuts off the torn tail, if there is one
+     */
+    void replay(long fromPosition, Replayer replayer) throws IOException {
+        appendLock.lock();
+        try {
+            if (channel.size() == 0) {
+                writeHeader(channel, 0);
+            }
+            startPosition = readStartPosition();
+            if (fromPosition < startPosition) {
+                throw new IllegalStateException(
+                        "Write-ahead log starts at " + startPosition + ", records from " + fromPosition + " are lost"
+                );
+            }
+
+            long validPosition = startPosition;
+            channel.position(HEADER_SIZE);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            byte[] payload = new byte[MAX_PAYLOAD_SIZE];
+            while (true) {
+                int payloadSize;
+                long expectedChecksum;
+                try {
+                    payloadSize = input.readInt();
+                    expectedChecksum = Integer.toUnsignedLong(input.readInt());
+                    if (payloadSize < 1 || payloadSize > MAX_PAYLOAD_SIZE) {
+                        break;
+                    }
+                    input.readFully(payload, 0, payloadSize);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                checksum.reset();
+                checksum.update(payload, 0, payloadSize);
+                if (checksum.getValue() != expectedChecksum) {
+                    break;
+                }
+
+                // Records that are already in the snapshot are skipped
+                if (validPosition >= fromPosition) {
+                    replayRecord(ByteBuffer.wrap(payload, 0, payloadSize), replayer);
+                }
+                validPosition += FRAME_HEADER_SIZE + payloadSize;
+            }
+
+            channel.truncate(toFileOffset(validPosition));
+            appendedPosition = validPosition;
+            durablePosition = validPosition;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /*
+        Position the next record will be appended at
+     */
+    long getAppendedPosition() {
+        return appendedPosition;
+    }
+
+    /*
+        Drops records lying below the specified position, once they are covered by a durable snapshot.
+        Records above it are copied to a new log, which atomically replaces the current one.
+     */
+    void truncateBefore(long position) throws IOException {
+        appendLock.lock();
+        forceLock.lock();
+        try {
+            // Force in progress uses the current channel, so wait for it to complete before replacing the channel
+            while (forcing) {
+                forceCompleted.awaitUninterruptibly();
+            }
+
+            if (failure != null) {
+                throw new UncheckedIOException("Write-ahead log has failed", failure);
+            }
+
+            if (position <= startPosition) {
+                return;
+            }
+
+            if (position > appendedPosition) {
+                throw new IllegalArgumentException("Position " + position + " is above the end of the log");
+            }
+
+            Path truncatedFile = file.resolveSibling(file.getFileName() + ".tmp");
+            FileChannel truncatedChannel = FileChannel.open(
+                    truncatedFile,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE
+            );
+            try {
+                writeHeader(truncatedChannel, position);
+                long offset = toFileOffset(position);
+                long end = toFileOffset(appendedPosition);
+                while (offset < end) {
+                    offset += channel.transferTo(offset, end - offset, truncatedChannel);
+                }
+                truncatedChannel.force(false);
+                Files.move(truncatedFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException | RuntimeException e) {
+                truncatedChannel.close();
+                throw e;
+            }
+
+            // Everything that was appended is in the new log, which is already forced
+            channel.close();
+            channel = truncatedChannel;
+            startPosition = position;
+            durablePosition = appendedPosition;
+            forceCompleted.signalAll();
+        } finally {
+            forceLock.unlock();
+            appendLock.unlock();
+        }
+    }
+
+    /*
+        Appends a record and returns the position the log has to be durable up to for the record to survive a crash
+     */
+    long appendPut(ImmutableWidget widget, int shiftedWidgetsCount) {
+        appendLock.lock();
+        try {
+            ByteBuffer payload = startRecord();
+            payload.put(PUT);
+            payload.putLong(widget.getId().getMostSignificantBits());
+            payload.putLong(widget.getId().getLeastSignificantBits());
+            payload.putInt(widget.getX());
+            if (widget.getY() == null) {
+                payload.put(Y_IS_NULL);
+                payload.putInt(0);
+            } else {
+                payload.put(Y_IS_PRESENT);
+                payload.putInt(widget.getY());
+            }
+            payload.putInt(widget.getZ());
+            payload.putInt(widget.getHeight());
+            payload.putInt(widget.getWidth());
+            payload.putLong(toEpochNanos(widget.getLastModificationDate()));
+            payload.putLong(widget.getVersion());
+            payload.putInt(shiftedWidgetsCount);
+            return finishRecord();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    long appendDelete(UUID widgetId) {
+        appendLock.lock();
+        try {
+            ByteBuffer payload = startRecord();
+            payload.put(DELETE);
+            payload.putLong(widgetId.getMostSignificantBits());
+            payload.putLong(widgetId.getLeastSignificantBits());
+            return finishRecord();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    long appendClear() {
+        appendLock.lock();
+        try {
+            startRecord().put(CLEAR);
+            return finishRecord();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /*
+        Blocks until everything appended up to the specified position is on the disk
+     */
+    void awaitDurable(long position) {
+        forceLock.lock();
+        try {
+            while (durablePosition < position) {
+                if (failure != null) {
+                    throw new UncheckedIOException("Write-ahead log has failed", failure);
+                }
+
+                if (forcing) {
+                    forceCompleted.awaitUninterruptibly();
+                } else {
+                    forceAsLeader();
+                }
+            }
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    long getForcesCount() {
+        forceLock.lock();
+        try {
+            return forcesCount;
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        appendLock.lock();
+        try {
+            if (channel.isOpen()) {
+                channel.force(false);
+                channel.close();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /*
+        Must be called holding the force lock, which is released for the duration of the force
+        so that other writers may join the group
+     */
+    private void forceAsLeader() {
+        forcing = true;
+        forceLock.unlock();
+
+        long forcedPosition = 0;
+        IOException forceFailure = null;
+        try {
+            if (commitWindowNanos > 0) {
+                LockSupport.parkNanos(commitWindowNanos);
+            }
+            forcedPosition = appendedPosition;
+            channel.force(false);
+        } catch (IOException e) {
+            forceFailure = e;
+        } finally {
+            forceLock.lock();
+            forcing = false;
+            forceCompleted.signalAll();
+        }
+
+        if (forceFailure != null) {
+            failure = forceFailure;
+        } else {
+            durablePosition = Math.max(durablePosition, forcedPosition);
+            forcesCount++;
+        }
+    }
+
+    private ByteBuffer startRecord() {
+        if (failure != null) {
+            throw new UncheckedIOException("Write-ahead log has failed", failure);
+        }
+
+        recordBuffer.clear();
+        recordBuffer.position(FRAME_HEADER_SIZE);
+        return recordBuffer;
+    }
+
+    private long finishRecord() {
+        int payloadSize = recordBuffer.position() - FRAME_HEADER_SIZE;
+        checksum.reset();
+        checksum.update(recordBuffer.array(), FRAME_HEADER_SIZE, payloadSize);
+        recordBuffer.putInt(0, payloadSize);
+        recordBuffer.putInt(4, (int) checksum.getValue());
+        recordBuffer.flip();
+
+        long position = appendedPosition;
+        try {
+            while (recordBuffer.hasRemaining()) {
+                position += channel.write(recordBuffer, toFileOffset(position));
+            }
+        } catch (IOException e) {
+            failure = e;
+            throw new UncheckedIOException("Failed to append to write-ahead log", e);
+        }
+
+        appendedPosition = position;
+        return position;
+    }
+
+    private long toFileOffset(long position) {
+        return position - startPosition + HEADER_SIZE;
+    }
+
+    private long readStartPosition() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException(file + " is not a write-ahead log");
+            }
+        }
+        header.flip();
+
+        if (header.getInt() != MAGIC) {
+            throw new IOException(file + " is not a write-ahead log");
+        }
+
+        int version = header.getInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException(file + " has unsupported format version " + version);
+        }
+        return header.getLong();
+    }
+
+    private static void writeHeader(FileChannel targetChannel, long startPosition) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putLong(startPosition);
+        header.flip();
+        while (header.hasRemaining()) {
+            targetChannel.write(header, header.position());
+        }
+    }
+
+    private static void replayRecord(ByteBuffer payload, Replayer replayer) throws IOException {
+        byte type = payload.get();
+        switch (type) {
+            case PUT:
+                UUID widgetId = new UUID(payload.getLong(), payload.getLong());
+                int x = payload.getInt();
+                boolean isYPresent = payload.get() == Y_IS_PRESENT;
+                int y = payload.getInt();
+                replayer.put(
+                        new Widget(
+                                widgetId,
+                                x,
+                                isYPresent ? y : null,
+                                payload.getInt(),
+                                payload.getInt(),
+                                payload.getInt(),
+                                fromEpochNanos(payload.getLong()),
+                                payload.getLong()
+                        ),
+                        payload.getInt()
+                );
+                break;
+            case DELETE:
+                replayer.delete(new UUID(payload.getLong(), payload.getLong()));
+                break;
+            case CLEAR:
+                replayer.clear();
+                break;
+            default:
+                throw new IOException("Unknown write-ahead log record type " + type);
+        }
+    }
+}
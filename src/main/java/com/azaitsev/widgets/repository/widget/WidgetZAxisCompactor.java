@@ -0,0 +1,97 @@
+package com.azaitsev.widgets.repository.widget;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.validation.constraints.NotNull;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Periodically spreads z indexes of the in-memory board apart, see WidgetInMemoryRepository.compactZAxis.
+    Widgets created without z index land right above the topmost one, and shifts only push widgets up,
+    so z indexes drift into dense runs that make every insert into them shift the whole run.
+    Compaction leaves gaps that inserts take instead. A board that hasn't changed since the last pass is skipped.
+ */
+public class WidgetZAxisCompactor implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(WidgetZAxisCompactor.class);
+
+    private final WidgetInMemoryRepository repository;
+    private final int spacing;
+    private final int stepSize;
+    private final ScheduledExecutorService scheduler;
+    // Board version right after the last pass, touched by the scheduler thread only
+    private long compactedBoardVersion = -1;
+
+    public WidgetZAxisCompactor(
+            @NotNull WidgetInMemoryRepository repository,
+            int spacing,
+            int stepSize,
+            @NotNull Duration interval
+    ) {
+        if (interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("Compaction interval should be positive");
+        }
+
+        if (spacing < 2) {
+            throw new IllegalArgumentException("Spacing should be at least 2");
+        }
+
+        if (stepSize <= 0) {
+            throw new IllegalArgumentException("Step size should be positive");
+        }
+
+        this.repository = repository;
+        this.spacing = spacing;
+        this.stepSize = stepSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "widget-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(
+                this::compactScheduled,
+                interval.toMillis(),
+                interval.toMillis(),
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    /*
+        Stops after the step that is being applied, the board is in order after any of them
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void compactScheduled() {
+        // Failure must not cancel the next runs, so it is only reported
+        try {
+            if (repository.getChangeFeed().getLastSequence() == compactedBoardVersion) {
+                return;
+            }
+
+            long startNanos = System.nanoTime();
+            int renumberedWidgetsCount = repository.compactZAxis(spacing, stepSize);
+            compactedBoardVersion = repository.getChangeFeed().getLastSequence();
+            if (renumberedWidgetsCount > 0) {
+                logger.info(
+                        "Compaction renumbered {} widgets in {} ms",
+                        renumberedWidgetsCount,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+                );
+            }
+        } catch (RuntimeException e) {
+            logger.error("Failed to compact z indexes of widgets", e);
+        }
+    }
+}
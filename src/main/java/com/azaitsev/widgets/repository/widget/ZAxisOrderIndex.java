@@ -0,0 +1,719 @@
+package com.azaitsev.widgets.repository.widget;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.function.Function;
+
+/*
+    Ordered z index -> widget index, widgets are represented by values of any type that tells the widget id.
+    It is a treap where every node knows the size of its subtree, so besides the usual ordered map operations
+    it can tell the position of a z index (rank) and find the widget at a position (select) in O(log n).
+    That is what lets offset-based pages jump straight to the requested offset.
+
+    Shifting a contiguous run of z indexes is O(log n) as well: the run is cut out of the tree and only its root
+    gets the "+1", the rest of the run receives it lazily when the tree is restructured. Actual z index of a node
+    is its own z plus pending shifts of all its ancestors, so z indexes are resolved on the way down.
+
+    Because z indexes of widgets change without touching their nodes, a node can't be found by the z index
+    the widget was created with. Instead every node carries an order label - a number that is never changed
+    by shifts and that grows in the same direction as z indexes. Widget id -> label lookup plus a descent by label
+    gives the actual z index of a widget in O(log n).
+
+    The tree is persistent: nodes are never changed once they are linked into a tree, changes copy the path
+    to the nodes they touch and share the rest with the previous version. So every version of the tree stays
+    consistent as long as somebody holds its root, at the cost of O(log n) new nodes per change.
+    The writer publishes the version it has built once a change of the board is complete, and the published
+    version can be read without any lock.
+
+    Changes are not thread safe - callers are expected to guard them and reads of the working version
+    with their own lock. Read operations don't modify the tree, so they can run concurrently with each other.
+ */
+final class ZAxisOrderIndex<V> {
+    private static final long MIN_LABEL = 0;
+    private static final long MAX_LABEL = 1L << 62;
+    private static final long MAX_LABEL_STEP = 1L << 24;
+
+    @FunctionalInterface
+    interface Visitor<V> {
+        /*
+            Returns false to stop the traversal
+         */
+        boolean visit(int z, V value);
+    }
+
+    private static final class Node<V> {
+        private final V value;
+        private final int priority;
+        private final long label;
+        private final int z;
+        // Shift that is already applied to z of this node, but is not yet applied to its children
+        private final int pendingShift;
+        // Children and size are set only while the node is built, see putAll
+        private Node<V> left;
+        private Node<V> right;
+        private int size;
+
+        private Node(V value, int priority, long label, int z, int pendingShift, Node<V> left, Node<V> right) {
+            this.value = value;
+            this.priority = priority;
+            this.label = label;
+            this.z = z;
+            this.pendingShift = pendingShift;
+            this.left = left;
+            this.right = right;
+            this.size = sizeOf(left) + sizeOf(right) + 1;
+        }
+
+        private Node<V> withChildren(Node<V> left, Node<V> right) {
+            return new Node<>(value, priority, label, z, pendingShift, left, right);
+        }
+    }
+
+    /*
+        Immutable version of the index. Reads of a version see the same widgets at the same z indexes
+        no matter what the writer does meanwhile.
+     */
+    static final class Version<V> {
+        private final Node<V> root;
+        // Tag the version is published with, so readers get both at once
+        private final long tag;
+
+        private Version(Node<V> root) {
+            this(root, -1);
+        }
+
+        private Version(Node<V> root, long tag) {
+            this.root = root;
+            this.tag = tag;
+        }
+
+        long getTag() {
+            return tag;
+        }
+
+        int size() {
+            return sizeOf(root);
+        }
+
+        boolean isEmpty() {
+            return root == null;
+        }
+
+        boolean containsKey(int z) {
+            return get(z) != null;
+        }
+
+        V get(int z) {
+            Node<V> node = root;
+            int shift = 0;
+            while (node != null) {
+                int nodeZ = node.z + shift;
+                if (z == nodeZ) {
+                    return node.value;
+                }
+
+                shift += node.pendingShift;
+                node = z < nodeZ ? node.left : node.right;
+            }
+            return null;
+        }
+
+        int firstKey() {
+            if (root == null) {
+                throw new NoSuchElementException("Z axis index is empty");
+            }
+
+            Node<V> node = root;
+            int shift = 0;
+            while (node.left != null) {
+                shift += node.pendingShift;
+                node = node.left;
+            }
+            return node.z + shift;
+        }
+
+        int lastKey() {
+            if (root == null) {
+                throw new NoSuchElementException("Z axis index is empty");
+            }
+
+            Node<V> node = root;
+            int shift = 0;
+            while (node.right != null) {
+                shift += node.pendingShift;
+                node = node.right;
+            }
+            return node.z + shift;
+        }
+
+        /*
+            Number of widgets lying strictly below the specified z index
+         */
+        long rank(int z) {
+            long rank = 0;
+            Node<V> node = root;
+            int shift = 0;
+            while (node != null) {
+                int nodeZ = node.z + shift;
+                shift += node.pendingShift;
+                if (nodeZ < z) {
+                    rank += sizeOf(node.left) + 1;
+                    node = node.right;
+                } else {
+                    node = node.left;
+                }
+            }
+            return rank;
+        }
+
+        /*
+            Widget at the specified position counting from the bottom
+         */
+        V select(long position) {
+            if (position < 0 || position >= size()) {
+                throw new IndexOutOfBoundsException("Position " + position + " is out of z axis index bounds");
+            }
+            return nodeAt(position).value;
+        }
+
+        /*
+            Visits at most limit entries in z order, starting from the specified position
+         */
+        void forEachFrom(long position, int limit, Visitor<V> visitor) {
+            if (position >= size() || limit <= 0) {
+                return;
+            }
+
+            // Descend to the starting position remembering nodes that are still to be visited after it
+            TraversalStack<V> path = new TraversalStack<>();
+            Node<V> node = root;
+            int shift = 0;
+            long remaining = position;
+            while (node != null) {
+                int leftSize = sizeOf(node.left);
+                if (remaining < leftSize) {
+                    path.push(node, shift);
+                    shift += node.pendingShift;
+                    node = node.left;
+                } else if (remaining == leftSize) {
+                    path.push(node, shift);
+                    break;
+                } else {
+                    remaining -= leftSize + 1;
+                    shift += node.pendingShift;
+                    node = node.right;
+                }
+            }
+
+            int visited = 0;
+            while (!path.isEmpty() && visited < limit) {
+                int currentShift = path.peekShift();
+                Node<V> current = path.pop();
+                visited++;
+                if (!visitor.visit(current.z + currentShift, current.value)) {
+                    return;
+                }
+
+                int childShift = currentShift + current.pendingShift;
+                for (Node<V> next = current.right; next != null; next = next.left) {
+                    path.push(next, childShift);
+                    childShift += next.pendingShift;
+                }
+            }
+        }
+
+        /*
+            Visits at most limit entries in z order, starting from the first one above the specified z index
+         */
+        void forEachAfter(int z, int limit, Visitor<V> visitor) {
+            if (z == Integer.MAX_VALUE) {
+                return;
+            }
+            forEachFrom(rank(z + 1), limit, visitor);
+        }
+
+        private int zOfLabel(long label) {
+            Node<V> node = root;
+            int shift = 0;
+            while (node.label != label) {
+                shift += node.pendingShift;
+                node = label < node.label ? node.left : node.right;
+            }
+            return node.z + shift;
+        }
+
+        private Node<V> nodeAt(long position) {
+            Node<V> node = root;
+            long remaining = position;
+            while (true) {
+                int leftSize = sizeOf(node.left);
+                if (remaining < leftSize) {
+                    node = node.left;
+                } else if (remaining == leftSize) {
+                    return node;
+                } else {
+                    remaining -= leftSize + 1;
+                    node = node.right;
+                }
+            }
+        }
+
+        /*
+            Number of nodes with label lower than the specified one
+         */
+        private long rankOfLabel(long label) {
+            long rank = 0;
+            Node<V> node = root;
+            while (node != null) {
+                if (node.label < label) {
+                    rank += sizeOf(node.left) + 1;
+                    node = node.right;
+                } else {
+                    node = node.left;
+                }
+            }
+            return rank;
+        }
+    }
+
+    private final Function<V, UUID> widgetIdOf;
+    private final SplittableRandom priorities = new SplittableRandom();
+    private final Map<UUID, Long> labels = new HashMap<>();
+    // Version the writer builds, guarded by the lock of the caller
+    private Version<V> current = new Version<>(null);
+    // Single writer publishes it under the lock of the caller, so a volatile write is all it takes
+    private volatile Version<V> published = current;
+
+    ZAxisOrderIndex(Function<V, UUID> widgetIdOf) {
+        this.widgetIdOf = widgetIdOf;
+    }
+
+    /*
+        Makes the changes made so far visible to readers of the published version, tagged with the specified number
+     */
+    void publish(long tag) {
+        published = new Version<>(current.root, tag);
+    }
+
+    /*
+        Latest published version, it may be read without any lock
+     */
+    Version<V> getPublished() {
+        return published;
+    }
+
+    int size() {
+        return current.size();
+    }
+
+    boolean isEmpty() {
+        return current.isEmpty();
+    }
+
+    boolean containsKey(int z) {
+        return current.containsKey(z);
+    }
+
+    V get(int z) {
+        return current.get(z);
+    }
+
+    /*
+        Actual z index of the widget or null if there is no such widget in the index
+     */
+    Integer zOf(UUID widgetId) {
+        Long label = labels.get(widgetId);
+        return label == null ? null : current.zOfLabel(label);
+    }
+
+    /*
+        Puts widget at the vacant z index. Colliding widgets should be shifted beforehand.
+     */
+    void put(int z, V value) {
+        UUID widgetId = widgetIdOf.apply(value);
+        if (containsKey(z)) {
+            throw new IllegalStateException("Z index " + z + " is already taken");
+        }
+
+        if (labels.containsKey(widgetId)) {
+            throw new IllegalStateException("Widget " + widgetId + " is already in the index");
+        }
+
+        long position = rank(z);
+        long label = getLabelForPosition(position);
+
+        Node<V>[] parts = splitAt(current.root, position);
+        Node<V> node = new Node<>(value, priorities.nextInt(), label, z, 0, null, null);
+        setRoot(merge(merge(parts[0], node), parts[1]));
+        labels.put(widgetId, label);
+    }
+
+    /*
+        Replaces the value of the widget that is already in the index, keeping its z index
+     */
+    void replace(V value) {
+        UUID widgetId = widgetIdOf.apply(value);
+        Long label = labels.get(widgetId);
+        if (label == null) {
+            throw new IllegalStateException("Widget " + widgetId + " is not in the index");
+        }
+
+        setRoot(replace(current.root, label, value));
+    }
+
+    /*
+        Fills the empty index with widgets sorted by strictly increasing z indexes in O(n).
+        Nodes come in order, so the tree is built as a cartesian tree of priorities with a stack of its right spine,
+        and labels are spread evenly over the whole label range.
+     */
+    void putAll(int[] zAxisIndexes, V[] values, int count) {
+        if (current.root != null) {
+            throw new IllegalStateException("Z axis index is not empty");
+        }
+
+        for (int i = 1; i < count; i++) {
+            if (zAxisIndexes[i] <= zAxisIndexes[i - 1]) {
+                throw new IllegalArgumentException("Z indexes should be unique and sorted");
+            }
+        }
+
+        long step = MAX_LABEL / (count + 1L);
+        @SuppressWarnings("unchecked")
+        Node<V>[] rightSpine = new Node[64];
+        int rightSpineSize = 0;
+        for (int i = 0; i < count; i++) {
+            Node<V> node = new Node<>(values[i], priorities.nextInt(), step * (i + 1), zAxisIndexes[i], 0, null, null);
+            labels.put(widgetIdOf.apply(values[i]), node.label);
+
+            // Nodes with lower priority go below the new one as its left subtree, they are complete by now
+            Node<V> lastPopped = null;
+            while (rightSpineSize > 0 && rightSpine[rightSpineSize - 1].priority < node.priority) {
+                lastPopped = rightSpine[--rightSpineSize];
+                updateSize(lastPopped);
+            }
+            node.left = lastPopped;
+            if (rightSpineSize > 0) {
+                rightSpine[rightSpineSize - 1].right = node;
+            }
+
+            if (rightSpineSize == rightSpine.length) {
+                rightSpine = Arrays.copyOf(rightSpine, rightSpineSize * 2);
+            }
+            rightSpine[rightSpineSize++] = node;
+        }
+
+        while (rightSpineSize > 1) {
+            updateSize(rightSpine[--rightSpineSize]);
+        }
+        if (rightSpineSize == 1) {
+            updateSize(rightSpine[0]);
+            setRoot(rightSpine[0]);
+        }
+    }
+
+    /*
+        Removes widget from the index and returns the z index it had or null if there was no such widget
+     */
+    Integer remove(UUID widgetId) {
+        Long label = labels.remove(widgetId);
+        if (label == null) {
+            return null;
+        }
+
+        long position = current.rankOfLabel(label);
+        Node<V>[] lower = splitAt(current.root, position);
+        Node<V>[] upper = splitAt(lower[1], 1);
+        setRoot(merge(lower[0], upper[1]));
+
+        // Splitting pushes pending shifts down, so z of the cut out node is the actual one
+        return upper[0].z;
+    }
+
+    void clear() {
+        setRoot(null);
+        labels.clear();
+    }
+
+    int firstKey() {
+        return current.firstKey();
+    }
+
+    int lastKey() {
+        return current.lastKey();
+    }
+
+    long rank(int z) {
+        return current.rank(z);
+    }
+
+    V select(long position) {
+        return current.select(position);
+    }
+
+    void forEachFrom(long position, int limit, Visitor<V> visitor) {
+        current.forEachFrom(position, limit, visitor);
+    }
+
+    void forEachAfter(int z, int limit, Visitor<V> visitor) {
+        current.forEachAfter(z, limit, visitor);
+    }
+
+    /*
+        Moves the contiguous run of z indexes starting at shiftFrom one step up and returns the length of the run.
+
+        Z indexes are unique and ordered, so z - position never decreases along the tree and stays the same
+        exactly within a contiguous run. That lets us find the end of the run with a single descent
+        instead of walking through it.
+     */
+    int shiftRun(int shiftFrom) {
+        if (!containsKey(shiftFrom)) {
+            return 0;
+        }
+
+        long start = rank(shiftFrom);
+
+        long runOffset = (long) shiftFrom - start;
+        long end = 0;
+        long base = 0;
+        Node<V> node = current.root;
+        int shift = 0;
+        while (node != null) {
+            long position = base + sizeOf(node.left);
+            long nodeOffset = (long) node.z + shift - position;
+            shift += node.pendingShift;
+            if (nodeOffset <= runOffset) {
+                end = position + 1;
+                base = position + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+
+        // Widget right above the run is at least two steps away from its top, so order of the tree is kept
+        Node<V>[] lower = splitAt(current.root, start);
+        Node<V>[] upper = splitAt(lower[1], end - start);
+        setRoot(merge(lower[0], merge(shifted(upper[0], 1), upper[1])));
+
+        return (int) (end - start);
+    }
+
+    private void setRoot(Node<V> root) {
+        current = new Version<>(root);
+    }
+
+    /*
+        Label for a node that is going to be inserted at the specified position.
+        Labels of neighbours are spread out if there is no room between them.
+     */
+    private long getLabelForPosition(long position) {
+        long label = findLabelBetweenNeighbours(position);
+        if (label != -1) {
+            return label;
+        }
+
+        relabelAround(current.nodeAt(position > 0 ? position - 1 : position).label);
+        return findLabelBetweenNeighbours(position);
+    }
+
+    private long findLabelBetweenNeighbours(long position) {
+        long lowerLabel = position > 0 ? current.nodeAt(position - 1).label : MIN_LABEL;
+        long upperLabel = position < size() ? current.nodeAt(position).label : MAX_LABEL;
+
+        long gap = upperLabel - lowerLabel;
+        if (gap < 2) {
+            return -1;
+        }
+
+        // Widgets are mostly put to the top or to the bottom of the board.
+        // Bounded steps at the edges keep the room for them instead of halving it on every insert.
+        if (position == size()) {
+            return lowerLabel + Math.min(gap / 2, MAX_LABEL_STEP);
+        }
+        if (position == 0) {
+            return upperLabel - Math.min(gap / 2, MAX_LABEL_STEP);
+        }
+        return lowerLabel + gap / 2;
+    }
+
+    /*
+        Spreads out labels of the smallest aligned label range around the crowded label that is sparse enough.
+        Allowed density of the range drops as the range grows, which keeps the amortized number of relabeled nodes
+        logarithmic - the classic order maintenance approach. Relabeled nodes are copied along with the paths to them.
+     */
+    private void relabelAround(long crowdedLabel) {
+        for (int bits = 1; bits <= 62; bits++) {
+            long rangeStart = bits == 62 ? MIN_LABEL : (crowdedLabel >> bits) << bits;
+            long rangeEnd = bits == 62 ? MAX_LABEL : rangeStart + (1L << bits);
+
+            long startPosition = current.rankOfLabel(rangeStart);
+            long count = current.rankOfLabel(rangeEnd) - startPosition;
+            // One more slot is reserved for the node that is being inserted
+            long step = (rangeEnd - rangeStart) / (count + 2);
+
+            if (step >= 2 && (bits == 62 || count <= Math.pow(4.0 / 3.0, bits))) {
+                Node<V>[] lower = splitAt(current.root, startPosition);
+                Node<V>[] upper = splitAt(lower[1], count);
+                Node<V> relabeled = relabel(upper[0], new long[]{rangeStart + step}, step);
+                setRoot(merge(lower[0], merge(relabeled, upper[1])));
+                return;
+            }
+        }
+
+        throw new IllegalStateException("Z axis index is out of labels");
+    }
+
+    /*
+        Copies the subtree with labels going up from the next one, keeping its shape and pending shifts
+     */
+    private Node<V> relabel(Node<V> node, long[] nextLabel, long step) {
+        if (node == null) {
+            return null;
+        }
+
+        Node<V> left = relabel(node.left, nextLabel, step);
+        long label = nextLabel[0];
+        nextLabel[0] += step;
+        labels.put(widgetIdOf.apply(node.value), label);
+        Node<V> right = relabel(node.right, nextLabel, step);
+
+        return new Node<>(node.value, node.priority, label, node.z, node.pendingShift, left, right);
+    }
+
+    private Node<V> replace(Node<V> node, long label, V value) {
+        if (node.label == label) {
+            return new Node<>(value, node.priority, node.label, node.z, node.pendingShift, node.left, node.right);
+        }
+
+        return label < node.label
+                ? node.withChildren(replace(node.left, label, value), node.right)
+                : node.withChildren(node.left, replace(node.right, label, value));
+    }
+
+    /*
+        Splits the tree into the first count nodes and the rest
+     */
+    @SuppressWarnings("unchecked")
+    private Node<V>[] splitAt(Node<V> node, long count) {
+        if (node == null) {
+            return new Node[]{null, null};
+        }
+
+        node = pushPendingShift(node);
+        int leftSize = sizeOf(node.left);
+        if (leftSize < count) {
+            Node<V>[] parts = splitAt(node.right, count - leftSize - 1);
+            parts[0] = node.withChildren(node.left, parts[0]);
+            return parts;
+        } else {
+            Node<V>[] parts = splitAt(node.left, count);
+            parts[1] = node.withChildren(parts[1], node.right);
+            return parts;
+        }
+    }
+
+    /*
+        Merges two trees assuming that all nodes of the left one lie lower than nodes of the right one
+     */
+    private Node<V> merge(Node<V> left, Node<V> right) {
+        if (left == null) {
+            return right;
+        }
+
+        if (right == null) {
+            return left;
+        }
+
+        if (left.priority > right.priority) {
+            left = pushPendingShift(left);
+            return left.withChildren(left.left, merge(left.right, right));
+        } else {
+            right = pushPendingShift(right);
+            return right.withChildren(merge(left, right.left), right.right);
+        }
+    }
+
+    /*
+        Copy of the node with its pending shift passed on to copies of its children
+     */
+    private static <V> Node<V> pushPendingShift(Node<V> node) {
+        if (node.pendingShift == 0) {
+            return node;
+        }
+
+        return new Node<>(
+                node.value,
+                node.priority,
+                node.label,
+                node.z,
+                0,
+                shifted(node.left, node.pendingShift),
+                shifted(node.right, node.pendingShift)
+        );
+    }
+
+    /*
+        Copy of the subtree moved up by the shift, only its root is copied
+     */
+    private static <V> Node<V> shifted(Node<V> node, int shift) {
+        if (node == null) {
+            return null;
+        }
+        return new Node<>(
+                node.value,
+                node.priority,
+                node.label,
+                node.z + shift,
+                node.pendingShift + shift,
+                node.left,
+                node.right
+        );
+    }
+
+    private static void updateSize(Node<?> node) {
+        node.size = sizeOf(node.left) + sizeOf(node.right) + 1;
+    }
+
+    private static int sizeOf(Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    /*
+        Stack of nodes along with pending shifts of their ancestors
+     */
+    private static final class TraversalStack<V> {
+        @SuppressWarnings("unchecked")
+        private Node<V>[] nodes = new Node[64];
+        private int[] shifts = new int[64];
+        private int size;
+
+        void push(Node<V> node, int shift) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                shifts = Arrays.copyOf(shifts, size * 2);
+            }
+            nodes[size] = node;
+            shifts[size] = shift;
+            size++;
+        }
+
+        int peekShift() {
+            return shifts[size - 1];
+        }
+
+        Node<V> pop() {
+            size--;
+            Node<V> node = nodes[size];
+            nodes[size] = null;
+            return node;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.azaitsev.widgets.service.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import com.azaitsev.widgets.repository.widget.WidgetChangeFeed;
+import com.azaitsev.widgets.repository.widget.WidgetScanPage;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/*
+    Times every operation of the service it wraps, failed ones included.
+    Board version and change feed are plain field reads, so they are not timed.
+    Timers are tagged with the board the same way repository meters are, the default board has an empty tag.
+    Asynchronous changes are timed until their futures complete, under the same timers as the synchronous ones.
+ */
+public class TimedWidgetService implements WidgetService {
+    private static final String TIMER_NAME = "widgets.service";
+    private static final String OPERATION_TAG = "operation";
+    private static final String BOARD_TAG = "board";
+    // Default board has no id, and board ids are never empty
+    private static final String DEFAULT_BOARD = "";
+
+    private final WidgetService widgetService;
+    private final MeterRegistry registry;
+    private final String boardId;
+    private final List<Meter> meters;
+    private final Timer getTimer;
+    private final Timer getPageTimer;
+    private final Timer getPageAfterTimer;
+    private final Timer startScanTimer;
+    private final Timer startScanAfterTimer;
+    private final Timer getSnapshotPageTimer;
+    private final Timer getSnapshotPageAfterTimer;
+    private final Timer getRankTimer;
+    private final Timer findInAreaTimer;
+    private final Timer findTopmostAtTimer;
+    private final Timer findAllAtTimer;
+    private final Timer createTimer;
+    private final Timer updateTimer;
+    private final Timer compareAndUpdateTimer;
+    private final Timer deleteTimer;
+    private final Timer createAllTimer;
+    private final Timer updateAllTimer;
+    private final Timer deleteAllTimer;
+    private final Timer writeTimer;
+    private final Timer importAllTimer;
+    private final Timer exportAllTimer;
+
+    public TimedWidgetService(WidgetService widgetService, MeterRegistry registry) {
+        this(widgetService, registry, DEFAULT_BOARD);
+    }
+
+    public TimedWidgetService(WidgetService widgetService, MeterRegistry registry, String boardId) {
+        this.widgetService = widgetService;
+        this.registry = registry;
+        this.boardId = boardId;
+        this.meters = new ArrayList<>();
+        this.getTimer = getTimer("get");
+        this.getPageTimer = getTimer("getPage");
+        this.getPageAfterTimer = getTimer("getPageAfter");
+        this.startScanTimer = getTimer("startScan");
+        this.startScanAfterTimer = getTimer("startScanAfter");
+        this.getSnapshotPageTimer = getTimer("getSnapshotPage");
+        this.getSnapshotPageAfterTimer = getTimer("getSnapshotPageAfter");
+        this.getRankTimer = getTimer("getRank");
+        this.findInAreaTimer = getTimer("findInArea");
+        this.findTopmostAtTimer = getTimer("findTopmostAt");
+        this.findAllAtTimer = getTimer("findAllAt");
+        this.createTimer = getTimer("create");
+        this.updateTimer = getTimer("update");
+        this.compareAndUpdateTimer = getTimer("compareAndUpdate");
+        this.deleteTimer = getTimer("delete");
+        this.createAllTimer = getTimer("createAll");
+        this.updateAllTimer = getTimer("updateAll");
+        this.deleteAllTimer = getTimer("deleteAll");
+        this.writeTimer = getTimer("write");
+        this.importAllTimer = getTimer("importAll");
+        this.exportAllTimer = getTimer("exportAll");
+    }
+
+    public Optional<ImmutableWidget> get(UUID widgetId) {
+        return getTimer.record(() -> widgetService.get(widgetId));
+    }
+
+    public List<ImmutableWidget> getPage(int limit, long offset) {
+        return getPageTimer.record(() -> widgetService.getPage(limit, offset));
+    }
+
+    public List<ImmutableWidget> getPageAfter(Integer zCursor, int limit) {
+        return getPageAfterTimer.record(() -> widgetService.getPageAfter(zCursor, limit));
+    }
+
+    public WidgetScanPage startScan(int limit, long offset) {
+        return startScanTimer.record(() -> widgetService.startScan(limit, offset));
+    }
+
+    public WidgetScanPage startScanAfter(Integer zCursor, int limit) {
+        return startScanAfterTimer.record(() -> widgetService.startScanAfter(zCursor, limit));
+    }
+
+    public List<ImmutableWidget> getSnapshotPage(long snapshotVersion, int limit, long offset) {
+        return getSnapshotPageTimer.record(() -> widgetService.getSnapshotPage(snapshotVersion, limit, offset));
+    }
+
+    public List<ImmutableWidget> getSnapshotPageAfter(long snapshotVersion, Integer zCursor, int limit) {
+        return getSnapshotPageAfterTimer.record(() -> widgetService.getSnapshotPageAfter(snapshotVersion, zCursor, limit));
+    }
+
+    public Optional<Long> getRank(UUID widgetId) {
+        return getRankTimer.record(() -> widgetService.getRank(widgetId));
+    }
+
+    public List<ImmutableWidget> findInArea(int x1, int y1, int x2, int y2, int limit) {
+        return findInAreaTimer.record(() -> widgetService.findInArea(x1, y1, x2, y2, limit));
+    }
+
+    public Optional<ImmutableWidget> findTopmostAt(int x, int y) {
+        return findTopmostAtTimer.record(() -> widgetService.findTopmostAt(x, y));
+    }
+
+    public List<ImmutableWidget> findAllAt(int x, int y) {
+        return findAllAtTimer.record(() -> widgetService.findAllAt(x, y));
+    }
+
+    public ImmutableWidget create(WidgetChangeSet changeSet) {
+        return createTimer.record(() -> widgetService.create(changeSet));
+    }
+
+    public ImmutableWidget update(UUID widgetId, WidgetChangeSet changeSet) {
+        return updateTimer.record(() -> widgetService.update(widgetId, changeSet));
+    }
+
+    public ImmutableWidget compareAndUpdate(UUID widgetId, long expectedVersion, WidgetChangeSet changeSet) {
+        return compareAndUpdateTimer.record(() -> widgetService.compareAndUpdate(widgetId, expectedVersion, changeSet));
+    }
+
+    public void delete(UUID widgetId) {
+        deleteTimer.record(() -> widgetService.delete(widgetId));
+    }
+
+    public CompletableFuture<ImmutableWidget> createAsync(WidgetChangeSet changeSet) {
+        return recordAsync(createTimer, () -> widgetService.createAsync(changeSet));
+    }
+
+    public CompletableFuture<ImmutableWidget> updateAsync(UUID widgetId, WidgetChangeSet changeSet) {
+        return recordAsync(updateTimer, () -> widgetService.updateAsync(widgetId, changeSet));
+    }
+
+    public CompletableFuture<ImmutableWidget> compareAndUpdateAsync(
+            UUID widgetId,
+            long expectedVersion,
+            WidgetChangeSet changeSet
+    ) {
+        return recordAsync(
+                compareAndUpdateTimer,
+                () -> widgetService.compareAndUpdateAsync(widgetId, expectedVersion, changeSet)
+        );
+    }
+
+    public CompletableFuture<Void> deleteAsync(UUID widgetId) {
+        return recordAsync(deleteTimer, () -> widgetService.deleteAsync(widgetId));
+    }
+
+    public List<ImmutableWidget> createAll(List<WidgetChangeSet> changeSets) {
+        return createAllTimer.record(() -> widgetService.createAll(changeSets));
+    }
+
+    public List<ImmutableWidget> updateAll(Map<UUID, WidgetChangeSet> changeSets) {
+        return updateAllTimer.record(() -> widgetService.updateAll(changeSets));
+    }
+
+    public void deleteAll(Collection<UUID> widgetIds) {
+        deleteAllTimer.record(() -> widgetService.deleteAll(widgetIds));
+    }
+
+    public <T> CompletableFuture<T> writeAsync(Function<WidgetService, T> change) {
+        return recordAsync(writeTimer, () -> widgetService.writeAsync(change));
+    }
+
+    public int importAll(Stream<WidgetChangeSet> changeSets) {
+        return importAllTimer.record(() -> widgetService.importAll(changeSets));
+    }
+
+    public void exportAll(Consumer<ImmutableWidget> consumer) {
+        exportAllTimer.record(() -> widgetService.exportAll(consumer));
+    }
+
+    public WidgetChangeFeed getChangeFeed() {
+        return widgetService.getChangeFeed();
+    }
+
+    public long getBoardVersion() {
+        return widgetService.getBoardVersion();
+    }
+
+    public String getBoardEpoch() {
+        return widgetService.getBoardEpoch();
+    }
+
+    /*
+        Removes the timers from the registry, operations timed afterwards are not published anywhere
+     */
+    void unbind() {
+        for (Meter meter : meters) {
+            registry.remove(meter);
+        }
+    }
+
+    private <T> CompletableFuture<T> recordAsync(Timer timer, Supplier<CompletableFuture<T>> change) {
+        Timer.Sample sample = Timer.start(registry);
+        try {
+            return change.get().whenComplete((result, failure) -> sample.stop(timer));
+        } catch (RuntimeException e) {
+            sample.stop(timer);
+            throw e;
+        }
+    }
+
+    private Timer getTimer(String operation) {
+        Timer timer = Timer.builder(TIMER_NAME)
+                .description("Time spent on an operation of the service")
+                .tag(BOARD_TAG, boardId)
+                .tag(OPERATION_TAG, operation)
+                .publishPercentileHistogram()
+                .register(registry);
+        meters.add(timer);
+        return timer;
+    }
+}
@@ -0,0 +1,37 @@
+package com.azaitsev.widgets.service.widget;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/*
+    Asynchronous variant of the services of boards. Actions run on a pool of worker threads of its own,
+    so a request waiting for the z axis lock holds a worker rather than a request thread of the container,
+    and requests queue up once all workers are busy instead of taking more threads.
+    Actions that don't fit into the queue are rejected with RejectedExecutionException right away.
+
+    Changes are started on a worker as well, but the worker is released as soon as the change is started,
+    so a write that waits for the board doesn't hold a worker either.
+ */
+public interface WidgetAsyncService {
+    /*
+        Runs the action with the service of the default board
+     */
+    <T> CompletableFuture<T> withDefaultBoard(Function<WidgetService, T> action);
+
+    /*
+        Runs the action with the service of the board, see WidgetBoardService.withBoard
+     */
+    <T> CompletableFuture<T> withBoard(String boardId, Function<WidgetService, T> action);
+
+    /*
+        Starts the change with the service of the default board and completes once the change is applied
+     */
+    <T> CompletableFuture<T> changeDefaultBoard(Function<WidgetService, CompletableFuture<T>> change);
+
+    /*
+        Starts the change with the service of the board and completes once the change is applied.
+        Board is kept loaded only while the change is started, so the change has to be started by then,
+        which asynchronous changes of loaded boards are, as they are applied on the calling thread.
+     */
+    <T> CompletableFuture<T> changeBoard(String boardId, Function<WidgetService, CompletableFuture<T>> change);
+}
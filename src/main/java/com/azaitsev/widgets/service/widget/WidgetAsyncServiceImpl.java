@@ -0,0 +1,96 @@
+package com.azaitsev.widgets.service.widget;
+
+import javax.validation.constraints.NotNull;
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/*
+    Runs actions on a fixed pool of workers with a bounded queue. Workers are sized for the waits on the lock
+    rather than for the CPU, work under the lock is short, waiting for it is what takes the time.
+
+    The pool bounds concurrency, it doesn't remove blocking: a worker still blocks on the lock of the board
+    for as long as a request thread would, it just keeps the request threads free to accept other requests.
+    Changes are composed with the futures of the repository instead, so with a repository that applies changes
+    on a writer thread of its own a worker only publishes the change and is free before it is applied.
+    Once all the workers are busy and the queue is full, an action is rejected right away, and the controller
+    answers it with 503 so that clients back off instead of piling up. Import, export and the change stream
+    don't go through the pool and still hold their request threads.
+ */
+public class WidgetAsyncServiceImpl implements WidgetAsyncService, Closeable {
+    private final WidgetService widgetService;
+    private final WidgetBoardService boardService;
+    private final ThreadPoolExecutor workers;
+
+    public WidgetAsyncServiceImpl(
+            @NotNull WidgetService widgetService,
+            @NotNull WidgetBoardService boardService,
+            int poolSize,
+            int queueCapacity
+    ) {
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("Worker pool size should be positive");
+        }
+
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Worker queue capacity should be positive");
+        }
+
+        this.widgetService = widgetService;
+        this.boardService = boardService;
+
+        AtomicInteger workersCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(
+                poolSize,
+                poolSize,
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "widget-worker-" + workersCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+        );
+    }
+
+    @Override
+    public <T> CompletableFuture<T> withDefaultBoard(@NotNull Function<WidgetService, T> action) {
+        return CompletableFuture.supplyAsync(() -> action.apply(widgetService), workers);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> withBoard(@NotNull String boardId, @NotNull Function<WidgetService, T> action) {
+        return CompletableFuture.supplyAsync(() -> boardService.withBoard(boardId, action), workers);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> changeDefaultBoard(@NotNull Function<WidgetService, CompletableFuture<T>> change) {
+        return withDefaultBoard(change).thenCompose(Function.identity());
+    }
+
+    @Override
+    public <T> CompletableFuture<T> changeBoard(
+            @NotNull String boardId,
+            @NotNull Function<WidgetService, CompletableFuture<T>> change
+    ) {
+        return withBoard(boardId, change).thenCompose(Function.identity());
+    }
+
+    /*
+        Lets the queued actions finish, so that changes accepted before shutdown are not lost
+     */
+    @Override
+    public void close() {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.azaitsev.widgets.service.widget;
+
+import java.util.function.Function;
+
+/*
+    Routes work to boards. Every board has a repository and a lock of its own,
+    so requests to different boards don't contend with each other.
+ */
+public interface WidgetBoardService {
+    // Board id becomes a file name, so it is kept to a safe set of characters
+    String BOARD_ID_PATTERN = "[A-Za-z0-9_-]{1,64}";
+
+    /*
+        Runs the action with the service of the board, loading the board first if it is not loaded.
+        Board is not evicted while the action runs.
+     */
+    <T> T withBoard(String boardId, Function<WidgetService, T> action);
+}
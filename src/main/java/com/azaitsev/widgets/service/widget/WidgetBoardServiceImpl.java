@@ -0,0 +1,285 @@
+package com.azaitsev.widgets.service.widget;
+
+import com.azaitsev.widgets.repository.widget.WidgetInMemoryRepository;
+import com.azaitsev.widgets.repository.widget.WidgetSnapshot;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.validation.constraints.NotNull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/*
+    Keeps loaded boards in memory, each in a WidgetInMemoryRepository of its own, and writes boards that were not
+    accessed for the idle timeout to snapshot files in the directory, so memory is taken by active boards only.
+    Evicted board is loaded from its file on the next access, a board that has never been written to is empty.
+    Board is put into the map before it is loaded and loaded outside of it, so a slow read of one file holds
+    only the accesses to that board. Board evicted earlier in the same run goes on with the versions it had,
+    so tags issued for it stay valid, while boards written out by an earlier run start a new change feed -
+    a crash may have lost changes made after the file was written, along with the versions issued for them.
+
+    Repositories and services of loaded boards are bound to the registry with their board id, and unbound on eviction.
+
+    Work with a board holds the read side of its usage lock, eviction takes the write side only if nobody uses
+    the board, so an action never runs against a board that is already written out. Boards with subscribers
+    to their changes are not evicted either.
+
+    Boards are written to disk only on eviction and on shutdown, so a crash loses the changes of loaded boards.
+ */
+public class WidgetBoardServiceImpl implements WidgetBoardService, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(WidgetBoardServiceImpl.class);
+
+    private static final Pattern BOARD_ID = Pattern.compile(BOARD_ID_PATTERN);
+    private static final String FILE_EXTENSION = ".snapshot";
+
+    private final Path directory;
+    private final long idleTimeoutNanos;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Board> boards;
+    // Epochs of the change feeds boards were written out with during this run
+    private final Map<String, Long> evictedBoardEpochs;
+    private final ScheduledExecutorService evictor;
+
+    public WidgetBoardServiceImpl(
+            @NotNull Path directory,
+            @NotNull Duration idleTimeout,
+            @NotNull Duration evictionInterval,
+            @NotNull MeterRegistry meterRegistry
+    ) throws IOException {
+        if (idleTimeout.isNegative()) {
+            throw new IllegalArgumentException("Board idle timeout should not be negative");
+        }
+
+        if (evictionInterval.isNegative() || evictionInterval.isZero()) {
+            throw new IllegalArgumentException("Board eviction interval should be positive");
+        }
+
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.meterRegistry = meterRegistry;
+        this.boards = new ConcurrentHashMap<>();
+        this.evictedBoardEpochs = new ConcurrentHashMap<>();
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "widget-board-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(
+                this::evictIdleBoards,
+                evictionInterval.toMillis(),
+                evictionInterval.toMillis(),
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    @Override
+    public <T> T withBoard(@NotNull String boardId, @NotNull Function<WidgetService, T> action) {
+        if (!BOARD_ID.matcher(boardId).matches()) {
+            throw new IllegalArgumentException("Board id should match " + BOARD_ID_PATTERN);
+        }
+
+        while (true) {
+            Board board = getLoadedBoard(boardId);
+            board.usageLock.readLock().lock();
+            try {
+                // Board was evicted between the lookup and the lock, so it is loaded once again
+                if (board.evicted) {
+                    continue;
+                }
+
+                board.lastAccessNanos = System.nanoTime();
+                return action.apply(board.service);
+            } finally {
+                board.usageLock.readLock().unlock();
+            }
+        }
+    }
+
+    /*
+        Number of boards that are held in memory at the moment
+     */
+    public int getLoadedBoardsCount() {
+        return boards.size();
+    }
+
+    /*
+        Evicts boards that are idle at the moment, on the calling thread
+     */
+    public void evictIdleBoards() {
+        for (Map.Entry<String, Board> entry : boards.entrySet()) {
+            // Failure must not stop eviction of other boards, so it is only reported
+            try {
+                evict(entry.getKey(), entry.getValue(), false);
+            } catch (IOException | RuntimeException e) {
+                logger.error("Failed to evict board {}", entry.getKey(), e);
+            }
+        }
+    }
+
+    /*
+        Writes out every loaded board, waiting for boards that are in use
+     */
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+        for (Map.Entry<String, Board> entry : boards.entrySet()) {
+            try {
+                evict(entry.getKey(), entry.getValue(), true);
+            } catch (IOException | RuntimeException e) {
+                logger.error("Failed to write board {}", entry.getKey(), e);
+            }
+        }
+    }
+
+    /*
+        Board that is not in memory yet is loaded by the thread that puts it into the map,
+        the others wait for it to be loaded
+     */
+    private Board getLoadedBoard(String boardId) {
+        Board board = boards.get(boardId);
+        if (board == null) {
+            Board newBoard = new Board();
+            board = boards.putIfAbsent(boardId, newBoard);
+            if (board == null) {
+                try {
+                    load(boardId, newBoard);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return newBoard;
+            }
+        }
+
+        try {
+            board.loading.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw new UncheckedIOException((IOException) e.getCause());
+            }
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        return board;
+    }
+
+    private void load(String boardId, Board board) throws IOException {
+        try {
+            Path file = getFile(boardId);
+            WidgetSnapshot snapshot = Files.exists(file) ? WidgetSnapshot.readFrom(file) : null;
+            boolean unchangedSinceEviction = snapshot != null
+                    && Long.valueOf(snapshot.getChangeEpoch()).equals(evictedBoardEpochs.get(boardId));
+
+            WidgetInMemoryRepository repository = unchangedSinceEviction
+                    ? new WidgetInMemoryRepository(snapshot)
+                    : new WidgetInMemoryRepository(snapshot, null);
+            repository.bindTo(meterRegistry, boardId);
+            board.repository = repository;
+            board.service = new TimedWidgetService(new WidgetServiceImpl(repository), meterRegistry, boardId);
+            board.lastAccessNanos = System.nanoTime();
+            board.loading.complete(null);
+        } catch (Throwable e) {
+            // Failed board is dropped, so the next access tries to load it once again
+            boards.remove(boardId, board);
+            board.loading.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private void evict(String boardId, Board board, boolean force) throws IOException {
+        if (!force && !board.loading.isDone()) {
+            // Board is being loaded, so it is not idle
+            return;
+        }
+
+        if (!board.awaitLoading()) {
+            // Board that failed to load is already dropped and has nothing to write
+            return;
+        }
+
+        if (force) {
+            board.usageLock.writeLock().lock();
+        } else if (!board.usageLock.writeLock().tryLock()) {
+            // Board is in use, so it is not idle
+            return;
+        }
+
+        try {
+            if (board.evicted) {
+                return;
+            }
+
+            boolean idle = System.nanoTime() - board.lastAccessNanos >= idleTimeoutNanos
+                    && !board.repository.getChangeFeed().hasListeners();
+            if (!force && !idle) {
+                return;
+            }
+
+            WidgetSnapshot snapshot = board.repository.takeSnapshot();
+            if (snapshot.getSize() == 0) {
+                // Empty board starts over with a new feed, there are no widgets to keep tags of
+                evictedBoardEpochs.remove(boardId);
+                Files.deleteIfExists(getFile(boardId));
+            } else {
+                snapshot.writeTo(getFile(boardId));
+                evictedBoardEpochs.put(boardId, snapshot.getChangeEpoch());
+            }
+
+            board.evicted = true;
+            board.repository.unbind();
+            board.service.unbind();
+            boards.remove(boardId, board);
+        } finally {
+            board.usageLock.writeLock().unlock();
+        }
+    }
+
+    private Path getFile(String boardId) {
+        return directory.resolve(boardId + FILE_EXTENSION);
+    }
+
+    private static class Board {
+        // Completed once the board is loaded, which publishes the repository and the service
+        private final CompletableFuture<Void> loading;
+        private final ReadWriteLock usageLock;
+        private WidgetInMemoryRepository repository;
+        private TimedWidgetService service;
+        private volatile long lastAccessNanos;
+        // Guarded by the usage lock
+        private boolean evicted;
+
+        private Board() {
+            this.loading = new CompletableFuture<>();
+            this.usageLock = new ReentrantReadWriteLock();
+            this.lastAccessNanos = System.nanoTime();
+        }
+
+        /*
+            Whether the board is loaded, waiting for it if it is being loaded
+         */
+        private boolean awaitLoading() {
+            try {
+                loading.join();
+                return true;
+            } catch (CompletionException | CancellationException e) {
+                return false;
+            }
+        }
+    }
+}
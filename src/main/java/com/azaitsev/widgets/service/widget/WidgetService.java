@@ -2,19 +2,96 @@ package com.azaitsev.widgets.service.widget;
 
 import com.azaitsev.widgets.entity.widget.ImmutableWidget;
 import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import com.azaitsev.widgets.repository.widget.WidgetChangeFeed;
+import com.azaitsev.widgets.repository.widget.WidgetScanPage;
 
+import java.util.Collection;
 import java.util.Optional;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 public interface WidgetService {
     Optional<ImmutableWidget> get(UUID widgetId);
 
     List<ImmutableWidget> getPage(int limit, long offset);
 
+    List<ImmutableWidget> getPageAfter(Integer zCursor, int limit);
+
+    /*
+        First page of a scan, with the version of z order kept for the following pages if there may be any,
+        see WidgetRepository.startScan
+     */
+    WidgetScanPage startScan(int limit, long offset);
+
+    WidgetScanPage startScanAfter(Integer zCursor, int limit);
+
+    List<ImmutableWidget> getSnapshotPage(long snapshotVersion, int limit, long offset);
+
+    List<ImmutableWidget> getSnapshotPageAfter(long snapshotVersion, Integer zCursor, int limit);
+
+    Optional<Long> getRank(UUID widgetId);
+
+    List<ImmutableWidget> findInArea(int x1, int y1, int x2, int y2, int limit);
+
+    Optional<ImmutableWidget> findTopmostAt(int x, int y);
+
+    List<ImmutableWidget> findAllAt(int x, int y);
+
     ImmutableWidget create(WidgetChangeSet changeSet);
 
     ImmutableWidget update(UUID widgetId, WidgetChangeSet changeSet);
 
+    ImmutableWidget compareAndUpdate(UUID widgetId, long expectedVersion, WidgetChangeSet changeSet);
+
     void delete(UUID widgetId);
+
+    /*
+        Complete once the change is applied, without holding the caller while it waits for the board,
+        see WidgetRepository.writeAsync
+     */
+    CompletableFuture<ImmutableWidget> createAsync(WidgetChangeSet changeSet);
+
+    CompletableFuture<ImmutableWidget> updateAsync(UUID widgetId, WidgetChangeSet changeSet);
+
+    CompletableFuture<ImmutableWidget> compareAndUpdateAsync(UUID widgetId, long expectedVersion, WidgetChangeSet changeSet);
+
+    CompletableFuture<Void> deleteAsync(UUID widgetId);
+
+    List<ImmutableWidget> createAll(List<WidgetChangeSet> changeSets);
+
+    List<ImmutableWidget> updateAll(Map<UUID, WidgetChangeSet> changeSets);
+
+    void deleteAll(Collection<UUID> widgetIds);
+
+    /*
+        Applies the changes the function makes with the service it is passed as a single write, in order,
+        see WidgetRepository.writeAsync. Only the write as a whole is timed.
+     */
+    <T> CompletableFuture<T> writeAsync(Function<WidgetService, T> change);
+
+    int importAll(Stream<WidgetChangeSet> changeSets);
+
+    /*
+        Visits every widget in z order as they were at the same moment, see WidgetRepository.exportAll
+     */
+    void exportAll(Consumer<ImmutableWidget> consumer);
+
+    WidgetChangeFeed getChangeFeed();
+
+    /*
+        Grows with every change of the board. Reading it takes no locks, the same version
+        means that the board hasn't changed.
+     */
+    long getBoardVersion();
+
+    /*
+        Board versions are only comparable within the same epoch, it changes whenever they start over -
+        with every start of the application, while a board evicted and loaded back within a run keeps it
+     */
+    String getBoardEpoch();
 }
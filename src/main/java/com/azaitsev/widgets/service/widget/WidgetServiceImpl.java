@@ -2,11 +2,19 @@ package com.azaitsev.widgets.service.widget;
 
 import com.azaitsev.widgets.entity.widget.ImmutableWidget;
 import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import com.azaitsev.widgets.repository.widget.WidgetChangeFeed;
 import com.azaitsev.widgets.repository.widget.WidgetRepository;
+import com.azaitsev.widgets.repository.widget.WidgetScanPage;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 public class WidgetServiceImpl implements WidgetService {
     private final WidgetRepository widgetRepository;
@@ -23,6 +31,42 @@ public class WidgetServiceImpl implements WidgetService {
         return widgetRepository.getPage(limit, offset);
     }
 
+    public List<ImmutableWidget> getPageAfter(Integer zCursor, int limit) {
+        return widgetRepository.getPageAfter(zCursor, limit);
+    }
+
+    public WidgetScanPage startScan(int limit, long offset) {
+        return widgetRepository.startScan(limit, offset);
+    }
+
+    public WidgetScanPage startScanAfter(Integer zCursor, int limit) {
+        return widgetRepository.startScanAfter(zCursor, limit);
+    }
+
+    public List<ImmutableWidget> getSnapshotPage(long snapshotVersion, int limit, long offset) {
+        return widgetRepository.getSnapshotPage(snapshotVersion, limit, offset);
+    }
+
+    public List<ImmutableWidget> getSnapshotPageAfter(long snapshotVersion, Integer zCursor, int limit) {
+        return widgetRepository.getSnapshotPageAfter(snapshotVersion, zCursor, limit);
+    }
+
+    public Optional<Long> getRank(UUID widgetId) {
+        return widgetRepository.getRank(widgetId);
+    }
+
+    public List<ImmutableWidget> findInArea(int x1, int y1, int x2, int y2, int limit) {
+        return widgetRepository.findInArea(x1, y1, x2, y2, limit);
+    }
+
+    public Optional<ImmutableWidget> findTopmostAt(int x, int y) {
+        return widgetRepository.findTopmostAt(x, y);
+    }
+
+    public List<ImmutableWidget> findAllAt(int x, int y) {
+        return widgetRepository.findAllAt(x, y);
+    }
+
     public ImmutableWidget create(WidgetChangeSet changeSet) {
         return widgetRepository.create(changeSet);
     }
@@ -31,7 +75,67 @@ public class WidgetServiceImpl implements WidgetService {
         return widgetRepository.update(widgetId, changeSet);
     }
 
+    public ImmutableWidget compareAndUpdate(UUID widgetId, long expectedVersion, WidgetChangeSet changeSet) {
+        return widgetRepository.compareAndUpdate(widgetId, expectedVersion, changeSet);
+    }
+
     public void delete(UUID widgetId) {
         widgetRepository.delete(widgetId);
     }
+
+    public CompletableFuture<ImmutableWidget> createAsync(WidgetChangeSet changeSet) {
+        return widgetRepository.createAsync(changeSet);
+    }
+
+    public CompletableFuture<ImmutableWidget> updateAsync(UUID widgetId, WidgetChangeSet changeSet) {
+        return widgetRepository.updateAsync(widgetId, changeSet);
+    }
+
+    public CompletableFuture<ImmutableWidget> compareAndUpdateAsync(
+            UUID widgetId,
+            long expectedVersion,
+            WidgetChangeSet changeSet
+    ) {
+        return widgetRepository.compareAndUpdateAsync(widgetId, expectedVersion, changeSet);
+    }
+
+    public CompletableFuture<Void> deleteAsync(UUID widgetId) {
+        return widgetRepository.deleteAsync(widgetId);
+    }
+
+    public List<ImmutableWidget> createAll(List<WidgetChangeSet> changeSets) {
+        return widgetRepository.createAll(changeSets);
+    }
+
+    public List<ImmutableWidget> updateAll(Map<UUID, WidgetChangeSet> changeSets) {
+        return widgetRepository.updateAll(changeSets);
+    }
+
+    public void deleteAll(Collection<UUID> widgetIds) {
+        widgetRepository.deleteAll(widgetIds);
+    }
+
+    public <T> CompletableFuture<T> writeAsync(Function<WidgetService, T> change) {
+        return widgetRepository.writeAsync(repository -> change.apply(new WidgetServiceImpl(repository)));
+    }
+
+    public int importAll(Stream<WidgetChangeSet> changeSets) {
+        return widgetRepository.importAll(changeSets);
+    }
+
+    public void exportAll(Consumer<ImmutableWidget> consumer) {
+        widgetRepository.exportAll(consumer);
+    }
+
+    public WidgetChangeFeed getChangeFeed() {
+        return widgetRepository.getChangeFeed();
+    }
+
+    public long getBoardVersion() {
+        return widgetRepository.getChangeFeed().getLastSequence();
+    }
+
+    public String getBoardEpoch() {
+        return Long.toHexString(widgetRepository.getChangeFeed().getEpoch());
+    }
 }
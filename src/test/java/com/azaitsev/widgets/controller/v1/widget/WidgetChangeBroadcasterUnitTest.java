@@ -0,0 +1,118 @@
+package com.azaitsev.widgets.controller.v1.widget;
+
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import com.azaitsev.widgets.repository.widget.WidgetInMemoryRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WidgetChangeBroadcasterUnitTest {
+    private final WidgetChangeBroadcaster broadcaster = new WidgetChangeBroadcaster(4);
+    private final WidgetInMemoryRepository repository = new WidgetInMemoryRepository();
+
+    @AfterEach
+    public void tearDown() {
+        broadcaster.close();
+    }
+
+    @Test
+    public void subscribe_shouldNotHoldUpOthersBySlowSubscriber() throws Exception {
+        CountDownLatch released = new CountDownLatch(1);
+        RecordingEmitter slowEmitter = new RecordingEmitter(released);
+        RecordingEmitter emitter = new RecordingEmitter(new CountDownLatch(0));
+        broadcaster.subscribe(repository.getChangeFeed(), null, slowEmitter);
+        broadcaster.subscribe(repository.getChangeFeed(), null, emitter);
+
+        for (int i = 0; i < 20; i++) {
+            repository.create(getDefaultWidgetChangeSet());
+            // Let the dispatcher keep up, so only the queue of the slow subscriber overflows
+            emitter.awaitEvents(i + 1);
+        }
+
+        String epoch = Long.toHexString(repository.getChangeFeed().getEpoch());
+        assertEquals(20, emitter.events.size());
+        assertTrue(emitter.events.get(19).startsWith("id:" + epoch + ":20\n"));
+        assertFalse(emitter.completed.await(0, TimeUnit.SECONDS));
+
+        // Subscriber that has overflowed its queue is completed once the event it is stuck on is sent
+        released.countDown();
+        assertTrue(slowEmitter.completed.await(5, TimeUnit.SECONDS));
+        assertTrue(slowEmitter.events.size() < 20);
+    }
+
+    @Test
+    public void subscribe_shouldResetSubscriberResumingFromAnotherFeed() throws Exception {
+        repository.create(getDefaultWidgetChangeSet());
+        repository.create(getDefaultWidgetChangeSet());
+        String epoch = Long.toHexString(repository.getChangeFeed().getEpoch());
+
+        RecordingEmitter resumedEmitter = new RecordingEmitter(new CountDownLatch(0));
+        broadcaster.subscribe(repository.getChangeFeed(), WidgetChangeEventId.decode(epoch + ":1"), resumedEmitter);
+        RecordingEmitter resetEmitter = new RecordingEmitter(new CountDownLatch(0));
+        broadcaster.subscribe(repository.getChangeFeed(), WidgetChangeEventId.decode("1" + epoch + ":1"), resetEmitter);
+
+        resumedEmitter.awaitEvents(1);
+        resetEmitter.awaitEvents(1);
+        assertTrue(resumedEmitter.events.get(0).startsWith("id:" + epoch + ":2\nevent:created\n"));
+        assertTrue(resetEmitter.events.get(0).startsWith("id:" + epoch + ":2\nevent:reset\n"));
+    }
+
+    private WidgetChangeSet getDefaultWidgetChangeSet() {
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+
+        changeSet.setX(10);
+        changeSet.setY(20);
+        changeSet.setHeight(100);
+        changeSet.setWidth(200);
+
+        return changeSet;
+    }
+
+    /*
+        Emitter that is not bound to a response, every send waits until it is released
+     */
+    private static class RecordingEmitter extends SseEmitter {
+        private final CountDownLatch released;
+        private final List<String> events = new CopyOnWriteArrayList<>();
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        private RecordingEmitter(CountDownLatch released) {
+            this.released = released;
+        }
+
+        @Override
+        public void send(SseEventBuilder builder) throws IOException {
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            events.add(builder.build().stream()
+                    .map(ResponseBodyEmitter.DataWithMediaType::getData)
+                    .map(String::valueOf)
+                    .collect(Collectors.joining()));
+        }
+
+        @Override
+        public void complete() {
+            completed.countDown();
+        }
+
+        private void awaitEvents(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (events.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.azaitsev.widgets.controller.v1.widget;
+
+import com.azaitsev.widgets.repository.widget.WidgetRepository;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.annotation.DirtiesContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+    Thousands of clients keep writing to the default board through a handful of request threads.
+    Every widget lands at the bottom of the board, so each write shifts the whole board under the lock.
+    Takes about half a minute, so it runs with the benchmark profile only.
+ */
+@Tag("load")
+@SpringBootTest(
+        webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {
+                "widgets.boards.directory=target/test-boards",
+                "server.tomcat.threads.max=4",
+                "server.tomcat.threads.min-spare=4",
+                "server.tomcat.accept-count=5000"
+        }
+)
+@DirtiesContext
+public class WidgetControllerLoadTest {
+    private static final int CLIENTS = 2_000;
+    private static final int REQUESTS_PER_CLIENT = 2;
+    private static final String WIDGET = "{\"x\": 10, \"y\": 20, \"z\": 1, \"width\": 100, \"height\": 200}";
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private WidgetRepository widgetRepository;
+
+    @Test
+    public void post_shouldServeThousandsOfConcurrentClients() throws Exception {
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMinutes(1))
+                .build();
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/v1/widgets"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(WIDGET))
+                .build();
+
+        AtomicInteger succeeded = new AtomicInteger();
+        List<CompletableFuture<Void>> clients = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            CompletableFuture<Void> requests = CompletableFuture.completedFuture(null);
+            // Each client sends its next request once the previous one is answered
+            for (int j = 0; j < REQUESTS_PER_CLIENT; j++) {
+                requests = requests
+                        .thenCompose(previous -> client.sendAsync(request, HttpResponse.BodyHandlers.discarding()))
+                        .thenAccept(response -> {
+                            if (response.statusCode() == 200) {
+                                succeeded.incrementAndGet();
+                            }
+                        });
+            }
+            clients.add(requests);
+        }
+
+        CompletableFuture.allOf(clients.toArray(new CompletableFuture[0])).get(5, TimeUnit.MINUTES);
+
+        assertEquals(CLIENTS * REQUESTS_PER_CLIENT, succeeded.get());
+        assertEquals(CLIENTS * REQUESTS_PER_CLIENT, widgetRepository.getSize());
+    }
+}
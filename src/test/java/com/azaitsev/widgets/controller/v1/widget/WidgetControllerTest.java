@@ -1,21 +1,39 @@
 package com.azaitsev.widgets.controller.v1.widget;
 
+import com.azaitsev.widgets.controller.v1.widget.dto.BatchUpdateWidgetRequest;
 import com.azaitsev.widgets.controller.v1.widget.dto.CreateWidgetRequest;
+import com.azaitsev.widgets.controller.v1.widget.dto.UpdateWidgetRequest;
+import com.azaitsev.widgets.controller.v1.widget.dto.WidgetsBatchRequest;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 
 @AutoConfigureMockMvc
-@SpringBootTest()
+@AutoConfigureMetrics
+@SpringBootTest(properties = "widgets.boards.directory=target/test-boards")
 @DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
 public class WidgetControllerTest {
 
@@ -34,7 +52,7 @@ public class WidgetControllerTest {
         request.setWidth(100);
         request.setHeight(200);
 
-        mockMvc.perform(MockMvcRequestBuilders
+        perform(MockMvcRequestBuilders
                         .post("/api/v1/widgets")
                         .contentType(APPLICATION_JSON)
                         .content(objectMapper.writeValueAsString(request))
@@ -59,7 +77,7 @@ public class WidgetControllerTest {
         request.setWidth(100);
         request.setHeight(200);
 
-        mockMvc.perform(MockMvcRequestBuilders
+        perform(MockMvcRequestBuilders
                         .post("/api/v1/widgets")
                         .contentType(APPLICATION_JSON)
                         .content(objectMapper.writeValueAsString(request))
@@ -83,11 +101,750 @@ public class WidgetControllerTest {
         request.setWidth(-100);
         request.setHeight(200);
 
-        mockMvc.perform(MockMvcRequestBuilders
+        perform(MockMvcRequestBuilders
                         .post("/api/v1/widgets")
                         .contentType(APPLICATION_JSON)
                         .content(objectMapper.writeValueAsString(request))
                 )
                 .andExpect(status().isBadRequest());
     }
+
+    @Test
+    public void get_shouldPageThroughWidgetsWithCursor() throws Exception {
+        for (int z = 1; z <= 3; z++) {
+            CreateWidgetRequest request = new CreateWidgetRequest();
+
+            request.setX(10);
+            request.setY(20);
+            request.setZ(z);
+            request.setWidth(100);
+            request.setHeight(200);
+
+            perform(MockMvcRequestBuilders
+                    .post("/api/v1/widgets")
+                    .contentType(APPLICATION_JSON)
+                    .content(objectMapper.writeValueAsString(request))
+            ).andExpect(status().isOk());
+        }
+
+        MvcResult firstPage = perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets")
+                        .param("cursor", "")
+                        .param("limit", "2")
+                )
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.widgets.length()").value(2))
+                .andExpect(jsonPath("$.widgets[0].z").value(1))
+                .andExpect(jsonPath("$.widgets[1].z").value(2))
+                .andExpect(jsonPath("$.nextCursor").isNotEmpty())
+                .andReturn();
+
+        String nextCursor = objectMapper
+                .readTree(firstPage.getResponse().getContentAsString())
+                .get("nextCursor")
+                .asText();
+
+        perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets")
+                        .param("cursor", nextCursor)
+                        .param("limit", "2")
+                )
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.widgets.length()").value(1))
+                .andExpect(jsonPath("$.widgets[0].z").value(3))
+                .andExpect(jsonPath("$.nextCursor").doesNotExist());
+    }
+
+    @Test
+    public void get_shouldReadPagesOfScanFromSnapshotOfItsFirstPage() throws Exception {
+        CreateWidgetRequest request = new CreateWidgetRequest();
+        request.setX(10);
+        request.setY(20);
+        request.setWidth(100);
+        request.setHeight(200);
+        for (int z = 1; z <= 3; z++) {
+            request.setZ(z);
+            createWidget(request);
+        }
+
+        String snapshotVersion = perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets")
+                        .param("limit", "2")
+                )
+                .andExpect(status().isOk())
+                .andExpect(header().exists(WidgetController.SNAPSHOT_VERSION_HEADER))
+                .andExpect(jsonPath("$[1].z").value(2))
+                .andReturn()
+                .getResponse()
+                .getHeader(WidgetController.SNAPSHOT_VERSION_HEADER);
+
+        // Shifts every widget of the board one step up
+        request.setZ(1);
+        createWidget(request);
+
+        perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets")
+                        .param("limit", "2")
+                        .param("offset", "2")
+                        .param("snapshotVersion", snapshotVersion)
+                )
+                .andExpect(status().isOk())
+                .andExpect(header().string(WidgetController.SNAPSHOT_VERSION_HEADER, snapshotVersion))
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].z").value(3));
+        perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets")
+                        .param("cursor", WidgetPageCursor.encode(2))
+                        .param("snapshotVersion", snapshotVersion)
+                )
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.widgets.length()").value(1))
+                .andExpect(jsonPath("$.widgets[0].z").value(3))
+                .andExpect(jsonPath("$.snapshotVersion").value(Long.parseLong(snapshotVersion)));
+
+        perform(MockMvcRequestBuilders.get("/api/v1/widgets").param("limit", "2").param("offset", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0].z").value(3));
+
+        // Page that holds the whole board has nothing to continue with, so no snapshot is retained for it
+        perform(MockMvcRequestBuilders.get("/api/v1/widgets").param("limit", "10"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(4))
+                .andExpect(header().doesNotExist(WidgetController.SNAPSHOT_VERSION_HEADER));
+    }
+
+    @Test
+    public void get_shouldReturnGoneIfSnapshotIsNotRetained() throws Exception {
+        perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets")
+                        .param("snapshotVersion", "42")
+                )
+                .andExpect(status().isGone());
+    }
+
+    @Test
+    public void get_shouldReturnBadRequestDueToMalformedCursor() throws Exception {
+        perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets")
+                        .param("cursor", "not-a-cursor")
+                )
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void get_shouldReturnWidgetsInAreaInZOrder() throws Exception {
+        int[][] widgets = {{50, 50, 3}, {50, 100, 1}, {300, 300, 2}};
+        for (int[] widget : widgets) {
+            CreateWidgetRequest request = new CreateWidgetRequest();
+
+            request.setX(widget[0]);
+            request.setY(widget[1]);
+            request.setZ(widget[2]);
+            request.setWidth(100);
+            request.setHeight(100);
+
+            perform(MockMvcRequestBuilders
+                    .post("/api/v1/widgets")
+                    .contentType(APPLICATION_JSON)
+                    .content(objectMapper.writeValueAsString(request))
+            ).andExpect(status().isOk());
+        }
+
+        perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets")
+                        .param("area", "0,0,100,150")
+                )
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0].z").value(1))
+                .andExpect(jsonPath("$[1].z").value(3));
+    }
+
+    @Test
+    public void get_shouldReturnWidgetsAtThePoint() throws Exception {
+        int[][] widgets = {{50, 50, 3}, {100, 100, 1}};
+        for (int[] widget : widgets) {
+            CreateWidgetRequest request = new CreateWidgetRequest();
+
+            request.setX(widget[0]);
+            request.setY(widget[1]);
+            request.setZ(widget[2]);
+            request.setWidth(100);
+            request.setHeight(100);
+
+            perform(MockMvcRequestBuilders
+                    .post("/api/v1/widgets")
+                    .contentType(APPLICATION_JSON)
+                    .content(objectMapper.writeValueAsString(request))
+            ).andExpect(status().isOk());
+        }
+
+        perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets/at")
+                        .param("x", "75")
+                        .param("y", "75")
+                )
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0].z").value(1))
+                .andExpect(jsonPath("$[1].z").value(3));
+
+        perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets/at/topmost")
+                        .param("x", "75")
+                        .param("y", "75")
+                )
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.z").value(3));
+
+        perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets/at/topmost")
+                        .param("x", "500")
+                        .param("y", "500")
+                )
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void postBatch_shouldApplyDeletionsUpdatesAndCreations() throws Exception {
+        CreateWidgetRequest createRequest = new CreateWidgetRequest();
+        createRequest.setX(10);
+        createRequest.setY(20);
+        createRequest.setZ(1);
+        createRequest.setWidth(100);
+        createRequest.setHeight(100);
+
+        WidgetsBatchRequest createBatch = new WidgetsBatchRequest();
+        createBatch.setCreate(List.of(createRequest, createRequest, createRequest));
+
+        MvcResult createResult = perform(MockMvcRequestBuilders
+                        .post("/api/v1/widgets/batch")
+                        .contentType(APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(createBatch))
+                )
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.created.length()").value(3))
+                .andExpect(jsonPath("$.created[0].z").value(3))
+                .andExpect(jsonPath("$.created[2].z").value(1))
+                .andExpect(jsonPath("$.updated.length()").value(0))
+                .andReturn();
+        JsonNode createdWidgets = objectMapper.readTree(createResult.getResponse().getContentAsString()).get("created");
+
+        BatchUpdateWidgetRequest updateRequest = new BatchUpdateWidgetRequest();
+        updateRequest.setId(UUID.fromString(createdWidgets.get(1).get("id").asText()));
+        updateRequest.setX(500);
+
+        WidgetsBatchRequest mixedBatch = new WidgetsBatchRequest();
+        mixedBatch.setDelete(List.of(UUID.fromString(createdWidgets.get(0).get("id").asText())));
+        mixedBatch.setUpdate(List.of(updateRequest));
+        mixedBatch.setCreate(List.of(createRequest));
+
+        perform(MockMvcRequestBuilders
+                        .post("/api/v1/widgets/batch")
+                        .contentType(APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(mixedBatch))
+                )
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.updated[0].x").value(500))
+                .andExpect(jsonPath("$.created[0].z").value(1));
+
+        perform(MockMvcRequestBuilders.get("/api/v1/widgets"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(3));
+    }
+
+    @Test
+    public void postBatch_shouldReturnNotFoundAndChangeNothingIfWidgetIsMissing() throws Exception {
+        WidgetsBatchRequest batch = new WidgetsBatchRequest();
+        batch.setDelete(List.of(UUID.randomUUID()));
+
+        perform(MockMvcRequestBuilders
+                        .post("/api/v1/widgets/batch")
+                        .contentType(APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(batch))
+                )
+                .andExpect(status().isNotFound());
+
+        CreateWidgetRequest invalidRequest = new CreateWidgetRequest();
+        invalidRequest.setX(10);
+        batch = new WidgetsBatchRequest();
+        batch.setCreate(List.of(invalidRequest));
+
+        perform(MockMvcRequestBuilders
+                        .post("/api/v1/widgets/batch")
+                        .contentType(APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(batch))
+                )
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void postImport_shouldLoadWidgetsFromNdjson() throws Exception {
+        String body = "{\"x\": 10, \"y\": 20, \"z\": 5, \"width\": 100, \"height\": 100}\n"
+                + "{\"x\": 30, \"y\": 40, \"z\": 5, \"width\": 100, \"height\": 100}\n";
+
+        perform(MockMvcRequestBuilders
+                        .post("/api/v1/widgets/import")
+                        .contentType("application/x-ndjson")
+                        .content(body)
+                )
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.importedCount").value(2));
+
+        perform(MockMvcRequestBuilders.get("/api/v1/widgets"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0].x").value(30))
+                .andExpect(jsonPath("$[1].z").value(6));
+
+        perform(MockMvcRequestBuilders
+                        .post("/api/v1/widgets/import")
+                        .contentType("application/x-ndjson")
+                        .content(body)
+                )
+                .andExpect(status().isConflict());
+    }
+
+    @Test
+    public void postImport_shouldReturnBadRequestDueToInvalidLine() throws Exception {
+        String body = "{\"x\": 10, \"y\": 20, \"width\": 100, \"height\": 100}\n"
+                + "{\"x\": 10, \"y\": 20, \"width\": 0, \"height\": 100}\n";
+
+        perform(MockMvcRequestBuilders
+                        .post("/api/v1/widgets/import")
+                        .contentType("application/x-ndjson")
+                        .content(body)
+                )
+                .andExpect(status().isBadRequest());
+
+        perform(MockMvcRequestBuilders
+                        .post("/api/v1/widgets/import")
+                        .contentType("application/x-ndjson")
+                        .content("{\"x\": 10,")
+                )
+                .andExpect(status().isBadRequest());
+
+        perform(MockMvcRequestBuilders.get("/api/v1/widgets"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(0));
+    }
+
+    @Test
+    public void getExport_shouldStreamWidgetsInZOrderAsNdjson() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 2_500; i++) {
+            body.append("{\"x\": ").append(i).append(", \"y\": 0, \"z\": ").append(2_500 - i)
+                    .append(", \"width\": 10, \"height\": 10}\n");
+        }
+        perform(MockMvcRequestBuilders
+                        .post("/api/v1/widgets/import")
+                        .contentType("application/x-ndjson")
+                        .content(body.toString())
+                )
+                .andExpect(status().isOk());
+
+        MvcResult exportResult = mockMvc.perform(MockMvcRequestBuilders.get("/api/v1/widgets/export"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        String export = mockMvc.perform(asyncDispatch(exportResult))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+
+        String[] lines = export.split("\n");
+        assertEquals(2_500, lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            JsonNode widget = objectMapper.readTree(lines[i]);
+            assertEquals(i + 1, widget.get("z").asInt());
+            assertEquals(2_500 - i - 1, widget.get("x").asInt());
+        }
+    }
+
+    @Test
+    public void getChanges_shouldStreamChangesSinceSequence() throws Exception {
+        CreateWidgetRequest request = new CreateWidgetRequest();
+        request.setX(10);
+        request.setY(20);
+        request.setZ(1);
+        request.setWidth(100);
+        request.setHeight(200);
+        for (int i = 0; i < 2; i++) {
+            perform(MockMvcRequestBuilders
+                            .post("/api/v1/widgets")
+                            .contentType(APPLICATION_JSON)
+                            .content(objectMapper.writeValueAsString(request))
+                    )
+                    .andExpect(status().isOk());
+        }
+
+        String epoch = getBoardEpoch();
+        List<String> events = streamChanges("0", epoch + ":3");
+        assertEquals(3, events.size());
+        assertEquals(List.of("id:" + epoch + ":1", "event:created"), List.of(events.get(0).split("\n")).subList(0, 2));
+        assertEquals(List.of("id:" + epoch + ":2", "event:shifted"), List.of(events.get(1).split("\n")).subList(0, 2));
+        assertEquals(List.of("id:" + epoch + ":3", "event:created"), List.of(events.get(2).split("\n")).subList(0, 2));
+
+        // Resuming from an event id streams only the changes after it
+        List<String> resumedEvents = streamChanges(epoch + ":2", epoch + ":3");
+        assertEquals(1, resumedEvents.size());
+        assertEquals(List.of("id:" + epoch + ":3", "event:created"), List.of(resumedEvents.get(0).split("\n")).subList(0, 2));
+
+        JsonNode shift = objectMapper.readTree(events.get(1).split("\n")[2].substring("data:".length()));
+        assertEquals(1, shift.get("shiftFrom").asInt());
+        assertEquals(1, shift.get("shiftedCount").asInt());
+    }
+
+    @Test
+    public void getChanges_shouldResetClientResumingFromEarlierFeed() throws Exception {
+        CreateWidgetRequest request = new CreateWidgetRequest();
+        request.setX(10);
+        request.setY(20);
+        request.setWidth(100);
+        request.setHeight(200);
+        createWidget(request);
+
+        String epoch = getBoardEpoch();
+        MvcResult changesResult = mockMvc.perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets/changes")
+                        .header("Last-Event-ID", "0123456789abcdef:42")
+                )
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        String changes = awaitChanges(changesResult, "event:reset");
+        assertEquals(
+                List.of("id:" + epoch + ":1", "event:reset", "data:" + epoch + ":1"),
+                List.of(changes.split("\n\n")[0].split("\n"))
+        );
+
+        perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets/changes")
+                        .param("since", "not-an-id")
+                )
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void get_shouldAnswerNotModifiedWhileWidgetIsUnchanged() throws Exception {
+        CreateWidgetRequest request = new CreateWidgetRequest();
+        request.setX(10);
+        request.setY(20);
+        request.setZ(5);
+        request.setWidth(100);
+        request.setHeight(200);
+        String widgetId = createWidget(request).get("id").asText();
+
+        String eTag = perform(MockMvcRequestBuilders.get("/api/v1/widgets/" + widgetId))
+                .andExpect(status().isOk())
+                .andExpect(header().exists("ETag"))
+                .andReturn()
+                .getResponse()
+                .getHeader("ETag");
+
+        perform(MockMvcRequestBuilders.get("/api/v1/widgets/" + widgetId).header("If-None-Match", eTag))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+
+        // Widget above doesn't touch it, so it is still not modified though the board is
+        request.setZ(10);
+        createWidget(request);
+        perform(MockMvcRequestBuilders.get("/api/v1/widgets/" + widgetId).header("If-None-Match", eTag))
+                .andExpect(status().isNotModified());
+
+        // Widget put at its z index shifts it up
+        request.setZ(5);
+        createWidget(request);
+        perform(MockMvcRequestBuilders.get("/api/v1/widgets/" + widgetId).header("If-None-Match", eTag))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.z").value(6));
+    }
+
+    @Test
+    public void get_shouldAnswerNotModifiedWhileBoardIsUnchanged() throws Exception {
+        CreateWidgetRequest request = new CreateWidgetRequest();
+        request.setX(10);
+        request.setY(20);
+        request.setWidth(100);
+        request.setHeight(200);
+        createWidget(request);
+
+        String eTag = perform(MockMvcRequestBuilders.get("/api/v1/widgets"))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getHeader("ETag");
+        String cursorETag = perform(MockMvcRequestBuilders.get("/api/v1/widgets").param("cursor", ""))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getHeader("ETag");
+
+        perform(MockMvcRequestBuilders.get("/api/v1/widgets").header("If-None-Match", eTag))
+                .andExpect(status().isNotModified());
+        perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets")
+                        .param("cursor", "")
+                        .header("If-None-Match", cursorETag)
+                )
+                .andExpect(status().isNotModified());
+
+        createWidget(request);
+        perform(MockMvcRequestBuilders.get("/api/v1/widgets").header("If-None-Match", eTag))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2));
+    }
+
+    @Test
+    public void get_shouldNotTakeTagsIssuedForOtherResources() throws Exception {
+        CreateWidgetRequest request = new CreateWidgetRequest();
+        request.setX(10);
+        request.setY(20);
+        request.setWidth(100);
+        request.setHeight(200);
+        String firstWidgetId = createWidget(request).get("id").asText();
+        String secondWidgetId = createWidget(request).get("id").asText();
+
+        String firstWidgetETag = perform(MockMvcRequestBuilders.get("/api/v1/widgets/" + firstWidgetId))
+                .andReturn()
+                .getResponse()
+                .getHeader("ETag");
+        String pageETag = perform(MockMvcRequestBuilders.get("/api/v1/widgets"))
+                .andReturn()
+                .getResponse()
+                .getHeader("ETag");
+
+        // Board is unchanged, but the tags were issued for other resources
+        perform(MockMvcRequestBuilders.get("/api/v1/widgets/" + secondWidgetId).header("If-None-Match", firstWidgetETag))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value(secondWidgetId));
+        perform(MockMvcRequestBuilders.get("/api/v1/widgets").header("If-None-Match", firstWidgetETag))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2));
+        perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets")
+                        .param("cursor", "")
+                        .header("If-None-Match", firstWidgetETag)
+                )
+                .andExpect(status().isOk());
+        perform(MockMvcRequestBuilders.get("/api/v1/widgets/" + firstWidgetId).header("If-None-Match", pageETag))
+                .andExpect(status().isOk());
+
+        // Board version alone, as the tags of pages used to be, matches nothing
+        String bareBoardVersion = '"' + pageETag.substring(pageETag.indexOf(':') + 1);
+        perform(MockMvcRequestBuilders.get("/api/v1/widgets").header("If-None-Match", bareBoardVersion))
+                .andExpect(status().isOk());
+
+        UpdateWidgetRequest updateRequest = new UpdateWidgetRequest();
+        updateRequest.setX(30);
+        for (String foreignETag : List.of(firstWidgetETag, pageETag)) {
+            perform(MockMvcRequestBuilders
+                            .put("/api/v1/widgets/" + secondWidgetId)
+                            .header("If-Match", foreignETag)
+                            .contentType(APPLICATION_JSON)
+                            .content(objectMapper.writeValueAsString(updateRequest))
+                    )
+                    .andExpect(status().isBadRequest());
+        }
+    }
+
+    @Test
+    public void put_shouldApplyUpdateOnlyIfVersionMatches() throws Exception {
+        CreateWidgetRequest request = new CreateWidgetRequest();
+        request.setX(10);
+        request.setY(20);
+        request.setWidth(100);
+        request.setHeight(200);
+        JsonNode createdWidget = createWidget(request);
+        assertEquals(1, createdWidget.get("version").asLong());
+        String widgetId = createdWidget.get("id").asText();
+
+        String eTag = perform(MockMvcRequestBuilders.get("/api/v1/widgets/" + widgetId))
+                .andReturn()
+                .getResponse()
+                .getHeader("ETag");
+
+        UpdateWidgetRequest updateRequest = new UpdateWidgetRequest();
+        updateRequest.setX(30);
+        perform(MockMvcRequestBuilders
+                        .put("/api/v1/widgets/" + widgetId)
+                        .header("If-Match", eTag)
+                        .contentType(APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(updateRequest))
+                )
+                .andExpect(status().isOk())
+                .andExpect(header().exists("ETag"))
+                .andExpect(jsonPath("$.x").value(30))
+                .andExpect(jsonPath("$.version").value(2));
+
+        // Both the stale tag and the stale bare version are rejected
+        updateRequest.setX(40);
+        for (String staleVersion : List.of(eTag, "\"1\"")) {
+            perform(MockMvcRequestBuilders
+                            .put("/api/v1/widgets/" + widgetId)
+                            .header("If-Match", staleVersion)
+                            .contentType(APPLICATION_JSON)
+                            .content(objectMapper.writeValueAsString(updateRequest))
+                    )
+                    .andExpect(status().isConflict());
+        }
+
+        perform(MockMvcRequestBuilders
+                        .put("/api/v1/widgets/" + widgetId)
+                        .header("If-Match", "\"2\"")
+                        .contentType(APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(updateRequest))
+                )
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.x").value(40))
+                .andExpect(jsonPath("$.version").value(3));
+
+        perform(MockMvcRequestBuilders
+                        .put("/api/v1/widgets/" + widgetId)
+                        .header("If-Match", "\"not-a-version\"")
+                        .contentType(APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(updateRequest))
+                )
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void get_shouldReturnBadRequestDueToMalformedArea() throws Exception {
+        perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets")
+                        .param("area", "0,0,100")
+                )
+                .andExpect(status().isBadRequest());
+
+        perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets")
+                        .param("area", "100,0,0,100")
+                )
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void boards_shouldKeepWidgetsApart() throws Exception {
+        // Boards outlive the context in the directory, so every run takes boards of its own
+        String board = "/api/v1/boards/" + UUID.randomUUID() + "/widgets";
+        String otherBoard = "/api/v1/boards/" + UUID.randomUUID() + "/widgets";
+        CreateWidgetRequest request = new CreateWidgetRequest();
+        request.setX(10);
+        request.setY(20);
+        request.setZ(1);
+        request.setWidth(100);
+        request.setHeight(200);
+
+        String response = perform(MockMvcRequestBuilders
+                        .post(board)
+                        .contentType(APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request))
+                )
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        String widgetId = objectMapper.readTree(response).get("id").asText();
+
+        perform(MockMvcRequestBuilders.get(board + "/" + widgetId))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.z").value(1));
+        perform(MockMvcRequestBuilders.get(otherBoard + "/" + widgetId))
+                .andExpect(status().isNotFound());
+        perform(MockMvcRequestBuilders.get("/api/v1/widgets/" + widgetId))
+                .andExpect(status().isNotFound());
+        perform(MockMvcRequestBuilders.get(board))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(1));
+
+        perform(MockMvcRequestBuilders.delete(board + "/" + widgetId))
+                .andExpect(status().isOk());
+        perform(MockMvcRequestBuilders.get(board))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(0));
+    }
+
+    @Test
+    public void boards_shouldReturnBadRequestDueToInvalidBoardId() throws Exception {
+        perform(MockMvcRequestBuilders.get("/api/v1/boards/" + "a".repeat(65) + "/widgets"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void getPrometheus_shouldExposeServiceAndRepositoryMetrics() throws Exception {
+        CreateWidgetRequest request = new CreateWidgetRequest();
+        request.setX(10);
+        request.setY(20);
+        request.setWidth(100);
+        request.setHeight(200);
+        createWidget(request);
+
+        String metrics = perform(MockMvcRequestBuilders.get("/actuator/prometheus"))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+
+        assertTrue(metrics.contains("widgets_service_seconds_count{board=\"\",operation=\"create\",} 1.0"));
+        assertTrue(metrics.contains("widgets_repository_widgets{board=\"\",} 1.0"));
+        assertTrue(metrics.contains("widgets_repository_lock_hold_seconds_bucket{board=\"\",mode=\"write\""));
+        assertTrue(metrics.contains("widgets_repository_shift_run_length_widgets_count{board=\"\",} 0.0"));
+    }
+
+    /*
+        Most of the handlers complete on a worker thread, so their results are dispatched once they are ready
+     */
+    private String getBoardEpoch() throws Exception {
+        String tag = perform(MockMvcRequestBuilders.get("/api/v1/widgets"))
+                .andReturn()
+                .getResponse()
+                .getHeader("ETag");
+        return tag.substring(1, tag.indexOf(':'));
+    }
+
+    private List<String> streamChanges(String since, String lastEventId) throws Exception {
+        MvcResult changesResult = mockMvc.perform(MockMvcRequestBuilders
+                        .get("/api/v1/widgets/changes")
+                        .param("since", since)
+                )
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return List.of(awaitChanges(changesResult, "id:" + lastEventId + "\n").split("\n\n"));
+    }
+
+    /*
+        Events are sent by the sender threads of the broadcaster, so wait for the expected one
+     */
+    private String awaitChanges(MvcResult changesResult, String expected) throws Exception {
+        String changes = "";
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!changes.contains(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            changes = changesResult.getResponse().getContentAsString();
+        }
+        return changes;
+    }
+
+    private ResultActions perform(RequestBuilder request) throws Exception {
+        ResultActions actions = mockMvc.perform(request);
+        MvcResult result = actions.andReturn();
+        if (result.getRequest().isAsyncStarted()) {
+            return mockMvc.perform(asyncDispatch(result));
+        }
+        return actions;
+    }
+
+    private JsonNode createWidget(CreateWidgetRequest request) throws Exception {
+        String response = perform(MockMvcRequestBuilders
+                        .post("/api/v1/widgets")
+                        .contentType(APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request))
+                )
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        return objectMapper.readTree(response);
+    }
 }
@@ -0,0 +1,84 @@
+package com.azaitsev.widgets.repository.widget;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WidgetChangeFeedUnitTest {
+
+    @Test
+    public void getChangesAfter_shouldReturnChangesInOrderUpToLimit() {
+        WidgetChangeFeed feed = new WidgetChangeFeed(8);
+        for (int i = 0; i < 5; i++) {
+            feed.deleted(UUID.randomUUID());
+        }
+
+        List<WidgetChange> changes = feed.getChangesAfter(1, 3).orElseThrow();
+
+        assertEquals(5, feed.getLastSequence());
+        assertEquals(3, changes.size());
+        assertEquals(2, changes.get(0).getSequence());
+        assertEquals(4, changes.get(2).getSequence());
+        assertTrue(feed.getChangesAfter(5, 10).orElseThrow().isEmpty());
+    }
+
+    @Test
+    public void getChangesAfter_shouldReturnEmptyResultIfChangesAreDropped() {
+        WidgetChangeFeed feed = new WidgetChangeFeed(4);
+        for (int i = 0; i < 10; i++) {
+            feed.shifted(i, 1);
+        }
+
+        // Changes 7 to 10 are kept, so the feed can resume after 6 but not after 5
+        assertTrue(feed.getChangesAfter(5, 10).isEmpty());
+        assertEquals(4, feed.getChangesAfter(6, 10).orElseThrow().size());
+        assertEquals(9, feed.getChangesAfter(8, 10).orElseThrow().get(1).getShiftFrom());
+        assertTrue(feed.getChangesAfter(11, 10).isEmpty());
+    }
+
+    @Test
+    public void getEpoch_shouldTellFeedsApart() {
+        WidgetChangeFeed feed = new WidgetChangeFeed();
+        long epoch = feed.getEpoch();
+        feed.cleared();
+
+        assertEquals(epoch, feed.getEpoch());
+        assertNotEquals(epoch, new WidgetChangeFeed().getEpoch());
+    }
+
+    @Test
+    public void getChangesAfter_shouldResumeContinuedFeedFromItsStart() {
+        WidgetChangeFeed feed = new WidgetChangeFeed(42, 100);
+        for (int i = 0; i < 20; i++) {
+            feed.shifted(i, 1);
+        }
+
+        assertEquals(42, feed.getEpoch());
+        assertEquals(120, feed.getLastSequence());
+        // Changes up to the start are not known to the continued feed
+        assertTrue(feed.getChangesAfter(99, 10).isEmpty());
+        List<WidgetChange> changes = feed.getChangesAfter(100, 30).orElseThrow();
+        assertEquals(20, changes.size());
+        assertEquals(101, changes.get(0).getSequence());
+        assertEquals(19, changes.get(19).getShiftFrom());
+    }
+
+    @Test
+    public void addListener_shouldNotifyListenerAfterEveryChange() {
+        WidgetChangeFeed feed = new WidgetChangeFeed();
+        AtomicInteger notificationsCount = new AtomicInteger();
+        Runnable listener = notificationsCount::incrementAndGet;
+
+        feed.addListener(listener);
+        feed.cleared();
+        feed.cleared();
+        feed.removeListener(listener);
+        feed.cleared();
+
+        assertEquals(2, notificationsCount.get());
+    }
+}
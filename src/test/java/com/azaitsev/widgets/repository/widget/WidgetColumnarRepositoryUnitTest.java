@@ -0,0 +1,295 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import com.azaitsev.widgets.repository.exceptions.BoardNotEmptyException;
+import com.azaitsev.widgets.repository.exceptions.EntityNotFoundException;
+import com.azaitsev.widgets.repository.exceptions.StaleVersionException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WidgetColumnarRepositoryUnitTest {
+    // One widget past a power of two, so the columns and the id index have just grown and spare capacity is the largest
+    private static final int FOOTPRINT_BOARD_SIZE = 262_145;
+    private static final int MAX_BYTES_PER_WIDGET = 140;
+
+    private final WidgetRepository repository = new WidgetColumnarRepository();
+
+    @AfterEach
+    public void tearDown() {
+        repository.clear();
+    }
+
+    @Test
+    public void createAndGet_shouldCreateWidgetAndReturnItById() {
+        ImmutableWidget createdWidget = repository.create(getDefaultWidgetChangeSet());
+
+        Optional<ImmutableWidget> fetchResult = repository.get(createdWidget.getId());
+
+        assertEquals(Optional.of(createdWidget), fetchResult);
+        assertEquals(10, (int) createdWidget.getX());
+        assertEquals(20, (int) createdWidget.getY());
+        assertEquals(30, (int) createdWidget.getZ());
+        assertEquals(100, (int) createdWidget.getHeight());
+        assertEquals(200, (int) createdWidget.getWidth());
+        assertNotNull(createdWidget.getLastModificationDate());
+    }
+
+    @Test
+    public void createAndUpdate_shouldKeepAbsentYCoordinate() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setY(null);
+
+        ImmutableWidget createdWidget = repository.create(changeSet);
+        assertNull(createdWidget.getY());
+        assertNull(repository.get(createdWidget.getId()).orElseThrow().getY());
+
+        WidgetChangeSet moveChangeSet = new WidgetChangeSet();
+        moveChangeSet.setX(15);
+        assertNull(repository.update(createdWidget.getId(), moveChangeSet).getY());
+
+        moveChangeSet.setY(0);
+        assertEquals(0, (int) repository.update(createdWidget.getId(), moveChangeSet).getY());
+
+        // Slot freed by the deletion is reused by a widget without Y coordinate
+        repository.delete(createdWidget.getId());
+        ImmutableWidget reusingWidget = repository.create(changeSet);
+        assertNull(reusingWidget.getY());
+    }
+
+    @Test
+    public void create_shouldShiftWidgetsIfSpecifiedZIndexIsNotVacant() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(null);
+
+        ImmutableWidget firstWidget = repository.create(changeSet);
+        ImmutableWidget secondWidget = repository.create(changeSet);
+
+        changeSet.setZ(5);
+        ImmutableWidget detachedWidget = repository.create(changeSet);
+
+        changeSet.setZ(1);
+        ImmutableWidget newWidget = repository.create(changeSet);
+
+        List<ImmutableWidget> widgetsPage = repository.getPage(10, 0);
+
+        assertEquals(
+                List.of(newWidget.getId(), firstWidget.getId(), secondWidget.getId(), detachedWidget.getId()),
+                widgetsPage.stream().map(ImmutableWidget::getId).collect(Collectors.toList())
+        );
+        assertEquals(
+                List.of(1, 2, 3, 5),
+                widgetsPage.stream().map(ImmutableWidget::getZ).collect(Collectors.toList())
+        );
+    }
+
+    @Test
+    public void update_shouldMoveWidgetAlongZAxis() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(null);
+
+        ImmutableWidget firstWidget = repository.create(changeSet);
+        ImmutableWidget secondWidget = repository.create(changeSet);
+        ImmutableWidget thirdWidget = repository.create(changeSet);
+
+        WidgetChangeSet updateChangeSet = new WidgetChangeSet();
+        updateChangeSet.setZ(1);
+        updateChangeSet.setWidth(333);
+        ImmutableWidget updatedWidget = repository.update(thirdWidget.getId(), updateChangeSet);
+
+        assertEquals(333, (int) updatedWidget.getWidth());
+        assertEquals(
+                List.of(thirdWidget.getId(), firstWidget.getId(), secondWidget.getId()),
+                repository.getPage(10, 0).stream().map(ImmutableWidget::getId).collect(Collectors.toList())
+        );
+        assertEquals(Optional.of(0L), repository.getRank(thirdWidget.getId()));
+        assertEquals(Optional.of(2L), repository.getRank(secondWidget.getId()));
+    }
+
+    @Test
+    public void compareAndUpdate_shouldRejectStaleVersion() {
+        ImmutableWidget createdWidget = repository.create(getDefaultWidgetChangeSet());
+
+        WidgetChangeSet updateChangeSet = new WidgetChangeSet();
+        updateChangeSet.setZ(5);
+        ImmutableWidget updatedWidget = repository.compareAndUpdate(createdWidget.getId(), 1, updateChangeSet);
+
+        assertEquals(2, updatedWidget.getVersion());
+        assertThrows(
+                StaleVersionException.class,
+                () -> repository.compareAndUpdate(createdWidget.getId(), 1, updateChangeSet)
+        );
+        assertEquals(Optional.of(updatedWidget), repository.get(createdWidget.getId()));
+    }
+
+    @Test
+    public void delete_shouldReuseSlotOfDeletedWidget() {
+        List<UUID> widgetIds = new ArrayList<>();
+        for (int i = 0; i < 3_000; i++) {
+            widgetIds.add(repository.create(getDefaultWidgetChangeSet()).getId());
+        }
+
+        for (int i = 0; i < widgetIds.size(); i += 2) {
+            repository.delete(widgetIds.get(i));
+        }
+        ImmutableWidget createdWidget = repository.create(getDefaultWidgetChangeSet());
+
+        for (int i = 0; i < widgetIds.size(); i++) {
+            assertEquals(i % 2 != 0, repository.get(widgetIds.get(i)).isPresent());
+        }
+        assertTrue(repository.get(createdWidget.getId()).isPresent());
+        assertEquals(widgetIds.size() / 2 + 1, repository.getPage(10_000, 0).size());
+    }
+
+    @Test
+    public void delete_shouldThrowExceptionIfIdOfNonExistentWidget() {
+        assertThrows(EntityNotFoundException.class, () -> repository.delete(UUID.randomUUID()));
+    }
+
+    @Test
+    public void getPageAfter_shouldReturnWidgetsAboveCursor() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+
+        changeSet.setZ(1);
+        repository.create(changeSet);
+
+        changeSet.setZ(5);
+        ImmutableWidget secondWidget = repository.create(changeSet);
+
+        assertEquals(
+                List.of(secondWidget.getId()),
+                repository.getPageAfter(3, 10).stream().map(ImmutableWidget::getId).collect(Collectors.toList())
+        );
+        assertEquals(
+                List.of(secondWidget.getId()),
+                repository.getPageAfter(1, 10).stream().map(ImmutableWidget::getId).collect(Collectors.toList())
+        );
+    }
+
+    @Test
+    public void findInArea_shouldReturnOverlappingWidgetsOrderedByZIndex() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setWidth(100);
+        changeSet.setHeight(100);
+        changeSet.setX(50);
+        changeSet.setY(50);
+        changeSet.setZ(5);
+        ImmutableWidget topWidget = repository.create(changeSet);
+
+        changeSet.setZ(1);
+        ImmutableWidget bottomWidget = repository.create(changeSet);
+
+        changeSet.setX(1000);
+        changeSet.setZ(10);
+        repository.create(changeSet);
+
+        assertEquals(List.of(bottomWidget, topWidget), repository.findInArea(0, 0, 100, 150, 10));
+        assertEquals(List.of(bottomWidget), repository.findInArea(0, 0, 100, 150, 1));
+    }
+
+    @Test
+    public void findTopmostAt_shouldReturnUpperWidgetUnderThePoint() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setWidth(100);
+        changeSet.setHeight(100);
+        changeSet.setX(50);
+        changeSet.setY(50);
+        changeSet.setZ(5);
+        ImmutableWidget topWidget = repository.create(changeSet);
+
+        changeSet.setZ(1);
+        ImmutableWidget bottomWidget = repository.create(changeSet);
+
+        changeSet.setX(1000);
+        changeSet.setZ(10);
+        repository.create(changeSet);
+
+        assertEquals(Optional.of(topWidget), repository.findTopmostAt(50, 50));
+        assertEquals(List.of(bottomWidget, topWidget), repository.findAllAt(50, 50));
+        assertEquals(Optional.empty(), repository.findTopmostAt(500, 50));
+    }
+
+    @Test
+    public void batches_shouldApplyAllChangesOrNone() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(1);
+        List<ImmutableWidget> createdWidgets = repository.createAll(List.of(changeSet, changeSet, changeSet));
+
+        // Every widget of the batch was placed at z 1, pushing the earlier ones up
+        assertEquals(List.of(3, 2, 1), createdWidgets.stream().map(ImmutableWidget::getZ).collect(Collectors.toList()));
+
+        assertThrows(EntityNotFoundException.class, () -> {
+            repository.deleteAll(List.of(createdWidgets.get(0).getId(), UUID.randomUUID()));
+        });
+        assertEquals(3, repository.getPage(10, 0).size());
+
+        WidgetChangeSet updateChangeSet = new WidgetChangeSet();
+        updateChangeSet.setZ(1);
+        List<ImmutableWidget> updatedWidgets = repository.updateAll(Map.of(createdWidgets.get(0).getId(), updateChangeSet));
+        assertEquals(1, (int) updatedWidgets.get(0).getZ());
+
+        repository.deleteAll(List.of(createdWidgets.get(0).getId(), createdWidgets.get(1).getId()));
+        assertEquals(List.of(createdWidgets.get(2).getId()), repository.getPage(10, 0).stream()
+                .map(ImmutableWidget::getId)
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void importAll_shouldPushCollidingWidgetsUp() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        WidgetChangeSet firstChangeSet = getDefaultWidgetChangeSet();
+        firstChangeSet.setX(1);
+        firstChangeSet.setZ(5);
+        WidgetChangeSet secondChangeSet = getDefaultWidgetChangeSet();
+        secondChangeSet.setX(2);
+        secondChangeSet.setZ(5);
+        WidgetChangeSet thirdChangeSet = getDefaultWidgetChangeSet();
+        thirdChangeSet.setX(3);
+        thirdChangeSet.setZ(6);
+        WidgetChangeSet topChangeSet = getDefaultWidgetChangeSet();
+        topChangeSet.setX(4);
+        topChangeSet.setZ(null);
+
+        assertEquals(4, repository.importAll(Stream.of(firstChangeSet, topChangeSet, secondChangeSet, thirdChangeSet)));
+
+        // Widget without z index goes on top of those before it, and later widgets shift it up
+        List<ImmutableWidget> page = repository.getPage(10, 0);
+        assertEquals(List.of(2, 3, 1, 4), page.stream().map(ImmutableWidget::getX).collect(Collectors.toList()));
+        assertEquals(List.of(5, 6, 7, 8), page.stream().map(ImmutableWidget::getZ).collect(Collectors.toList()));
+        assertThrows(BoardNotEmptyException.class, () -> repository.importAll(Stream.of(changeSet)));
+    }
+
+    @Test
+    public void getAllocatedBytes_shouldStayUnderLimitPerWidgetIncludingSpareCapacity() {
+        WidgetColumnarRepository measuredRepository = new WidgetColumnarRepository();
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(null);
+        for (int i = 0; i < FOOTPRINT_BOARD_SIZE; i++) {
+            measuredRepository.create(changeSet);
+        }
+
+        assertTrue(measuredRepository.getAllocatedBytes() < (long) FOOTPRINT_BOARD_SIZE * MAX_BYTES_PER_WIDGET);
+    }
+
+    private WidgetChangeSet getDefaultWidgetChangeSet() {
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+
+        changeSet.setX(10);
+        changeSet.setY(20);
+        changeSet.setZ(30);
+        changeSet.setHeight(100);
+        changeSet.setWidth(200);
+
+        return changeSet;
+    }
+}
@@ -0,0 +1,119 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/*
+    Compares read throughput of one reader and of a reader per core while a writer keeps shifting the board.
+    Measures wall-clock time, so it runs with the benchmark profile only, on a machine that is not busy otherwise.
+ */
+@Tag("load")
+public class WidgetConcurrentInMemoryRepositoryLoadTest {
+    private static final int BOARD_SIZE = 10_000;
+    private static final long MEASUREMENT_MILLIS = 1_000;
+
+    private final WidgetRepository repository = new WidgetConcurrentInMemoryRepository();
+
+    @AfterEach
+    public void tearDown() {
+        repository.clear();
+    }
+
+    @Test
+    public void reads_shouldScaleWithCoresWhileWritesAreRunning() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        // One core is left for the writer
+        assumeTrue(cores >= 4, "Read scalability can't be shown with less than 4 cores");
+
+        List<UUID> widgetIds = fillBoard();
+
+        long singleReaderThroughput = measureReadThroughput(widgetIds, 1);
+        long multipleReadersThroughput = measureReadThroughput(widgetIds, cores - 1);
+
+        assertTrue(multipleReadersThroughput > singleReaderThroughput * 3 / 2);
+    }
+
+    private long measureReadThroughput(List<UUID> widgetIds, int readers) throws Exception {
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicBoolean reading = new AtomicBoolean(true);
+        CountDownLatch started = new CountDownLatch(readers);
+        ExecutorService executor = Executors.newFixedThreadPool(readers + 1);
+        try {
+            Future<?> writer = executor.submit(() -> writeUntilStopped(widgetIds, writing));
+            List<Future<Long>> readResults = new ArrayList<>();
+            for (int i = 0; i < readers; i++) {
+                readResults.add(executor.submit(() -> {
+                    started.countDown();
+                    long reads = 0;
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (reading.get()) {
+                        if (reads % 10 == 0) {
+                            repository.getPage(10, random.nextInt(BOARD_SIZE));
+                        } else {
+                            repository.get(widgetIds.get(random.nextInt(widgetIds.size())));
+                        }
+                        reads++;
+                    }
+                    return reads;
+                }));
+            }
+
+            started.await();
+            TimeUnit.MILLISECONDS.sleep(MEASUREMENT_MILLIS);
+            reading.set(false);
+
+            long totalReads = 0;
+            for (Future<Long> readResult : readResults) {
+                totalReads += readResult.get(1, TimeUnit.MINUTES);
+            }
+            writing.set(false);
+            writer.get(1, TimeUnit.MINUTES);
+
+            return totalReads * 1_000 / MEASUREMENT_MILLIS;
+        } finally {
+            writing.set(false);
+            reading.set(false);
+            executor.shutdownNow();
+        }
+    }
+
+    private void writeUntilStopped(List<UUID> widgetIds, AtomicBoolean writing) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+        while (writing.get()) {
+            // Moving widgets to the bottom of the densely packed board makes writes shift long runs
+            changeSet.setZ(random.nextBoolean() ? 1 : random.nextInt(BOARD_SIZE) + 1);
+            repository.update(widgetIds.get(random.nextInt(widgetIds.size())), changeSet);
+        }
+    }
+
+    private List<UUID> fillBoard() {
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+        changeSet.setX(10);
+        changeSet.setY(20);
+        changeSet.setHeight(100);
+        changeSet.setWidth(200);
+
+        List<UUID> widgetIds = new ArrayList<>(BOARD_SIZE);
+        for (int i = 0; i < BOARD_SIZE; i++) {
+            widgetIds.add(repository.create(changeSet).getId());
+        }
+        return widgetIds;
+    }
+}
@@ -0,0 +1,266 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import com.azaitsev.widgets.repository.exceptions.EntityNotFoundException;
+import com.azaitsev.widgets.repository.exceptions.StaleVersionException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WidgetConcurrentInMemoryRepositoryUnitTest {
+    private static final int BOARD_SIZE = 10_000;
+
+    private final WidgetRepository repository = new WidgetConcurrentInMemoryRepository();
+
+    @AfterEach
+    public void tearDown() {
+        repository.clear();
+    }
+
+    @Test
+    public void get_shouldReturnSnapshotThatIsNotChangedByLaterShifts() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(1);
+
+        ImmutableWidget firstWidget = repository.create(changeSet);
+        ImmutableWidget fetchedBeforeShift = repository.get(firstWidget.getId()).orElseThrow();
+
+        repository.create(changeSet);
+
+        assertEquals(1, (int) fetchedBeforeShift.getZ());
+        assertEquals(2, (int) repository.get(firstWidget.getId()).orElseThrow().getZ());
+    }
+
+    @Test
+    public void create_shouldShiftWidgetsIfSpecifiedZIndexIsNotVacant() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(null);
+
+        ImmutableWidget firstWidget = repository.create(changeSet);
+        ImmutableWidget secondWidget = repository.create(changeSet);
+
+        changeSet.setZ(1);
+        ImmutableWidget newWidget = repository.create(changeSet);
+
+        List<ImmutableWidget> widgetsPage = repository.getPage(10, 0);
+
+        assertEquals(
+                List.of(newWidget.getId(), firstWidget.getId(), secondWidget.getId()),
+                widgetsPage.stream().map(ImmutableWidget::getId).collect(Collectors.toList())
+        );
+        assertEquals(
+                List.of(1, 2, 3),
+                widgetsPage.stream().map(ImmutableWidget::getZ).collect(Collectors.toList())
+        );
+    }
+
+    @Test
+    public void update_shouldPublishNewSnapshot() {
+        ImmutableWidget createdWidget = repository.create(getDefaultWidgetChangeSet());
+
+        WidgetChangeSet updateChangeSet = new WidgetChangeSet();
+        updateChangeSet.setX(111);
+        ImmutableWidget updatedWidget = repository.update(createdWidget.getId(), updateChangeSet);
+
+        assertEquals(10, (int) createdWidget.getX());
+        assertEquals(111, (int) updatedWidget.getX());
+        assertEquals(Optional.of(updatedWidget), repository.get(createdWidget.getId()));
+    }
+
+    @Test
+    public void compareAndUpdate_shouldLetOnlyOneOfConcurrentUpdatesFromSameVersionSucceed() throws Exception {
+        ImmutableWidget createdWidget = repository.create(getDefaultWidgetChangeSet());
+        int writersCount = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(writersCount);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < writersCount; i++) {
+                WidgetChangeSet updateChangeSet = new WidgetChangeSet();
+                updateChangeSet.setX(i);
+                results.add(executor.submit(() -> {
+                    start.await();
+                    try {
+                        repository.compareAndUpdate(createdWidget.getId(), createdWidget.getVersion(), updateChangeSet);
+                        return true;
+                    } catch (StaleVersionException e) {
+                        return false;
+                    }
+                }));
+            }
+            start.countDown();
+
+            int succeededCount = 0;
+            for (Future<Boolean> result : results) {
+                succeededCount += result.get(10, TimeUnit.SECONDS) ? 1 : 0;
+            }
+            assertEquals(1, succeededCount);
+            assertEquals(createdWidget.getVersion() + 1, repository.get(createdWidget.getId()).orElseThrow().getVersion());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void batches_shouldPublishSnapshotsWithZIndexesOfOneByOneChanges() {
+        Random random = new Random(42);
+        WidgetRepository sequentialRepository = new WidgetInMemoryRepository();
+        List<UUID> widgetIds = new ArrayList<>();
+        List<UUID> sequentialWidgetIds = new ArrayList<>();
+
+        for (int batch = 0; batch < 50; batch++) {
+            List<WidgetChangeSet> createChangeSets = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+                changeSet.setX(widgetIds.size() + i);
+                changeSet.setZ(random.nextInt(10) == 0 ? null : random.nextInt(100));
+                createChangeSets.add(changeSet);
+            }
+            repository.createAll(createChangeSets).forEach(widget -> widgetIds.add(widget.getId()));
+            createChangeSets.forEach(changeSet -> sequentialWidgetIds.add(sequentialRepository.create(changeSet).getId()));
+
+            Map<UUID, WidgetChangeSet> updateChangeSets = new LinkedHashMap<>();
+            Map<UUID, WidgetChangeSet> sequentialUpdateChangeSets = new LinkedHashMap<>();
+            for (int i = 0; i < 10; i++) {
+                int widgetIndex = random.nextInt(widgetIds.size());
+                WidgetChangeSet changeSet = new WidgetChangeSet();
+                changeSet.setZ(random.nextInt(100));
+                updateChangeSets.put(widgetIds.get(widgetIndex), changeSet);
+                sequentialUpdateChangeSets.put(sequentialWidgetIds.get(widgetIndex), changeSet);
+            }
+            repository.updateAll(updateChangeSets);
+            sequentialUpdateChangeSets.forEach(sequentialRepository::update);
+        }
+
+        // Point reads serve published snapshots, so every one of them has to carry the actual z index
+        for (int i = 0; i < widgetIds.size(); i++) {
+            assertEquals(
+                    sequentialRepository.get(sequentialWidgetIds.get(i)).orElseThrow().getZ(),
+                    repository.get(widgetIds.get(i)).orElseThrow().getZ()
+            );
+        }
+    }
+
+    @Test
+    public void delete_shouldThrowExceptionIfIdOfNonExistentWidget() {
+        assertThrows(EntityNotFoundException.class, () -> repository.delete(UUID.randomUUID()));
+    }
+
+    @Test
+    public void reads_shouldSeeConsistentPagesWhileWritesAreRunning() throws Exception {
+        List<UUID> widgetIds = fillBoard();
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<?> writer = executor.submit(() -> writeUntilStopped(widgetIds, writing));
+            List<Future<?>> readers = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                readers.add(executor.submit(() -> {
+                    for (int read = 0; read < 2_000; read++) {
+                        List<ImmutableWidget> page = repository.getPage(100, read % BOARD_SIZE);
+                        for (int j = 1; j < page.size(); j++) {
+                            assertNotNull(page.get(j));
+                            assertTrue(page.get(j - 1).getZ() < page.get(j).getZ());
+                        }
+                        assertTrue(repository.get(widgetIds.get(read % widgetIds.size())).isPresent());
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> reader : readers) {
+                reader.get(1, TimeUnit.MINUTES);
+            }
+            writing.set(false);
+            writer.get(1, TimeUnit.MINUTES);
+        } finally {
+            writing.set(false);
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void get_shouldNotWaitForWriterHoldingTheLock() throws Exception {
+        ImmutableWidget createdWidget = repository.create(getDefaultWidgetChangeSet());
+
+        // Listeners of the change feed are run by the writer while it still holds the lock
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(1);
+        repository.getChangeFeed().addListener(() -> {
+            locked.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<ImmutableWidget> writer = executor.submit(() -> repository.create(getDefaultWidgetChangeSet()));
+            assertTrue(locked.await(10, TimeUnit.SECONDS));
+
+            // Reader that waited for the lock would time out here, as the writer is released only afterwards
+            Future<Optional<ImmutableWidget>> reader = executor.submit(() -> repository.get(createdWidget.getId()));
+            assertEquals(Optional.of(createdWidget), reader.get(10, TimeUnit.SECONDS));
+
+            released.countDown();
+            writer.get(10, TimeUnit.SECONDS);
+        } finally {
+            released.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private void writeUntilStopped(List<UUID> widgetIds, AtomicBoolean writing) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+        while (writing.get()) {
+            // Moving widgets to the bottom of the densely packed board makes writes shift long runs
+            changeSet.setZ(random.nextBoolean() ? 1 : random.nextInt(BOARD_SIZE) + 1);
+            repository.update(widgetIds.get(random.nextInt(widgetIds.size())), changeSet);
+        }
+    }
+
+    private List<UUID> fillBoard() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(null);
+
+        List<UUID> widgetIds = new ArrayList<>(BOARD_SIZE);
+        for (int i = 0; i < BOARD_SIZE; i++) {
+            widgetIds.add(repository.create(changeSet).getId());
+        }
+        return widgetIds;
+    }
+
+    private WidgetChangeSet getDefaultWidgetChangeSet() {
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+
+        changeSet.setX(10);
+        changeSet.setY(20);
+        changeSet.setZ(30);
+        changeSet.setHeight(100);
+        changeSet.setWidth(200);
+
+        return changeSet;
+    }
+}
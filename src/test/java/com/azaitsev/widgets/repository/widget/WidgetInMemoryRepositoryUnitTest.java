@@ -1,17 +1,30 @@
 package com.azaitsev.widgets.repository.widget;
 
+import com.azaitsev.widgets.entity.exceptions.InvalidChangeSetException;
 import com.azaitsev.widgets.entity.widget.ImmutableWidget;
 import com.azaitsev.widgets.entity.widget.Widget;
 import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import com.azaitsev.widgets.repository.exceptions.BoardNotEmptyException;
 import com.azaitsev.widgets.repository.exceptions.EntityNotFoundException;
+import com.azaitsev.widgets.repository.exceptions.SnapshotExpiredException;
+import com.azaitsev.widgets.repository.exceptions.StaleVersionException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -284,6 +297,28 @@ public class WidgetInMemoryRepositoryUnitTest {
         );
     }
 
+    @Test
+    public void update_shouldNotChangePreviouslyReturnedWidgets() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(1);
+
+        ImmutableWidget createdWidget = repository.create(changeSet);
+        ImmutableWidget fetchedWidget = repository.get(createdWidget.getId()).orElseThrow();
+
+        // Shift the widget up and change it afterwards
+        repository.create(changeSet);
+        WidgetChangeSet updateChangeSet = new WidgetChangeSet();
+        updateChangeSet.setX(111);
+        repository.update(createdWidget.getId(), updateChangeSet);
+
+        assertEquals(1, (int) fetchedWidget.getZ());
+        assertEquals(10, (int) fetchedWidget.getX());
+
+        ImmutableWidget updatedWidget = repository.get(createdWidget.getId()).orElseThrow();
+        assertEquals(2, (int) updatedWidget.getZ());
+        assertEquals(111, (int) updatedWidget.getX());
+    }
+
     @Test
     public void update_shouldThrowExceptionIfWidgetWithSpecifiedIdDoesntExists() {
         WidgetChangeSet changeSet = new WidgetChangeSet();
@@ -382,6 +417,569 @@ public class WidgetInMemoryRepositoryUnitTest {
         });
     }
 
+    @Test
+    public void getPageAfter_shouldReturnWidgetsAboveCursorOrderedByZIndex() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+
+        changeSet.setZ(-1);
+        repository.create(changeSet);
+
+        changeSet.setZ(5);
+        ImmutableWidget secondWidget = repository.create(changeSet);
+
+        changeSet.setZ(0);
+        repository.create(changeSet);
+
+        changeSet.setZ(7);
+        ImmutableWidget thirdWidget = repository.create(changeSet);
+
+        List<ImmutableWidget> widgetsPage = repository.getPageAfter(0, 10);
+
+        List<UUID> expectedOrderOfIds = List.of(secondWidget.getId(), thirdWidget.getId());
+        assertEquals(
+                widgetsPage.stream().map(ImmutableWidget::getId).collect(Collectors.toList()),
+                expectedOrderOfIds
+        );
+    }
+
+    @Test
+    public void getPageAfter_shouldStartFromTheBottomIfNoCursorProvided() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(null);
+
+        ImmutableWidget firstWidget = repository.create(changeSet);
+        repository.create(changeSet);
+
+        List<ImmutableWidget> widgetsPage = repository.getPageAfter(null, 1);
+
+        assertEquals(1, widgetsPage.size());
+        assertEquals(firstWidget.getId(), widgetsPage.get(0).getId());
+    }
+
+    @Test
+    public void getPageAfter_shouldThrowExceptionIfNegativeLimitProvided() {
+        assertThrows(IllegalArgumentException.class, () -> {
+            repository.getPageAfter(null, -1);
+        });
+    }
+
+    @Test
+    public void getPage_shouldReturnConsistentPagesWhileWidgetsAreShifted() throws InterruptedException {
+        // Every widget is put at the bottom, so a complete change always leaves z indexes without gaps
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+                changeSet.setZ(0);
+                repository.create(changeSet);
+            }
+        });
+        writer.start();
+
+        while (writer.isAlive()) {
+            List<ImmutableWidget> page = repository.getPage(10000, 0);
+            for (int position = 0; position < page.size(); position++) {
+                assertEquals(position, (int) page.get(position).getZ());
+            }
+        }
+        writer.join();
+
+        assertEquals(2000, repository.getPage(10000, 0).size());
+    }
+
+    @Test
+    public void getSnapshotPage_shouldReturnPagesAsOfRetainedVersion() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        List<UUID> widgetIds = new ArrayList<>();
+        for (int z = 1; z <= 4; z++) {
+            changeSet.setZ(z);
+            widgetIds.add(repository.create(changeSet).getId());
+        }
+        WidgetScanPage scanPage = repository.startScan(2, 0);
+        long snapshotVersion = scanPage.getSnapshotVersion().orElseThrow();
+        List<ImmutableWidget> firstPage = scanPage.getWidgets();
+        assertEquals(snapshotVersion, scanPage.getBoardVersion());
+
+        // Shifts the whole board, moves one widget and deletes another one
+        changeSet.setZ(1);
+        repository.create(changeSet);
+        repository.update(widgetIds.get(0), changeSet);
+        repository.delete(widgetIds.get(3));
+
+        List<ImmutableWidget> secondPage = repository.getSnapshotPageAfter(snapshotVersion, firstPage.get(1).getZ(), 2);
+        List<UUID> scannedIds = Stream.concat(firstPage.stream(), secondPage.stream())
+                .map(ImmutableWidget::getId)
+                .collect(Collectors.toList());
+        assertEquals(widgetIds, scannedIds);
+        assertEquals(List.of(3, 4), secondPage.stream().map(ImmutableWidget::getZ).collect(Collectors.toList()));
+        assertNotEquals(snapshotVersion, (long) repository.startScanAfter(null, 2).getSnapshotVersion().orElseThrow());
+    }
+
+    @Test
+    public void startScan_shouldRetainSnapshotOnlyIfThereMayBeMorePages() throws IOException {
+        WidgetInMemoryRepository singleSnapshotRepository = new WidgetInMemoryRepository(null, null, 1, Duration.ofMinutes(1));
+        singleSnapshotRepository.create(getDefaultWidgetChangeSet());
+        singleSnapshotRepository.create(getDefaultWidgetChangeSet());
+        long retainedVersion = singleSnapshotRepository.startScan(2, 0).getSnapshotVersion().orElseThrow();
+
+        // Polls of a later board that fit in a page don't reclaim the version of the scan in progress
+        singleSnapshotRepository.create(getDefaultWidgetChangeSet());
+        WidgetScanPage lastPage = singleSnapshotRepository.startScan(10, 0);
+        assertEquals(Optional.empty(), lastPage.getSnapshotVersion());
+        assertEquals(3, lastPage.getWidgets().size());
+        assertEquals(singleSnapshotRepository.getChangeFeed().getLastSequence(), lastPage.getBoardVersion());
+        assertEquals(Optional.empty(), singleSnapshotRepository.startScanAfter(null, 5).getSnapshotVersion());
+
+        assertEquals(2, singleSnapshotRepository.getSnapshotPage(retainedVersion, 10, 0).size());
+        singleSnapshotRepository.close();
+    }
+
+    @Test
+    public void getSnapshotPage_shouldThrowExceptionIfVersionIsNotRetained() throws IOException {
+        WidgetInMemoryRepository singleSnapshotRepository = new WidgetInMemoryRepository(null, null, 1, Duration.ofMinutes(1));
+        singleSnapshotRepository.create(getDefaultWidgetChangeSet());
+        long reclaimedVersion = singleSnapshotRepository.startScan(1, 0).getSnapshotVersion().orElseThrow();
+        singleSnapshotRepository.create(getDefaultWidgetChangeSet());
+        long retainedVersion = singleSnapshotRepository.startScan(1, 0).getSnapshotVersion().orElseThrow();
+
+        assertThrows(SnapshotExpiredException.class, () -> singleSnapshotRepository.getSnapshotPage(reclaimedVersion, 10, 0));
+        assertThrows(SnapshotExpiredException.class, () -> singleSnapshotRepository.getSnapshotPageAfter(retainedVersion + 1, null, 10));
+        assertEquals(2, singleSnapshotRepository.getSnapshotPage(retainedVersion, 10, 0).size());
+    }
+
+    @Test
+    public void getRank_shouldReturnPositionOfWidgetInZOrder() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+
+        changeSet.setZ(10);
+        ImmutableWidget topWidget = repository.create(changeSet);
+
+        changeSet.setZ(-10);
+        ImmutableWidget firstWidget = repository.create(changeSet);
+
+        changeSet.setZ(0);
+        ImmutableWidget middleWidget = repository.create(changeSet);
+
+        assertEquals(Optional.of(0L), repository.getRank(firstWidget.getId()));
+        assertEquals(Optional.of(1L), repository.getRank(middleWidget.getId()));
+        assertEquals(Optional.of(2L), repository.getRank(topWidget.getId()));
+    }
+
+    @Test
+    public void getRank_shouldReturnEmptyResultForNonExistentWidget() {
+        assertFalse(repository.getRank(UUID.randomUUID()).isPresent());
+    }
+
+    @Test
+    public void findInArea_shouldReturnOverlappingWidgetsOrderedByZIndex() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setWidth(100);
+        changeSet.setHeight(100);
+
+        changeSet.setX(50);
+        changeSet.setY(50);
+        changeSet.setZ(5);
+        ImmutableWidget firstWidget = repository.create(changeSet);
+
+        changeSet.setX(50);
+        changeSet.setY(100);
+        changeSet.setZ(1);
+        ImmutableWidget secondWidget = repository.create(changeSet);
+
+        changeSet.setX(1000);
+        changeSet.setY(1000);
+        changeSet.setZ(3);
+        ImmutableWidget farWidget = repository.create(changeSet);
+
+        assertEquals(List.of(secondWidget, firstWidget), repository.findInArea(0, 0, 100, 150, 10));
+        assertEquals(List.of(secondWidget), repository.findInArea(0, 0, 100, 150, 1));
+        assertEquals(List.of(farWidget), repository.findInArea(990, 990, 2000, 2000, 10));
+        assertEquals(List.of(), repository.findInArea(200, 200, 500, 500, 10));
+    }
+
+    @Test
+    public void findInArea_shouldFollowMovedAndDeletedWidgets() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        ImmutableWidget movedWidget = repository.create(changeSet);
+        ImmutableWidget deletedWidget = repository.create(changeSet);
+
+        WidgetChangeSet updateChangeSet = new WidgetChangeSet();
+        updateChangeSet.setX(5_000);
+        ImmutableWidget updatedWidget = repository.update(movedWidget.getId(), updateChangeSet);
+        repository.delete(deletedWidget.getId());
+
+        assertEquals(List.of(), repository.findInArea(0, 0, 100, 100, 10));
+        assertEquals(List.of(updatedWidget), repository.findInArea(4_990, 0, 5_010, 100, 10));
+    }
+
+    @Test
+    public void findInArea_shouldThrowExceptionIfCornersAreMixedUp() {
+        assertThrows(IllegalArgumentException.class, () -> repository.findInArea(10, 0, 0, 10, 10));
+    }
+
+    @Test
+    public void findAt_shouldReturnWidgetsUnderThePoint() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setWidth(100);
+        changeSet.setHeight(100);
+
+        changeSet.setX(50);
+        changeSet.setY(50);
+        changeSet.setZ(5);
+        ImmutableWidget lowerWidget = repository.create(changeSet);
+
+        changeSet.setX(100);
+        changeSet.setY(100);
+        changeSet.setZ(7);
+        ImmutableWidget upperWidget = repository.create(changeSet);
+
+        assertEquals(Optional.of(upperWidget), repository.findTopmostAt(75, 75));
+        assertEquals(List.of(lowerWidget, upperWidget), repository.findAllAt(75, 75));
+        assertEquals(Optional.of(lowerWidget), repository.findTopmostAt(10, 10));
+        assertEquals(List.of(lowerWidget), repository.findAllAt(10, 10));
+        // Border of a widget counts
+        assertEquals(Optional.of(upperWidget), repository.findTopmostAt(150, 150));
+        assertEquals(Optional.empty(), repository.findTopmostAt(151, 150));
+        assertEquals(List.of(), repository.findAllAt(151, 150));
+    }
+
+    @Test
+    public void createAll_shouldPlaceWidgetsAsIfTheyWereCreatedOneByOne() {
+        List<WidgetChangeSet> changeSets = new ArrayList<>();
+        Integer[] zAxisIndexes = {3, 3, null, 1, 2, 3, null, 1};
+        for (int i = 0; i < zAxisIndexes.length; i++) {
+            WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+            changeSet.setX(i);
+            changeSet.setZ(zAxisIndexes[i]);
+            changeSets.add(changeSet);
+        }
+
+        WidgetRepository sequentialRepository = new WidgetInMemoryRepository();
+        changeSets.forEach(sequentialRepository::create);
+        List<ImmutableWidget> createdWidgets = repository.createAll(changeSets);
+
+        assertEquals(
+                getXToZ(sequentialRepository.getPage(20, 0)),
+                getXToZ(repository.getPage(20, 0))
+        );
+        // Widgets are returned in the order of the batch, with z indexes they have after it
+        assertEquals(getXToZ(repository.getPage(20, 0)), getXToZ(createdWidgets));
+        for (int i = 0; i < createdWidgets.size(); i++) {
+            assertEquals(i, (int) createdWidgets.get(i).getX());
+        }
+    }
+
+    @Test
+    public void createAll_shouldLeaveBoardUntouchedIfAnyChangeSetIsInvalid() {
+        WidgetChangeSet invalidChangeSet = getDefaultWidgetChangeSet();
+        invalidChangeSet.setWidth(null);
+
+        assertThrows(InvalidChangeSetException.class, () -> {
+            repository.createAll(List.of(getDefaultWidgetChangeSet(), invalidChangeSet));
+        });
+        assertEquals(List.of(), repository.getPage(10, 0));
+    }
+
+    @Test
+    public void updateAll_shouldLeaveBoardUntouchedIfAnyWidgetIsMissing() {
+        ImmutableWidget widget = repository.create(getDefaultWidgetChangeSet());
+
+        WidgetChangeSet updateChangeSet = new WidgetChangeSet();
+        updateChangeSet.setX(500);
+        Map<UUID, WidgetChangeSet> changeSets = new LinkedHashMap<>();
+        changeSets.put(widget.getId(), updateChangeSet);
+        changeSets.put(UUID.randomUUID(), updateChangeSet);
+
+        assertThrows(EntityNotFoundException.class, () -> repository.updateAll(changeSets));
+        assertEquals(Optional.of(widget), repository.get(widget.getId()));
+
+        changeSets.remove(changeSets.keySet().toArray()[1]);
+        List<ImmutableWidget> updatedWidgets = repository.updateAll(changeSets);
+        assertEquals(500, (int) updatedWidgets.get(0).getX());
+        assertEquals(Optional.of(updatedWidgets.get(0)), repository.get(widget.getId()));
+    }
+
+    @Test
+    public void deleteAll_shouldDeleteAllWidgetsOrNone() {
+        ImmutableWidget firstWidget = repository.create(getDefaultWidgetChangeSet());
+        ImmutableWidget secondWidget = repository.create(getDefaultWidgetChangeSet());
+        ImmutableWidget keptWidget = repository.create(getDefaultWidgetChangeSet());
+
+        assertThrows(EntityNotFoundException.class, () -> {
+            repository.deleteAll(List.of(firstWidget.getId(), UUID.randomUUID()));
+        });
+        assertEquals(3, repository.getPage(10, 0).size());
+
+        repository.deleteAll(List.of(firstWidget.getId(), secondWidget.getId(), firstWidget.getId()));
+        assertEquals(List.of(keptWidget.getId()), repository.getPage(10, 0).stream()
+                .map(ImmutableWidget::getId)
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void importAll_shouldPlaceWidgetsAsIfTheyWereCreatedInOrder() {
+        Random random = new Random(42);
+        List<WidgetChangeSet> changeSets = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+            changeSet.setX(i);
+            changeSet.setZ(random.nextInt(20) == 0 ? null : random.nextInt(1_000) - 500);
+            changeSets.add(changeSet);
+        }
+        WidgetRepository sequentialRepository = new WidgetInMemoryRepository();
+        changeSets.forEach(sequentialRepository::create);
+
+        assertEquals(changeSets.size(), repository.importAll(changeSets.stream()));
+        assertEquals(
+                sequentialRepository.getPage(5_000, 0).stream().map(ImmutableWidget::getX).collect(Collectors.toList()),
+                repository.getPage(5_000, 0).stream().map(ImmutableWidget::getX).collect(Collectors.toList())
+        );
+        assertEquals(
+                getXToZ(sequentialRepository.getPage(5_000, 0)),
+                getXToZ(repository.getPage(5_000, 0))
+        );
+    }
+
+    @Test
+    public void importAll_shouldShiftEarlierWidgetsLikeCreatesDo() {
+        WidgetChangeSet first = getDefaultWidgetChangeSet();
+        first.setX(1);
+        first.setZ(1);
+        WidgetChangeSet second = getDefaultWidgetChangeSet();
+        second.setX(2);
+        second.setZ(1);
+        WidgetChangeSet third = getDefaultWidgetChangeSet();
+        third.setX(3);
+        third.setZ(2);
+        WidgetChangeSet top = getDefaultWidgetChangeSet();
+        top.setX(4);
+        top.setZ(null);
+        WidgetChangeSet bottom = getDefaultWidgetChangeSet();
+        bottom.setX(5);
+        bottom.setZ(-10);
+
+        repository.importAll(Stream.of(first, second, top, third, bottom));
+
+        // Second pushes first up to 2, widget without z index goes above them to 3, third pushes both up
+        assertEquals(Map.of(5, -10, 2, 1, 3, 2, 1, 3, 4, 4), getXToZ(repository.getPage(10, 0)));
+        assertEquals(List.of(5, 2, 3, 1, 4), repository.getPage(10, 0).stream()
+                .map(ImmutableWidget::getX)
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void writeExclusively_shouldPublishChangesOnceTheWholeBatchIsApplied() {
+        WidgetInMemoryRepository repository = new WidgetInMemoryRepository();
+        ImmutableWidget existingWidget = repository.create(getDefaultWidgetChangeSet());
+        List<Integer> pageSizesWithinBatch = new ArrayList<>();
+
+        List<UUID> createdWidgetIds = new ArrayList<>();
+        repository.writeExclusively(() -> {
+            createdWidgetIds.add(repository.create(getDefaultWidgetChangeSet()).getId());
+            pageSizesWithinBatch.add(repository.getPage(10, 0).size());
+            repository.delete(existingWidget.getId());
+            pageSizesWithinBatch.add(repository.getPage(10, 0).size());
+            // Compare and update reenters the lock twice
+            repository.compareAndUpdate(createdWidgetIds.get(0), 1, getDefaultWidgetChangeSet());
+            pageSizesWithinBatch.add(repository.getPage(10, 0).size());
+            assertEquals(existingWidget.getId(), repository.getPage(10, 0).get(0).getId());
+        });
+
+        assertEquals(List.of(1, 1, 1), pageSizesWithinBatch);
+        assertEquals(createdWidgetIds, repository.getPage(10, 0).stream().map(ImmutableWidget::getId).collect(Collectors.toList()));
+        assertEquals(repository.getChangeFeed().getLastSequence(), repository.startScan(10, 0).getBoardVersion());
+    }
+
+    @Test
+    public void exportAll_shouldExportBoardAsItWasWhenExportStarted() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        for (int i = 0; i < 3_000; i++) {
+            changeSet.setX(i);
+            changeSet.setZ(i);
+            repository.create(changeSet);
+        }
+        List<ImmutableWidget> board = repository.getPage(5_000, 0);
+
+        List<ImmutableWidget> exportedWidgets = new ArrayList<>();
+        repository.exportAll(widget -> {
+            if (exportedWidgets.size() == 1_000) {
+                // Topmost widget goes to the bottom, and a new widget shifts all the rest up
+                WidgetChangeSet moveChangeSet = new WidgetChangeSet();
+                moveChangeSet.setZ(-1);
+                repository.update(board.get(board.size() - 1).getId(), moveChangeSet);
+                changeSet.setZ(0);
+                repository.create(changeSet);
+            }
+            exportedWidgets.add(widget);
+        });
+
+        assertEquals(board, exportedWidgets);
+        assertEquals(3_001, repository.getSize());
+    }
+
+    @Test
+    public void importAll_shouldThrowExceptionIfBoardIsNotEmpty() {
+        repository.create(getDefaultWidgetChangeSet());
+
+        assertThrows(BoardNotEmptyException.class, () -> {
+            repository.importAll(Stream.of(getDefaultWidgetChangeSet()));
+        });
+        assertEquals(1, repository.getPage(10, 0).size());
+    }
+
+    @Test
+    public void getChangeFeed_shouldRecordChangesWithShiftedWidgets() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(1);
+        ImmutableWidget firstWidget = repository.create(changeSet);
+        repository.create(changeSet);
+        repository.create(changeSet);
+        long sequence = repository.getChangeFeed().getLastSequence();
+
+        WidgetChangeSet updateChangeSet = new WidgetChangeSet();
+        updateChangeSet.setX(50);
+        ImmutableWidget updatedWidget = repository.update(firstWidget.getId(), updateChangeSet);
+        repository.create(changeSet);
+        repository.delete(updatedWidget.getId());
+
+        List<WidgetChange> changes = repository.getChangeFeed().getChangesAfter(sequence, 10).orElseThrow();
+
+        assertEquals(
+                List.of(
+                        WidgetChange.Type.UPDATED,
+                        WidgetChange.Type.SHIFTED,
+                        WidgetChange.Type.CREATED,
+                        WidgetChange.Type.DELETED
+                ),
+                changes.stream().map(WidgetChange::getType).collect(Collectors.toList())
+        );
+        assertEquals(Integer.valueOf(50), changes.get(0).getWidget().getX());
+        // All three widgets lie one above the other starting with z index 1
+        assertEquals(1, changes.get(1).getShiftFrom());
+        assertEquals(3, changes.get(1).getShiftedCount());
+        assertEquals(Integer.valueOf(1), changes.get(2).getWidget().getZ());
+        assertEquals(firstWidget.getId(), changes.get(3).getWidgetId());
+        for (int i = 0; i < changes.size(); i++) {
+            assertEquals(sequence + i + 1, changes.get(i).getSequence());
+        }
+    }
+
+    @Test
+    public void compactZAxis_shouldSpreadZIndexesKeepingOrderOfWidgets() {
+        WidgetInMemoryRepository repository = new WidgetInMemoryRepository();
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(-5);
+        repository.create(changeSet);
+        changeSet.setZ(null);
+        for (int i = 0; i < 99; i++) {
+            repository.create(changeSet);
+        }
+        List<ImmutableWidget> widgetsBefore = repository.getPage(100, 0);
+        long sequence = repository.getChangeFeed().getLastSequence();
+
+        assertEquals(99, repository.compactZAxis(1024, 7));
+
+        List<ImmutableWidget> widgetsAfter = repository.getPage(100, 0);
+        for (int position = 0; position < widgetsAfter.size(); position++) {
+            assertEquals(widgetsBefore.get(position).getId(), widgetsAfter.get(position).getId());
+            assertEquals(widgetsBefore.get(position).getVersion(), widgetsAfter.get(position).getVersion());
+            assertEquals(-5 + position * 1024, (int) widgetsAfter.get(position).getZ());
+        }
+        List<WidgetChange> changes = repository.getChangeFeed().getChangesAfter(sequence, 100).orElseThrow();
+        assertEquals(99, changes.size());
+        assertTrue(changes.stream().allMatch(change -> change.getType() == WidgetChange.Type.RENUMBERED));
+
+        // Widget put between two others takes a gap instead of shifting the ones above
+        changeSet.setZ(-5 + 1024 * 50 + 512);
+        repository.create(changeSet);
+        assertEquals(
+                List.of(WidgetChange.Type.CREATED),
+                repository.getChangeFeed().getChangesAfter(sequence + 99, 10).orElseThrow().stream()
+                        .map(WidgetChange::getType)
+                        .collect(Collectors.toList())
+        );
+    }
+
+    @Test
+    public void compactZAxis_shouldReduceSpacingIfBoardDoesNotFitIntoIntegers() {
+        WidgetInMemoryRepository repository = new WidgetInMemoryRepository();
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        for (int i = 2; i >= 0; i--) {
+            changeSet.setZ(Integer.MAX_VALUE - i);
+            repository.create(changeSet);
+        }
+
+        repository.compactZAxis(1 << 30, 1);
+
+        // Bottom widget goes down to let the top one stay within integers
+        assertEquals(
+                List.of(Integer.MAX_VALUE - (1 << 30) - (1 << 30), Integer.MAX_VALUE - (1 << 30), Integer.MAX_VALUE),
+                repository.getPage(10, 0).stream().map(ImmutableWidget::getZ).collect(Collectors.toList())
+        );
+    }
+
+    @Test
+    public void compactZAxis_shouldKeepBoardInOrderWhileWidgetsAreCreated() throws InterruptedException {
+        WidgetInMemoryRepository repository = new WidgetInMemoryRepository();
+        Random random = new Random(42);
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 1000; i++) {
+                WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+                changeSet.setZ(random.nextInt(2000));
+                repository.create(changeSet);
+            }
+        });
+        writer.start();
+
+        while (writer.isAlive()) {
+            repository.compactZAxis(16, 32);
+        }
+        writer.join();
+        repository.compactZAxis(16, 32);
+
+        List<ImmutableWidget> widgets = repository.getPage(1000, 0);
+        assertEquals(1000, widgets.size());
+        for (int position = 1; position < widgets.size(); position++) {
+            assertEquals(widgets.get(0).getZ() + position * 16, (int) widgets.get(position).getZ());
+        }
+    }
+
+    @Test
+    public void compareAndUpdate_shouldUpdateWidgetOnlyIfVersionIsExpected() {
+        ImmutableWidget createdWidget = repository.create(getDefaultWidgetChangeSet());
+        assertEquals(Widget.INITIAL_VERSION, createdWidget.getVersion());
+
+        WidgetChangeSet updateChangeSet = new WidgetChangeSet();
+        updateChangeSet.setX(50);
+        ImmutableWidget updatedWidget = repository.compareAndUpdate(
+                createdWidget.getId(),
+                createdWidget.getVersion(),
+                updateChangeSet
+        );
+        assertEquals(createdWidget.getVersion() + 1, updatedWidget.getVersion());
+
+        updateChangeSet.setX(70);
+        assertThrows(
+                StaleVersionException.class,
+                () -> repository.compareAndUpdate(createdWidget.getId(), createdWidget.getVersion(), updateChangeSet)
+        );
+        assertEquals(Optional.of(updatedWidget), repository.get(createdWidget.getId()));
+        assertThrows(
+                EntityNotFoundException.class,
+                () -> repository.compareAndUpdate(UUID.randomUUID(), Widget.INITIAL_VERSION, updateChangeSet)
+        );
+    }
+
+    @Test
+    public void create_shouldNotChangeVersionOfShiftedWidgets() {
+        ImmutableWidget shiftedWidget = repository.create(getDefaultWidgetChangeSet());
+
+        repository.create(getDefaultWidgetChangeSet());
+
+        ImmutableWidget fetchedWidget = repository.get(shiftedWidget.getId()).orElseThrow();
+        assertEquals(shiftedWidget.getZ() + 1, (int) fetchedWidget.getZ());
+        assertEquals(shiftedWidget.getVersion(), fetchedWidget.getVersion());
+    }
+
     @Test
     public void delete_shouldDeleteWidgetById() {
         WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
@@ -405,6 +1003,36 @@ public class WidgetInMemoryRepositoryUnitTest {
         });
     }
 
+    @Test
+    public void bindTo_shouldRecordLockTimesShiftRunsAndBoardSize() {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        // Recorded before binding, so it is not counted
+        repository.create(changeSet);
+
+        repository.bindTo(registry);
+        changeSet.setZ(30);
+        repository.create(changeSet);
+        changeSet.setZ(29);
+        repository.create(changeSet);
+        changeSet.setZ(29);
+        repository.create(changeSet);
+        repository.getPage(10, 0);
+
+        assertEquals(4, registry.get("widgets.repository.widgets").gauge().value());
+        assertEquals(3, registry.get("widgets.repository.z.span").gauge().value());
+        assertEquals(2, registry.get("widgets.repository.shift.run.length").summary().count());
+        assertEquals(4, registry.get("widgets.repository.shift.run.length").summary().totalAmount());
+        assertEquals(3, registry.get("widgets.repository.lock.hold").tag("mode", "write").timer().count());
+        assertEquals(3, registry.get("widgets.repository.lock.wait").tag("mode", "write").timer().count());
+        // Reads are timed for a sample of them only
+        assertNotNull(registry.get("widgets.repository.lock.hold").tag("mode", "read").timer());
+    }
+
+    private Map<Integer, Integer> getXToZ(List<ImmutableWidget> widgets) {
+        return widgets.stream().collect(Collectors.toMap(ImmutableWidget::getX, ImmutableWidget::getZ));
+    }
+
     private WidgetChangeSet getDefaultWidgetChangeSet() {
         WidgetChangeSet changeSet = new WidgetChangeSet();
 
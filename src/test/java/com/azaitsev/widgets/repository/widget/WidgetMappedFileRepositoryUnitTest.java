@@ -0,0 +1,200 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import com.azaitsev.widgets.repository.exceptions.EntityNotFoundException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WidgetMappedFileRepositoryUnitTest {
+    private Path file;
+    private WidgetMappedFileRepository repository;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        file = Files.createTempFile("widgets", ".dat");
+        repository = new WidgetMappedFileRepository(file);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        repository.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void createAndGet_shouldCreateWidgetAndReturnItById() {
+        ImmutableWidget createdWidget = repository.create(getDefaultWidgetChangeSet());
+
+        Optional<ImmutableWidget> fetchResult = repository.get(createdWidget.getId());
+
+        assertEquals(Optional.of(createdWidget), fetchResult);
+        assertEquals(10, (int) createdWidget.getX());
+        assertEquals(20, (int) createdWidget.getY());
+        assertEquals(30, (int) createdWidget.getZ());
+        assertEquals(100, (int) createdWidget.getHeight());
+        assertEquals(200, (int) createdWidget.getWidth());
+        assertNotNull(createdWidget.getLastModificationDate());
+    }
+
+    @Test
+    public void create_shouldShiftWidgetsIfSpecifiedZIndexIsNotVacant() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(null);
+
+        ImmutableWidget firstWidget = repository.create(changeSet);
+        ImmutableWidget secondWidget = repository.create(changeSet);
+
+        changeSet.setZ(1);
+        ImmutableWidget newWidget = repository.create(changeSet);
+
+        List<ImmutableWidget> widgetsPage = repository.getPage(10, 0);
+
+        assertEquals(
+                List.of(newWidget.getId(), firstWidget.getId(), secondWidget.getId()),
+                widgetsPage.stream().map(ImmutableWidget::getId).collect(Collectors.toList())
+        );
+        assertEquals(
+                List.of(1, 2, 3),
+                widgetsPage.stream().map(ImmutableWidget::getZ).collect(Collectors.toList())
+        );
+    }
+
+    @Test
+    public void reopen_shouldRestoreWidgetsAndZOrder() throws IOException {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(null);
+        ImmutableWidget firstWidget = repository.create(changeSet);
+        ImmutableWidget deletedWidget = repository.create(changeSet);
+        ImmutableWidget secondWidget = repository.create(changeSet);
+
+        changeSet.setZ(1);
+        ImmutableWidget bottomWidget = repository.create(changeSet);
+
+        WidgetChangeSet updateChangeSet = new WidgetChangeSet();
+        updateChangeSet.setX(-5);
+        ImmutableWidget updatedWidget = repository.update(firstWidget.getId(), updateChangeSet);
+
+        repository.delete(deletedWidget.getId());
+        List<ImmutableWidget> pageBeforeRestart = repository.getPage(10, 0);
+
+        repository.close();
+        repository = new WidgetMappedFileRepository(file);
+
+        assertEquals(pageBeforeRestart, repository.getPage(10, 0));
+        assertEquals(
+                List.of(bottomWidget.getId(), firstWidget.getId(), secondWidget.getId()),
+                repository.getPage(10, 0).stream().map(ImmutableWidget::getId).collect(Collectors.toList())
+        );
+        assertEquals(Optional.of(updatedWidget), repository.get(firstWidget.getId()));
+        assertEquals(2, updatedWidget.getVersion());
+        assertEquals(Optional.empty(), repository.get(deletedWidget.getId()));
+        assertEquals(Optional.of(2L), repository.getRank(secondWidget.getId()));
+    }
+
+    @Test
+    public void reopen_shouldKeepAbsentYCoordinate() throws IOException {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setY(null);
+        ImmutableWidget createdWidget = repository.create(changeSet);
+        assertNull(createdWidget.getY());
+
+        WidgetChangeSet moveChangeSet = new WidgetChangeSet();
+        moveChangeSet.setX(15);
+        ImmutableWidget movedWidget = repository.update(createdWidget.getId(), moveChangeSet);
+        assertNull(movedWidget.getY());
+        // Widget without Y coordinate is not placed at row 0
+        assertEquals(List.of(), repository.findAllAt(15, 0));
+        assertEquals(Optional.empty(), repository.findTopmostAt(15, 0));
+
+        repository.close();
+        repository = new WidgetMappedFileRepository(file);
+
+        assertEquals(Optional.of(movedWidget), repository.get(createdWidget.getId()));
+        assertEquals(List.of(), repository.findInArea(0, -50, 30, 50, 10));
+
+        moveChangeSet.setY(0);
+        ImmutableWidget placedWidget = repository.update(createdWidget.getId(), moveChangeSet);
+        assertEquals(0, (int) placedWidget.getY());
+        assertEquals(List.of(placedWidget), repository.findAllAt(15, 0));
+
+        // Slot freed by the deletion is reused by a widget without Y coordinate
+        repository.delete(createdWidget.getId());
+        assertNull(repository.create(changeSet).getY());
+    }
+
+    @Test
+    public void create_shouldReuseSlotsOfDeletedWidgets() throws IOException {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(null);
+        for (int i = 0; i < 100; i++) {
+            repository.create(changeSet);
+        }
+        for (ImmutableWidget widget : repository.getPage(50, 0)) {
+            repository.delete(widget.getId());
+        }
+
+        repository.close();
+        repository = new WidgetMappedFileRepository(file);
+        long fileSize = Files.size(file);
+
+        for (int i = 0; i < 50; i++) {
+            repository.create(changeSet);
+        }
+
+        assertEquals(100, repository.getPage(200, 0).size());
+        assertEquals(fileSize, Files.size(file));
+    }
+
+    @Test
+    public void clear_shouldRemoveWidgetsFromFile() throws IOException {
+        ImmutableWidget createdWidget = repository.create(getDefaultWidgetChangeSet());
+
+        repository.clear();
+        repository.close();
+        repository = new WidgetMappedFileRepository(file);
+
+        assertEquals(Optional.empty(), repository.get(createdWidget.getId()));
+        assertEquals(List.of(), repository.getPage(10, 0));
+    }
+
+    @Test
+    public void open_shouldFailIfFileIsNotWidgetsFile() throws IOException {
+        Path foreignFile = Files.createTempFile("foreign", ".dat");
+        try {
+            Files.write(foreignFile, new byte[128]);
+
+            assertThrows(IOException.class, () -> new WidgetMappedFileRepository(foreignFile));
+        } finally {
+            Files.deleteIfExists(foreignFile);
+        }
+    }
+
+    @Test
+    public void delete_shouldThrowExceptionIfIdOfNonExistentWidget() {
+        assertThrows(EntityNotFoundException.class, () -> repository.delete(UUID.randomUUID()));
+    }
+
+    private WidgetChangeSet getDefaultWidgetChangeSet() {
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+
+        changeSet.setX(10);
+        changeSet.setY(20);
+        changeSet.setZ(30);
+        changeSet.setHeight(100);
+        changeSet.setWidth(200);
+
+        return changeSet;
+    }
+}
@@ -0,0 +1,51 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.Widget;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WidgetScanSnapshotsUnitTest {
+
+    private final ZAxisOrderIndex<Widget> zAxisOrderIndex = new ZAxisOrderIndex<>(Widget::getId);
+
+    @Test
+    public void retain_shouldReclaimLeastRecentlyReadVersionOnceThereAreTooMany() {
+        WidgetScanSnapshots snapshots = new WidgetScanSnapshots(2, Duration.ofMinutes(1));
+
+        snapshots.retain(1, zAxisOrderIndex.getPublished());
+        snapshots.retain(2, zAxisOrderIndex.getPublished());
+        assertTrue(snapshots.find(1).isPresent());
+        snapshots.retain(3, zAxisOrderIndex.getPublished());
+
+        assertEquals(2, snapshots.size());
+        assertTrue(snapshots.find(1).isPresent());
+        assertFalse(snapshots.find(2).isPresent());
+        assertTrue(snapshots.find(3).isPresent());
+    }
+
+    @Test
+    public void retain_shouldShareVersionBetweenScansOfUnchangedBoard() {
+        WidgetScanSnapshots snapshots = new WidgetScanSnapshots(2, Duration.ofMinutes(1));
+        ZAxisOrderIndex.Version<Widget> zAxisOrder = zAxisOrderIndex.getPublished();
+
+        snapshots.retain(1, zAxisOrder);
+        snapshots.retain(1, zAxisOrder);
+
+        assertEquals(1, snapshots.size());
+        assertSame(zAxisOrder, snapshots.find(1).orElseThrow());
+    }
+
+    @Test
+    public void find_shouldNotReturnIdleVersion() throws InterruptedException {
+        WidgetScanSnapshots snapshots = new WidgetScanSnapshots(2, Duration.ofMillis(1));
+
+        snapshots.retain(1, zAxisOrderIndex.getPublished());
+        Thread.sleep(10);
+
+        assertFalse(snapshots.find(1).isPresent());
+        assertEquals(0, snapshots.size());
+    }
+}
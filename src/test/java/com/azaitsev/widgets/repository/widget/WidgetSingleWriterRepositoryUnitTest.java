@@ -0,0 +1,256 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import com.azaitsev.widgets.repository.exceptions.EntityNotFoundException;
+import com.azaitsev.widgets.repository.exceptions.StaleVersionException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WidgetSingleWriterRepositoryUnitTest {
+    private WidgetSingleWriterRepository repository = new WidgetSingleWriterRepository();
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        repository.close();
+    }
+
+    @Test
+    public void create_shouldShiftWidgetsIfSpecifiedZIndexIsNotVacant() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        ImmutableWidget firstWidget = repository.create(changeSet);
+        ImmutableWidget secondWidget = repository.create(changeSet);
+
+        assertEquals(30, (int) secondWidget.getZ());
+        assertEquals(31, (int) repository.get(firstWidget.getId()).orElseThrow().getZ());
+        assertEquals(List.of(secondWidget.getId(), firstWidget.getId()), getIds(repository.getPage(10, 0)));
+    }
+
+    @Test
+    public void update_shouldRethrowFailureOfTheChange() {
+        ImmutableWidget widget = repository.create(getDefaultWidgetChangeSet());
+
+        assertThrows(EntityNotFoundException.class, () -> repository.update(UUID.randomUUID(), getDefaultWidgetChangeSet()));
+        assertThrows(StaleVersionException.class, () -> repository.compareAndUpdate(
+                widget.getId(),
+                widget.getVersion() + 1,
+                getDefaultWidgetChangeSet()
+        ));
+        // Failed commands don't affect the ones applied in the same batch
+        assertEquals(widget, repository.get(widget.getId()).orElseThrow());
+    }
+
+    @Test
+    public void createAsync_shouldCompleteOnceChangeIsApplied() throws Exception {
+        List<CompletableFuture<ImmutableWidget>> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            results.add(repository.createAsync(getDefaultWidgetChangeSet()));
+        }
+        CompletableFuture<Void> deleted = repository.deleteAsync(UUID.randomUUID());
+
+        for (CompletableFuture<ImmutableWidget> result : results) {
+            ImmutableWidget widget = result.get(1, TimeUnit.MINUTES);
+            assertTrue(repository.get(widget.getId()).isPresent());
+        }
+        Exception failure = assertThrows(Exception.class, () -> deleted.get(1, TimeUnit.MINUTES));
+        assertTrue(failure.getCause() instanceof EntityNotFoundException);
+        assertEquals(100, repository.getSize());
+    }
+
+    @Test
+    public void writeAsync_shouldApplyChangesInOrderUpToTheFailingOne() throws Exception {
+        CompletableFuture<Void> written = repository.writeAsync(board -> {
+            board.create(getDefaultWidgetChangeSet());
+            board.delete(UUID.randomUUID());
+            board.create(getDefaultWidgetChangeSet());
+            return null;
+        });
+
+        Exception failure = assertThrows(Exception.class, () -> written.get(1, TimeUnit.MINUTES));
+        assertTrue(failure.getCause() instanceof EntityNotFoundException);
+        assertEquals(1, repository.getSize());
+    }
+
+    @Test
+    public void create_shouldApplyCommandsOfConcurrentWritersWhenRingIsFull() throws Exception {
+        repository.close();
+        repository = new WidgetSingleWriterRepository(new WidgetInMemoryRepository(), 4);
+
+        int writers = 8;
+        int widgetsPerWriter = 50;
+        CountDownLatch started = new CountDownLatch(writers);
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < writers; i++) {
+                results.add(executor.submit(() -> {
+                    started.countDown();
+                    started.await();
+                    for (int j = 0; j < widgetsPerWriter; j++) {
+                        repository.create(getDefaultWidgetChangeSet());
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> result : results) {
+                result.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<ImmutableWidget> page = repository.getPage(writers * widgetsPerWriter, 0);
+        Set<Integer> zIndexes = page.stream().map(ImmutableWidget::getZ).collect(Collectors.toSet());
+        assertEquals(writers * widgetsPerWriter, page.size());
+        assertEquals(writers * widgetsPerWriter, zIndexes.size());
+    }
+
+    @Test
+    public void create_shouldShareForceOfWriteAheadLogWithinBatch() throws Exception {
+        repository.close();
+        Path file = Files.createTempFile("widgets", ".wal");
+        try {
+            WidgetWriteAheadLog writeAheadLog = new WidgetWriteAheadLog(file, Duration.ZERO);
+            repository = new WidgetSingleWriterRepository(new WidgetInMemoryRepository(writeAheadLog), 64);
+
+            List<CompletableFuture<ImmutableWidget>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                results.add(repository.createAsync(getDefaultWidgetChangeSet()));
+            }
+            for (CompletableFuture<ImmutableWidget> result : results) {
+                result.get(1, TimeUnit.MINUTES);
+            }
+
+            assertTrue(writeAheadLog.getForcesCount() < 200);
+            repository.close();
+
+            WidgetInMemoryRepository restarted = new WidgetInMemoryRepository(new WidgetWriteAheadLog(file, Duration.ZERO));
+            assertEquals(200, restarted.getSize());
+            restarted.close();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void close_shouldApplyPublishedCommandsAndRejectNewOnes() throws Exception {
+        List<CompletableFuture<ImmutableWidget>> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            results.add(repository.createAsync(getDefaultWidgetChangeSet()));
+        }
+
+        repository.close();
+
+        for (CompletableFuture<ImmutableWidget> result : results) {
+            assertTrue(result.isDone());
+        }
+        assertEquals(100, repository.getSize());
+        assertThrows(IllegalStateException.class, () -> repository.create(getDefaultWidgetChangeSet()));
+    }
+
+    @Test
+    public void close_shouldCompleteFuturesOfCommandsPublishedWhileClosing() throws Exception {
+        int writers = 8;
+        CountDownLatch started = new CountDownLatch(writers);
+        List<CompletableFuture<ImmutableWidget>> results = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<?>> publishers = new ArrayList<>();
+            for (int i = 0; i < writers; i++) {
+                publishers.add(executor.submit(() -> {
+                    started.countDown();
+                    try {
+                        while (true) {
+                            results.add(repository.createAsync(getDefaultWidgetChangeSet()));
+                        }
+                    } catch (IllegalStateException e) {
+                        // Repository is closed
+                    }
+                }));
+            }
+
+            started.await();
+            Thread.sleep(10);
+            repository.close();
+            for (Future<?> publisher : publishers) {
+                publisher.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Commands that got into the ring after the writer has stopped fail instead of hanging
+        for (CompletableFuture<ImmutableWidget> result : results) {
+            try {
+                result.get(1, TimeUnit.MINUTES);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        assertTrue(repository.getSize() <= results.size());
+    }
+
+    @Test
+    public void create_shouldFailPendingAndLaterChangesOnceWriterStops() throws Exception {
+        CountDownLatch failing = new CountDownLatch(1);
+        CountDownLatch published = new CountDownLatch(1);
+        // Change sets are read by the writer thread, which gets the error
+        CompletableFuture<Integer> imported = CompletableFuture.supplyAsync(() -> repository.importAll(Stream.generate(() -> {
+            failing.countDown();
+            try {
+                published.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new StackOverflowError();
+        })));
+        failing.await();
+        CompletableFuture<ImmutableWidget> pending = repository.createAsync(getDefaultWidgetChangeSet());
+        published.countDown();
+
+        Exception importFailure = assertThrows(Exception.class, () -> imported.get(1, TimeUnit.MINUTES));
+        assertTrue(importFailure.getCause() instanceof IllegalStateException);
+        assertTrue(importFailure.getCause().getCause() instanceof StackOverflowError);
+        Exception pendingFailure = assertThrows(Exception.class, () -> pending.get(1, TimeUnit.MINUTES));
+        assertTrue(pendingFailure.getCause() instanceof IllegalStateException);
+        assertThrows(IllegalStateException.class, () -> repository.create(getDefaultWidgetChangeSet()));
+    }
+
+    private List<UUID> getIds(List<ImmutableWidget> widgets) {
+        return widgets.stream().map(ImmutableWidget::getId).collect(Collectors.toList());
+    }
+
+    private WidgetChangeSet getDefaultWidgetChangeSet() {
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+
+        changeSet.setX(10);
+        changeSet.setY(20);
+        changeSet.setZ(30);
+        changeSet.setHeight(100);
+        changeSet.setWidth(200);
+
+        return changeSet;
+    }
+}
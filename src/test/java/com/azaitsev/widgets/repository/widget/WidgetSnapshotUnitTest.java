@@ -0,0 +1,161 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WidgetSnapshotUnitTest {
+    private static final int RESTORE_BOARD_SIZE = 500_000;
+
+    private Path snapshotFile;
+    private Path logFile;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        snapshotFile = Files.createTempFile("widgets", ".snapshot");
+        logFile = Files.createTempFile("widgets", ".wal");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(snapshotFile);
+        Files.deleteIfExists(logFile);
+    }
+
+    @Test
+    public void readFrom_shouldRestoreWidgetsAndZOrder() throws IOException {
+        WidgetInMemoryRepository repository = new WidgetInMemoryRepository();
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(null);
+        repository.create(changeSet);
+        ImmutableWidget shiftedWidget = repository.create(changeSet);
+
+        changeSet.setZ(2);
+        changeSet.setY(null);
+        ImmutableWidget widgetWithoutY = repository.create(changeSet);
+
+        repository.takeSnapshot().writeTo(snapshotFile);
+        WidgetInMemoryRepository restoredRepository = new WidgetInMemoryRepository(
+                WidgetSnapshot.readFrom(snapshotFile),
+                null
+        );
+
+        assertEquals(repository.getPage(10, 0), restoredRepository.getPage(10, 0));
+        assertEquals(3, (int) restoredRepository.get(shiftedWidget.getId()).orElseThrow().getZ());
+        assertEquals(Optional.of(widgetWithoutY), restoredRepository.get(widgetWithoutY.getId()));
+
+        // Restored index keeps working as usual
+        changeSet.setZ(1);
+        ImmutableWidget bottomWidget = restoredRepository.create(changeSet);
+        assertEquals(Optional.of(0L), restoredRepository.getRank(bottomWidget.getId()));
+        assertEquals(4, (int) restoredRepository.get(shiftedWidget.getId()).orElseThrow().getZ());
+    }
+
+    @Test
+    public void readFrom_shouldFailIfSnapshotIsCorrupted() throws IOException {
+        WidgetInMemoryRepository repository = new WidgetInMemoryRepository();
+        repository.create(getDefaultWidgetChangeSet());
+        repository.takeSnapshot().writeTo(snapshotFile);
+
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), 30);
+        }
+
+        assertThrows(IOException.class, () -> WidgetSnapshot.readFrom(snapshotFile));
+    }
+
+    @Test
+    public void restore_shouldReplayOnlyLogRecordsThatCameAfterSnapshot() throws IOException {
+        WidgetWriteAheadLog writeAheadLog = new WidgetWriteAheadLog(logFile, Duration.ZERO);
+        WidgetInMemoryRepository repository = new WidgetInMemoryRepository(writeAheadLog);
+        WidgetSnapshotter snapshotter = new WidgetSnapshotter(repository, snapshotFile, Duration.ofHours(1));
+
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(1);
+        repository.create(changeSet);
+        repository.create(changeSet);
+        long logSizeBeforeSnapshot = Files.size(logFile);
+
+        snapshotter.takeSnapshot();
+        assertTrue(Files.size(logFile) < logSizeBeforeSnapshot);
+
+        ImmutableWidget widgetCreatedAfterSnapshot = repository.create(changeSet);
+        List<ImmutableWidget> pageBeforeRestart = repository.getPage(10, 0);
+        snapshotter.close();
+        repository.close();
+
+        WidgetInMemoryRepository restoredRepository = new WidgetInMemoryRepository(
+                WidgetSnapshot.readFrom(snapshotFile),
+                new WidgetWriteAheadLog(logFile, Duration.ZERO)
+        );
+        try {
+            assertEquals(pageBeforeRestart, restoredRepository.getPage(10, 0));
+            assertEquals(Optional.of(0L), restoredRepository.getRank(widgetCreatedAfterSnapshot.getId()));
+        } finally {
+            restoredRepository.close();
+        }
+    }
+
+    @Test
+    public void restore_shouldFailIfLogRecordsAfterSnapshotAreLost() throws IOException {
+        WidgetWriteAheadLog writeAheadLog = new WidgetWriteAheadLog(logFile, Duration.ZERO);
+        WidgetInMemoryRepository repository = new WidgetInMemoryRepository(writeAheadLog);
+        repository.create(getDefaultWidgetChangeSet());
+        WidgetSnapshot outdatedSnapshot = repository.takeSnapshot();
+
+        repository.create(getDefaultWidgetChangeSet());
+        repository.truncateWriteAheadLog(repository.takeSnapshot());
+        repository.close();
+
+        assertThrows(IllegalStateException.class, () -> new WidgetInMemoryRepository(
+                outdatedSnapshot,
+                new WidgetWriteAheadLog(logFile, Duration.ZERO)
+        ));
+    }
+
+    @Test
+    public void restore_shouldBulkLoadLargeBoard() throws IOException {
+        WidgetInMemoryRepository repository = new WidgetInMemoryRepository();
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(null);
+        for (int i = 0; i < RESTORE_BOARD_SIZE; i++) {
+            repository.create(changeSet);
+        }
+        repository.takeSnapshot().writeTo(snapshotFile);
+
+        WidgetInMemoryRepository restoredRepository = new WidgetInMemoryRepository(
+                WidgetSnapshot.readFrom(snapshotFile),
+                null
+        );
+
+        assertEquals(repository.getPage(100, RESTORE_BOARD_SIZE / 2), restoredRepository.getPage(100, RESTORE_BOARD_SIZE / 2));
+        ImmutableWidget topWidget = repository.getPage(1, RESTORE_BOARD_SIZE - 1).get(0);
+        assertEquals(Optional.of(RESTORE_BOARD_SIZE - 1L), restoredRepository.getRank(topWidget.getId()));
+    }
+
+    private WidgetChangeSet getDefaultWidgetChangeSet() {
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+
+        changeSet.setX(10);
+        changeSet.setY(20);
+        changeSet.setZ(30);
+        changeSet.setHeight(100);
+        changeSet.setWidth(200);
+
+        return changeSet;
+    }
+}
@@ -0,0 +1,93 @@
+package com.azaitsev.widgets.repository.widget;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WidgetSpatialIndexUnitTest {
+    private final WidgetSpatialIndex index = new WidgetSpatialIndex();
+
+    @Test
+    public void forEachInArea_shouldCountTouchingBorders() {
+        UUID widgetId = UUID.randomUUID();
+        // Spans [0, 100] x [0, 50]
+        index.put(widgetId, 50, 25, 100, 50);
+
+        assertEquals(Set.of(widgetId), findInArea(100, 50, 200, 200));
+        assertEquals(Set.of(), findInArea(101, 0, 200, 200));
+        assertEquals(Set.of(widgetId), findInArea(-10, -10, 0, 0));
+    }
+
+    @Test
+    public void forEachInArea_shouldFindHugeWidgetsAroundSmallArea() {
+        UUID hugeWidgetId = UUID.randomUUID();
+        index.put(hugeWidgetId, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+        assertEquals(Set.of(hugeWidgetId), findInArea(1_000_000, -1_000_000, 1_000_001, -999_999));
+    }
+
+    @Test
+    public void forEachInArea_shouldMatchBruteForce() {
+        Random random = new Random(42);
+        Map<UUID, int[]> expected = new HashMap<>();
+        List<UUID> widgetIds = new ArrayList<>();
+
+        for (int i = 0; i < 5_000; i++) {
+            if (random.nextInt(4) == 0 && !widgetIds.isEmpty()) {
+                UUID widgetId = widgetIds.remove(random.nextInt(widgetIds.size()));
+                index.remove(widgetId);
+                expected.remove(widgetId);
+                continue;
+            }
+
+            // Existing widgets are moved every now and then
+            UUID widgetId = random.nextInt(5) == 0 && !widgetIds.isEmpty()
+                    ? widgetIds.get(random.nextInt(widgetIds.size()))
+                    : UUID.randomUUID();
+            int[] rectangle = {
+                    random.nextInt(20_000) - 10_000,
+                    random.nextInt(20_000) - 10_000,
+                    1 + random.nextInt(random.nextInt(10) == 0 ? 5_000 : 100),
+                    1 + random.nextInt(random.nextInt(10) == 0 ? 5_000 : 100)
+            };
+            if (!expected.containsKey(widgetId)) {
+                widgetIds.add(widgetId);
+            }
+            expected.put(widgetId, rectangle);
+            index.put(widgetId, rectangle[0], rectangle[1], rectangle[2], rectangle[3]);
+        }
+
+        assertEquals(expected.size(), index.size());
+        for (int i = 0; i < 200; i++) {
+            int x1 = random.nextInt(20_000) - 10_000;
+            int y1 = random.nextInt(20_000) - 10_000;
+            int x2 = x1 + random.nextInt(i % 10 == 0 ? 20_000 : 500);
+            int y2 = y1 + random.nextInt(i % 10 == 0 ? 20_000 : 500);
+
+            Set<UUID> expectedHits = new HashSet<>();
+            expected.forEach((widgetId, rectangle) -> {
+                // Widget (x, y) is its center
+                if (2L * rectangle[0] - rectangle[2] <= 2L * x2 && 2L * rectangle[0] + rectangle[2] >= 2L * x1
+                        && 2L * rectangle[1] - rectangle[3] <= 2L * y2 && 2L * rectangle[1] + rectangle[3] >= 2L * y1) {
+                    expectedHits.add(widgetId);
+                }
+            });
+            assertEquals(expectedHits, findInArea(x1, y1, x2, y2));
+        }
+    }
+
+    private Set<UUID> findInArea(int x1, int y1, int x2, int y2) {
+        Set<UUID> hits = new HashSet<>();
+        index.forEachInArea(x1, y1, x2, y2, widgetId -> assertTrue(hits.add(widgetId)));
+        return hits;
+    }
+}
@@ -0,0 +1,200 @@
+package com.azaitsev.widgets.repository.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WidgetWriteAheadLogUnitTest {
+    private Path file;
+    private WidgetWriteAheadLog writeAheadLog;
+    private WidgetInMemoryRepository repository;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        file = Files.createTempFile("widgets", ".wal");
+        open(Duration.ZERO);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        repository.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void replay_shouldRestoreWidgetsAndShiftedZOrder() throws IOException {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        changeSet.setZ(null);
+        ImmutableWidget firstWidget = repository.create(changeSet);
+        ImmutableWidget deletedWidget = repository.create(changeSet);
+        ImmutableWidget secondWidget = repository.create(changeSet);
+
+        changeSet.setZ(1);
+        changeSet.setY(null);
+        repository.create(changeSet);
+
+        WidgetChangeSet updateChangeSet = new WidgetChangeSet();
+        updateChangeSet.setZ(2);
+        repository.update(secondWidget.getId(), updateChangeSet);
+        updateChangeSet.setZ(null);
+        updateChangeSet.setX(-5);
+        repository.update(firstWidget.getId(), updateChangeSet);
+
+        repository.delete(deletedWidget.getId());
+        List<ImmutableWidget> pageBeforeRestart = repository.getPage(10, 0);
+
+        repository.close();
+        open(Duration.ZERO);
+
+        assertEquals(pageBeforeRestart, repository.getPage(10, 0));
+        assertEquals(Optional.empty(), repository.get(deletedWidget.getId()));
+        assertEquals(Optional.of(1L), repository.getRank(secondWidget.getId()));
+        assertEquals(2, repository.get(firstWidget.getId()).orElseThrow().getVersion());
+    }
+
+    @Test
+    public void replay_shouldRestoreRenumberedZOrder() throws IOException {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        for (int i = 0; i < 10; i++) {
+            repository.create(changeSet);
+        }
+        repository.compactZAxis(100, 3);
+        changeSet.setZ(150);
+        repository.create(changeSet);
+        List<ImmutableWidget> pageBeforeRestart = repository.getPage(20, 0);
+
+        repository.close();
+        open(Duration.ZERO);
+
+        assertEquals(pageBeforeRestart, repository.getPage(20, 0));
+    }
+
+    @Test
+    public void replay_shouldRestoreEmptyBoardAfterClear() throws IOException {
+        repository.create(getDefaultWidgetChangeSet());
+        repository.clear();
+        ImmutableWidget createdWidget = repository.create(getDefaultWidgetChangeSet());
+
+        repository.close();
+        open(Duration.ZERO);
+
+        assertEquals(List.of(createdWidget), repository.getPage(10, 0));
+    }
+
+    @Test
+    public void replay_shouldCutOffTornRecord() throws IOException {
+        ImmutableWidget createdWidget = repository.create(getDefaultWidgetChangeSet());
+        repository.close();
+        long validSize = Files.size(file);
+
+        // Simulate a crash in the middle of an append
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 50, 1, 2, 3, 4, 1, 0, 0}));
+        }
+
+        open(Duration.ZERO);
+
+        assertEquals(List.of(createdWidget), repository.getPage(10, 0));
+        assertEquals(validSize, Files.size(file));
+
+        ImmutableWidget widgetCreatedAfterRestart = repository.create(getDefaultWidgetChangeSet());
+        repository.close();
+        open(Duration.ZERO);
+
+        assertEquals(Optional.of(widgetCreatedAfterRestart), repository.get(widgetCreatedAfterRestart.getId()));
+    }
+
+    @Test
+    public void replay_shouldRestoreBatchesWithSingleForcePerBatch() throws IOException {
+        List<WidgetChangeSet> changeSets = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+            changeSet.setZ(i % 3);
+            changeSets.add(changeSet);
+        }
+        List<ImmutableWidget> createdWidgets = repository.createAll(changeSets);
+
+        WidgetChangeSet updateChangeSet = new WidgetChangeSet();
+        updateChangeSet.setZ(1);
+        repository.updateAll(Map.of(createdWidgets.get(9).getId(), updateChangeSet));
+        repository.deleteAll(List.of(createdWidgets.get(0).getId(), createdWidgets.get(5).getId()));
+        List<ImmutableWidget> pageBeforeRestart = repository.getPage(20, 0);
+
+        assertEquals(3, writeAheadLog.getForcesCount());
+
+        repository.close();
+        open(Duration.ZERO);
+
+        assertEquals(pageBeforeRestart, repository.getPage(20, 0));
+    }
+
+    @Test
+    public void awaitDurable_shouldShareForceBetweenConcurrentWriters() throws Exception {
+        repository.close();
+        open(Duration.ofMillis(20));
+
+        int writers = 16;
+        CountDownLatch started = new CountDownLatch(writers);
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < writers; i++) {
+                results.add(executor.submit(() -> {
+                    started.countDown();
+                    started.await();
+                    for (int j = 0; j < 5; j++) {
+                        repository.create(getDefaultWidgetChangeSet());
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> result : results) {
+                result.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(writers * 5, repository.getPage(200, 0).size());
+        assertTrue(writeAheadLog.getForcesCount() < writers * 5 / 2);
+    }
+
+    private void open(Duration commitWindow) throws IOException {
+        writeAheadLog = new WidgetWriteAheadLog(file, commitWindow);
+        repository = new WidgetInMemoryRepository(writeAheadLog);
+    }
+
+    private WidgetChangeSet getDefaultWidgetChangeSet() {
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+
+        changeSet.setX(10);
+        changeSet.setY(20);
+        changeSet.setZ(30);
+        changeSet.setHeight(100);
+        changeSet.setWidth(200);
+
+        return changeSet;
+    }
+}
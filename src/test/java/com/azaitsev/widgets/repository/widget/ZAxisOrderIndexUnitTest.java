@@ -0,0 +1,233 @@
+package com.azaitsev.widgets.repository.widget;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ZAxisOrderIndexUnitTest {
+
+    private final ZAxisOrderIndex<UUID> index = new ZAxisOrderIndex<>(Function.identity());
+
+    @Test
+    public void rank_shouldCountKeysBelowSpecifiedZ() {
+        index.put(-5, UUID.randomUUID());
+        index.put(0, UUID.randomUUID());
+        index.put(10, UUID.randomUUID());
+
+        assertEquals(0, index.rank(-5));
+        assertEquals(1, index.rank(0));
+        assertEquals(2, index.rank(5));
+        assertEquals(3, index.rank(11));
+    }
+
+    @Test
+    public void select_shouldReturnWidgetAtSpecifiedPosition() {
+        UUID bottomWidgetId = UUID.randomUUID();
+        UUID middleWidgetId = UUID.randomUUID();
+        UUID topWidgetId = UUID.randomUUID();
+
+        index.put(3, topWidgetId);
+        index.put(-1, bottomWidgetId);
+        index.put(2, middleWidgetId);
+
+        assertEquals(bottomWidgetId, index.select(0));
+        assertEquals(middleWidgetId, index.select(1));
+        assertEquals(topWidgetId, index.select(2));
+        assertThrows(IndexOutOfBoundsException.class, () -> index.select(3));
+    }
+
+    @Test
+    public void put_shouldThrowExceptionIfZIndexIsTaken() {
+        index.put(1, UUID.randomUUID());
+
+        assertThrows(IllegalStateException.class, () -> index.put(1, UUID.randomUUID()));
+    }
+
+    @Test
+    public void shiftRun_shouldMoveOnlyContiguousRun() {
+        UUID firstWidgetId = UUID.randomUUID();
+        UUID secondWidgetId = UUID.randomUUID();
+        UUID detachedWidgetId = UUID.randomUUID();
+
+        index.put(1, firstWidgetId);
+        index.put(2, secondWidgetId);
+        index.put(4, detachedWidgetId);
+
+        int shiftedWidgets = index.shiftRun(1);
+
+        assertEquals(2, shiftedWidgets);
+        assertFalse(index.containsKey(1));
+        assertEquals(firstWidgetId, index.get(2));
+        assertEquals(secondWidgetId, index.get(3));
+        assertEquals(detachedWidgetId, index.get(4));
+        assertEquals(Integer.valueOf(2), index.zOf(firstWidgetId));
+        assertEquals(Integer.valueOf(3), index.zOf(secondWidgetId));
+        assertEquals(Integer.valueOf(4), index.zOf(detachedWidgetId));
+    }
+
+    @Test
+    public void shiftRun_shouldNotMoveAnythingIfZIndexIsVacant() {
+        UUID widgetId = UUID.randomUUID();
+        index.put(2, widgetId);
+
+        assertEquals(0, index.shiftRun(1));
+        assertEquals(Integer.valueOf(2), index.zOf(widgetId));
+    }
+
+    @Test
+    public void put_shouldKeepOrderWhenInsertingIntoTheSameSpotRepeatedly() {
+        // Enough inserts between the same neighbours to run out of room between their labels
+        index.put(0, UUID.randomUUID());
+        index.put(Integer.MAX_VALUE, UUID.randomUUID());
+
+        List<UUID> expectedOrder = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            UUID widgetId = UUID.randomUUID();
+            index.put(Integer.MAX_VALUE - 1 - i, widgetId);
+            expectedOrder.add(0, widgetId);
+        }
+
+        List<UUID> order = new ArrayList<>();
+        index.forEachFrom(1, 200, (z, widgetId) -> order.add(widgetId));
+        assertEquals(expectedOrder, order);
+
+        for (int i = 0; i < expectedOrder.size(); i++) {
+            assertEquals(Integer.valueOf(Integer.MAX_VALUE - 200 + i), index.zOf(expectedOrder.get(i)));
+        }
+    }
+
+    @Test
+    public void putAll_shouldBuildIndexFromSortedWidgets() {
+        int count = 1_000;
+        int[] zAxisIndexes = new int[count];
+        UUID[] widgetIds = new UUID[count];
+        for (int i = 0; i < count; i++) {
+            zAxisIndexes[i] = i * 2 - 500;
+            widgetIds[i] = UUID.randomUUID();
+        }
+
+        index.putAll(zAxisIndexes, widgetIds, count);
+
+        assertEquals(count, index.size());
+        assertEquals(-500, index.firstKey());
+        assertEquals(1_498, index.lastKey());
+        assertEquals(widgetIds[700], index.select(700));
+        assertEquals(Integer.valueOf(900), index.zOf(widgetIds[700]));
+
+        // Index keeps working after bulk load
+        UUID widgetId = UUID.randomUUID();
+        assertEquals(1, index.shiftRun(-500));
+        index.put(-500, widgetId);
+        assertEquals(Integer.valueOf(-499), index.zOf(widgetIds[0]));
+        assertEquals(widgetId, index.select(0));
+    }
+
+    @Test
+    public void putAll_shouldThrowExceptionIfZIndexesAreNotSorted() {
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> index.putAll(new int[]{2, 1}, new UUID[]{UUID.randomUUID(), UUID.randomUUID()}, 2)
+        );
+        assertTrue(index.isEmpty());
+    }
+
+    @Test
+    public void operations_shouldMatchEagerlyShiftedTreeMap() {
+        Random random = new Random(42);
+        TreeMap<Integer, UUID> expected = new TreeMap<>();
+
+        for (int i = 0; i < 5_000; i++) {
+            int z = random.nextInt(2_000) - 1_000;
+            if (random.nextInt(3) == 0 && expected.containsKey(z)) {
+                UUID widgetId = expected.remove(z);
+                assertEquals(Integer.valueOf(z), index.remove(widgetId));
+            } else {
+                if (expected.containsKey(z)) {
+                    assertEquals(shiftEagerly(expected, z), index.shiftRun(z));
+                }
+
+                UUID widgetId = UUID.randomUUID();
+                expected.put(z, widgetId);
+                index.put(z, widgetId);
+            }
+        }
+
+        assertEquals(expected.size(), index.size());
+        assertEquals((int) expected.firstKey(), index.firstKey());
+        assertEquals((int) expected.lastKey(), index.lastKey());
+
+        for (int z = expected.firstKey() - 1; z <= expected.lastKey() + 1; z += 7) {
+            assertEquals(expected.headMap(z).size(), index.rank(z));
+        }
+
+        List<UUID> expectedPage = new ArrayList<>(expected.values()).subList(100, 150);
+        List<UUID> page = new ArrayList<>();
+        index.forEachFrom(100, 50, (z, widgetId) -> page.add(widgetId));
+        assertEquals(expectedPage, page);
+
+        List<Integer> expectedTail = new ArrayList<>(expected.tailMap(0, false).keySet()).subList(0, 20);
+        List<Integer> tail = new ArrayList<>();
+        index.forEachAfter(0, 20, (z, widgetId) -> tail.add(z));
+        assertEquals(expectedTail, tail);
+
+        for (Map.Entry<Integer, UUID> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), index.get(entry.getKey()));
+            assertEquals(entry.getKey(), index.zOf(entry.getValue()));
+        }
+    }
+
+    @Test
+    public void publish_shouldNotChangeVersionsPublishedBefore() {
+        UUID firstWidgetId = UUID.randomUUID();
+        UUID secondWidgetId = UUID.randomUUID();
+        UUID thirdWidgetId = UUID.randomUUID();
+
+        index.put(1, firstWidgetId);
+        index.put(2, secondWidgetId);
+        index.publish(1);
+        ZAxisOrderIndex.Version<UUID> published = index.getPublished();
+
+        index.shiftRun(1);
+        index.put(1, thirdWidgetId);
+        index.remove(secondWidgetId);
+
+        // Changes are not visible until they are published
+        assertSame(published, index.getPublished());
+        index.publish(2);
+
+        assertEquals(2, published.size());
+        assertEquals(firstWidgetId, published.get(1));
+        assertEquals(secondWidgetId, published.get(2));
+        List<Integer> publishedZAxisIndexes = new ArrayList<>();
+        published.forEachFrom(0, 10, (z, widgetId) -> publishedZAxisIndexes.add(z));
+        assertEquals(List.of(1, 2), publishedZAxisIndexes);
+
+        ZAxisOrderIndex.Version<UUID> latest = index.getPublished();
+        assertEquals(1, published.getTag());
+        assertEquals(2, latest.getTag());
+        assertEquals(2, latest.size());
+        assertEquals(thirdWidgetId, latest.get(1));
+        assertEquals(firstWidgetId, latest.get(2));
+        assertFalse(latest.containsKey(3));
+    }
+
+    private int shiftEagerly(TreeMap<Integer, UUID> widgets, int shiftFrom) {
+        int runEnd = shiftFrom;
+        while (widgets.containsKey(runEnd)) {
+            runEnd++;
+        }
+
+        for (int z = runEnd; z > shiftFrom; z--) {
+            widgets.put(z, widgets.remove(z - 1));
+        }
+        return runEnd - shiftFrom;
+    }
+}
@@ -0,0 +1,156 @@
+package com.azaitsev.widgets.service.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import com.azaitsev.widgets.repository.widget.WidgetInMemoryRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WidgetAsyncServiceImplUnitTest {
+    private Path directory;
+    private WidgetBoardServiceImpl boardService;
+    private WidgetAsyncServiceImpl asyncService;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("widgets-boards");
+        boardService = new WidgetBoardServiceImpl(
+                directory,
+                Duration.ofDays(1),
+                Duration.ofDays(1),
+                new SimpleMeterRegistry()
+        );
+        asyncService = new WidgetAsyncServiceImpl(
+                new WidgetServiceImpl(new WidgetInMemoryRepository()),
+                boardService,
+                2,
+                2
+        );
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        asyncService.close();
+        boardService.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void withBoard_shouldRunActionOnWorkerAgainstTheBoard() throws Exception {
+        Thread caller = Thread.currentThread();
+        ImmutableWidget widget = asyncService
+                .withBoard("first", service -> {
+                    assertNotSame(caller, Thread.currentThread());
+                    return service.create(getDefaultWidgetChangeSet());
+                })
+                .get(1, TimeUnit.MINUTES);
+
+        assertEquals(List.of(widget), boardService.withBoard("first", service -> service.getPage(10, 0)));
+        assertTrue(asyncService
+                .withDefaultBoard(service -> service.get(widget.getId()))
+                .get(1, TimeUnit.MINUTES)
+                .isEmpty());
+    }
+
+    @Test
+    public void withDefaultBoard_shouldRejectActionsBeyondTheQueue() throws Exception {
+        CountDownLatch released = new CountDownLatch(1);
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        // Both workers are busy and the queue is full
+        for (int i = 0; i < 4; i++) {
+            results.add(asyncService.withDefaultBoard(service -> awaitUninterruptibly(released)));
+        }
+
+        assertThrows(RejectedExecutionException.class, () -> asyncService.withDefaultBoard(service -> true));
+
+        released.countDown();
+        for (CompletableFuture<Boolean> result : results) {
+            assertTrue(result.get(1, TimeUnit.MINUTES));
+        }
+    }
+
+    @Test
+    public void changeDefaultBoard_shouldReleaseWorkerBeforeChangeIsApplied() throws Exception {
+        CompletableFuture<ImmutableWidget> applied = new CompletableFuture<>();
+        WidgetService widgetService = new WidgetServiceImpl(new WidgetInMemoryRepository()) {
+            @Override
+            public CompletableFuture<ImmutableWidget> createAsync(WidgetChangeSet changeSet) {
+                return applied;
+            }
+        };
+        ImmutableWidget widget = widgetService.create(getDefaultWidgetChangeSet());
+
+        try (WidgetAsyncServiceImpl singleWorkerService = new WidgetAsyncServiceImpl(widgetService, boardService, 1, 1)) {
+            CompletableFuture<ImmutableWidget> result = singleWorkerService
+                    .changeDefaultBoard(service -> service.createAsync(getDefaultWidgetChangeSet()));
+
+            // The only worker is free while the change waits to be applied
+            assertTrue(singleWorkerService.withDefaultBoard(service -> true).get(1, TimeUnit.MINUTES));
+            assertFalse(result.isDone());
+
+            applied.complete(widget);
+            assertEquals(widget, result.get(1, TimeUnit.MINUTES));
+        }
+    }
+
+    @Test
+    public void close_shouldFinishQueuedActions() {
+        CountDownLatch released = new CountDownLatch(1);
+        List<CompletableFuture<ImmutableWidget>> results = new ArrayList<>();
+        asyncService.withDefaultBoard(service -> awaitUninterruptibly(released));
+        asyncService.withDefaultBoard(service -> awaitUninterruptibly(released));
+        for (int i = 0; i < 2; i++) {
+            results.add(asyncService.withDefaultBoard(service -> service.create(getDefaultWidgetChangeSet())));
+        }
+
+        released.countDown();
+        asyncService.close();
+
+        for (CompletableFuture<ImmutableWidget> result : results) {
+            assertTrue(result.isDone());
+            assertFalse(result.isCompletedExceptionally());
+        }
+    }
+
+    private boolean awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            return latch.await(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private WidgetChangeSet getDefaultWidgetChangeSet() {
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+
+        changeSet.setX(10);
+        changeSet.setY(20);
+        changeSet.setZ(30);
+        changeSet.setHeight(100);
+        changeSet.setWidth(200);
+
+        return changeSet;
+    }
+}
@@ -0,0 +1,172 @@
+package com.azaitsev.widgets.service.widget;
+
+import com.azaitsev.widgets.entity.widget.ImmutableWidget;
+import com.azaitsev.widgets.entity.widget.WidgetChangeSet;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WidgetBoardServiceImplUnitTest {
+    private Path directory;
+    private MeterRegistry registry;
+    private WidgetBoardServiceImpl boardService;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("widgets-boards");
+        registry = new SimpleMeterRegistry();
+        // Boards are evicted by the test only
+        boardService = new WidgetBoardServiceImpl(directory, Duration.ZERO, Duration.ofDays(1), registry);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        boardService.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void withBoard_shouldKeepBoardsApart() {
+        ImmutableWidget widget = boardService.withBoard("first", service -> service.create(getDefaultWidgetChangeSet()));
+
+        assertEquals(List.of(widget), boardService.withBoard("first", service -> service.getPage(10, 0)));
+        assertTrue(boardService.withBoard("second", service -> service.getPage(10, 0)).isEmpty());
+        assertTrue(boardService.withBoard("second", service -> service.get(widget.getId())).isEmpty());
+        assertEquals(2, boardService.getLoadedBoardsCount());
+    }
+
+    @Test
+    public void evictIdleBoards_shouldWriteBoardsOutAndLoadThemBack() {
+        WidgetChangeSet changeSet = getDefaultWidgetChangeSet();
+        boardService.withBoard("first", service -> service.create(changeSet));
+        changeSet.setZ(null);
+        boardService.withBoard("first", service -> service.create(changeSet));
+        List<ImmutableWidget> widgets = boardService.withBoard("first", service -> service.getPage(10, 0));
+        boardService.withBoard("second", service -> service.getPage(10, 0));
+
+        boardService.evictIdleBoards();
+
+        assertEquals(0, boardService.getLoadedBoardsCount());
+        assertTrue(Files.exists(directory.resolve("first.snapshot")));
+        // Empty board takes no file
+        assertFalse(Files.exists(directory.resolve("second.snapshot")));
+        assertEquals(widgets, boardService.withBoard("first", service -> service.getPage(10, 0)));
+        assertEquals(1, boardService.getLoadedBoardsCount());
+    }
+
+    @Test
+    public void evictIdleBoards_shouldKeepBoardVersionUntilRestart() throws IOException {
+        boardService.withBoard("first", service -> service.create(getDefaultWidgetChangeSet()));
+        String epoch = boardService.withBoard("first", WidgetService::getBoardEpoch);
+        long version = boardService.withBoard("first", WidgetService::getBoardVersion);
+
+        boardService.evictIdleBoards();
+
+        assertEquals(0, boardService.getLoadedBoardsCount());
+        assertEquals(epoch, boardService.withBoard("first", WidgetService::getBoardEpoch));
+        assertEquals(version, (long) boardService.withBoard("first", WidgetService::getBoardVersion));
+        boardService.withBoard("first", service -> service.create(getDefaultWidgetChangeSet()));
+        assertEquals(version + 2, (long) boardService.withBoard("first", WidgetService::getBoardVersion));
+
+        // Board written out by an earlier run may have lost changes since, so its versions start over
+        boardService.close();
+        boardService = new WidgetBoardServiceImpl(directory, Duration.ZERO, Duration.ofDays(1), registry);
+        assertNotEquals(epoch, boardService.withBoard("first", WidgetService::getBoardEpoch));
+        assertEquals(2, boardService.withBoard("first", service -> service.getPage(10, 0)).size());
+    }
+
+    @Test
+    public void evictIdleBoards_shouldRemoveMetersOfEvictedBoards() {
+        boardService.withBoard("first", service -> service.create(getDefaultWidgetChangeSet()));
+        boardService.withBoard("second", service -> service.getPage(10, 0));
+
+        assertEquals(1, registry.get("widgets.repository.widgets").tag("board", "first").gauge().value());
+        assertEquals(0, registry.get("widgets.repository.widgets").tag("board", "second").gauge().value());
+        assertEquals(1, registry.get("widgets.service").tags("board", "first", "operation", "create").timer().count());
+        assertEquals(1, registry.get("widgets.service").tags("board", "second", "operation", "getPage").timer().count());
+
+        boardService.evictIdleBoards();
+
+        assertTrue(registry.find("widgets.repository.widgets").gauges().isEmpty());
+        assertTrue(registry.find("widgets.repository.lock.hold").timers().isEmpty());
+        assertTrue(registry.find("widgets.service").timers().isEmpty());
+    }
+
+    @Test
+    public void withBoard_shouldLoadBoardOnceAgainAfterFailure() throws IOException {
+        Path file = directory.resolve("first.snapshot");
+        Files.write(file, new byte[]{1, 2, 3});
+
+        assertThrows(UncheckedIOException.class, () -> boardService.withBoard("first", service -> null));
+        assertEquals(0, boardService.getLoadedBoardsCount());
+
+        Files.delete(file);
+        assertTrue(boardService.withBoard("first", service -> service.getPage(10, 0)).isEmpty());
+        assertEquals(1, boardService.getLoadedBoardsCount());
+    }
+
+    @Test
+    public void evictIdleBoards_shouldKeepBoardsWithSubscribers() {
+        Runnable listener = () -> { };
+        boardService.withBoard("first", service -> {
+            service.getChangeFeed().addListener(listener);
+            return service.create(getDefaultWidgetChangeSet());
+        });
+
+        boardService.evictIdleBoards();
+        assertEquals(1, boardService.getLoadedBoardsCount());
+
+        boardService.withBoard("first", service -> {
+            service.getChangeFeed().removeListener(listener);
+            return null;
+        });
+        boardService.evictIdleBoards();
+        assertEquals(0, boardService.getLoadedBoardsCount());
+    }
+
+    @Test
+    public void close_shouldWriteOutBoardsInUse() throws IOException {
+        ImmutableWidget widget = boardService.withBoard("first", service -> service.create(getDefaultWidgetChangeSet()));
+
+        boardService.close();
+        // Fresh service sees only what was written to the directory
+        boardService = new WidgetBoardServiceImpl(directory, Duration.ofMinutes(10), Duration.ofDays(1), registry);
+
+        assertEquals(List.of(widget), boardService.withBoard("first", service -> service.getPage(10, 0)));
+    }
+
+    @Test
+    public void withBoard_shouldRejectUnsafeBoardId() {
+        assertThrows(IllegalArgumentException.class, () -> boardService.withBoard("../first", service -> null));
+        assertThrows(IllegalArgumentException.class, () -> boardService.withBoard("", service -> null));
+    }
+
+    private WidgetChangeSet getDefaultWidgetChangeSet() {
+        WidgetChangeSet changeSet = new WidgetChangeSet();
+
+        changeSet.setX(10);
+        changeSet.setY(20);
+        changeSet.setZ(30);
+        changeSet.setHeight(100);
+        changeSet.setWidth(200);
+
+        return changeSet;
+    }
+}